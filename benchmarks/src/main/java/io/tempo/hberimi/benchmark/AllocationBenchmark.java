@@ -0,0 +1,120 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+//Uncontended single-threaded paths, meant to be run with -prof gc or through main
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AllocationBenchmark {
+    private static final String ALLOCATION_RATE = "gc.alloc.rate.norm";
+    //Entity locks, table entries and interceptor keys are reused, anything above measurement noise is a regression
+    private static final double MAX_BYTES_PER_OP = 1;
+    //The free locks a concurrent table keeps mapped, ConcurrentEntityLockTable.DEFAULT_RETAINED_LOCKS
+    private static final int RETAINED_LOCKS = 1024;
+    //Past them a concurrent table allocates a lock, its table node and its interceptor node per relock, 166 B/op measured
+    private static final double MAX_BYTES_PER_OP_PAST_RETAINED = 192;
+    //The deadlock interceptor keeps a holder set per shared entity and drops it on the last release, 280 B/op measured
+    private static final double MAX_BYTES_PER_SHARED_OP = 320;
+
+    @Param({"CONCURRENT", "STRIPED"})
+    public LockerType lockerType;
+
+    //Within the free locks a concurrent table retains and past them, a power of two
+    @Param({"1024", "4096"})
+    public int entities;
+
+    private EntityLocker<Integer> entityLocker;
+    private Integer[] entityIds;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        entityLocker = lockerType.create(Integer.MAX_VALUE);
+        entityIds = new Integer[entities];
+        for (int i = 0; i < entities; ++i) {
+            entityIds[i] = i;
+        }
+    }
+
+    @Benchmark
+    public void lockUnlock() throws InterceptedDeadlockException {
+        final Integer entityId = nextEntity();
+        entityLocker.lock(entityId);
+        entityLocker.unlock(entityId);
+    }
+
+    @Benchmark
+    public void lockSharedUnlock() throws InterceptedDeadlockException {
+        final Integer entityId = nextEntity();
+        entityLocker.lockShared(entityId);
+        entityLocker.unlockShared(entityId);
+    }
+
+    @Benchmark
+    public boolean tryLockUnlock() throws InterceptedDeadlockException {
+        final Integer entityId = nextEntity();
+        final boolean isLockGranted = entityLocker.tryLock(entityId);
+        if (isLockGranted) {
+            entityLocker.unlock(entityId);
+        }
+        return isLockGranted;
+    }
+
+    @Benchmark
+    public boolean timedTryLockUnlock() throws InterruptedException, InterceptedDeadlockException {
+        final Integer entityId = nextEntity();
+        final boolean isLockGranted = entityLocker.tryLock(entityId, 1, TimeUnit.MILLISECONDS);
+        if (isLockGranted) {
+            entityLocker.unlock(entityId);
+        }
+        return isLockGranted;
+    }
+
+    private Integer nextEntity() {
+        next = (next + 1) & (entities - 1);
+        return entityIds[next];
+    }
+
+    //Fails when the striped paths or the concurrent ones within the retained locks start allocating again,
+    //when a concurrent relock past them allocates more than a lock and its entries, or a shared lock more than its holder set
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(AllocationBenchmark.class.getSimpleName())
+                .param("lockerType", LockerType.CONCURRENT.name(), LockerType.STRIPED.name())
+                .addProfiler(GCProfiler.class)
+                .build();
+        final Collection<RunResult> results = new Runner(options).run();
+
+        for (final RunResult result : results) {
+            final Result<?> allocationRate = result.getSecondaryResults().get(ALLOCATION_RATE);
+            final LockerType lockerType = LockerType.valueOf(result.getParams().getParam("lockerType"));
+            final int entities = Integer.parseInt(result.getParams().getParam("entities"));
+            final String benchmark = result.getParams().getBenchmark() + " " + lockerType + " " + entities;
+            final boolean isShared = result.getParams().getBenchmark().endsWith("lockSharedUnlock");
+            if (allocationRate != null && allocationRate.getScore() > maxBytesPerOp(lockerType, entities, isShared)) {
+                throw new IllegalStateException(benchmark + " allocates " + allocationRate.getScore() + " B/op");
+            }
+        }
+    }
+
+    private static double maxBytesPerOp(final LockerType lockerType, final int entities, final boolean isShared) {
+        final double pastRetained = lockerType == LockerType.CONCURRENT && entities > RETAINED_LOCKS ? MAX_BYTES_PER_OP_PAST_RETAINED : 0;
+        return (isShared ? MAX_BYTES_PER_SHARED_OP : MAX_BYTES_PER_OP) + pastRetained;
+    }
+}
@@ -0,0 +1,47 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.locker.LockOwner;
+import io.tempo.hberimi.locker.impl.QueuedEntityLocker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsyncLockBenchmark {
+    private static final Integer HOT_ENTITY = 0;
+
+    @Param({"10000"})
+    public int pendingOperations;
+
+    private QueuedEntityLocker<Integer> entityLocker;
+    private LockOwner blocker;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        entityLocker = new QueuedEntityLocker<>();
+        blocker = entityLocker.newOwner("blocker");
+    }
+
+    @Benchmark
+    public void pendingOperationsOnHotEntity() {
+        entityLocker.lockAsync(blocker, HOT_ENTITY).join();
+
+        final CompletableFuture<?>[] completions = new CompletableFuture[pendingOperations];
+        for (int i = 0; i < pendingOperations; ++i) {
+            completions[i] = entityLocker.lockAsync(HOT_ENTITY).thenAccept(owner -> {
+                Blackhole.consumeCPU(100);
+                entityLocker.unlock(owner, HOT_ENTITY);
+            });
+        }
+
+        entityLocker.unlock(blocker, HOT_ENTITY);
+        CompletableFuture.allOf(completions).join();
+    }
+}
@@ -0,0 +1,63 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchLockBenchmark {
+    @Param({"5", "50"})
+    public int batchSize;
+
+    @Param({"CONCURRENT", "STRIPED"})
+    public LockerType lockerType;
+
+    private EntityLocker<Integer> entityLocker;
+    private AtomicInteger batches;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        entityLocker = lockerType.create(Integer.MAX_VALUE);
+        batches = new AtomicInteger();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadBatch {
+        private List<Integer> entitiesIds;
+
+        @Setup(Level.Trial)
+        public void setUp(final BatchLockBenchmark benchmark) {
+            final int first = benchmark.batches.getAndIncrement() * benchmark.batchSize;
+            entitiesIds = new ArrayList<>(benchmark.batchSize);
+            for (int i = benchmark.batchSize - 1; i >= 0; --i) {
+                entitiesIds.add(first + i);
+            }
+        }
+    }
+
+    @Benchmark
+    public void lockAllUnlockAll(final ThreadBatch batch) throws InterceptedDeadlockException {
+        entityLocker.lockAll(batch.entitiesIds);
+        entityLocker.unlockAll(batch.entitiesIds);
+    }
+
+    @Benchmark
+    public void lockEachUnlockEach(final ThreadBatch batch) throws InterceptedDeadlockException {
+        for (final Integer entityId : batch.entitiesIds) {
+            entityLocker.lock(entityId);
+        }
+        for (final Integer entityId : batch.entitiesIds) {
+            entityLocker.unlock(entityId);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.interceptor.DeadlockStrategy;
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+//Single locks never deadlock, so their score shows only what a strategy's bookkeeping costs. Pairs taken in random order do,
+//aborted pairs are released and count as operations, and are reported besides the score as the aborts counter.
+//Run with ThreadScalingRunner, one thread shows the uncontended grant and release hooks alone
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeadlockStrategyBenchmark {
+    @Param({"EAGER", "BACKGROUND", "TIMEOUT", "WAIT_DIE", "WOUND_WAIT"})
+    public DeadlockStrategyType deadlockStrategy;
+
+    @Param({"4", "1024"})
+    public int entities;
+
+    private DeadlockStrategy<Object> strategy;
+    private EntityLocker<Integer> entityLocker;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        strategy = deadlockStrategy.create();
+        entityLocker = new EntityLockerImpl<>(Integer.MAX_VALUE, strategy);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (strategy instanceof AutoCloseable) {
+            ((AutoCloseable) strategy).close();
+        }
+    }
+
+    @Benchmark
+    public void lockUnlock() throws InterceptedDeadlockException {
+        final Integer entityId = ThreadLocalRandom.current().nextInt(entities);
+        entityLocker.lock(entityId);
+        Blackhole.consumeCPU(100);
+        entityLocker.unlock(entityId);
+    }
+
+    @Benchmark
+    public boolean lockPairInRandomOrder(final Aborts aborts) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final Integer first = random.nextInt(entities);
+        final Integer second = (first + 1 + random.nextInt(entities - 1)) % entities;
+
+        //A timeout may end the wait for the first entity as well
+        try {
+            entityLocker.lock(first);
+        } catch (InterceptedDeadlockException e) {
+            ++aborts.aborts;
+            return false;
+        }
+        try {
+            entityLocker.lock(second);
+        } catch (InterceptedDeadlockException e) {
+            entityLocker.unlock(first);
+            ++aborts.aborts;
+            return false;
+        }
+
+        Blackhole.consumeCPU(100);
+        entityLocker.unlock(second);
+        entityLocker.unlock(first);
+        return true;
+    }
+
+    //Summed over the threads, reported as the aborts of the measured iterations
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Aborts {
+        public long aborts;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            aborts = 0;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.interceptor.BackgroundDeadlockDetector;
+import io.tempo.hberimi.interceptor.DeadlockInterceptor;
+import io.tempo.hberimi.interceptor.DeadlockStrategy;
+import io.tempo.hberimi.interceptor.TimeoutDeadlockStrategy;
+import io.tempo.hberimi.interceptor.WaitDieStrategy;
+import io.tempo.hberimi.interceptor.WoundWaitStrategy;
+
+import java.util.concurrent.TimeUnit;
+
+public enum DeadlockStrategyType {
+    EAGER {
+        @Override
+        public DeadlockStrategy<Object> create() {
+            return new DeadlockInterceptor<>();
+        }
+    },
+    BACKGROUND {
+        @Override
+        public DeadlockStrategy<Object> create() {
+            return new BackgroundDeadlockDetector<>(10, TimeUnit.MILLISECONDS);
+        }
+    },
+    TIMEOUT {
+        @Override
+        public DeadlockStrategy<Object> create() {
+            return new TimeoutDeadlockStrategy<>(1, TimeUnit.SECONDS);
+        }
+    },
+    WAIT_DIE {
+        @Override
+        public DeadlockStrategy<Object> create() {
+            return new WaitDieStrategy<>();
+        }
+    },
+    WOUND_WAIT {
+        @Override
+        public DeadlockStrategy<Object> create() {
+            return new WoundWaitStrategy<>();
+        }
+    };
+
+    public abstract DeadlockStrategy<Object> create();
+}
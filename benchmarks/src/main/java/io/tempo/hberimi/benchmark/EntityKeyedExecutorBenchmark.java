@@ -0,0 +1,77 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityKeyedExecutor;
+import io.tempo.hberimi.locker.impl.EntityKeyedExecutorImpl;
+import io.tempo.hberimi.locker.impl.QueuedEntityLocker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+//The same tasks on the same pool, once as lock-work-unlock parking the pool threads on a busy entity and once keyed.
+//One entity is the hot key case, the keyed executor should then be bound by the work alone
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntityKeyedExecutorBenchmark {
+    @Param({"10000"})
+    public int tasks;
+
+    @Param({"1", "64"})
+    public int entities;
+
+    private QueuedEntityLocker<Integer> entityLocker;
+    private ExecutorService pool;
+    private EntityKeyedExecutor<Integer> keyedExecutor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        entityLocker = new QueuedEntityLocker<>();
+        pool = Executors.newFixedThreadPool(8);
+        keyedExecutor = new EntityKeyedExecutorImpl<>(entityLocker, pool);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    public void lockingTasks() {
+        final CompletableFuture<?>[] completions = new CompletableFuture[tasks];
+        for (int i = 0; i < tasks; ++i) {
+            final Integer entityId = i % entities;
+            completions[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    entityLocker.lock(entityId);
+                } catch (InterceptedDeadlockException e) {
+                    throw new IllegalStateException(e);
+                }
+                try {
+                    Blackhole.consumeCPU(100);
+                } finally {
+                    entityLocker.unlock(entityId);
+                }
+            }, pool);
+        }
+
+        CompletableFuture.allOf(completions).join();
+    }
+
+    @Benchmark
+    public void keyedTasks() {
+        final CompletableFuture<?>[] completions = new CompletableFuture[tasks];
+        for (int i = 0; i < tasks; ++i) {
+            completions[i] = keyedExecutor.submit(i % entities, () -> Blackhole.consumeCPU(100));
+        }
+
+        CompletableFuture.allOf(completions).join();
+    }
+}
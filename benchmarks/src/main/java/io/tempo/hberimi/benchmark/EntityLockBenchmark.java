@@ -0,0 +1,70 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntityLockBenchmark {
+    @Param({"CONCURRENT", "STRIPED"})
+    public LockerType lockerType;
+
+    private EntityLocker<Integer> entityLocker;
+    private AtomicInteger entityIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        entityLocker = lockerType.create(100);
+        entityIds = new AtomicInteger();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadEntity {
+        private Integer entityId;
+
+        @Setup(Level.Trial)
+        public void setUp(final EntityLockBenchmark benchmark) {
+            entityId = benchmark.entityIds.getAndIncrement();
+        }
+    }
+
+    @Benchmark
+    public void uncontendedLockUnlock(final ThreadEntity entity) throws InterceptedDeadlockException {
+        entityLocker.lock(entity.entityId);
+        entityLocker.unlock(entity.entityId);
+    }
+
+    @Benchmark
+    public void reentrantLockUnlock(final ThreadEntity entity) throws InterceptedDeadlockException {
+        entityLocker.lock(entity.entityId);
+        entityLocker.lock(entity.entityId);
+        entityLocker.unlock(entity.entityId);
+        entityLocker.unlock(entity.entityId);
+    }
+
+    @Benchmark
+    public boolean tryLockUnlock(final ThreadEntity entity) throws InterceptedDeadlockException {
+        final boolean isLockGranted = entityLocker.tryLock(entity.entityId);
+        if (isLockGranted) {
+            entityLocker.unlock(entity.entityId);
+        }
+        return isLockGranted;
+    }
+
+    @Benchmark
+    public boolean tryLockWithTimeoutUnlock(final ThreadEntity entity) throws InterruptedException, InterceptedDeadlockException {
+        final boolean isLockGranted = entityLocker.tryLock(entity.entityId, 1, TimeUnit.MILLISECONDS);
+        if (isLockGranted) {
+            entityLocker.unlock(entity.entityId);
+        }
+        return isLockGranted;
+    }
+}
@@ -0,0 +1,52 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EscalationBenchmark {
+    @Param({"16", "128"})
+    public int minLocksBeforeGlobal;
+
+    @Param({"CONCURRENT", "STRIPED"})
+    public LockerType lockerType;
+
+    private EntityLocker<Integer> entityLocker;
+    private Integer[] entitiesIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        entityLocker = lockerType.create(minLocksBeforeGlobal);
+        entitiesIds = new Integer[minLocksBeforeGlobal];
+        for (int i = 0; i < entitiesIds.length; ++i) {
+            entitiesIds[i] = i;
+        }
+    }
+
+    @Benchmark
+    public void lockBelowEscalationThreshold() throws InterceptedDeadlockException {
+        lockAndUnlock(entitiesIds.length - 1);
+    }
+
+    @Benchmark
+    public void lockWithEscalation() throws InterceptedDeadlockException {
+        lockAndUnlock(entitiesIds.length);
+    }
+
+    private void lockAndUnlock(final int count) throws InterceptedDeadlockException {
+        for (int i = 0; i < count; ++i) {
+            entityLocker.lock(entitiesIds[i]);
+        }
+        for (int i = count - 1; i >= 0; --i) {
+            entityLocker.unlock(entitiesIds[i]);
+        }
+    }
+}
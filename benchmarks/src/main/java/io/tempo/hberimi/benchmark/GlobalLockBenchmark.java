@@ -0,0 +1,65 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class GlobalLockBenchmark {
+    private static final int GLOBAL_SECTION_TOKENS = 1_000;
+
+    @Param({"CONCURRENT", "STRIPED"})
+    public LockerType lockerType;
+
+    private EntityLocker<Integer> entityLocker;
+    private AtomicInteger entityIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        entityLocker = lockerType.create(100);
+        entityIds = new AtomicInteger();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadEntity {
+        private Integer entityId;
+
+        @Setup(Level.Trial)
+        public void setUp(final GlobalLockBenchmark benchmark) {
+            entityId = benchmark.entityIds.getAndIncrement();
+        }
+    }
+
+    @Benchmark
+    @Group("uncontendedGlobal")
+    public void globalLockUnlock() throws InterceptedDeadlockException {
+        entityLocker.globalLock();
+        entityLocker.globalUnlock();
+    }
+
+    @Benchmark
+    @Group("globalUnderEntityLoad")
+    @GroupThreads(3)
+    public void entityLockUnderGlobal(final ThreadEntity entity) throws InterceptedDeadlockException {
+        entityLocker.lock(entity.entityId);
+        entityLocker.unlock(entity.entityId);
+    }
+
+    @Benchmark
+    @Group("globalUnderEntityLoad")
+    @GroupThreads(1)
+    public void globalLockUnderEntityLoad() throws InterceptedDeadlockException {
+        entityLocker.globalLock();
+        Blackhole.consumeCPU(GLOBAL_SECTION_TOKENS);
+        entityLocker.globalUnlock();
+    }
+}
@@ -0,0 +1,59 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HotEntityBenchmark {
+    private static final Integer HOT_ENTITY = 0;
+
+    @Param({"0", "100"})
+    public int criticalSectionTokens;
+
+    @Param({"CONCURRENT", "STRIPED"})
+    public LockerType lockerType;
+
+    @Param({"false", "true"})
+    public boolean isMetricsEnabled;
+
+    private EntityLocker<Integer> entityLocker;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        entityLocker = lockerType.create(100);
+        entityLocker.metrics().setEnabled(isMetricsEnabled);
+    }
+
+    @Benchmark
+    public void lockUnlockHotEntity() throws InterceptedDeadlockException {
+        entityLocker.lock(HOT_ENTITY);
+        Blackhole.consumeCPU(criticalSectionTokens);
+        entityLocker.unlock(HOT_ENTITY);
+    }
+
+    @Benchmark
+    public void lockSharedUnlockHotEntity() throws InterceptedDeadlockException {
+        entityLocker.lockShared(HOT_ENTITY);
+        Blackhole.consumeCPU(criticalSectionTokens);
+        entityLocker.unlockShared(HOT_ENTITY);
+    }
+
+    @Benchmark
+    public boolean tryLockWithTimeoutHotEntity() throws InterruptedException, InterceptedDeadlockException {
+        final boolean isLockGranted = entityLocker.tryLock(HOT_ENTITY, 1, TimeUnit.MILLISECONDS);
+        if (isLockGranted) {
+            Blackhole.consumeCPU(criticalSectionTokens);
+            entityLocker.unlock(HOT_ENTITY);
+        }
+        return isLockGranted;
+    }
+}
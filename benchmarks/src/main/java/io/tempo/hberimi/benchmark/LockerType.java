@@ -0,0 +1,30 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import io.tempo.hberimi.locker.impl.QueuedEntityLocker;
+import io.tempo.hberimi.locker.impl.StripedEntityLocker;
+
+public enum LockerType {
+    CONCURRENT {
+        @Override
+        public <T> EntityLocker<T> create(final int minLocksBeforeGlobal) {
+            return new EntityLockerImpl<>(minLocksBeforeGlobal);
+        }
+    },
+    STRIPED {
+        @Override
+        public <T> EntityLocker<T> create(final int minLocksBeforeGlobal) {
+            return new StripedEntityLocker<>(1 << 12, minLocksBeforeGlobal);
+        }
+    },
+    //Never escalates, minLocksBeforeGlobal is ignored
+    QUEUED {
+        @Override
+        public <T> EntityLocker<T> create(final int minLocksBeforeGlobal) {
+            return new QueuedEntityLocker<>();
+        }
+    };
+
+    public abstract <T> EntityLocker<T> create(int minLocksBeforeGlobal);
+}
@@ -0,0 +1,51 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.LongEntityLocker;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import io.tempo.hberimi.locker.impl.LongEntityLockerImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//A batch holding many database keys at once, run with -prof gc to compare B/op
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LongEntityLockBenchmark {
+    @Param({"100000"})
+    public int heldLocks;
+
+    private LongEntityLocker longLocker;
+    private EntityLocker<Long> boxedLocker;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        longLocker = new LongEntityLockerImpl(1 << 6, Integer.MAX_VALUE);
+        boxedLocker = new EntityLockerImpl<>(Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void holdBatchLongKeys() throws InterceptedDeadlockException {
+        for (long entityId = 0; entityId < heldLocks; ++entityId) {
+            longLocker.lock(entityId);
+        }
+        for (long entityId = 0; entityId < heldLocks; ++entityId) {
+            longLocker.unlock(entityId);
+        }
+    }
+
+    @Benchmark
+    public void holdBatchBoxedKeys() throws InterceptedDeadlockException {
+        for (long entityId = 0; entityId < heldLocks; ++entityId) {
+            boxedLocker.lock(entityId);
+        }
+        for (long entityId = 0; entityId < heldLocks; ++entityId) {
+            boxedLocker.unlock(entityId);
+        }
+    }
+}
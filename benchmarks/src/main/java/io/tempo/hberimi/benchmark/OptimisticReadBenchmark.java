@@ -0,0 +1,88 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+//Readers of one hot entity, once under the shared lock and once by stamp, with a writer share of the operations.
+//A shared lock writes the entity lock on every read, a stamp only loads the sequence word
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OptimisticReadBenchmark {
+    private static final Integer HOT_ENTITY = 0;
+
+    @Param({"0", "10"})
+    public int writePercent;
+
+    @Param({"CONCURRENT", "STRIPED"})
+    public LockerType lockerType;
+
+    private EntityLocker<Integer> entityLocker;
+    private long value;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        entityLocker = lockerType.create(100);
+    }
+
+    @State(Scope.Thread)
+    public static class Operations {
+        private int next;
+
+        boolean isWrite(final int writePercent) {
+            next = (next + 1) % 100;
+            return next < writePercent;
+        }
+    }
+
+    @Benchmark
+    public long sharedRead(final Operations operations) throws InterceptedDeadlockException {
+        if (operations.isWrite(writePercent)) {
+            return write();
+        }
+
+        entityLocker.lockShared(HOT_ENTITY);
+        try {
+            return value;
+        } finally {
+            entityLocker.unlockShared(HOT_ENTITY);
+        }
+    }
+
+    @Benchmark
+    public long optimisticRead(final Operations operations) throws InterceptedDeadlockException {
+        if (operations.isWrite(writePercent)) {
+            return write();
+        }
+
+        final long stamp = entityLocker.tryOptimisticRead(HOT_ENTITY);
+        final long read = value;
+        if (entityLocker.validate(HOT_ENTITY, stamp)) {
+            return read;
+        }
+
+        entityLocker.lockShared(HOT_ENTITY);
+        try {
+            return value;
+        } finally {
+            entityLocker.unlockShared(HOT_ENTITY);
+        }
+    }
+
+    private long write() throws InterceptedDeadlockException {
+        entityLocker.lock(HOT_ENTITY);
+        try {
+            Blackhole.consumeCPU(10);
+            return ++value;
+        } finally {
+            entityLocker.unlock(HOT_ENTITY);
+        }
+    }
+}
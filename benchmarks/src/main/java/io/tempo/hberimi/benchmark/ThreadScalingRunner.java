@@ -0,0 +1,34 @@
+package io.tempo.hberimi.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class ThreadScalingRunner {
+
+    private ThreadScalingRunner() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final String benchmark = args.length > 0 ? args[0] : HotEntityBenchmark.class.getSimpleName();
+        final int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        for (int threads = 1; threads < maxThreads; threads <<= 1) {
+            run(benchmark, threads);
+        }
+        run(benchmark, maxThreads);
+    }
+
+    private static void run(final String benchmark, final int threads) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(benchmark)
+                .threads(threads)
+                .result("jmh-" + benchmark + "-" + threads + "t.json")
+                .resultFormat(ResultFormatType.JSON)
+                .build();
+        new Runner(options).run();
+    }
+}
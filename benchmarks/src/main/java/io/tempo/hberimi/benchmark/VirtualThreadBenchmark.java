@@ -0,0 +1,80 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VirtualThreadBenchmark {
+    private static final int PLATFORM_THREADS = 256;
+
+    public enum ThreadKind {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    public ThreadKind threadKind;
+
+    @Param({"10000"})
+    public int tasks;
+
+    @Param({"64"})
+    public int entities;
+
+    @Param({"CONCURRENT", "STRIPED"})
+    public LockerType lockerType;
+
+    private EntityLocker<Integer> entityLocker;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        entityLocker = lockerType.create(Integer.MAX_VALUE);
+        executor = threadKind == ThreadKind.PLATFORM
+                ? Executors.newFixedThreadPool(PLATFORM_THREADS)
+                : (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public void lockUnlockBurst() throws InterruptedException {
+        final CountDownLatch completed = new CountDownLatch(tasks);
+
+        for (int i = 0; i < tasks; ++i) {
+            final Integer entityId = i % entities;
+            executor.execute(() -> {
+                try {
+                    entityLocker.lock(entityId);
+                    //Parks while holding the entity, the way blocking I/O inside a critical section does
+                    Blackhole.consumeCPU(100);
+                    LockSupport.parkNanos(1_000);
+                    entityLocker.unlock(entityId);
+                } catch (InterceptedDeadlockException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    completed.countDown();
+                }
+            });
+        }
+
+        completed.await();
+    }
+}
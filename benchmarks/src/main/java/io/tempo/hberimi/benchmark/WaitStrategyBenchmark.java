@@ -0,0 +1,56 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+//Short critical sections on a few hot entities, throughput shows the cost of parking and sample time shows the tail of barging.
+//Run with ThreadScalingRunner, one thread shows only the uncontended overhead of a strategy
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WaitStrategyBenchmark {
+    @Param({"PARK", "SPIN", "SPIN_YIELD", "ADAPTIVE", "FAIR"})
+    public WaitStrategyType waitStrategy;
+
+    //About 1 and 5 microseconds
+    @Param({"200", "1000"})
+    public int criticalSectionTokens;
+
+    @Param({"1", "4"})
+    public int hotEntities;
+
+    private EntityLocker<Integer> entityLocker;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        entityLocker = new EntityLockerImpl<>(Integer.MAX_VALUE, waitStrategy.create());
+    }
+
+    @Benchmark
+    public void lockUnlockHotEntity() throws InterceptedDeadlockException {
+        final Integer entityId = ThreadLocalRandom.current().nextInt(hotEntities);
+        entityLocker.lock(entityId);
+        Blackhole.consumeCPU(criticalSectionTokens);
+        entityLocker.unlock(entityId);
+    }
+
+    @Benchmark
+    public boolean tryLockWithTimeoutHotEntity() throws InterruptedException, InterceptedDeadlockException {
+        final Integer entityId = ThreadLocalRandom.current().nextInt(hotEntities);
+        final boolean isLockGranted = entityLocker.tryLock(entityId, 1, TimeUnit.MILLISECONDS);
+        if (isLockGranted) {
+            Blackhole.consumeCPU(criticalSectionTokens);
+            entityLocker.unlock(entityId);
+        }
+        return isLockGranted;
+    }
+}
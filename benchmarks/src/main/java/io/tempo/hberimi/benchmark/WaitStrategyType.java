@@ -0,0 +1,42 @@
+package io.tempo.hberimi.benchmark;
+
+import io.tempo.hberimi.locker.WaitStrategy;
+import io.tempo.hberimi.locker.impl.AdaptiveSpinWaitStrategy;
+import io.tempo.hberimi.locker.impl.FairWaitStrategy;
+import io.tempo.hberimi.locker.impl.ParkWaitStrategy;
+import io.tempo.hberimi.locker.impl.SpinWaitStrategy;
+
+public enum WaitStrategyType {
+    PARK {
+        @Override
+        public WaitStrategy create() {
+            return ParkWaitStrategy.INSTANCE;
+        }
+    },
+    SPIN {
+        @Override
+        public WaitStrategy create() {
+            return new SpinWaitStrategy(1 << 10);
+        }
+    },
+    SPIN_YIELD {
+        @Override
+        public WaitStrategy create() {
+            return new SpinWaitStrategy(1 << 8, 1 << 4);
+        }
+    },
+    ADAPTIVE {
+        @Override
+        public WaitStrategy create() {
+            return new AdaptiveSpinWaitStrategy();
+        }
+    },
+    FAIR {
+        @Override
+        public WaitStrategy create() {
+            return FairWaitStrategy.INSTANCE;
+        }
+    };
+
+    public abstract WaitStrategy create();
+}
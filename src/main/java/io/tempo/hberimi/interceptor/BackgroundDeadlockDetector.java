@@ -0,0 +1,64 @@
+package io.tempo.hberimi.interceptor;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//Waits are only published on the hot path, a daemon walks the wait-for graph every interval
+//and aborts one waiter of each cycle found, the victim's wait ends with an InterceptedDeadlockException
+public class BackgroundDeadlockDetector<T> extends DeadlockInterceptor<T> implements AutoCloseable {
+    private final long intervalNanos;
+    private final ScheduledExecutorService detector;
+    //Touched by the detector thread only
+    private final Deque<OwnerRecord<T>> blockers;
+    private final Set<OwnerRecord<T>> visited;
+
+    public BackgroundDeadlockDetector(final long interval, final TimeUnit unit) {
+        this(false, interval, unit);
+    }
+
+    public BackgroundDeadlockDetector(final boolean isKeepingKeys, final long interval, final TimeUnit unit) {
+        super(isKeepingKeys);
+        this.intervalNanos = Math.max(1, unit.toNanos(interval));
+        this.blockers = new ArrayDeque<>();
+        this.visited = new HashSet<>();
+        this.detector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "deadlock-detector");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.detector.scheduleWithFixedDelay(() -> markVictims(blockers, visited), intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void beforeLocking(final T entityId) {
+        startWaiting(currentRecord(), entityId, false);
+    }
+
+    @Override
+    public void beforeSharedLocking(final T entityId) {
+        startWaiting(currentRecord(), entityId, true);
+    }
+
+    //A victim learns about it within a slice, so a cycle is broken within two intervals
+    @Override
+    public long waitSliceNanos() {
+        return intervalNanos;
+    }
+
+    @Override
+    public void keepWaiting(final T entityId, final long waitStartTime) throws InterceptedDeadlockException {
+        abortIfVictim(currentRecord());
+    }
+
+    @Override
+    public void close() {
+        detector.shutdownNow();
+    }
+}
@@ -2,116 +2,427 @@ package io.tempo.hberimi.interceptor;
 
 import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
 
-import java.util.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class DeadlockInterceptor<T> {
-    private final Map<T, Thread> lockedEntities;
-    private final Map<Thread, T> waitingThreads;
-    private final Map<Thread, Set<T>> threadLockedEntities;
-    private Thread globalThread;
+//Eager detection, every wait walks the wait-for graph before it starts
+public class DeadlockInterceptor<T> implements DeadlockStrategy<T> {
+    //Marks a released exclusive key which is kept in the map instead of being removed
+    @SuppressWarnings("rawtypes")
+    private static final OwnerRecord RELEASED = new OwnerRecord<>(null);
+
+    private final ConcurrentMap<T, OwnerRecord<T>> lockedEntities;
+    private final ConcurrentMap<T, Set<OwnerRecord<T>>> sharedEntities;
+    private final Set<OwnerRecord<T>> waitingRecords;
+    private final ThreadLocal<OwnerRecord<T>> currentRecord;
+    //Monitors pin virtual threads to their carriers, so global locking is guarded by a j.u.c lock
+    private final ReentrantLock globalOwnerGuard;
+    private final int maxReleasedKeys;
+    private volatile Object globalOwner;
 
     public DeadlockInterceptor() {
-        this.lockedEntities = new HashMap<>();
-        this.waitingThreads = new HashMap<>();
-        this.threadLockedEntities = new HashMap<>();
+        this(0);
     }
-    public synchronized void beforeLocking(final T entityId) throws InterceptedDeadlockException {
-        checkOnDeadlock(entityId);
 
-        waitingThreads.put(Thread.currentThread(), entityId);
+    //Keeping keys saves a map node per exclusive grant, it is meant for a bounded key space such as lock stripes
+    public DeadlockInterceptor(final boolean isKeepingKeys) {
+        this(isKeepingKeys ? Integer.MAX_VALUE : 0);
     }
 
-    public synchronized void beforeGlobalLocking() throws InterceptedDeadlockException {
-        final Thread currentGlobalThread = Thread.currentThread();
+    //Released keys are kept while the map holds at most that many keys, later ones are removed
+    public DeadlockInterceptor(final int maxReleasedKeys) {
+        this.maxReleasedKeys = Math.max(0, maxReleasedKeys);
+        this.lockedEntities = new ConcurrentHashMap<>();
+        this.sharedEntities = new ConcurrentHashMap<>();
+        this.waitingRecords = ConcurrentHashMap.newKeySet();
+        this.currentRecord = ThreadLocal.withInitial(() -> new OwnerRecord<>(Thread.currentThread()));
+        this.globalOwnerGuard = new ReentrantLock();
+    }
 
-        if (globalThread != null && globalThread != currentGlobalThread) {
-            if (lockAnyEntity()) {
-                final String message = globalDeadlockPreventedMessage(currentGlobalThread, globalThread);
-                throw new InterceptedDeadlockException(message, currentGlobalThread, globalThread);
-            }
-        } else {
-            globalThread = currentGlobalThread;
+    @Override
+    public void beforeLocking(final T entityId) throws InterceptedDeadlockException {
+        beforeLocking(currentRecord.get(), entityId, false);
+    }
+
+    @Override
+    public void beforeSharedLocking(final T entityId) throws InterceptedDeadlockException {
+        beforeLocking(currentRecord.get(), entityId, true);
+    }
+
+    @Override
+    public void beforeGlobalLocking() throws InterceptedDeadlockException {
+        beforeGlobalLocking(currentRecord.get());
+    }
+
+    public void beforeGlobalLocking(final OwnerRecord<T> record) throws InterceptedDeadlockException {
+        globalOwnerGuard.lock();
+        try {
+            checkOnGlobalDeadlock(record);
+        } finally {
+            globalOwnerGuard.unlock();
         }
+    }
 
-        for (final Map.Entry<Thread, T> entry : waitingThreads.entrySet()) {
+    @Override
+    public void afterGlobalLocking(final boolean isLocked) {
+        afterGlobalLocking(currentRecord.get(), isLocked);
+    }
 
-            final Thread lockedThread = lockedEntities.get(entry.getValue());
+    public void afterGlobalLocking(final OwnerRecord<T> record, final boolean isLocked) {
+        if (isLocked || globalOwner != record.owner) {
+            return;
+        }
 
-            if (lockedThread == currentGlobalThread) {
-                final Thread failThread = entry.getKey();
-                final String message = globalDeadlockPreventedMessage(failThread, currentGlobalThread);
-                throw new InterceptedDeadlockException(message, failThread, currentGlobalThread);
+        globalOwnerGuard.lock();
+        try {
+            if (globalOwner == record.owner) {
+                globalOwner = null;
             }
+        } finally {
+            globalOwnerGuard.unlock();
         }
+    }
 
-        //puts null as indicator that we wait all other threads
-        waitingThreads.put(currentGlobalThread, null);
+    @Override
+    public void beforeGlobalUnlocking() {
+        globalOwnerGuard.lock();
+        try {
+            globalOwner = null;
+        } finally {
+            globalOwnerGuard.unlock();
+        }
+    }
+
+    @Override
+    public void afterLocking(final T entityId, final boolean isLocked) {
+        afterLocking(currentRecord.get(), entityId, isLocked);
     }
 
-    public synchronized void beforeGlobalUnlocking() {
-        waitingThreads.remove(globalThread);
-        globalThread = null;
+    public void afterLocking(final OwnerRecord<T> record, final T entityId, final boolean isLocked) {
+        if (record.waitingEntity != null) {
+            stopWaiting(record);
+        }
+
+        if (isLocked && lockedEntities.put(entityId, record) != record) {
+            record.addLockedEntities(1);
+        }
+    }
+
+    @Override
+    public void afterSharedLocking(final T entityId, final boolean isLocked) {
+        afterSharedLocking(currentRecord.get(), entityId, isLocked);
+    }
+
+    public void afterSharedLocking(final OwnerRecord<T> record, final T entityId, final boolean isLocked) {
+        if (record.waitingEntity != null) {
+            stopWaiting(record);
+        }
+
+        //Only the owner adds or removes its own record, so the check is not racy
+        if (isLocked && !isSharedHolder(entityId, record)) {
+            sharedEntities.compute(entityId, (key, holders) -> {
+                final Set<OwnerRecord<T>> entityHolders = holders == null ? ConcurrentHashMap.newKeySet() : holders;
+                entityHolders.add(record);
+                return entityHolders;
+            });
+            record.addLockedEntities(1);
+        }
     }
 
-    public synchronized void afterLocking(final T entityId, final boolean isLocked) {
-        final Thread currentThread = Thread.currentThread();
+    @Override
+    public void beforeUnlocking(final T entityId) {
+        beforeUnlocking(currentRecord.get(), entityId);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void beforeUnlocking(final OwnerRecord<T> record, final T entityId) {
+        final boolean isReleased = maxReleasedKeys > 0 && lockedEntities.size() <= maxReleasedKeys
+                ? lockedEntities.replace(entityId, record, RELEASED)
+                : lockedEntities.remove(entityId, record);
+
+        if (isReleased) {
+            record.addLockedEntities(-1);
+        }
+    }
+
+    @Override
+    public void beforeSharedUnlocking(final T entityId) {
+        beforeSharedUnlocking(currentRecord.get(), entityId);
+    }
+
+    public void beforeSharedUnlocking(final OwnerRecord<T> record, final T entityId) {
+        final Set<OwnerRecord<T>> holders = sharedEntities.get(entityId);
+
+        if (holders != null && holders.remove(record)) {
+            record.addLockedEntities(-1);
+            sharedEntities.computeIfPresent(entityId, (key, entityHolders) -> entityHolders.isEmpty() ? null : entityHolders);
+        }
+    }
+
+    public void beforeLocking(final OwnerRecord<T> record, final T entityId, final boolean isShared) throws InterceptedDeadlockException {
+        beforeLocking(record, entityId, isShared, false);
+    }
+
+    //For locks where the owner's own holds never block its request, such as intention locks taken over own intentions
+    public void beforeUpgrading(final T entityId, final boolean isShared) throws InterceptedDeadlockException {
+        beforeLocking(currentRecord.get(), entityId, isShared, true);
+    }
+
+    private void beforeLocking(final OwnerRecord<T> record, final T entityId, final boolean isShared, final boolean isUpgrade) throws InterceptedDeadlockException {
+        //Waiting is published before the walk, so of two threads closing a cycle at least one sees the other
+        startWaiting(record, entityId, isShared);
+
+        try {
+            checkOnDeadlock(record, entityId, isShared, isUpgrade);
+        } catch (InterceptedDeadlockException e) {
+            stopWaiting(record);
+            throw e;
+        }
+    }
+
+    //Neither guard is taken, a snapshot may show a wait which ended or miss one which started during the read
+    @Override
+    public Map<Object, Set<Object>> waitForGraph() {
+        final Map<Object, Set<Object>> graph = new HashMap<>();
+        final Deque<OwnerRecord<T>> blockers = new ArrayDeque<>();
+
+        for (final OwnerRecord<T> record : waitingRecords) {
+            final T waitingEntity = record.waitingEntity;
+            if (waitingEntity == null) {
+                continue;
+            }
+
+            addBlockers(blockers, waitingEntity, record.waitingShared);
+            final Set<Object> blockerOwners = new LinkedHashSet<>();
+            for (final OwnerRecord<T> blocker : blockers) {
+                if (blocker != record) {
+                    blockerOwners.add(blocker.owner);
+                }
+            }
+            blockers.clear();
+
+            if (!blockerOwners.isEmpty()) {
+                graph.put(record.owner, blockerOwners);
+            }
+        }
 
-        waitingThreads.remove(currentThread);
-        if (isLocked) {
-            lockedEntities.put(entityId, currentThread);
+        return graph;
+    }
 
-            Set<T> threadEntities = threadLockedEntities.get(currentThread);
+    private void checkOnGlobalDeadlock(final OwnerRecord<T> record) throws InterceptedDeadlockException {
+        final Object currentGlobalOwner = record.owner;
+        final Object previousGlobalOwner = globalOwner;
 
-            if (threadEntities == null) {
-                threadEntities = new HashSet<>();
+        if (previousGlobalOwner != null && previousGlobalOwner != currentGlobalOwner) {
+            if (lockAnyEntity(record)) {
+                final String message = globalDeadlockPreventedMessage(currentGlobalOwner, previousGlobalOwner);
+                throw new InterceptedDeadlockException(message, currentGlobalOwner, previousGlobalOwner);
             }
+        } else {
+            globalOwner = currentGlobalOwner;
+        }
 
-            threadEntities.add(entityId);
+        for (final OwnerRecord<T> waitingRecord : waitingRecords) {
+            final T waitingEntity = waitingRecord.waitingEntity;
 
-            threadLockedEntities.putIfAbsent(currentThread, threadEntities);
+            if (waitingEntity != null && isBlockedBy(waitingEntity, waitingRecord.waitingShared, record)) {
+                globalOwner = previousGlobalOwner;
+                final Object failOwner = waitingRecord.owner;
+                final String message = globalDeadlockPreventedMessage(failOwner, currentGlobalOwner);
+                throw new InterceptedDeadlockException(message, failOwner, currentGlobalOwner);
+            }
         }
     }
 
-    private boolean lockAnyEntity() {
-        return threadLockedEntities.get(Thread.currentThread()) != null;
+    private boolean lockAnyEntity(final OwnerRecord<T> record) {
+        return record.lockedEntities > 0;
+    }
+
+    private boolean isSharedHolder(final T entityId, final OwnerRecord<T> record) {
+        final Set<OwnerRecord<T>> holders = sharedEntities.get(entityId);
+        return holders != null && holders.contains(record);
     }
 
-    public synchronized void beforeUnlocking(final T entityId) {
-        final Thread currentThread = Thread.currentThread();
-        final Set<T> threadEntities = threadLockedEntities.get(currentThread);
+    private boolean isBlockedBy(final T entityId, final boolean isShared, final OwnerRecord<T> record) {
+        return lockedEntities.get(entityId) == record || !isShared && isSharedHolder(entityId, record);
+    }
+
+    OwnerRecord<T> currentRecord() {
+        return currentRecord.get();
+    }
 
-        threadEntities.remove(entityId);
+    void startWaiting(final OwnerRecord<T> record, final T entityId, final boolean isShared) {
+        record.waitingShared = isShared;
+        record.waitingEntity = entityId;
+        ++record.waitSequence;
+        waitingRecords.add(record);
+    }
 
-        if (threadEntities.isEmpty()) {
-            threadLockedEntities.remove(currentThread);
+    private void stopWaiting(final OwnerRecord<T> record) {
+        record.waitingEntity = null;
+        waitingRecords.remove(record);
+    }
+
+    //Marks one waiter of every cycle. A marked waiter counts as gone for later walks, so the rest of its cycle is spared
+    void markVictims(final Deque<OwnerRecord<T>> blockers, final Set<OwnerRecord<T>> visited) {
+        for (final OwnerRecord<T> record : waitingRecords) {
+            //The sequence is read first, a wait that ends meanwhile leaves a mark no later wait matches
+            final long waitSequence = record.waitSequence;
+            final T waitingEntity = record.waitingEntity;
+            if (waitingEntity == null || record.isAborted()) {
+                continue;
+            }
+
+            final OwnerRecord<T> originBlocker = findCycle(record, waitingEntity, record.waitingShared, false, blockers, visited);
+            if (originBlocker != null) {
+                record.abortedBy = originBlocker.owner;
+                record.abortedWait = waitSequence;
+            }
         }
+    }
 
-        lockedEntities.remove(entityId);
+    void abortIfVictim(final OwnerRecord<T> record) throws InterceptedDeadlockException {
+        if (!record.isAborted()) {
+            return;
+        }
+
+        final T waitingEntity = record.waitingEntity;
+        final Object lockerOwner = record.abortedBy;
+        record.abortedWait = 0;
+        stopWaiting(record);
+
+        final String message = deadlockPreventedMessage(record.owner, waitingEntity, lockerOwner);
+        throw new InterceptedDeadlockException(message, record.owner, lockerOwner);
     }
-    private void checkOnDeadlock(T entityId) throws InterceptedDeadlockException {
-        final T originEntity = entityId;
-        final Thread currentThread = Thread.currentThread();
 
-        while (lockedEntities.containsKey(entityId)) {
+    private void checkOnDeadlock(final OwnerRecord<T> record, final T originEntity, final boolean isShared, final boolean isUpgrade) throws InterceptedDeadlockException {
+        //The walk reuses the scratch space of the waiting record, an owner waits for one entity at a time
+        final OwnerRecord<T> originBlocker = findCycle(record, originEntity, isShared, isUpgrade, record.blockers(), record.visited());
+
+        if (originBlocker != null) {
+            final Object lockerOwner = originBlocker.owner;
+            final String message = deadlockPreventedMessage(record.owner, originEntity, lockerOwner);
+            throw new InterceptedDeadlockException(message, record.owner, lockerOwner);
+        }
+    }
+
+    //Returns the first blocker of a wait closing a cycle, or null
+    private OwnerRecord<T> findCycle(final OwnerRecord<T> record, final T originEntity, final boolean isShared, final boolean isUpgrade,
+                                     final Deque<OwnerRecord<T>> blockers, final Set<OwnerRecord<T>> visited) {
+        try {
+            addBlockers(blockers, originEntity, isShared);
+            if (isUpgrade) {
+                //Reaching the owner again further on is still a cycle
+                while (blockers.remove(record)) {
+                    //Removed one occurrence per pass
+                }
+            }
+
+            final OwnerRecord<T> originBlocker = blockers.peekFirst();
+            final Object currentGlobalOwner = globalOwner;
+
+            OwnerRecord<T> blocker;
+            while ((blocker = blockers.pollFirst()) != null) {
 
-            final Thread entityThread = lockedEntities.get(entityId);
-            entityId = waitingThreads.get(entityThread);
+                if (blocker == record || blocker.owner == currentGlobalOwner) {
+                    return originBlocker;
+                }
 
-            if (entityThread == currentThread || entityThread == globalThread) {
-                final Thread lockerThread = lockedEntities.get(originEntity);
-                final String message = deadlockPreventedMessage(currentThread, originEntity, lockerThread);
-                throw new InterceptedDeadlockException(message, currentThread, lockerThread);
+                final T waitingEntity = blocker.waitingEntity;
+                if (waitingEntity != null && !blocker.isAborted() && visited.add(blocker)) {
+                    addBlockers(blockers, waitingEntity, blocker.waitingShared);
+                }
+            }
+
+            return null;
+        } finally {
+            blockers.clear();
+            visited.clear();
+        }
+    }
+
+    private void addBlockers(final Deque<OwnerRecord<T>> blockers, final T entityId, final boolean isShared) {
+        final OwnerRecord<T> owner = lockedEntities.get(entityId);
+        if (owner != null && owner != RELEASED) {
+            blockers.addLast(owner);
+        }
+
+        //Shared holders block only exclusive requests
+        if (!isShared) {
+            final Set<OwnerRecord<T>> holders = sharedEntities.get(entityId);
+            if (holders != null) {
+                blockers.addAll(holders);
             }
         }
     }
 
-    private String globalDeadlockPreventedMessage(final Thread failThread, final Thread lockedThread) {
-        return "Thread {" + failThread + "} unable to acquire global lock due case of deadlock." +
-                " Entity pending by {" + lockedThread + "}";
+    private String globalDeadlockPreventedMessage(final Object failOwner, final Object lockedOwner) {
+        return ownerKind(failOwner) + " {" + failOwner + "} unable to acquire global lock due case of deadlock." +
+                " Entity pending by {" + lockedOwner + "}";
     }
 
-    private String deadlockPreventedMessage(final Thread failThread, final T originEntity, final Thread lockedThread) {
-        return "Thread {" + failThread + "} unable to lock entity {" + originEntity + "} due case of deadlock." +
-                " Entity pending by {" + lockedThread + "}";
+    private String deadlockPreventedMessage(final Object failOwner, final T originEntity, final Object lockedOwner) {
+        return ownerKind(failOwner) + " {" + failOwner + "} unable to lock entity {" + originEntity + "} due case of deadlock." +
+                " Entity pending by {" + lockedOwner + "}";
+    }
+
+    private String ownerKind(final Object owner) {
+        return owner instanceof Thread ? "Thread" : "Owner";
+    }
+
+    //Logical owners are not bound to a thread, so their grants may be recorded from any thread
+    public static final class OwnerRecord<T> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<OwnerRecord> LOCKED_ENTITIES =
+                AtomicIntegerFieldUpdater.newUpdater(OwnerRecord.class, "lockedEntities");
+
+        private final Object owner;
+        private volatile boolean waitingShared;
+        private volatile T waitingEntity;
+        private volatile int lockedEntities;
+        private volatile long waitSequence;
+        private volatile long abortedWait;
+        private volatile Object abortedBy;
+        private Deque<OwnerRecord<T>> blockers;
+        private Set<OwnerRecord<T>> visited;
+
+        public OwnerRecord(final Object owner) {
+            this.owner = owner;
+        }
+
+        public Object owner() {
+            return owner;
+        }
+
+        private boolean isAborted() {
+            return abortedWait != 0 && abortedWait == waitSequence;
+        }
+
+        private void addLockedEntities(final int delta) {
+            LOCKED_ENTITIES.addAndGet(this, delta);
+        }
+
+        private Deque<OwnerRecord<T>> blockers() {
+            if (blockers == null) {
+                blockers = new ArrayDeque<>();
+            }
+            return blockers;
+        }
+
+        private Set<OwnerRecord<T>> visited() {
+            if (visited == null) {
+                visited = new HashSet<>();
+            }
+            return visited;
+        }
     }
 }
@@ -0,0 +1,44 @@
+package io.tempo.hberimi.interceptor;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+//How a locker deals with deadlocks of its current thread: the hooks surround every grant, wait and release
+//and a strategy pays for as much bookkeeping as it needs
+public interface DeadlockStrategy<T> {
+    void beforeLocking(T entityId) throws InterceptedDeadlockException;
+
+    void beforeSharedLocking(T entityId) throws InterceptedDeadlockException;
+
+    void afterLocking(T entityId, boolean isLocked);
+
+    void afterSharedLocking(T entityId, boolean isLocked);
+
+    void beforeUnlocking(T entityId);
+
+    void beforeSharedUnlocking(T entityId);
+
+    void beforeGlobalLocking() throws InterceptedDeadlockException;
+
+    void afterGlobalLocking(boolean isLocked);
+
+    void beforeGlobalUnlocking();
+
+    //Waits are cut into slices of this length when it is not zero, so that the strategy may end one in between
+    default long waitSliceNanos() {
+        return 0;
+    }
+
+    //Asked after every slice ended without a grant, a null entity stands for the global lock.
+    //A strategy ending the wait drops it itself before throwing
+    default void keepWaiting(final T entityId, final long waitStartTime) throws InterceptedDeadlockException {
+    }
+
+    //Every waiting owner with the owners it waits for, read while the lockers go on. A strategy not tracking waits has none
+    default Map<Object, Set<Object>> waitForGraph() {
+        return Collections.emptyMap();
+    }
+}
@@ -0,0 +1,68 @@
+package io.tempo.hberimi.interceptor;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+
+import java.util.concurrent.TimeUnit;
+
+//No wait-for graph at all, any wait longer than the timeout is taken for a deadlock.
+//Cycles are broken only when the timeout passes, and an owner which is merely slow is taken for one too
+public class TimeoutDeadlockStrategy<T> implements DeadlockStrategy<T> {
+    private final long timeoutNanos;
+
+    public TimeoutDeadlockStrategy(final long timeout, final TimeUnit unit) {
+        this.timeoutNanos = Math.max(1, unit.toNanos(timeout));
+    }
+
+    @Override
+    public void beforeLocking(final T entityId) {
+    }
+
+    @Override
+    public void beforeSharedLocking(final T entityId) {
+    }
+
+    @Override
+    public void afterLocking(final T entityId, final boolean isLocked) {
+    }
+
+    @Override
+    public void afterSharedLocking(final T entityId, final boolean isLocked) {
+    }
+
+    @Override
+    public void beforeUnlocking(final T entityId) {
+    }
+
+    @Override
+    public void beforeSharedUnlocking(final T entityId) {
+    }
+
+    @Override
+    public void beforeGlobalLocking() {
+    }
+
+    @Override
+    public void afterGlobalLocking(final boolean isLocked) {
+    }
+
+    @Override
+    public void beforeGlobalUnlocking() {
+    }
+
+    @Override
+    public long waitSliceNanos() {
+        return timeoutNanos;
+    }
+
+    @Override
+    public void keepWaiting(final T entityId, final long waitStartTime) throws InterceptedDeadlockException {
+        if (System.nanoTime() - waitStartTime < timeoutNanos) {
+            return;
+        }
+
+        final Thread currentThread = Thread.currentThread();
+        final String target = entityId == null ? "global lock" : "entity {" + entityId + "}";
+        throw new InterceptedDeadlockException("Thread {" + currentThread + "} unable to lock " + target +
+                " within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms, presumed deadlock", currentThread, null);
+    }
+}
@@ -0,0 +1,255 @@
+package io.tempo.hberimi.interceptor;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+//Deadlock prevention by age, every conflict compares the requester with each holder and no wait-for graph is kept.
+//A thread's age is taken by its first lock and kept over an abort, so a retried victim gets older and cannot starve
+public abstract class TimestampDeadlockStrategy<T> implements DeadlockStrategy<T> {
+    //Holders change while a thread waits, so waits are rechecked against the current ones
+    private static final long RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final AtomicLong clock;
+    private final ThreadLocal<Transaction> currentTransaction;
+    private final ConcurrentMap<T, Transaction> lockedEntities;
+    private final ConcurrentMap<T, Set<Transaction>> sharedEntities;
+    private final Set<Transaction> holders;
+    private final AtomicReference<Transaction> globalOwner;
+
+    protected TimestampDeadlockStrategy() {
+        this.clock = new AtomicLong();
+        this.currentTransaction = ThreadLocal.withInitial(() -> new Transaction(Thread.currentThread()));
+        this.lockedEntities = new ConcurrentHashMap<>();
+        this.sharedEntities = new ConcurrentHashMap<>();
+        this.holders = ConcurrentHashMap.newKeySet();
+        this.globalOwner = new AtomicReference<>();
+    }
+
+    //Called with the requester and one holder in conflict, older means a smaller timestamp
+    protected abstract void onConflict(Transaction requester, Transaction holder, Object entityId) throws InterceptedDeadlockException;
+
+    @Override
+    public void beforeLocking(final T entityId) throws InterceptedDeadlockException {
+        beforeWaiting(entityId, false);
+    }
+
+    @Override
+    public void beforeSharedLocking(final T entityId) throws InterceptedDeadlockException {
+        beforeWaiting(entityId, true);
+    }
+
+    @Override
+    public void afterLocking(final T entityId, final boolean isLocked) {
+        final Transaction transaction = currentTransaction.get();
+        transaction.waitingShared = false;
+
+        if (isLocked && lockedEntities.put(entityId, transaction) != transaction) {
+            hold(transaction, 1);
+        }
+    }
+
+    @Override
+    public void afterSharedLocking(final T entityId, final boolean isLocked) {
+        final Transaction transaction = currentTransaction.get();
+
+        //Only the owner adds or removes itself, so the check is not racy
+        if (isLocked && !isSharedHolder(entityId, transaction)) {
+            sharedEntities.computeIfAbsent(entityId, key -> ConcurrentHashMap.newKeySet()).add(transaction);
+            hold(transaction, 1);
+        }
+    }
+
+    @Override
+    public void beforeUnlocking(final T entityId) {
+        final Transaction transaction = currentTransaction.get();
+
+        if (lockedEntities.remove(entityId, transaction)) {
+            hold(transaction, -1);
+        }
+    }
+
+    @Override
+    public void beforeSharedUnlocking(final T entityId) {
+        final Transaction transaction = currentTransaction.get();
+        final Set<Transaction> entityHolders = sharedEntities.get(entityId);
+
+        if (entityHolders != null && entityHolders.remove(transaction)) {
+            hold(transaction, -1);
+            sharedEntities.computeIfPresent(entityId, (key, remaining) -> remaining.isEmpty() ? null : remaining);
+        }
+    }
+
+    @Override
+    public void beforeGlobalLocking() throws InterceptedDeadlockException {
+        final Transaction transaction = currentTransaction.get();
+        transaction.startIfIdle(clock);
+
+        if (!globalOwner.compareAndSet(null, transaction) && globalOwner.get() != transaction) {
+            resolveGlobalConflicts(transaction);
+        }
+    }
+
+    @Override
+    public void afterGlobalLocking(final boolean isLocked) {
+        final Transaction transaction = currentTransaction.get();
+
+        if (isLocked) {
+            globalOwner.set(transaction);
+            hold(transaction, 1);
+        } else {
+            globalOwner.compareAndSet(transaction, null);
+        }
+    }
+
+    @Override
+    public void beforeGlobalUnlocking() {
+        final Transaction transaction = currentTransaction.get();
+
+        globalOwner.compareAndSet(transaction, null);
+        hold(transaction, -1);
+    }
+
+    @Override
+    public long waitSliceNanos() {
+        return RECHECK_NANOS;
+    }
+
+    @Override
+    public void keepWaiting(final T entityId, final long waitStartTime) throws InterceptedDeadlockException {
+        final Transaction transaction = currentTransaction.get();
+
+        if (entityId == null) {
+            resolveGlobalConflicts(transaction);
+        } else {
+            resolveConflicts(transaction, entityId, transaction.waitingShared);
+        }
+    }
+
+    //Thrown by the requester for itself, the strategy keeps its age for the retry
+    protected void abort(final Transaction requester, final Transaction holder, final Object entityId, final String reason) throws InterceptedDeadlockException {
+        requester.isRestarting = true;
+
+        final String target = entityId == null ? "global lock" : "entity {" + entityId + "}";
+        throw new InterceptedDeadlockException("Thread {" + requester.thread + "} unable to lock " + target + " due case of deadlock, " +
+                reason + " {" + holder.thread + "}", requester.thread, holder.thread);
+    }
+
+    private void beforeWaiting(final T entityId, final boolean isShared) throws InterceptedDeadlockException {
+        final Transaction transaction = currentTransaction.get();
+        transaction.startIfIdle(clock);
+        transaction.waitingShared = isShared;
+
+        resolveConflicts(transaction, entityId, isShared);
+    }
+
+    //A requester holding nothing cannot close a cycle, it simply waits
+    private void resolveConflicts(final Transaction requester, final T entityId, final boolean isShared) throws InterceptedDeadlockException {
+        abortIfWounded(requester, entityId);
+        if (requester.heldLocks == 0) {
+            return;
+        }
+
+        final Transaction owner = lockedEntities.get(entityId);
+        if (owner != null && owner != requester) {
+            onConflict(requester, owner, entityId);
+        }
+
+        //Shared holders block only exclusive requests
+        final Set<Transaction> entityHolders = isShared ? null : sharedEntities.get(entityId);
+        if (entityHolders != null) {
+            for (final Transaction holder : entityHolders) {
+                if (holder != requester) {
+                    onConflict(requester, holder, entityId);
+                }
+            }
+        }
+    }
+
+    //The global lock waits for every holder and for an earlier global owner
+    private void resolveGlobalConflicts(final Transaction requester) throws InterceptedDeadlockException {
+        abortIfWounded(requester, null);
+        if (requester.heldLocks == 0) {
+            return;
+        }
+
+        final Transaction owner = globalOwner.get();
+        if (owner != null && owner != requester) {
+            onConflict(requester, owner, null);
+            return;
+        }
+
+        for (final Transaction holder : holders) {
+            if (holder != requester) {
+                onConflict(requester, holder, null);
+            }
+        }
+    }
+
+    private void abortIfWounded(final Transaction transaction, final T entityId) throws InterceptedDeadlockException {
+        final Transaction woundedBy = transaction.woundedBy;
+        if (woundedBy != null) {
+            transaction.woundedBy = null;
+            abort(transaction, woundedBy, entityId, "wounded by older");
+        }
+    }
+
+    private void hold(final Transaction transaction, final int delta) {
+        final int heldLocks = transaction.heldLocks + delta;
+        transaction.heldLocks = heldLocks;
+
+        if (heldLocks == delta) {
+            transaction.startIfIdle(clock);
+            transaction.isRestarting = false;
+            holders.add(transaction);
+        } else if (heldLocks == 0) {
+            holders.remove(transaction);
+            transaction.finish();
+        }
+    }
+
+    private boolean isSharedHolder(final T entityId, final Transaction transaction) {
+        final Set<Transaction> entityHolders = sharedEntities.get(entityId);
+        return entityHolders != null && entityHolders.contains(transaction);
+    }
+
+    public static final class Transaction {
+        private final Thread thread;
+        private volatile long timestamp;
+        private volatile int heldLocks;
+        private volatile Transaction woundedBy;
+        private boolean isRestarting;
+        private boolean waitingShared;
+
+        private Transaction(final Thread thread) {
+            this.thread = thread;
+        }
+
+        public boolean isOlderThan(final Transaction other) {
+            return timestamp < other.timestamp;
+        }
+
+        //The mark is seen by the holder the next time it waits, a holder which never waits is no part of a cycle
+        public void woundBy(final Transaction older) {
+            woundedBy = older;
+        }
+
+        private void startIfIdle(final AtomicLong clock) {
+            if (timestamp == 0) {
+                timestamp = clock.incrementAndGet();
+            }
+        }
+
+        private void finish() {
+            woundedBy = null;
+            if (!isRestarting) {
+                timestamp = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package io.tempo.hberimi.interceptor;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+
+//An older requester waits for a younger holder, a younger one fails at once
+public class WaitDieStrategy<T> extends TimestampDeadlockStrategy<T> {
+    @Override
+    protected void onConflict(final Transaction requester, final Transaction holder, final Object entityId) throws InterceptedDeadlockException {
+        if (holder.isOlderThan(requester)) {
+            abort(requester, holder, entityId, "younger than holder");
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package io.tempo.hberimi.interceptor;
+
+//An older requester wounds a younger holder and waits for it to give up, a younger requester just waits
+public class WoundWaitStrategy<T> extends TimestampDeadlockStrategy<T> {
+    @Override
+    protected void onConflict(final Transaction requester, final Transaction holder, final Object entityId) {
+        if (requester.isOlderThan(holder)) {
+            holder.woundBy(requester);
+        }
+    }
+}
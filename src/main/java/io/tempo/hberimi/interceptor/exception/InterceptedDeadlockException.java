@@ -3,23 +3,31 @@ package io.tempo.hberimi.interceptor.exception;
 import static io.tempo.hberimi.util.SimpleLogger.logError;
 
 public class InterceptedDeadlockException extends Exception {
-    private final Thread lockerThread;
-    private final Thread failThread;
+    private final Object lockerOwner;
+    private final Object failOwner;
 
-    public InterceptedDeadlockException(String message, Thread failThread, Thread lockedThread) {
+    public InterceptedDeadlockException(String message, Object failOwner, Object lockedOwner) {
         super(message);
 
         logError(message);
 
-        this.lockerThread = lockedThread;
-        this.failThread = failThread;
+        this.lockerOwner = lockedOwner;
+        this.failOwner = failOwner;
     }
 
     public Thread lockerThread() {
-        return lockerThread;
+        return lockerOwner instanceof Thread ? (Thread) lockerOwner : null;
     }
 
     public Thread failThread() {
-        return failThread;
+        return failOwner instanceof Thread ? (Thread) failOwner : null;
+    }
+
+    public Object lockerOwner() {
+        return lockerOwner;
+    }
+
+    public Object failOwner() {
+        return failOwner;
     }
 }
@@ -0,0 +1,30 @@
+package io.tempo.hberimi.locker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public interface AsyncEntityLocker<T> {
+    LockOwner newOwner(String name);
+
+    CompletableFuture<LockOwner> lockAsync(T entityId);
+
+    CompletableFuture<LockOwner> lockAsync(T entityId, long timeout, TimeUnit unit);
+
+    CompletableFuture<LockOwner> lockAsync(LockOwner owner, T entityId);
+
+    CompletableFuture<LockOwner> lockAsync(LockOwner owner, T entityId, long timeout, TimeUnit unit);
+
+    CompletableFuture<LockOwner> lockSharedAsync(LockOwner owner, T entityId);
+
+    void unlock(LockOwner owner, T entityId);
+
+    void unlockShared(LockOwner owner, T entityId);
+
+    CompletableFuture<LockOwner> globalLockAsync();
+
+    CompletableFuture<LockOwner> globalLockAsync(LockOwner owner);
+
+    CompletableFuture<LockOwner> globalLockAsync(LockOwner owner, long timeout, TimeUnit unit);
+
+    void globalUnlock(LockOwner owner);
+}
@@ -0,0 +1,16 @@
+package io.tempo.hberimi.locker;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+//Runs the tasks of one entity in submission order under its lock and the tasks of different entities in parallel.
+//A global task runs under the global lock, so it waits for and holds off every entity task
+public interface EntityKeyedExecutor<T> {
+    <R> CompletableFuture<R> submit(T entityId, Callable<R> task);
+
+    CompletableFuture<Void> submit(T entityId, Runnable task);
+
+    <R> CompletableFuture<R> submitGlobal(Callable<R> task);
+
+    CompletableFuture<Void> submitGlobal(Runnable task);
+}
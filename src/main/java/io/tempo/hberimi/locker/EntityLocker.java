@@ -1,7 +1,9 @@
 package io.tempo.hberimi.locker;
 
 import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.metrics.LockMetrics;
 
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 
 
@@ -14,6 +16,22 @@ public interface EntityLocker<T> {
 
     void unlock(T entityId);
 
+    void lockShared(T entityId) throws InterceptedDeadlockException;
+
+    boolean tryLockShared(T entityId) throws InterceptedDeadlockException;
+
+    boolean tryLockShared(T entityId, long timeout, TimeUnit unit) throws InterruptedException, InterceptedDeadlockException;
+
+    void unlockShared(T entityId);
+
+    void downgrade(T entityId) throws InterceptedDeadlockException;
+
+    void lockAll(Collection<T> entitiesIds) throws InterceptedDeadlockException;
+
+    boolean tryLockAll(Collection<T> entitiesIds, long timeout, TimeUnit unit) throws InterruptedException, InterceptedDeadlockException;
+
+    void unlockAll(Collection<T> entitiesIds);
+
     boolean isLockedByCurrentThread(T entityId);
 
     void globalLock() throws InterceptedDeadlockException;
@@ -23,5 +41,18 @@ public interface EntityLocker<T> {
     boolean tryGlobalLock(long timeout, TimeUnit unit) throws InterceptedDeadlockException;
 
     void globalUnlock();
+
+    //A stamp lets the caller read the entity without any lock and check afterwards that no writer came in between.
+    //Zero while a writer holds it, or when the locker has no optimistic reads, the caller then takes a shared lock
+    default long tryOptimisticRead(final T entityId) {
+        return 0;
+    }
+
+    default boolean validate(final T entityId, final long stamp) {
+        return false;
+    }
+
     int currentSize();
+
+    LockMetrics metrics();
 }
@@ -0,0 +1,21 @@
+package io.tempo.hberimi.locker;
+
+import java.util.function.LongSupplier;
+
+//When a thread holding entity locks takes the global lock on top of them, and when it gives it back.
+//Asked on grants and releases of the thread itself, the total over all threads is summed only when a policy fetches it
+public interface EscalationPolicy {
+    //Asked after a grant while no thread is escalated
+    boolean shouldEscalate(int threadLocks, LongSupplier totalLocks);
+
+    //Asked after every release of the escalated thread
+    boolean shouldDeescalate(int threadLocks, LongSupplier totalLocks);
+
+    //Reported by a thread whose entity wait ended, granted or not
+    default void entityContended(final long waitNanos) {
+    }
+
+    //Reported when an escalated global lock is released, with the threads still queued behind it
+    default void escalationEnded(final long heldNanos, final int stalledThreads) {
+    }
+}
@@ -0,0 +1,53 @@
+package io.tempo.hberimi.locker;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.metrics.LockMetrics;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+//Entities live in namespaces, an entity lock takes an intention on its namespace first,
+//so quiescing a namespace waits for and holds off its own subtree only
+public interface HierarchicalEntityLocker<N, T> {
+    void lock(N namespace, T entityId) throws InterceptedDeadlockException;
+
+    boolean tryLock(N namespace, T entityId) throws InterceptedDeadlockException;
+
+    boolean tryLock(N namespace, T entityId, long timeout, TimeUnit unit) throws InterruptedException, InterceptedDeadlockException;
+
+    void unlock(N namespace, T entityId);
+
+    void lockShared(N namespace, T entityId) throws InterceptedDeadlockException;
+
+    boolean tryLockShared(N namespace, T entityId, long timeout, TimeUnit unit) throws InterruptedException, InterceptedDeadlockException;
+
+    void unlockShared(N namespace, T entityId);
+
+    void lockAll(N namespace, Collection<T> entitiesIds) throws InterceptedDeadlockException;
+
+    void unlockAll(N namespace, Collection<T> entitiesIds);
+
+    boolean isLockedByCurrentThread(N namespace, T entityId);
+
+    void lockNamespace(N namespace) throws InterceptedDeadlockException;
+
+    boolean tryLockNamespace(N namespace, long timeout, TimeUnit unit) throws InterruptedException, InterceptedDeadlockException;
+
+    void unlockNamespace(N namespace);
+
+    void lockNamespaceShared(N namespace) throws InterceptedDeadlockException;
+
+    boolean tryLockNamespaceShared(N namespace, long timeout, TimeUnit unit) throws InterruptedException, InterceptedDeadlockException;
+
+    void unlockNamespaceShared(N namespace);
+
+    void globalLock() throws InterceptedDeadlockException;
+
+    boolean tryGlobalLock(long timeout, TimeUnit unit) throws InterceptedDeadlockException;
+
+    void globalUnlock();
+
+    int currentSize();
+
+    LockMetrics metrics();
+}
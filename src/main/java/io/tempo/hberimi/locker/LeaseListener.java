@@ -0,0 +1,13 @@
+package io.tempo.hberimi.locker;
+
+//Calls made by a LockBackend back into the node which registered it
+public interface LeaseListener<T> {
+    //Another node wants the entity, the lease is given back once no local thread uses it
+    void revoke(T entityId);
+
+    //The entity the local user of this lease is waiting a lease for, or null
+    T waitingEntityOfHolder(T entityId);
+
+    //Some leases were released, waiting requests may be retried
+    void available();
+}
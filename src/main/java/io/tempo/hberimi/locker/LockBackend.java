@@ -0,0 +1,30 @@
+package io.tempo.hberimi.locker;
+
+import java.util.Collection;
+import java.util.Set;
+
+//Coordinates node-level leases, requests are batched so every call can be one round trip
+public interface LockBackend<T> {
+    void register(String nodeId, LeaseListener<T> listener);
+
+    void unregister(String nodeId);
+
+    //Never blocks, entities leased by other nodes are left out and their holders are asked to revoke them
+    Set<T> acquire(String nodeId, Collection<T> entitiesIds);
+
+    void release(String nodeId, Collection<T> entitiesIds);
+
+    String holderOf(T entityId);
+
+    T waitingEntityOfHolder(T entityId);
+
+    //Never blocks, a refused node stays pending and the other nodes are asked to revoke their leases
+    boolean tryAcquireGlobal(String nodeId);
+
+    //True when a lease of another node is used by a thread waiting for a lease, a pending global lock would never drain it
+    boolean isGlobalBlockedByWaiters(String nodeId);
+
+    void cancelGlobal(String nodeId);
+
+    void releaseGlobal(String nodeId);
+}
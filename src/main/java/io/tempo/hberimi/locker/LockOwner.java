@@ -0,0 +1,5 @@
+package io.tempo.hberimi.locker;
+
+public interface LockOwner {
+    String name();
+}
@@ -0,0 +1,30 @@
+package io.tempo.hberimi.locker;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.metrics.LockMetrics;
+
+import java.util.concurrent.TimeUnit;
+
+public interface LongEntityLocker {
+    void lock(long entityId) throws InterceptedDeadlockException;
+
+    boolean tryLock(long entityId) throws InterceptedDeadlockException;
+
+    boolean tryLock(long entityId, long timeout, TimeUnit unit) throws InterruptedException, InterceptedDeadlockException;
+
+    void unlock(long entityId);
+
+    boolean isLockedByCurrentThread(long entityId);
+
+    void globalLock() throws InterceptedDeadlockException;
+
+    boolean tryGlobalLock() throws InterceptedDeadlockException;
+
+    boolean tryGlobalLock(long timeout, TimeUnit unit) throws InterceptedDeadlockException;
+
+    void globalUnlock();
+
+    int currentSize();
+
+    LockMetrics metrics();
+}
@@ -0,0 +1,14 @@
+package io.tempo.hberimi.locker;
+
+import java.util.concurrent.locks.Lock;
+
+//How a locker waits for a contended entity or global lock, chosen per locker instance
+public interface WaitStrategy {
+    //Returns false only when a timed wait reaches the deadline or is interrupted
+    boolean acquire(Lock lock, boolean isTimed, long deadline);
+
+    //Fair strategies need the locks themselves to be created fair
+    default boolean isFair() {
+        return false;
+    }
+}
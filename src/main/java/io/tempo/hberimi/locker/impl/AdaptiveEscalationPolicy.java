@@ -0,0 +1,57 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.EscalationPolicy;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import static io.tempo.hberimi.util.SimpleLogger.logDebugCurrentThread;
+
+//The threshold rule with a threshold moved by what escalations cost. An escalation stalling other threads for longer
+//than the entity waits seen since the previous one doubles the threshold, a cheaper one halves it within the bounds
+public class AdaptiveEscalationPolicy implements EscalationPolicy {
+    private final int minThreshold;
+    private final int maxThreshold;
+    private final LongAdder contendedNanos;
+    //Moved only when an escalation ends, one thread at a time holds the global lock
+    private volatile int threshold;
+
+    public AdaptiveEscalationPolicy(final int minThreshold, final int maxThreshold) {
+        this.minThreshold = Math.max(1, minThreshold);
+        this.maxThreshold = Math.max(this.minThreshold, maxThreshold);
+        this.contendedNanos = new LongAdder();
+        this.threshold = this.minThreshold;
+    }
+
+    public int threshold() {
+        return threshold;
+    }
+
+    @Override
+    public boolean shouldEscalate(final int threadLocks, final LongSupplier totalLocks) {
+        return threadLocks >= threshold && threadLocks > (totalLocks.getAsLong() >> 1);
+    }
+
+    @Override
+    public boolean shouldDeescalate(final int threadLocks, final LongSupplier totalLocks) {
+        return threadLocks < minThreshold || threadLocks <= (totalLocks.getAsLong() >> 1);
+    }
+
+    @Override
+    public void entityContended(final long waitNanos) {
+        contendedNanos.add(waitNanos);
+    }
+
+    //Threads queued at the release waited for about half of the hold on average
+    @Override
+    public void escalationEnded(final long heldNanos, final int stalledThreads) {
+        final long stalledNanos = (heldNanos >> 1) * stalledThreads;
+        final long contended = contendedNanos.sumThenReset();
+        final int currentThreshold = threshold;
+
+        threshold = stalledNanos > contended
+                ? (int) Math.min(maxThreshold, (long) currentThreshold << 1)
+                : Math.max(minThreshold, currentThreshold >> 1);
+        logDebugCurrentThread("escalation threshold %s -> %s, stalled/contended nanos = %s/%s", currentThreshold, threshold, stalledNanos, contended);
+    }
+}
@@ -0,0 +1,67 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.WaitStrategy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static io.tempo.hberimi.locker.impl.ParkWaitStrategy.park;
+
+//Spins for about twice the observed wait, a waiter mostly waits out the rest of a hold.
+//Waits longer than the spin limit are left to parking, a short spin is kept so that shrinking holds are noticed
+public class AdaptiveSpinWaitStrategy implements WaitStrategy {
+    private static final long DEFAULT_MAX_SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+    private static final long MIN_SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final boolean IS_MULTIPROCESSOR = Runtime.getRuntime().availableProcessors() > 1;
+
+    private final long maxSpinNanos;
+    //Exponential moving average, lost updates between racing waiters only make it a bit noisier
+    private volatile long averageWaitNanos;
+
+    public AdaptiveSpinWaitStrategy() {
+        this(DEFAULT_MAX_SPIN_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    public AdaptiveSpinWaitStrategy(final long maxSpin, final TimeUnit unit) {
+        this.maxSpinNanos = unit.toNanos(maxSpin);
+    }
+
+    public long averageWaitNanos() {
+        return averageWaitNanos;
+    }
+
+    @Override
+    public boolean acquire(final Lock lock, final boolean isTimed, final long deadline) {
+        final long startTime = System.nanoTime();
+
+        //On one processor the holder cannot run while we spin
+        if (IS_MULTIPROCESSOR) {
+            final long spinDeadline = startTime + spinNanos();
+            long now;
+            do {
+                if (lock.tryLock()) {
+                    recordWait(System.nanoTime() - startTime);
+                    return true;
+                }
+                now = System.nanoTime();
+            } while (now - spinDeadline < 0 && (!isTimed || now - deadline < 0));
+        }
+
+        final boolean isGranted = park(lock, isTimed, deadline);
+        if (isGranted) {
+            recordWait(System.nanoTime() - startTime);
+        }
+
+        return isGranted;
+    }
+
+    private long spinNanos() {
+        final long averageWait = averageWaitNanos;
+        return averageWait < maxSpinNanos ? Math.min(maxSpinNanos, Math.max(MIN_SPIN_NANOS, averageWait << 1)) : MIN_SPIN_NANOS;
+    }
+
+    private void recordWait(final long waitNanos) {
+        final long averageWait = averageWaitNanos;
+        averageWaitNanos = averageWait + ((waitNanos - averageWait) >> 3);
+    }
+}
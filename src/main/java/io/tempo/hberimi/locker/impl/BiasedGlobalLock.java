@@ -0,0 +1,255 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.WaitStrategy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class BiasedGlobalLock {
+    //Each reader slot takes its own pair of cache lines
+    private static final int SLOT_PADDING = 16;
+    private static final long MAX_DRAIN_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Gate gate;
+    private final AtomicLongArray readers;
+    private final int slotMask;
+    private final WaitStrategy waitStrategy;
+    private volatile boolean readBias;
+    private volatile Thread drainingWriter;
+
+    public BiasedGlobalLock() {
+        this(ParkWaitStrategy.INSTANCE);
+    }
+
+    public BiasedGlobalLock(final WaitStrategy waitStrategy) {
+        this(Runtime.getRuntime().availableProcessors() << 1, waitStrategy);
+    }
+
+    public BiasedGlobalLock(final int minSlots, final WaitStrategy waitStrategy) {
+        final int slots = Integer.highestOneBit(Math.max(2, minSlots) - 1) << 1;
+        this.waitStrategy = waitStrategy;
+        this.gate = new Gate(waitStrategy.isFair());
+        this.readers = new AtomicLongArray(slots * SLOT_PADDING);
+        this.slotMask = slots - 1;
+        this.readBias = true;
+    }
+
+    public boolean readLock(final boolean isReentrant, final LockAttempt attempt, final long deadline) {
+        return readLock(isReentrant, attempt, deadline, 1);
+    }
+
+    public boolean readLock(final boolean isReentrant, final LockAttempt attempt, final long deadline, final int holds) {
+        final int slot = currentThreadSlot();
+
+        //Threads which already hold entities keep going, the writer waits for them anyway
+        if (isReentrant) {
+            readers.addAndGet(slot, holds);
+            return true;
+        }
+
+        if (tryBiasedRead(slot, holds)) {
+            return true;
+        }
+
+        if (!attempt.apply(gate.readLock(), deadline, waitStrategy)) {
+            return false;
+        }
+
+        readers.addAndGet(slot, holds);
+        gate.readLock().unlock();
+
+        return true;
+    }
+
+    //A timed read which passes an interrupt on instead of reporting it as a timeout
+    public boolean readLockInterruptibly(final boolean isReentrant, final long deadline) throws InterruptedException {
+        final int slot = currentThreadSlot();
+
+        if (isReentrant) {
+            readers.addAndGet(slot, 1);
+            return true;
+        }
+
+        if (tryBiasedRead(slot, 1)) {
+            return true;
+        }
+
+        if (!gate.readLock().tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+
+        readers.addAndGet(slot, 1);
+        gate.readLock().unlock();
+
+        return true;
+    }
+
+    private boolean tryBiasedRead(final int slot, final int holds) {
+        if (!readBias) {
+            return false;
+        }
+
+        readers.addAndGet(slot, holds);
+        if (readBias) {
+            return true;
+        }
+        readUnlock(slot, holds);
+        return false;
+    }
+
+    public void readUnlock() {
+        readUnlock(currentThreadSlot(), 1);
+    }
+
+    public void readUnlock(final int holds) {
+        readUnlock(currentThreadSlot(), holds);
+    }
+
+    public void writeLock(final int ownReads) {
+        if (reenterWriteLock()) {
+            return;
+        }
+
+        waitStrategy.acquire(gate.writeLock(), false, 0);
+        revokeReadBias();
+
+        boolean isInterrupted = false;
+        while (!isDrained(ownReads)) {
+            LockSupport.parkNanos(this, MAX_DRAIN_PARK_NANOS);
+            isInterrupted |= Thread.interrupted();
+        }
+        drainingWriter = null;
+
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean tryWriteLock(final int ownReads) {
+        if (reenterWriteLock()) {
+            return true;
+        }
+
+        if (!gate.writeLock().tryLock()) {
+            return false;
+        }
+        revokeReadBias();
+
+        return completeDrain(isDrained(ownReads));
+    }
+
+    public boolean tryWriteLock(final long timeout, final TimeUnit unit, final int ownReads) {
+        if (reenterWriteLock()) {
+            return true;
+        }
+
+        final long deadline = LockAttempt.deadlineAfter(timeout, unit);
+        if (!waitStrategy.acquire(gate.writeLock(), true, deadline)) {
+            return false;
+        }
+        revokeReadBias();
+
+        long remaining;
+        while (!isDrained(ownReads)) {
+            remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.interrupted()) {
+                return completeDrain(false);
+            }
+            LockSupport.parkNanos(this, Math.min(remaining, MAX_DRAIN_PARK_NANOS));
+        }
+
+        return completeDrain(true);
+    }
+
+    public void writeUnlock() {
+        if (gate.getWriteHoldCount() == 1) {
+            readBias = true;
+        }
+        gate.writeLock().unlock();
+    }
+
+    public int writeHoldCount() {
+        return gate.getWriteHoldCount();
+    }
+
+    public boolean isWriteLockedByCurrentThread() {
+        return gate.isWriteLockedByCurrentThread();
+    }
+
+    //True from the moment a writer got the gate, before the readers are drained
+    public boolean isWriteLocked() {
+        return gate.isWriteLocked();
+    }
+
+    //An estimate, as the queue of the gate itself
+    public int queuedThreads() {
+        return gate.getQueueLength();
+    }
+
+    //Null when the global lock is free, read without taking it
+    public Thread writeOwner() {
+        return gate.writeOwner();
+    }
+
+    private boolean reenterWriteLock() {
+        if (gate.isWriteLockedByCurrentThread()) {
+            gate.writeLock().lock();
+            return true;
+        }
+
+        return false;
+    }
+
+    private void revokeReadBias() {
+        drainingWriter = Thread.currentThread();
+        readBias = false;
+    }
+
+    private boolean completeDrain(final boolean isDrained) {
+        drainingWriter = null;
+
+        if (!isDrained) {
+            readBias = true;
+            gate.writeLock().unlock();
+        }
+
+        return isDrained;
+    }
+
+    private boolean isDrained(final int ownReads) {
+        long total = 0;
+        for (int slot = 0; slot < readers.length(); slot += SLOT_PADDING) {
+            total += readers.get(slot);
+        }
+
+        return total == ownReads;
+    }
+
+    private void readUnlock(final int slot, final int holds) {
+        readers.addAndGet(slot, -holds);
+
+        if (!readBias) {
+            final Thread writer = drainingWriter;
+            if (writer != null) {
+                LockSupport.unpark(writer);
+            }
+        }
+    }
+
+    private int currentThreadSlot() {
+        final long id = Thread.currentThread().getId();
+        return ((int) (id * 0x9E3779B9L >>> 16) & slotMask) * SLOT_PADDING;
+    }
+
+    private static final class Gate extends ReentrantReadWriteLock {
+        private Gate(final boolean isFair) {
+            super(isFair);
+        }
+
+        private Thread writeOwner() {
+            return getOwner();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.EscalationPolicy;
+
+import java.util.function.LongSupplier;
+
+//Escalates only once the held locks of all threads exceed a budget, a thread holding few of them never does.
+//The global lock is given back below three quarters of the budget, so the total does not flap around it
+public class BudgetEscalationPolicy implements EscalationPolicy {
+    private final long maxTotalLocks;
+    private final int minThreadLocks;
+
+    public BudgetEscalationPolicy(final long maxTotalLocks, final int minThreadLocks) {
+        this.maxTotalLocks = Math.max(1, maxTotalLocks);
+        this.minThreadLocks = minThreadLocks;
+    }
+
+    //A byte budget over the table entries, the entry size is the caller's estimate for its entity ids
+    public static BudgetEscalationPolicy ofBytes(final long maxBytes, final int bytesPerLock, final int minThreadLocks) {
+        return new BudgetEscalationPolicy(maxBytes / Math.max(1, bytesPerLock), minThreadLocks);
+    }
+
+    public long maxTotalLocks() {
+        return maxTotalLocks;
+    }
+
+    @Override
+    public boolean shouldEscalate(final int threadLocks, final LongSupplier totalLocks) {
+        return threadLocks >= minThreadLocks && totalLocks.getAsLong() > maxTotalLocks;
+    }
+
+    @Override
+    public boolean shouldDeescalate(final int threadLocks, final LongSupplier totalLocks) {
+        return threadLocks < minThreadLocks || totalLocks.getAsLong() < maxTotalLocks - (maxTotalLocks >> 2);
+    }
+}
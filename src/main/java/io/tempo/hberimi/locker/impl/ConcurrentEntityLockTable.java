@@ -0,0 +1,110 @@
+package io.tempo.hberimi.locker.impl;
+
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//Free locks stay mapped while the table is small, so relocking a recent entity reuses its lock and map node.
+//Past the bound every freed lock is removed, idle memory is bounded by it and not by the entities ever locked.
+//A working set larger than the bound allocates a lock and its node again on each relock. A removed lock is never
+//recycled, a late binder may still put it back for its old entity
+class ConcurrentEntityLockTable<T> implements EntityLockTable<T> {
+    static final int DEFAULT_RETAINED_LOCKS = 1024;
+
+    private final ConcurrentMap<T, ReentrantReadWriteLock> entityLocks;
+    private final boolean isFair;
+    private final int retainedLocks;
+
+    public ConcurrentEntityLockTable() {
+        this(false);
+    }
+
+    public ConcurrentEntityLockTable(final boolean isFair) {
+        this(isFair, DEFAULT_RETAINED_LOCKS);
+    }
+
+    public ConcurrentEntityLockTable(final boolean isFair, final int retainedLocks) {
+        this.entityLocks = new ConcurrentHashMap<>();
+        this.isFair = isFair;
+        this.retainedLocks = Math.max(0, retainedLocks);
+    }
+
+    @Override
+    public ReentrantReadWriteLock lockFor(final T entityId) {
+        //computeIfAbsent locks the bin even when the lock is present, a plain read does not
+        final ReentrantReadWriteLock entityLock = entityLocks.get(entityId);
+        return entityLock != null ? entityLock : entityLocks.computeIfAbsent(entityId, t -> new ReentrantReadWriteLock(isFair));
+    }
+
+    //A retained free lock is no lock of the entity
+    @Override
+    public ReentrantReadWriteLock existingLockFor(final T entityId) {
+        final ReentrantReadWriteLock entityLock = entityLocks.get(entityId);
+        return entityLock == null || isFree(entityLock) ? null : entityLock;
+    }
+
+    @Override
+    public Object interceptionKey(final T entityId, final ReentrantReadWriteLock lock) {
+        return entityId;
+    }
+
+    @Override
+    public Object versionKey(final T entityId) {
+        return entityId;
+    }
+
+    @Override
+    public boolean bindLock(final T entityId, final ReentrantReadWriteLock lock, final boolean isShared) {
+        //The lock may have been removed by its last owner while we were waiting on it
+        final ReentrantReadWriteLock currentLock = entityLocks.putIfAbsent(entityId, lock);
+        return currentLock == null || currentLock == lock;
+    }
+
+    @Override
+    public void unlock(final T entityId, final ReentrantReadWriteLock lock, final boolean isShared) {
+        if (isShared) {
+            lock.readLock().unlock();
+        } else {
+            lock.writeLock().unlock();
+        }
+
+        if (isFree(lock) && entityLocks.size() > retainedLocks) {
+            //Removal and the free check are atomic against binders, late binders put the lock back or retry.
+            //Any free lock may go, so the remapping does not capture the released one
+            entityLocks.computeIfPresent(entityId, (key, currentLock) -> isFree(currentLock) ? null : currentLock);
+        }
+    }
+
+    @Override
+    public boolean isHeldByCurrentThread(final T entityId, final ReentrantReadWriteLock lock, final boolean isShared) {
+        return isShared ? lock.getReadHoldCount() > 0 : lock.isWriteLockedByCurrentThread();
+    }
+
+    @Override
+    public int retainedKeys() {
+        return retainedLocks;
+    }
+
+    //Retained free locks are not counted, a walk over the table instead of a counter on the lock path
+    @Override
+    public int size() {
+        int lockedEntities = 0;
+        for (final ReentrantReadWriteLock entityLock : entityLocks.values()) {
+            if (!isFree(entityLock)) {
+                ++lockedEntities;
+            }
+        }
+
+        return lockedEntities;
+    }
+
+    @Override
+    public Comparator<T> lockOrder() {
+        return new HashLockOrder<>();
+    }
+
+    private static boolean isFree(final ReentrantReadWriteLock lock) {
+        return !lock.isWriteLocked() && lock.getReadLockCount() == 0;
+    }
+}
@@ -0,0 +1,579 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.LeaseListener;
+import io.tempo.hberimi.locker.LockBackend;
+import io.tempo.hberimi.metrics.LockMetrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.tempo.hberimi.locker.impl.LockAttempt.deadlineAfter;
+import static io.tempo.hberimi.util.SimpleLogger.logDebugCurrentThread;
+
+//Threads of one node are serialized by a local locker, nodes are serialized by leases from the backend.
+//A lease stays cached after unlock, so repeated locks on the same node need no round trip
+public class DistributedEntityLocker<T> implements EntityLocker<T>, AutoCloseable {
+    //A pending global lock is not notified when a waiter of another node starts blocking its drain, so it rechecks at this period
+    private static final long GLOBAL_RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String nodeId;
+    private final LockBackend<T> backend;
+    private final EntityLockerImpl<T> localLocker;
+    private final ConcurrentMap<T, NodeLease<T>> leases;
+    private final ConcurrentMap<Thread, T> remoteWaits;
+    private final ConcurrentLinkedQueue<NodeLease<T>> requestedLeases;
+    private final ReentrantLock flushGuard;
+    private final ReentrantLock grantGuard;
+    private final Condition grantsChanged;
+    //Guarded by grantGuard, bumped on every grant or release so a waiter can tell whether it missed one
+    private long grantsGeneration;
+    //Touched only by the thread holding the local global lock
+    private int globalHolds;
+
+    public DistributedEntityLocker(final String nodeId, final LockBackend<T> backend) {
+        this(nodeId, backend, 100);
+    }
+
+    public DistributedEntityLocker(final String nodeId, final LockBackend<T> backend, final int minLocksBeforeGlobal) {
+        this.nodeId = nodeId;
+        this.backend = backend;
+        this.localLocker = new EntityLockerImpl<>(minLocksBeforeGlobal);
+        this.leases = new ConcurrentHashMap<>();
+        this.remoteWaits = new ConcurrentHashMap<>();
+        this.requestedLeases = new ConcurrentLinkedQueue<>();
+        this.flushGuard = new ReentrantLock();
+        this.grantGuard = new ReentrantLock();
+        this.grantsChanged = grantGuard.newCondition();
+
+        backend.register(nodeId, new NodeListener());
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void lock(final T entityId) throws InterceptedDeadlockException {
+        localLocker.lock(entityId);
+        leaseUninterruptibly(Collections.singletonList(entityId), false, false, 0);
+    }
+
+    @Override
+    public boolean tryLock(final T entityId) throws InterceptedDeadlockException {
+        return localLocker.tryLock(entityId)
+                && leaseUninterruptibly(Collections.singletonList(entityId), false, true, System.nanoTime());
+    }
+
+    @Override
+    public boolean tryLock(final T entityId, final long timeout, final TimeUnit unit) throws InterruptedException, InterceptedDeadlockException {
+        final long deadline = deadlineAfter(timeout, unit);
+        return localLocker.tryLock(entityId, timeout, unit)
+                && leaseAfterLocking(Collections.singletonList(entityId), false, true, deadline);
+    }
+
+    @Override
+    public void unlock(final T entityId) {
+        localLocker.unlock(entityId);
+        stopUsing(leases.get(entityId));
+    }
+
+    //Leases are per node, so shared holders of different nodes still take turns
+    @Override
+    public void lockShared(final T entityId) throws InterceptedDeadlockException {
+        localLocker.lockShared(entityId);
+        leaseUninterruptibly(Collections.singletonList(entityId), true, false, 0);
+    }
+
+    @Override
+    public boolean tryLockShared(final T entityId) throws InterceptedDeadlockException {
+        return localLocker.tryLockShared(entityId)
+                && leaseUninterruptibly(Collections.singletonList(entityId), true, true, System.nanoTime());
+    }
+
+    @Override
+    public boolean tryLockShared(final T entityId, final long timeout, final TimeUnit unit) throws InterruptedException, InterceptedDeadlockException {
+        final long deadline = deadlineAfter(timeout, unit);
+        return localLocker.tryLockShared(entityId, timeout, unit)
+                && leaseAfterLocking(Collections.singletonList(entityId), true, true, deadline);
+    }
+
+    @Override
+    public void unlockShared(final T entityId) {
+        localLocker.unlockShared(entityId);
+        stopUsing(leases.get(entityId));
+    }
+
+    //The node lease is kept, only the local mode changes
+    @Override
+    public void downgrade(final T entityId) throws InterceptedDeadlockException {
+        localLocker.downgrade(entityId);
+    }
+
+    @Override
+    public void lockAll(final Collection<T> entitiesIds) throws InterceptedDeadlockException {
+        localLocker.lockAll(entitiesIds);
+        leaseUninterruptibly(new ArrayList<>(new LinkedHashSet<>(entitiesIds)), false, false, 0);
+    }
+
+    @Override
+    public boolean tryLockAll(final Collection<T> entitiesIds, final long timeout, final TimeUnit unit) throws InterruptedException, InterceptedDeadlockException {
+        final long deadline = deadlineAfter(timeout, unit);
+        return localLocker.tryLockAll(entitiesIds, timeout, unit)
+                && leaseAfterLocking(new ArrayList<>(new LinkedHashSet<>(entitiesIds)), false, true, deadline);
+    }
+
+    @Override
+    public void unlockAll(final Collection<T> entitiesIds) {
+        localLocker.unlockAll(entitiesIds);
+        for (final T entityId : new LinkedHashSet<>(entitiesIds)) {
+            stopUsing(leases.get(entityId));
+        }
+    }
+
+    @Override
+    public boolean isLockedByCurrentThread(final T entityId) {
+        return localLocker.isLockedByCurrentThread(entityId);
+    }
+
+    @Override
+    public void globalLock() throws InterceptedDeadlockException {
+        localLocker.globalLock();
+        awaitGlobal(false, 0);
+    }
+
+    @Override
+    public boolean tryGlobalLock() throws InterceptedDeadlockException {
+        return localLocker.tryGlobalLock() && awaitGlobal(true, System.nanoTime());
+    }
+
+    @Override
+    public boolean tryGlobalLock(final long timeout, final TimeUnit unit) throws InterceptedDeadlockException {
+        final long deadline = deadlineAfter(timeout, unit);
+        return localLocker.tryGlobalLock(timeout, unit) && awaitGlobal(true, deadline);
+    }
+
+    @Override
+    public void globalUnlock() {
+        if (--globalHolds == 0) {
+            backend.releaseGlobal(nodeId);
+        }
+        localLocker.globalUnlock();
+    }
+
+    @Override
+    public int currentSize() {
+        return localLocker.currentSize();
+    }
+
+    @Override
+    public LockMetrics metrics() {
+        return localLocker.metrics();
+    }
+
+    //Gives back every cached lease, the node must not be used afterwards
+    @Override
+    public void close() {
+        backend.unregister(nodeId);
+        leases.clear();
+    }
+
+    //Untimed waits and zero timeouts never throw the interrupt, the flag is kept for the caller instead
+    private boolean leaseUninterruptibly(final List<T> entitiesIds, final boolean isShared, final boolean isTimed, final long deadline) throws InterceptedDeadlockException {
+        try {
+            return leaseAfterLocking(entitiesIds, isShared, isTimed, deadline);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Untimed lock of entities {" + entitiesIds + "} was interrupted", e);
+        }
+    }
+
+    private boolean leaseAfterLocking(final List<T> entitiesIds, final boolean isShared, final boolean isTimed, final long deadline) throws InterruptedException, InterceptedDeadlockException {
+        final List<NodeLease<T>> used = new ArrayList<>(entitiesIds.size());
+        final Thread currentThread = Thread.currentThread();
+        for (final T entityId : entitiesIds) {
+            used.add(use(entityId, currentThread));
+        }
+
+        boolean isGranted = false;
+        try {
+            isGranted = awaitGrants(used, isTimed, deadline);
+            return isGranted;
+        } finally {
+            if (!isGranted) {
+                for (final NodeLease<T> lease : used) {
+                    stopUsing(lease);
+                }
+                unlockLocally(entitiesIds, isShared);
+            }
+        }
+    }
+
+    private NodeLease<T> use(final T entityId, final Thread user) {
+        while (true) {
+            final NodeLease<T> lease = leases.computeIfAbsent(entityId, NodeLease::new);
+            lease.lock();
+            try {
+                if (!lease.isRemoved()) {
+                    lease.use(user);
+                    return lease;
+                }
+            } finally {
+                lease.unlock();
+            }
+            leases.remove(entityId, lease);
+        }
+    }
+
+    private void stopUsing(final NodeLease<T> lease) {
+        final boolean isReturned;
+        lease.lock();
+        try {
+            isReturned = lease.stopUsing();
+            if (lease.isRemoved()) {
+                leases.remove(lease.entityId(), lease);
+            }
+        } finally {
+            lease.unlock();
+        }
+
+        if (isReturned) {
+            backend.release(nodeId, Collections.singletonList(lease.entityId()));
+        }
+    }
+
+    private void unlockLocally(final List<T> entitiesIds, final boolean isShared) {
+        if (entitiesIds.size() > 1) {
+            localLocker.unlockAll(entitiesIds);
+        } else if (isShared) {
+            localLocker.unlockShared(entitiesIds.get(0));
+        } else {
+            localLocker.unlock(entitiesIds.get(0));
+        }
+    }
+
+    private boolean awaitGrants(final List<NodeLease<T>> wanted, final boolean isTimed, final long deadline) throws InterruptedException, InterceptedDeadlockException {
+        final Thread currentThread = Thread.currentThread();
+        T walkedEntity = null;
+        String walkedHolder = null;
+        long requestedGeneration = -1;
+        try {
+            while (true) {
+                //Read before the grants are checked, so a grant or release in between wakes the wait below at once
+                final long generation = grantsGeneration();
+                final List<NodeLease<T>> missing = missingLeases(wanted);
+                if (missing.isEmpty()) {
+                    return true;
+                }
+
+                //A refused lease is asked again only after something was granted or released since the last request
+                if (generation != requestedGeneration) {
+                    requestedGeneration = generation;
+                    requestLeases(missing);
+                }
+                final NodeLease<T> stillMissing = firstMissingLease(missing);
+                if (stillMissing == null) {
+                    return true;
+                }
+
+                //Published before the walk, so of two nodes closing a cycle at least one sees the other
+                //The chain is walked again only when the wait itself changed
+                final T waitingEntity = stillMissing.entityId();
+                remoteWaits.put(currentThread, waitingEntity);
+                final String holder = backend.holderOf(waitingEntity);
+                if (!waitingEntity.equals(walkedEntity) || !Objects.equals(holder, walkedHolder)) {
+                    checkOnDeadlock(waitingEntity, holder);
+                    walkedEntity = waitingEntity;
+                    walkedHolder = holder;
+                }
+
+                final long remaining = deadline - System.nanoTime();
+                if (!isTimed) {
+                    awaitGrantsChangeUninterruptibly(generation);
+                } else if (remaining > 0) {
+                    awaitGrantsChange(generation, remaining);
+                } else {
+                    return false;
+                }
+            }
+        } finally {
+            remoteWaits.remove(currentThread);
+        }
+    }
+
+    //Flat combining, whoever finds the guard free sends the requests of every waiting thread in one call
+    //A lease already queued by another waiter is not queued again
+    private void requestLeases(final List<NodeLease<T>> missing) {
+        for (final NodeLease<T> lease : missing) {
+            if (markRequested(lease)) {
+                requestedLeases.add(lease);
+            }
+        }
+
+        //Checked again after the guard is given back, the last flush may have missed a request queued meanwhile
+        boolean isAnyGranted = false;
+        while (!requestedLeases.isEmpty() && flushGuard.tryLock()) {
+            try {
+                isAnyGranted |= flushRequests();
+            } finally {
+                flushGuard.unlock();
+            }
+        }
+
+        //Refusals change nothing for the waiters, the holders are asked to revoke and their release signals instead
+        if (isAnyGranted) {
+            signalGrantsChange();
+        }
+    }
+
+    private boolean flushRequests() {
+        final Map<T, NodeLease<T>> batch = new LinkedHashMap<>();
+        NodeLease<T> lease;
+        while ((lease = requestedLeases.poll()) != null) {
+            if (sendRequest(lease)) {
+                batch.put(lease.entityId(), lease);
+            }
+        }
+        if (batch.isEmpty()) {
+            return false;
+        }
+
+        logDebugCurrentThread("request leases %s from backend", batch.keySet());
+        final Set<T> granted = backend.acquire(nodeId, new ArrayList<>(batch.keySet()));
+        for (final T entityId : granted) {
+            grant(batch.get(entityId));
+        }
+
+        return !granted.isEmpty();
+    }
+
+    private boolean markRequested(final NodeLease<T> lease) {
+        lease.lock();
+        try {
+            return lease.markRequested();
+        } finally {
+            lease.unlock();
+        }
+    }
+
+    private boolean sendRequest(final NodeLease<T> lease) {
+        lease.lock();
+        try {
+            return lease.requestSent();
+        } finally {
+            lease.unlock();
+        }
+    }
+
+    private void grant(final NodeLease<T> lease) {
+        final boolean isAbandoned;
+        lease.lock();
+        try {
+            isAbandoned = lease.isRemoved();
+            if (!isAbandoned) {
+                lease.markGranted();
+            }
+        } finally {
+            lease.unlock();
+        }
+
+        //Every user gave up before the grant arrived
+        if (isAbandoned) {
+            backend.release(nodeId, Collections.singletonList(lease.entityId()));
+        }
+    }
+
+    //A timed global lock reports an interrupt as a failure, an untimed one keeps waiting, both keep the flag
+    private boolean awaitGlobal(final boolean isTimed, final long deadline) throws InterceptedDeadlockException {
+        boolean isInterrupted = false;
+        try {
+            while (true) {
+                final long generation = grantsGeneration();
+                if (backend.tryAcquireGlobal(nodeId)) {
+                    break;
+                }
+                if (backend.isGlobalBlockedByWaiters(nodeId)) {
+                    cancelGlobal();
+                    final Thread currentThread = Thread.currentThread();
+                    final String message = "Thread {" + currentThread + "} unable to acquire global lock due case of deadlock." +
+                            " Leases are held by waiting threads of other nodes";
+                    throw new InterceptedDeadlockException(message, currentThread, null);
+                }
+
+                final long remaining = deadline - System.nanoTime();
+                if (isTimed && remaining <= 0) {
+                    cancelGlobal();
+                    return false;
+                }
+                try {
+                    awaitGrantsChange(generation, isTimed ? Math.min(remaining, GLOBAL_RECHECK_NANOS) : GLOBAL_RECHECK_NANOS);
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                    if (isTimed) {
+                        cancelGlobal();
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        ++globalHolds;
+        return true;
+    }
+
+    private void cancelGlobal() {
+        if (globalHolds == 0) {
+            backend.cancelGlobal(nodeId);
+        }
+        localLocker.globalUnlock();
+    }
+
+    private void checkOnDeadlock(final T originEntity, final String originHolder) throws InterceptedDeadlockException {
+        final Thread currentThread = Thread.currentThread();
+        final Set<T> visited = new HashSet<>();
+
+        T entityId = originEntity;
+        String holder = originHolder;
+        while (entityId != null && visited.add(entityId)) {
+            if (holder == null) {
+                return;
+            }
+
+            if (holder.equals(nodeId)) {
+                final NodeLease<T> lease = leases.get(entityId);
+                final Thread user = lease == null ? null : lease.lastUser();
+                if (user == currentThread) {
+                    final String message = "Thread {" + currentThread + "} unable to lock entity {" + originEntity + "} due case of deadlock." +
+                            " Entity pending by node {" + originHolder + "}";
+                    throw new InterceptedDeadlockException(message, currentThread, originHolder);
+                }
+                entityId = user == null ? null : remoteWaits.get(user);
+            } else {
+                entityId = backend.waitingEntityOfHolder(entityId);
+            }
+            holder = entityId == null ? null : backend.holderOf(entityId);
+        }
+    }
+
+    private List<NodeLease<T>> missingLeases(final List<NodeLease<T>> wanted) {
+        final List<NodeLease<T>> missing = new ArrayList<>();
+        for (final NodeLease<T> lease : wanted) {
+            if (!lease.isGranted()) {
+                missing.add(lease);
+            }
+        }
+
+        return missing;
+    }
+
+    private NodeLease<T> firstMissingLease(final List<NodeLease<T>> leases) {
+        for (final NodeLease<T> lease : leases) {
+            if (!lease.isGranted()) {
+                return lease;
+            }
+        }
+
+        return null;
+    }
+
+    private long grantsGeneration() {
+        grantGuard.lock();
+        try {
+            return grantsGeneration;
+        } finally {
+            grantGuard.unlock();
+        }
+    }
+
+    //Returns at once when the generation already moved, so a signal sent before the wait is not lost
+    private void awaitGrantsChange(final long generation, final long nanos) throws InterruptedException {
+        grantGuard.lock();
+        try {
+            long remaining = nanos;
+            while (grantsGeneration == generation && remaining > 0) {
+                remaining = grantsChanged.awaitNanos(remaining);
+            }
+        } finally {
+            grantGuard.unlock();
+        }
+    }
+
+    private void awaitGrantsChangeUninterruptibly(final long generation) {
+        grantGuard.lock();
+        try {
+            while (grantsGeneration == generation) {
+                grantsChanged.awaitUninterruptibly();
+            }
+        } finally {
+            grantGuard.unlock();
+        }
+    }
+
+    private void signalGrantsChange() {
+        grantGuard.lock();
+        try {
+            ++grantsGeneration;
+            grantsChanged.signalAll();
+        } finally {
+            grantGuard.unlock();
+        }
+    }
+
+    private final class NodeListener implements LeaseListener<T> {
+        @Override
+        public void revoke(final T entityId) {
+            final NodeLease<T> lease = leases.get(entityId);
+            if (lease == null) {
+                //A grant may have been abandoned on its way, the backend must not keep it for this node
+                backend.release(nodeId, Collections.singletonList(entityId));
+                return;
+            }
+
+            final boolean isReturned;
+            lease.lock();
+            try {
+                isReturned = lease.revoke();
+                if (isReturned) {
+                    leases.remove(entityId, lease);
+                }
+            } finally {
+                lease.unlock();
+            }
+
+            if (isReturned) {
+                backend.release(nodeId, Collections.singletonList(entityId));
+            }
+        }
+
+        @Override
+        public T waitingEntityOfHolder(final T entityId) {
+            final NodeLease<T> lease = leases.get(entityId);
+            final Thread user = lease == null ? null : lease.lastUser();
+
+            return user == null ? null : remoteWaits.get(user);
+        }
+
+        @Override
+        public void available() {
+            signalGrantsChange();
+        }
+    }
+}
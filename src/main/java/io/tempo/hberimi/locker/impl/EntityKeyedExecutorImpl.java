@@ -0,0 +1,210 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.AsyncEntityLocker;
+import io.tempo.hberimi.locker.EntityKeyedExecutor;
+import io.tempo.hberimi.locker.LockOwner;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.tempo.hberimi.util.SimpleLogger.logDebug;
+
+//Tasks wait in a mailbox per entity, the mailbox waits as one queued lock request, so no pool thread parks on a busy entity.
+//A grant runs a batch of tasks on one pool thread, a hot entity pays one lock handoff per batch instead of per task.
+//Thread locks of the same locker are queued with the mailboxes, a task must not take its own entity through them
+public class EntityKeyedExecutorImpl<T> implements EntityKeyedExecutor<T> {
+    private final AsyncEntityLocker<T> entityLocker;
+    private final Executor executor;
+    private final int maxBatch;
+    private final ConcurrentMap<T, Mailbox<T>> mailboxes;
+    private final AtomicLong globalSequence;
+
+    public EntityKeyedExecutorImpl(final AsyncEntityLocker<T> entityLocker, final Executor executor) {
+        this(entityLocker, executor, 64);
+    }
+
+    //Waiters of the entity outside the executor get in between batches
+    public EntityKeyedExecutorImpl(final AsyncEntityLocker<T> entityLocker, final Executor executor, final int maxBatch) {
+        this.entityLocker = entityLocker;
+        this.executor = executor;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.mailboxes = new ConcurrentHashMap<>();
+        this.globalSequence = new AtomicLong();
+    }
+
+    @Override
+    public <R> CompletableFuture<R> submit(final T entityId, final Callable<R> task) {
+        final KeyedTask<R> keyedTask = new KeyedTask<>(task);
+
+        //The lock is requested before submit returns, so tasks submitted one after another are granted in that order
+        final Mailbox<T>[] scheduled = newMailboxHolder();
+        mailboxes.compute(entityId, (key, mailbox) -> {
+            final Mailbox<T> current = mailbox == null ? new Mailbox<>(entityLocker.newOwner(String.valueOf(key)), key) : mailbox;
+            current.tasks.add(keyedTask);
+            if (!current.isScheduled) {
+                current.isScheduled = true;
+                scheduled[0] = current;
+            }
+            return current;
+        });
+
+        if (scheduled[0] != null) {
+            schedule(scheduled[0]);
+        }
+
+        return keyedTask.future;
+    }
+
+    @Override
+    public CompletableFuture<Void> submit(final T entityId, final Runnable task) {
+        return submit(entityId, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    @Override
+    public <R> CompletableFuture<R> submitGlobal(final Callable<R> task) {
+        final KeyedTask<R> keyedTask = new KeyedTask<>(task);
+        final LockOwner owner = entityLocker.newOwner("global-task-" + globalSequence.incrementAndGet());
+
+        entityLocker.globalLockAsync(owner).whenComplete((granted, error) -> {
+            if (error != null) {
+                keyedTask.fail(error);
+                return;
+            }
+
+            final Runnable run = () -> {
+                try {
+                    keyedTask.run();
+                } finally {
+                    entityLocker.globalUnlock(owner);
+                }
+            };
+            try {
+                executor.execute(run);
+            } catch (RejectedExecutionException e) {
+                entityLocker.globalUnlock(owner);
+                keyedTask.fail(e);
+            }
+        });
+
+        return keyedTask.future;
+    }
+
+    @Override
+    public CompletableFuture<Void> submitGlobal(final Runnable task) {
+        return submitGlobal(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    //Runs on the thread completing the grant, often one unlocking another entity, so it only hands the batch over
+    private void schedule(final Mailbox<T> mailbox) {
+        entityLocker.lockAsync(mailbox.owner, mailbox.entityId).whenComplete((granted, error) -> {
+            if (error != null) {
+                failNext(mailbox, error);
+                return;
+            }
+
+            try {
+                executor.execute(() -> runBatch(mailbox));
+            } catch (RejectedExecutionException e) {
+                entityLocker.unlock(mailbox.owner, mailbox.entityId);
+                failNext(mailbox, e);
+            }
+        });
+    }
+
+    private void runBatch(final Mailbox<T> mailbox) {
+        try {
+            KeyedTask<?> task;
+            for (int i = 0; i < maxBatch && (task = mailbox.tasks.poll()) != null; ++i) {
+                task.run();
+            }
+        } finally {
+            entityLocker.unlock(mailbox.owner, mailbox.entityId);
+        }
+
+        rescheduleOrRetire(mailbox);
+    }
+
+    //Only the task at the head waited for the failed grant, the ones behind it try again
+    private void failNext(final Mailbox<T> mailbox, final Throwable error) {
+        logDebug("Task of entity {%s} failed to lock: %s", mailbox.entityId, error);
+
+        final KeyedTask<?> task = mailbox.tasks.poll();
+        if (task != null) {
+            task.fail(error);
+        }
+
+        rescheduleOrRetire(mailbox);
+    }
+
+    private void rescheduleOrRetire(final Mailbox<T> mailbox) {
+        final boolean[] isRescheduled = new boolean[1];
+        mailboxes.compute(mailbox.entityId, (key, current) -> {
+            if (!mailbox.tasks.isEmpty()) {
+                isRescheduled[0] = true;
+                return current;
+            }
+
+            mailbox.isScheduled = false;
+            return null;
+        });
+
+        if (isRescheduled[0]) {
+            schedule(mailbox);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Mailbox<T>[] newMailboxHolder() {
+        return new Mailbox[1];
+    }
+
+    //Tasks are added under the map entry, the flag and the retirement are changed under it as well
+    private static final class Mailbox<T> {
+        private final LockOwner owner;
+        private final T entityId;
+        private final Queue<KeyedTask<?>> tasks;
+        private boolean isScheduled;
+
+        private Mailbox(final LockOwner owner, final T entityId) {
+            this.owner = owner;
+            this.entityId = entityId;
+            this.tasks = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    private static final class KeyedTask<R> {
+        private final Callable<R> task;
+        private final CompletableFuture<R> future;
+
+        private KeyedTask(final Callable<R> task) {
+            this.task = task;
+            this.future = new CompletableFuture<>();
+        }
+
+        //A failing task completes its own future only, the next one still runs
+        private void run() {
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        private void fail(final Throwable error) {
+            future.completeExceptionally(error);
+        }
+    }
+}
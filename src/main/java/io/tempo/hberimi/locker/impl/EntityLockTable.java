@@ -0,0 +1,28 @@
+package io.tempo.hberimi.locker.impl;
+
+import java.util.Comparator;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+interface EntityLockTable<T> {
+    ReentrantReadWriteLock lockFor(T entityId);
+
+    ReentrantReadWriteLock existingLockFor(T entityId);
+
+    Object interceptionKey(T entityId, ReentrantReadWriteLock lock);
+
+    //The interception key of the entity without its lock, for readers which take none
+    Object versionKey(T entityId);
+
+    boolean bindLock(T entityId, ReentrantReadWriteLock lock, boolean isShared);
+
+    void unlock(T entityId, ReentrantReadWriteLock lock, boolean isShared);
+
+    boolean isHeldByCurrentThread(T entityId, ReentrantReadWriteLock lock, boolean isShared);
+
+    //How many released interception keys the deadlock interceptor may keep instead of removing them
+    int retainedKeys();
+
+    int size();
+
+    Comparator<T> lockOrder();
+}
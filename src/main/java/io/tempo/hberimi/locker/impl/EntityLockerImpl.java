@@ -1,268 +1,792 @@
 package io.tempo.hberimi.locker.impl;
 
 import io.tempo.hberimi.interceptor.DeadlockInterceptor;
+import io.tempo.hberimi.interceptor.DeadlockStrategy;
 import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EscalationPolicy;
 import io.tempo.hberimi.locker.EntityLocker;
-import io.tempo.hberimi.util.BooleanFunction;
-
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import io.tempo.hberimi.locker.WaitStrategy;
+import io.tempo.hberimi.metrics.EntityLockerMXBean;
+import io.tempo.hberimi.metrics.LockMetrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.function.Consumer;
-import java.util.function.Supplier;
 
+import static io.tempo.hberimi.locker.impl.EntityPartitions.NO_PARTITION;
+import static io.tempo.hberimi.locker.impl.LockAttempt.IMMEDIATE;
+import static io.tempo.hberimi.locker.impl.LockAttempt.TIMED;
+import static io.tempo.hberimi.locker.impl.LockAttempt.WAITING;
+import static io.tempo.hberimi.locker.impl.LockAttempt.deadlineAfter;
+import static io.tempo.hberimi.util.SimpleLogger.isDebugEnabled;
 import static io.tempo.hberimi.util.SimpleLogger.logDebugCurrentThread;
 import static io.tempo.hberimi.util.SimpleLogger.logError;
 
 public class EntityLockerImpl<T> implements EntityLocker<T> {
-    private final Map<T, ReentrantLock> entityLocks;
-    private final DeadlockInterceptor<T> deadlockInterceptor;
+    private static final int PARTITION_REFUSED = NO_PARTITION - 1;
+
+    private final EntityLockTable<T> lockTable;
+    private final Comparator<? super T> lockOrder;
+    private final DeadlockStrategy<Object> deadlockStrategy;
     private final LockEscalator lockEscalator;
-    private final ReentrantReadWriteLock globalLock;
-    private final ReentrantReadWriteLock nonGlobalLock;
-    private int globalLocks;
+    private final BiasedGlobalLock globalLock;
+    private final WaitStrategy waitStrategy;
+    private final LockMetrics metrics;
+    private final EntityVersions versions;
+    //Null unless escalation to partitions is configured, the default path never looks at a partition
+    private final EntityPartitions<T> partitions;
+    //Counted on the contended path only, unlike the metrics it is kept while they are disabled
+    private final LongAdder waitingThreads;
+    private final EntityLockerMXBean mxBean;
 
     public EntityLockerImpl() {
         this(100);
     }
 
     public EntityLockerImpl(final int minLocksBeforeGlobal) {
-        this.entityLocks = new ConcurrentHashMap<>();
-        this.deadlockInterceptor = new DeadlockInterceptor<>();
+        this(minLocksBeforeGlobal, new ConcurrentEntityLockTable<>());
+    }
+
+    public EntityLockerImpl(final int minLocksBeforeGlobal, final Comparator<? super T> lockOrder) {
+        this(minLocksBeforeGlobal, new ConcurrentEntityLockTable<>(), lockOrder, ParkWaitStrategy.INSTANCE);
+    }
+
+    public EntityLockerImpl(final int minLocksBeforeGlobal, final WaitStrategy waitStrategy) {
+        this(minLocksBeforeGlobal, new ConcurrentEntityLockTable<>(waitStrategy.isFair()), waitStrategy);
+    }
+
+    public EntityLockerImpl(final int minLocksBeforeGlobal, final DeadlockStrategy<Object> deadlockStrategy) {
+        this(minLocksBeforeGlobal, new ConcurrentEntityLockTable<>(), ParkWaitStrategy.INSTANCE, deadlockStrategy);
+    }
+
+    //Entities are hashed into partitions and a thread holding many of one partition takes it instead of its entities.
+    //Batch locking then goes entity by entity
+    public EntityLockerImpl(final int minLocksBeforeGlobal, final int partitions, final int minLocksBeforePartition) {
+        this(minLocksBeforeGlobal, new ConcurrentEntityLockTable<>(), partitions, minLocksBeforePartition);
+    }
+
+    EntityLockerImpl(final int minLocksBeforeGlobal, final EntityLockTable<T> lockTable, final int partitions, final int minLocksBeforePartition) {
+        this(minLocksBeforeGlobal, lockTable, lockTable.lockOrder(), ParkWaitStrategy.INSTANCE,
+                new DeadlockInterceptor<>(lockTable.retainedKeys()), partitions, minLocksBeforePartition);
+    }
+
+    EntityLockerImpl(final int minLocksBeforeGlobal, final EntityLockTable<T> lockTable) {
+        this(minLocksBeforeGlobal, lockTable, ParkWaitStrategy.INSTANCE);
+    }
+
+    EntityLockerImpl(final int minLocksBeforeGlobal, final EntityLockTable<T> lockTable, final WaitStrategy waitStrategy) {
+        this(minLocksBeforeGlobal, lockTable, lockTable.lockOrder(), waitStrategy);
+    }
+
+    EntityLockerImpl(final int minLocksBeforeGlobal, final EntityLockTable<T> lockTable, final WaitStrategy waitStrategy,
+                     final DeadlockStrategy<Object> deadlockStrategy) {
+        this(minLocksBeforeGlobal, lockTable, lockTable.lockOrder(), waitStrategy, deadlockStrategy);
+    }
+
+    EntityLockerImpl(final int minLocksBeforeGlobal, final EntityLockTable<T> lockTable, final Comparator<? super T> lockOrder,
+                     final WaitStrategy waitStrategy) {
+        this(minLocksBeforeGlobal, lockTable, lockOrder, waitStrategy, new DeadlockInterceptor<>(lockTable.retainedKeys()));
+    }
+
+    EntityLockerImpl(final int minLocksBeforeGlobal, final EntityLockTable<T> lockTable, final Comparator<? super T> lockOrder,
+                     final WaitStrategy waitStrategy, final DeadlockStrategy<Object> deadlockStrategy) {
+        this(minLocksBeforeGlobal, lockTable, lockOrder, waitStrategy, deadlockStrategy, 0, 0);
+    }
+
+    EntityLockerImpl(final int minLocksBeforeGlobal, final EntityLockTable<T> lockTable, final Comparator<? super T> lockOrder,
+                     final WaitStrategy waitStrategy, final DeadlockStrategy<Object> deadlockStrategy,
+                     final int partitions, final int minLocksBeforePartition) {
+        this.lockTable = lockTable;
+        this.lockOrder = lockOrder;
+        this.deadlockStrategy = deadlockStrategy;
         this.lockEscalator = new LockEscalator(minLocksBeforeGlobal);
-        globalLock = new ReentrantReadWriteLock();
-        nonGlobalLock = new ReentrantReadWriteLock();
+        this.waitStrategy = waitStrategy;
+        this.globalLock = new BiasedGlobalLock(waitStrategy);
+        this.metrics = new LockMetrics();
+        this.versions = new EntityVersions(1 << 10);
+        this.partitions = partitions > 0 ? new EntityPartitions<>(partitions, minLocksBeforePartition, deadlockStrategy, waitStrategy) : null;
+        this.waitingThreads = new LongAdder();
+        this.mxBean = new EntityLockerMXBeanImpl(lockTable, deadlockStrategy, lockEscalator, globalLock, waitingThreads);
     }
 
     @Override
     public void lock(final T entityId) throws InterceptedDeadlockException {
-        lock(entityId, waitingLock());
+        lock(entityId, false, WAITING, 0);
     }
 
     @Override
     public boolean tryLock(final T entityId) throws InterceptedDeadlockException {
-        return lock(entityId, Lock::tryLock);
+        return recordTryLock(lock(entityId, false, IMMEDIATE, 0), false);
     }
 
-
     @Override
     public boolean tryLock(final T entityId, final long timeout, final TimeUnit timeUnit) throws InterceptedDeadlockException {
-        return lock(entityId, silentTryLockFunction(timeout, timeUnit));
+        return recordTryLock(lock(entityId, false, TIMED, deadlineAfter(timeout, timeUnit)), true);
     }
 
     @Override
     public void unlock(final T entityId) {
-        final ReentrantLock entityLock = entityLocks.get(entityId);
+        unlock(entityId, false);
+    }
 
-        if (entityLock == null) {
-            final String message = "There is no locks for entity {" + entityId + "}";
-            logError(message);
-            throw new IllegalMonitorStateException(message);
+    @Override
+    public void lockShared(final T entityId) throws InterceptedDeadlockException {
+        lock(entityId, true, WAITING, 0);
+    }
+
+    @Override
+    public boolean tryLockShared(final T entityId) throws InterceptedDeadlockException {
+        return recordTryLock(lock(entityId, true, IMMEDIATE, 0), false);
+    }
+
+    @Override
+    public boolean tryLockShared(final T entityId, final long timeout, final TimeUnit unit) throws InterceptedDeadlockException {
+        return recordTryLock(lock(entityId, true, TIMED, deadlineAfter(timeout, unit)), true);
+    }
+
+    @Override
+    public void unlockShared(final T entityId) {
+        unlock(entityId, true);
+    }
+
+    @Override
+    public void downgrade(final T entityId) throws InterceptedDeadlockException {
+        //An escalated partition is held exclusively whatever the mode of the holds within it
+        final int partition = partitionOf(entityId);
+        if (isHeldWithinPartition(entityId, partition, false)) {
+            return;
+        }
+        final ReentrantReadWriteLock entityLock = heldEntityLock(entityId, false);
+
+        //The exclusive owner always gets the shared lock at once, so the entity is never free in between.
+        //The hold is swapped in place, the global, partition and escalation counts are the same before and after
+        logDebugCurrentThread("downgrade lock for entity {%s}", entityId);
+        entityLock.readLock().lock();
+        lockTable.bindLock(entityId, entityLock, true);
+        afterLocking(lockTable.interceptionKey(entityId, entityLock), true, true);
+
+        releaseEntity(entityId, entityLock, false);
+        if (partition != NO_PARTITION) {
+            partitions.exclusiveReleased(partition, entityId);
         }
+    }
 
-        final Thread currentThread = Thread.currentThread();
-        if (!entityLock.isHeldByCurrentThread()) {
-            final String message = currentThread + " cannot unlock entity - {" + entityId + "} because it's hold by other thread";
-            logError(message);
-            throw new IllegalAccessError(message);
+    @Override
+    public void lockAll(final Collection<T> entitiesIds) throws InterceptedDeadlockException {
+        lockAll(orderedEntities(entitiesIds), WAITING, 0);
+    }
+
+    @Override
+    public boolean tryLockAll(final Collection<T> entitiesIds, final long timeout, final TimeUnit unit) throws InterceptedDeadlockException {
+        return recordTryLock(lockAll(orderedEntities(entitiesIds), TIMED, deadlineAfter(timeout, unit)), true);
+    }
+
+    @Override
+    public void unlockAll(final Collection<T> entitiesIds) {
+        final List<T> orderedEntities = orderedEntities(entitiesIds);
+        final int count = orderedEntities.size();
+
+        if (partitions != null) {
+            unlockEach(orderedEntities);
+            return;
         }
 
-        if (entityLock.getHoldCount() == 1) {
-            logDebugCurrentThread("It's last lock for entity {" + entityId + "} removing it");
-            deadlockInterceptor.beforeUnlocking(entityId);
-            entityLocks.remove(entityId);
-        } else {
-            logDebugCurrentThread("unlock entity {" + entityId + "} current hold count is " + (entityLock.getHoldCount() - 1));
+        //All entities are checked before the first one is released
+        final ReentrantReadWriteLock[] entityLocks = new ReentrantReadWriteLock[count];
+        for (int i = 0; i < count; ++i) {
+            entityLocks[i] = heldEntityLock(orderedEntities.get(i), false);
         }
 
-        nonGlobalLock.readLock().unlock();
-        entityLock.unlock();
+        for (int i = count - 1; i >= 0; --i) {
+            releaseEntity(orderedEntities.get(i), entityLocks[i], false);
+        }
 
-        if (lockEscalator.decThreadEntityCounter()) {
+        if (count == 0) {
+            return;
+        }
+
+        globalLock.readUnlock(count);
+
+        if (lockEscalator.decThreadEntityCounter(count)) {
             logDebugCurrentThread("deescalate global lock");
+            metrics.deescalated();
             globalUnlock();
         }
     }
 
     @Override
     public boolean isLockedByCurrentThread(final T entityId) {
-        final ReentrantLock entityLock = entityLocks.get(entityId);
+        final ReentrantReadWriteLock entityLock = lockTable.existingLockFor(entityId);
 
-        return entityLock != null && entityLock.isHeldByCurrentThread() || globalLock.isWriteLockedByCurrentThread();
+        return entityLock != null && lockTable.isHeldByCurrentThread(entityId, entityLock, false)
+                || globalLock.isWriteLockedByCurrentThread()
+                || partitions != null && partitions.isEscalated(partitions.partitionOf(entityId));
     }
 
     @Override
     public void globalLock() throws InterceptedDeadlockException {
-        globalLock(waitingLock());
+        final long startTime = beforeGlobalLocking();
+
+        logDebugCurrentThread("waiting global lock and other threads completion");
+        final long waitSlice = deadlockStrategy.waitSliceNanos();
+        if (waitSlice == 0) {
+            globalLock.writeLock(lockEscalator.currentThreadLockedEntities());
+        } else {
+            awaitGlobalLock(startTime, waitSlice);
+        }
+        logDebugCurrentThread("acquire global lock");
+
+        afterGlobalLocking(startTime, true);
     }
 
     @Override
     public boolean tryGlobalLock() throws InterceptedDeadlockException {
-        return globalLock(Lock::tryLock);
+        final long startTime = beforeGlobalLocking();
+
+        final boolean isLocked = globalLock.tryWriteLock(lockEscalator.currentThreadLockedEntities());
+        afterGlobalLocking(startTime, isLocked);
+
+        return recordTryLock(isLocked, false);
     }
 
     @Override
     public boolean tryGlobalLock(final long timeout, final TimeUnit unit) throws InterceptedDeadlockException {
-        deadlockInterceptor.beforeGlobalLocking();
+        final long startTime = beforeGlobalLocking();
 
-        final long nanos = unit.toNanos(timeout);
+        final boolean isLocked = globalLock.tryWriteLock(timeout, unit, lockEscalator.currentThreadLockedEntities());
+        afterGlobalLocking(startTime, isLocked);
 
-        final long start = System.nanoTime();
-        if (!silentTryLockWithNanos(this.globalLock::writeLock, nanos)) {
-            return false;
+        return recordTryLock(isLocked, true);
+    }
+
+    @Override
+    public void globalUnlock() {
+        logDebugCurrentThread("release global lock");
+        if (globalLock.writeHoldCount() == 1) {
+            metrics.globalReleased();
         }
-        final long end = System.nanoTime();
+        deadlockStrategy.beforeGlobalUnlocking();
+        lockEscalator.cancelEscalation(globalLock.queuedThreads());
+        globalLock.writeUnlock();
+    }
 
-        unlockReadLock();
+    public EscalationPolicy escalationPolicy() {
+        return lockEscalator.escalationPolicy();
+    }
 
-        final boolean isLockGranted = silentTryLockWithNanos(nonGlobalLock::writeLock, nanos - (end - start));
+    public void setEscalationPolicy(final EscalationPolicy escalationPolicy) {
+        lockEscalator.setEscalationPolicy(escalationPolicy);
+    }
 
-        restoreReadLock();
+    //The epoch is read before the locks, a global or partition lock granted after that moves it before its holder writes
+    @Override
+    public long tryOptimisticRead(final T entityId) {
+        final long epoch = versions.epoch();
+        if (globalLock.isWriteLocked() || partitions != null && partitions.isWriteLocked(partitions.partitionOf(entityId))) {
+            return 0;
+        }
 
-        return isLockGranted;
+        return versions.stamp(lockTable.versionKey(entityId), epoch);
     }
 
     @Override
-    public void globalUnlock() {
-        logDebugCurrentThread("release global lock");
-        globalLocks = 0;
-        deadlockInterceptor.beforeGlobalUnlocking();
-        lockEscalator.cancelEscalation();
-        nonGlobalLock.writeLock().unlock();
-        globalLock.writeLock().unlock();
+    public boolean validate(final T entityId, final long stamp) {
+        return versions.validate(lockTable.versionKey(entityId), stamp);
     }
 
     @Override
     public int currentSize() {
-        return entityLocks.size();
+        return lockTable.size();
+    }
+
+    @Override
+    public LockMetrics metrics() {
+        return metrics;
+    }
+
+    public EntityLockerMXBean mxBean() {
+        return mxBean;
+    }
+
+    //Registers the live state with the platform MBean server, the name tells apart lockers of one application
+    public ObjectName registerMBean(final String name) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName objectName = new ObjectName("io.tempo.hberimi:type=EntityLocker,name=" + ObjectName.quote(name));
+            server.registerMBean(mxBean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            final String message = "Cannot register locker MBean {" + name + "}: " + e;
+            logError(message);
+            throw new IllegalStateException(message, e);
+        }
+    }
+
+    public void unregisterMBean(final ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            final String message = "Cannot unregister locker MBean {" + objectName + "}: " + e;
+            logError(message);
+            throw new IllegalStateException(message, e);
+        }
     }
-    private boolean lock(final T entityId, final BooleanFunction<Lock> lockFunction) throws InterceptedDeadlockException {
-        logDebugCurrentThread("try gain lock for entity {" + entityId + "}");
+
+    private boolean lock(final T entityId, final boolean isShared, final LockAttempt attempt, final long deadline) throws InterceptedDeadlockException {
+        final long startTime = metrics.startTime();
+        logDebugCurrentThread("try gain %s lock for entity {%s}", lockMode(isShared), entityId);
         logDebugCurrentThread("check global lock");
 
-        if (lockEscalator.currentThreadLockedEntities() == 0) {
-            if (!lockFunction.apply(globalLock.readLock())) {
-                return false;
-            }
+        if (!globalLock.readLock(lockEscalator.currentThreadLockedEntities() > 0, attempt, deadline)) {
+            return false;
+        }
 
-            //Here we lock both to guaranteed that no one else will locked global write lock
-            nonGlobalLock.readLock().lock();
-            globalLock.readLock().unlock();
-        } else {
-            nonGlobalLock.readLock().lock();
+        final int partition = enterPartition(entityId, attempt, deadline);
+        if (partition == PARTITION_REFUSED) {
+            globalLock.readUnlock();
+            return false;
+        }
+        if (partition != NO_PARTITION && partitions.isEscalated(partition)) {
+            logDebugCurrentThread("gain %s lock for entity {%s} within escalated partition", lockMode(isShared), entityId);
+            partitions.grantedWithin(partition, entityId, isShared);
+            metrics.acquired(startTime);
+            callEscalationIfNeeds(1);
+            return true;
         }
 
-        final ReentrantLock entityLock;
+        final ReentrantReadWriteLock entityLock;
         try {
-            entityLock = getEntityLock(entityId);
+            entityLock = lockEntity(entityId, isShared, attempt, deadline);
         } catch (InterceptedDeadlockException e) {
-            nonGlobalLock.readLock().unlock();
+            metrics.deadlockIntercepted();
+            exitPartition(partition);
+            globalLock.readUnlock();
             throw e;
         }
 
-        if (entityLock.isLocked() && !entityLock.isHeldByCurrentThread()) {
-            logDebugCurrentThread("waiting lock for entity {" + entityId + "}");
+        final boolean isLockGranted = entityLock != null;
+        if (isLockGranted) {
+            afterLocking(lockTable.interceptionKey(entityId, entityLock), isShared, true);
+            afterGranted(startTime, entityId, entityLock, isShared);
+            grantedInPartition(partition, entityId, isShared);
+        } else {
+            afterLocking(entityId, isShared, false);
+            exitPartition(partition);
+            globalLock.readUnlock();
         }
 
-        final boolean isLockGranted = lockFunction.apply(entityLock);
+        callEscalationIfNeeds(isLockGranted ? 1 : 0);
 
-        if (isLockGranted) {
-            logDebugCurrentThread("gain lock for entity {" + entityId + "}");
+        return isLockGranted;
+    }
+
+    private void unlock(final T entityId, final boolean isShared) {
+        final int partition = partitionOf(entityId);
+        if (isHeldWithinPartition(entityId, partition, isShared)) {
+            partitions.releasedWithin(partition, entityId, isShared);
         } else {
-            logDebugCurrentThread("cannot gain lock for entity {" + entityId + "}");
+            releaseEntity(entityId, heldEntityLock(entityId, isShared), isShared);
+            if (partition != NO_PARTITION && !isShared) {
+                partitions.exclusiveReleased(partition, entityId);
+            }
         }
+        exitPartition(partition);
 
-        entityLocks.putIfAbsent(entityId, entityLock);
+        globalLock.readUnlock();
 
-        afterLocking(entityId, isLockGranted);
+        if (lockEscalator.decThreadEntityCounter()) {
+            logDebugCurrentThread("deescalate global lock");
+            metrics.deescalated();
+            globalUnlock();
+        }
+    }
 
-        return isLockGranted;
+    private boolean lockAll(final List<T> entitiesIds, final LockAttempt attempt, final long deadline) throws InterceptedDeadlockException {
+        final int count = entitiesIds.size();
+        if (count == 0) {
+            return true;
+        }
+
+        logDebugCurrentThread("try gain locks for entities %s", entitiesIds);
+
+        if (partitions != null) {
+            return lockEach(entitiesIds, attempt, deadline);
+        }
+
+        //The global lock is checked once and read holds are taken for the whole batch
+        if (!globalLock.readLock(lockEscalator.currentThreadLockedEntities() > 0, attempt, deadline, count)) {
+            return false;
+        }
+
+        final long startTime = metrics.startTime();
+        int locked = 0;
+        try {
+            for (; locked < count; ++locked) {
+                final T entityId = entitiesIds.get(locked);
+                final ReentrantReadWriteLock entityLock = lockEntity(entityId, false, attempt, deadline);
+
+                if (entityLock == null) {
+                    afterLocking(entityId, false, false);
+                    break;
+                }
+
+                afterLocking(lockTable.interceptionKey(entityId, entityLock), false, true);
+                afterGranted(startTime, entityId, entityLock, false);
+            }
+        } catch (InterceptedDeadlockException e) {
+            metrics.deadlockIntercepted();
+            rollbackLockAll(entitiesIds, locked);
+            throw e;
+        }
+
+        if (locked < count) {
+            rollbackLockAll(entitiesIds, locked);
+            return false;
+        }
+
+        callEscalationIfNeeds(count);
+
+        return true;
+    }
+
+    private void rollbackLockAll(final List<T> entitiesIds, final int locked) {
+        logDebugCurrentThread("cannot gain locks for entities %s, releasing %s of them", entitiesIds, locked);
+
+        for (int i = locked - 1; i >= 0; --i) {
+            final T entityId = entitiesIds.get(i);
+            releaseEntity(entityId, lockTable.existingLockFor(entityId), false);
+        }
+
+        globalLock.readUnlock(entitiesIds.size());
     }
 
-    private boolean globalLock(final BooleanFunction<Lock> lockFunction) throws InterceptedDeadlockException {
-        deadlockInterceptor.beforeGlobalLocking();
+    //Entity by entity in the batch order, so that each one enters its partition
+    private boolean lockEach(final List<T> entitiesIds, final LockAttempt attempt, final long deadline) throws InterceptedDeadlockException {
+        int locked = 0;
+        try {
+            for (; locked < entitiesIds.size(); ++locked) {
+                if (!lock(entitiesIds.get(locked), false, attempt, deadline)) {
+                    break;
+                }
+            }
+        } catch (InterceptedDeadlockException e) {
+            unlockEach(entitiesIds.subList(0, locked));
+            throw e;
+        }
 
-        logDebugCurrentThread("waiting global lock");
-        if (!lockFunction.apply(globalLock.writeLock())) {
+        if (locked < entitiesIds.size()) {
+            logDebugCurrentThread("cannot gain locks for entities %s, releasing %s of them", entitiesIds, locked);
+            unlockEach(entitiesIds.subList(0, locked));
             return false;
         }
 
-        unlockReadLock();
+        return true;
+    }
 
-        logDebugCurrentThread("waiting other threads completion for acquiring global lock");
-        final boolean isLockGranted = lockFunction.apply(nonGlobalLock.writeLock());
-        logDebugCurrentThread("acquire global lock");
+    private void unlockEach(final List<T> entitiesIds) {
+        //All entities are checked before the first one is released
+        for (final T entityId : entitiesIds) {
+            if (!isHeldWithinPartition(entityId, partitionOf(entityId), false)) {
+                heldEntityLock(entityId, false);
+            }
+        }
 
-        restoreReadLock();
+        for (int i = entitiesIds.size() - 1; i >= 0; --i) {
+            unlock(entitiesIds.get(i), false);
+        }
+    }
 
-        return isLockGranted;
+    private int partitionOf(final T entityId) {
+        return partitions == null ? NO_PARTITION : partitions.partitionOf(entityId);
     }
-    private boolean silentTryLockWithNanos(final Supplier<Lock> lock, final long timeout) {
+
+    private int enterPartition(final T entityId, final LockAttempt attempt, final long deadline) throws InterceptedDeadlockException {
+        final int partition = partitionOf(entityId);
+        if (partition == NO_PARTITION) {
+            return NO_PARTITION;
+        }
+
+        try {
+            return partitions.enter(partition, attempt, deadline) ? partition : PARTITION_REFUSED;
+        } catch (InterceptedDeadlockException e) {
+            metrics.deadlockIntercepted();
+            globalLock.readUnlock();
+            throw e;
+        }
+    }
+
+    private void exitPartition(final int partition) {
+        if (partition != NO_PARTITION) {
+            partitions.exit(partition);
+        }
+    }
+
+    //Escalating drops the table entries of the exclusive holds, the holds themselves stay counted on the partition
+    private void grantedInPartition(final int partition, final T entityId, final boolean isShared) {
+        if (partition == NO_PARTITION) {
+            return;
+        }
+
+        if (!isShared) {
+            partitions.exclusiveGranted(partition, entityId);
+        }
+
+        final List<T> escalatedEntities = partitions.escalateIfNeeds(partition);
+        if (escalatedEntities != null) {
+            versions.invalidateAll();
+            for (final T escalatedEntity : escalatedEntities) {
+                releaseEntity(escalatedEntity, lockTable.existingLockFor(escalatedEntity), false);
+            }
+        }
+    }
+
+    //Holds taken within an escalated partition and the ones it took over have no table entry of the current thread,
+    //any other id of the partition is checked against the table and refused there
+    private boolean isHeldWithinPartition(final T entityId, final int partition, final boolean isShared) {
+        return partition != NO_PARTITION && partitions.isEscalated(partition) && partitions.isHeldWithin(partition, entityId, isShared);
+    }
+
+    private ReentrantReadWriteLock lockEntity(final T entityId, final boolean isShared, final LockAttempt attempt, final long deadline) throws InterceptedDeadlockException {
+        ReentrantReadWriteLock entityLock;
+        boolean isLockGranted;
+        do {
+            entityLock = lockTable.lockFor(entityId);
+            final Lock lock = isShared ? entityLock.readLock() : entityLock.writeLock();
+
+            //Only a published wait may block, a lock taken between the check and the wait would hide a cycle
+            final boolean isContended = isContended(entityLock, isShared);
+            isLockGranted = attempt != IMMEDIATE && !isContended && tryImmediately(lock);
+            if (!isLockGranted) {
+                final boolean isWaiting = isContended || attempt != IMMEDIATE;
+                final long waitStartTime = isWaiting ? System.nanoTime() : 0;
+                final boolean isWaitRecorded = isWaiting && beforeWaiting(entityId, entityLock, isShared);
+                if (isWaiting) {
+                    waitingThreads.increment();
+                }
+                try {
+                    isLockGranted = acquire(entityId, entityLock, lock, attempt, deadline);
+                } finally {
+                    metrics.waitEnded(isWaitRecorded);
+                    if (isWaiting) {
+                        waitingThreads.decrement();
+                        final long waitNanos = System.nanoTime() - waitStartTime;
+                        metrics.contended(entityId, waitNanos);
+                        lockEscalator.entityContended(waitNanos);
+                    }
+                }
+            }
+        } while (isLockGranted && !bindLock(entityId, entityLock, isShared));
+
+        if (isLockGranted) {
+            logDebugCurrentThread("gain %s lock for entity {%s}", lockMode(isShared), entityId);
+            return entityLock;
+        }
+
+        logDebugCurrentThread("cannot gain %s lock for entity {%s}", lockMode(isShared), entityId);
+        return null;
+    }
+
+    //The timed form of tryLock keeps to the queue of a fair lock instead of barging
+    private boolean tryImmediately(final Lock lock) {
+        if (!waitStrategy.isFair()) {
+            return lock.tryLock();
+        }
+
         try {
-            return lock.get().tryLock(timeout, TimeUnit.NANOSECONDS);
+            return lock.tryLock(0, TimeUnit.NANOSECONDS);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
         }
     }
 
-    private BooleanFunction<Lock> silentTryLockFunction(final long timeout, final TimeUnit timeUnit) {
-        return lock -> {
-            try {
-                return lock.tryLock(timeout, timeUnit);
-            } catch (InterruptedException e) {
-                return false;
+    private boolean acquire(final T entityId, final ReentrantReadWriteLock entityLock, final Lock lock,
+                            final LockAttempt attempt, final long deadline) throws InterceptedDeadlockException {
+        final long waitSlice = deadlockStrategy.waitSliceNanos();
+        if (waitSlice == 0 || attempt == IMMEDIATE) {
+            return attempt.apply(lock, deadline, waitStrategy);
+        }
+
+        final long waitStartTime = System.nanoTime();
+        long now = waitStartTime;
+        do {
+            final long sliceDeadline = attempt == WAITING ? now + waitSlice : Math.min(deadline, now + waitSlice);
+            if (TIMED.apply(lock, sliceDeadline, waitStrategy)) {
+                return true;
             }
-        };
+
+            deadlockStrategy.keepWaiting(lockTable.interceptionKey(entityId, entityLock), waitStartTime);
+            now = System.nanoTime();
+        } while (attempt == WAITING || now < deadline);
+
+        return false;
     }
 
-    private void afterLocking(final T entityId, final boolean isLockGranted) throws InterceptedDeadlockException {
-        deadlockInterceptor.afterLocking(entityId, isLockGranted);
-        callEscalationIfNeeds(isLockGranted);
+    private boolean bindLock(final T entityId, final ReentrantReadWriteLock entityLock, final boolean isShared) {
+        if (lockTable.bindLock(entityId, entityLock, isShared)) {
+            return true;
+        }
+
+        logDebugCurrentThread("lock for entity {%s} was released by its last owner, retrying", entityId);
+        if (isShared) {
+            entityLock.readLock().unlock();
+        } else {
+            entityLock.writeLock().unlock();
+        }
+        return false;
     }
 
-    private void callEscalationIfNeeds(final boolean isLockGranted) throws InterceptedDeadlockException {
-        if (isLockGranted && lockEscalator.incThreadEntityCounter()) {
-            logDebugCurrentThread("start promotion to global lock due escalation");
-            globalLock();
+    private ReentrantReadWriteLock heldEntityLock(final T entityId, final boolean isShared) {
+        final ReentrantReadWriteLock entityLock = lockTable.existingLockFor(entityId);
+
+        if (entityLock == null) {
+            final String message = "There is no locks for entity {" + entityId + "}";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
+
+        final Thread currentThread = Thread.currentThread();
+        if (!lockTable.isHeldByCurrentThread(entityId, entityLock, isShared)) {
+            final String message = currentThread + " cannot unlock " + lockMode(isShared) + " entity - {" + entityId + "} because it's hold by other thread";
+            logError(message);
+            throw new IllegalAccessError(message);
+        }
+
+        return entityLock;
+    }
+
+    private void releaseEntity(final T entityId, final ReentrantReadWriteLock entityLock, final boolean isShared) {
+        final int holdCount = isShared ? entityLock.getReadHoldCount() : entityLock.getWriteHoldCount();
+
+        if (holdCount == 1) {
+            logDebugCurrentThread("It's last %s lock for entity {%s} removing it", lockMode(isShared), entityId);
+            final Object lockKey = lockTable.interceptionKey(entityId, entityLock);
+            if (isShared) {
+                deadlockStrategy.beforeSharedUnlocking(lockKey);
+            } else {
+                deadlockStrategy.beforeUnlocking(lockKey);
+                metrics.holdEnded(lockKey);
+                versions.writeEnded(lockKey);
+            }
+        } else if (isDebugEnabled()) {
+            logDebugCurrentThread("unlock %s entity {%s} current hold count is %s", lockMode(isShared), entityId, holdCount - 1);
+        }
+
+        lockTable.unlock(entityId, entityLock, isShared);
+    }
+
+    private void afterLocking(final Object lockKey, final boolean isShared, final boolean isLockGranted) {
+        if (isShared) {
+            deadlockStrategy.afterSharedLocking(lockKey, isLockGranted);
+        } else {
+            deadlockStrategy.afterLocking(lockKey, isLockGranted);
         }
     }
 
-    private ReentrantLock getEntityLock(final T entityId) throws InterceptedDeadlockException {
-        final ReentrantLock existingLock = existingLock(entityId);
+    //Hold time is measured per exclusive lock object, so collided entities of a stripe share it
+    private void afterGranted(final long startTime, final T entityId, final ReentrantReadWriteLock entityLock, final boolean isShared) {
+        metrics.acquired(startTime);
+        if (!isShared && entityLock.getWriteHoldCount() == 1) {
+            final Object lockKey = lockTable.interceptionKey(entityId, entityLock);
+            versions.writeStarted(lockKey);
+            metrics.holdStarted(lockKey);
+        }
+    }
 
-        if (existingLock.isLocked() && !existingLock.isHeldByCurrentThread()) {
-            deadlockInterceptor.beforeLocking(entityId);
+    private long beforeGlobalLocking() throws InterceptedDeadlockException {
+        final long startTime = globalLock.isWriteLockedByCurrentThread() ? LockMetrics.NOT_RECORDED : metrics.startTime();
+        try {
+            deadlockStrategy.beforeGlobalLocking();
+        } catch (InterceptedDeadlockException e) {
+            metrics.deadlockIntercepted();
+            throw e;
         }
 
-        return existingLock;
+        return startTime;
     }
 
-    private void restoreReadLock() {
-        nonGlobalReadLockEvaluator(Lock::lock);
+    private void awaitGlobalLock(final long startTime, final long waitSlice) throws InterceptedDeadlockException {
+        final long waitStartTime = System.nanoTime();
+        while (!globalLock.tryWriteLock(waitSlice, TimeUnit.NANOSECONDS, lockEscalator.currentThreadLockedEntities())) {
+            try {
+                deadlockStrategy.keepWaiting(null, waitStartTime);
+            } catch (InterceptedDeadlockException e) {
+                metrics.deadlockIntercepted();
+                afterGlobalLocking(startTime, false);
+                throw e;
+            }
+        }
     }
 
-    private void unlockReadLock() {
-        globalLocks = lockEscalator.currentThreadLockedEntities();
-        nonGlobalReadLockEvaluator(Lock::unlock);
+    private void afterGlobalLocking(final long startTime, final boolean isLocked) {
+        deadlockStrategy.afterGlobalLocking(isLocked);
+        if (isLocked) {
+            if (globalLock.writeHoldCount() == 1) {
+                versions.invalidateAll();
+            }
+            metrics.globalAcquired(startTime);
+        }
     }
 
-    private BooleanFunction<Lock> waitingLock() {
-        return lock -> {
-            lock.lock();
-            return true;
-        };
+    private boolean recordTryLock(final boolean isLockGranted, final boolean isTimed) {
+        if (!isLockGranted) {
+            if (isTimed) {
+                metrics.timedOut();
+            } else {
+                metrics.tryLockFailed();
+            }
+        }
+
+        return isLockGranted;
     }
 
-    private void nonGlobalReadLockEvaluator(Consumer<Lock> locker) {
-        for (int i = 0; i < globalLocks; ++i) {
-            locker.accept(nonGlobalLock.readLock());
+    private List<T> orderedEntities(final Collection<T> entitiesIds) {
+        final List<T> orderedEntities = new ArrayList<>(new LinkedHashSet<>(entitiesIds));
+        orderedEntities.sort(lockOrder);
+        return orderedEntities;
+    }
+
+    private void callEscalationIfNeeds(final int grantedLocks) throws InterceptedDeadlockException {
+        if (grantedLocks > 0 && lockEscalator.incThreadEntityCounter(grantedLocks)) {
+            logDebugCurrentThread("start promotion to global lock due escalation");
+            metrics.escalated();
+            globalLock();
+            lockEscalator.escalationStarted();
         }
     }
 
-    private ReentrantLock existingLock(final T entityId) {
-        return entityLocks.computeIfAbsent(entityId, t -> new ReentrantLock());
+    private boolean beforeWaiting(final T entityId, final ReentrantReadWriteLock entityLock, final boolean isShared) throws InterceptedDeadlockException {
+        logDebugCurrentThread("waiting %s lock for entity {%s}", lockMode(isShared), entityId);
+
+        final Object lockKey = lockTable.interceptionKey(entityId, entityLock);
+        if (isShared) {
+            deadlockStrategy.beforeSharedLocking(lockKey);
+        } else {
+            deadlockStrategy.beforeLocking(lockKey);
+        }
+
+        return metrics.waitStarted();
+    }
+
+    private boolean isContended(final ReentrantReadWriteLock entityLock, final boolean isShared) {
+        if (entityLock.isWriteLockedByCurrentThread()) {
+            return false;
+        }
+
+        return entityLock.isWriteLocked() || !isShared && entityLock.getReadLockCount() > 0;
+    }
+
+    private String lockMode(final boolean isShared) {
+        return isShared ? "shared" : "exclusive";
     }
 }
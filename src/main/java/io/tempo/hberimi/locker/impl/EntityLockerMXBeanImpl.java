@@ -0,0 +1,79 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.interceptor.DeadlockStrategy;
+import io.tempo.hberimi.metrics.EntityLockerMXBean;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+class EntityLockerMXBeanImpl implements EntityLockerMXBean {
+    private final EntityLockTable<?> lockTable;
+    private final DeadlockStrategy<Object> deadlockStrategy;
+    private final LockEscalator lockEscalator;
+    private final BiasedGlobalLock globalLock;
+    private final LongAdder waitingThreads;
+
+    EntityLockerMXBeanImpl(final EntityLockTable<?> lockTable, final DeadlockStrategy<Object> deadlockStrategy,
+                           final LockEscalator lockEscalator, final BiasedGlobalLock globalLock, final LongAdder waitingThreads) {
+        this.lockTable = lockTable;
+        this.deadlockStrategy = deadlockStrategy;
+        this.lockEscalator = lockEscalator;
+        this.globalLock = globalLock;
+        this.waitingThreads = waitingThreads;
+    }
+
+    @Override
+    public int getLockedEntities() {
+        return lockTable.size();
+    }
+
+    @Override
+    public long getWaitingThreads() {
+        return waitingThreads.sum();
+    }
+
+    @Override
+    public String getGlobalLockHolder() {
+        return describe(globalLock.writeOwner());
+    }
+
+    @Override
+    public String getEscalatedThread() {
+        return describe(lockEscalator.escalatedThread());
+    }
+
+    @Override
+    public Map<String, Integer> getHeldEntitiesByThread() {
+        final Map<String, Integer> heldEntities = new HashMap<>();
+        lockEscalator.heldEntitiesByThread().forEach((thread, count) -> heldEntities.put(describe(thread), count));
+        return heldEntities;
+    }
+
+    @Override
+    public Map<String, List<String>> waitForGraph() {
+        final Map<String, List<String>> graph = new HashMap<>();
+        for (final Map.Entry<Object, Set<Object>> waiter : deadlockStrategy.waitForGraph().entrySet()) {
+            final List<String> blockers = new ArrayList<>();
+            for (final Object blocker : waiter.getValue()) {
+                blockers.add(describe(blocker));
+            }
+            graph.put(describe(waiter.getKey()), blockers);
+        }
+
+        return graph;
+    }
+
+    //Thread names are not unique, the id tells two pool threads of the same name apart
+    private static String describe(final Object owner) {
+        if (owner instanceof Thread) {
+            final Thread thread = (Thread) owner;
+            return thread.getName() + "#" + thread.getId();
+        }
+
+        return owner == null ? null : String.valueOf(owner);
+    }
+}
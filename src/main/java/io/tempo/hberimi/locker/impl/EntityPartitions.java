@@ -0,0 +1,237 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.interceptor.DeadlockStrategy;
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.WaitStrategy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.tempo.hberimi.locker.impl.LockAttempt.IMMEDIATE;
+import static io.tempo.hberimi.util.SimpleLogger.logDebugCurrentThread;
+
+//Every entity hold also holds its partition gate for read. A thread holding many entities of one partition takes
+//the gate for write instead and drops their table entries, later holds of the partition are counted on the gate alone.
+//The ids held within an escalated partition are still counted per thread, so that only they may be released there.
+//They are counted from the escalation on, before it the exclusive holds are only listed, which allocates nothing once grown.
+//Escalation is only tried and never waited for, so it cannot close a cycle, and a failed try is repeated at twice the holds
+class EntityPartitions<T> {
+    static final int NO_PARTITION = -1;
+
+    private final BiasedGlobalLock[] gates;
+    private final Object[] keys;
+    private final int mask;
+    private final int minLocksBeforePartition;
+    private final DeadlockStrategy<Object> deadlockStrategy;
+    private final ThreadLocal<Holds<T>> holds;
+
+    EntityPartitions(final int partitions, final int minLocksBeforePartition, final DeadlockStrategy<Object> deadlockStrategy,
+                     final WaitStrategy waitStrategy) {
+        final int size = Integer.highestOneBit(Math.max(2, partitions) - 1) << 1;
+        this.gates = new BiasedGlobalLock[size];
+        this.keys = new Object[size];
+        for (int partition = 0; partition < size; ++partition) {
+            this.gates[partition] = new BiasedGlobalLock(waitStrategy);
+            this.keys[partition] = new PartitionKey(partition);
+        }
+        this.mask = size - 1;
+        this.minLocksBeforePartition = Math.max(1, minLocksBeforePartition);
+        this.deadlockStrategy = deadlockStrategy;
+        this.holds = ThreadLocal.withInitial(() -> new Holds<>(size, this.minLocksBeforePartition));
+    }
+
+    int partitionOf(final T entityId) {
+        final int hash = entityId.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    boolean isEscalated(final int partition) {
+        return holds.get().isEscalated[partition];
+    }
+
+    //By any thread, read without taking the gate
+    boolean isWriteLocked(final int partition) {
+        return gates[partition].isWriteLocked();
+    }
+
+    //The gate of a partition escalated by another thread is a wait like any other, so it is published as one
+    boolean enter(final int partition, final LockAttempt attempt, final long deadline) throws InterceptedDeadlockException {
+        final Holds<T> currentHolds = holds.get();
+        final BiasedGlobalLock gate = gates[partition];
+
+        //Threads which already hold entities of the partition keep going, an escalation waits for none of them
+        if (gate.readLock(currentHolds.counts[partition] > 0, IMMEDIATE, 0)) {
+            ++currentHolds.counts[partition];
+            return true;
+        }
+
+        if (attempt == IMMEDIATE) {
+            return false;
+        }
+
+        logDebugCurrentThread("waiting partition {%s} escalated by other thread", partition);
+        final Object key = keys[partition];
+        deadlockStrategy.beforeLocking(key);
+        final boolean isEntered;
+        try {
+            isEntered = gate.readLock(false, attempt, deadline);
+        } finally {
+            deadlockStrategy.afterLocking(key, false);
+        }
+
+        if (isEntered) {
+            ++currentHolds.counts[partition];
+        }
+        return isEntered;
+    }
+
+    //Before escalation only
+    void exclusiveGranted(final int partition, final T entityId) {
+        holds.get().exclusive(partition).add(entityId);
+    }
+
+    void exclusiveReleased(final int partition, final T entityId) {
+        final List<T> exclusive = holds.get().exclusive(partition);
+        final int index = exclusive.lastIndexOf(entityId);
+        if (index >= 0) {
+            exclusive.remove(index);
+        }
+    }
+
+    //Shared holds taken before the escalation keep their table entries, so they are not counted here
+    void grantedWithin(final int partition, final T entityId, final boolean isShared) {
+        increment(holds.get().within(partition, isShared), entityId);
+    }
+
+    boolean isHeldWithin(final int partition, final T entityId, final boolean isShared) {
+        return holds.get().within(partition, isShared).containsKey(entityId);
+    }
+
+    void releasedWithin(final int partition, final T entityId, final boolean isShared) {
+        decrement(holds.get().within(partition, isShared), entityId);
+    }
+
+    //Returns the entities whose table entries the caller drops, one element per hold, or null while not escalating.
+    //They are counted as exclusive holds within the partition from now on
+    List<T> escalateIfNeeds(final int partition) {
+        final Holds<T> currentHolds = holds.get();
+        final int count = currentHolds.counts[partition];
+        if (currentHolds.isEscalated[partition] || count < currentHolds.nextEscalation[partition]) {
+            return null;
+        }
+
+        if (!gates[partition].tryWriteLock(count)) {
+            logDebugCurrentThread("partition {%s} escalation deferred, other threads hold its entities", partition);
+            currentHolds.nextEscalation[partition] = count << 1;
+            return null;
+        }
+
+        logDebugCurrentThread("escalate %s locks to partition {%s}", count, partition);
+        deadlockStrategy.afterLocking(keys[partition], true);
+        currentHolds.isEscalated[partition] = true;
+
+        final List<T> exclusive = currentHolds.exclusive(partition);
+        final Map<T, int[]> exclusiveWithin = currentHolds.within(partition, false);
+        for (final T entityId : exclusive) {
+            increment(exclusiveWithin, entityId);
+        }
+        final List<T> released = new ArrayList<>(exclusive);
+        exclusive.clear();
+        return released;
+    }
+
+    //The partition is given back once the thread holds nothing of it
+    void exit(final int partition) {
+        final Holds<T> currentHolds = holds.get();
+        final BiasedGlobalLock gate = gates[partition];
+
+        gate.readUnlock();
+        if (--currentHolds.counts[partition] > 0) {
+            return;
+        }
+
+        currentHolds.nextEscalation[partition] = minLocksBeforePartition;
+        if (currentHolds.isEscalated[partition]) {
+            logDebugCurrentThread("deescalate partition {%s}", partition);
+            currentHolds.isEscalated[partition] = false;
+            deadlockStrategy.beforeUnlocking(keys[partition]);
+            gate.writeUnlock();
+        }
+    }
+
+    private static <T> void increment(final Map<T, int[]> entityHolds, final T entityId) {
+        final int[] count = entityHolds.get(entityId);
+        if (count == null) {
+            entityHolds.put(entityId, new int[] {1});
+        } else {
+            ++count[0];
+        }
+    }
+
+    private static <T> void decrement(final Map<T, int[]> entityHolds, final T entityId) {
+        final int[] count = entityHolds.get(entityId);
+        if (count != null && --count[0] == 0) {
+            entityHolds.remove(entityId);
+        }
+    }
+
+    //Touched only by the owning thread
+    private static final class Holds<T> {
+        private final int[] counts;
+        private final int[] nextEscalation;
+        private final boolean[] isEscalated;
+        //Created on the first use of a partition, the lists before escalation and the hold counts by entity after it
+        private final List<List<T>> exclusive;
+        private final List<Map<T, int[]>> exclusiveWithin;
+        private final List<Map<T, int[]>> sharedWithin;
+
+        private Holds(final int partitions, final int minLocksBeforePartition) {
+            this.counts = new int[partitions];
+            this.nextEscalation = new int[partitions];
+            this.isEscalated = new boolean[partitions];
+            this.exclusive = new ArrayList<>(partitions);
+            this.exclusiveWithin = new ArrayList<>(partitions);
+            this.sharedWithin = new ArrayList<>(partitions);
+            for (int partition = 0; partition < partitions; ++partition) {
+                this.nextEscalation[partition] = minLocksBeforePartition;
+                this.exclusive.add(null);
+                this.exclusiveWithin.add(null);
+                this.sharedWithin.add(null);
+            }
+        }
+
+        private List<T> exclusive(final int partition) {
+            List<T> entities = exclusive.get(partition);
+            if (entities == null) {
+                entities = new ArrayList<>();
+                exclusive.set(partition, entities);
+            }
+            return entities;
+        }
+
+        private Map<T, int[]> within(final int partition, final boolean isShared) {
+            final List<Map<T, int[]>> byPartition = isShared ? sharedWithin : exclusiveWithin;
+            Map<T, int[]> entities = byPartition.get(partition);
+            if (entities == null) {
+                entities = new HashMap<>();
+                byPartition.set(partition, entities);
+            }
+            return entities;
+        }
+    }
+
+    private static final class PartitionKey {
+        private final int partition;
+
+        private PartitionKey(final int partition) {
+            this.partition = partition;
+        }
+
+        @Override
+        public String toString() {
+            return "partition " + partition;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.util.Counter;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Guarded by itself, it is held only for bookkeeping and never while a caller waits
+class EntityQueue<T> extends ReentrantLock {
+    private final T entityId;
+    private final Deque<LockRequest<T>> waiters;
+    private QueuedLockOwner<T> exclusiveOwner;
+    private int exclusiveHolds;
+    private Map<QueuedLockOwner<T>, Counter> sharedHolders;
+    private long holdStartTime;
+    private boolean isRemoved;
+
+    EntityQueue(final T entityId) {
+        this.entityId = entityId;
+        this.waiters = new ArrayDeque<>();
+    }
+
+    T entityId() {
+        return entityId;
+    }
+
+    boolean isRemoved() {
+        return isRemoved;
+    }
+
+    void markRemoved() {
+        isRemoved = true;
+    }
+
+    long holdStartTime() {
+        return holdStartTime;
+    }
+
+    void setHoldStartTime(final long holdStartTime) {
+        this.holdStartTime = holdStartTime;
+    }
+
+    int exclusiveHolds() {
+        return exclusiveHolds;
+    }
+
+    boolean isIdle() {
+        return exclusiveOwner == null && !hasSharedHolders() && waiters.isEmpty();
+    }
+
+    boolean isHeld() {
+        return exclusiveOwner != null || hasSharedHolders();
+    }
+
+    boolean isHeldBy(final QueuedLockOwner<T> owner, final boolean isShared) {
+        return isShared ? sharedHolders != null && sharedHolders.containsKey(owner) : exclusiveOwner == owner;
+    }
+
+    //Holders are not queued behind waiters, otherwise a reentrant request would wait for itself
+    boolean canGrantNow(final QueuedLockOwner<T> owner, final boolean isShared) {
+        final boolean isHolder = exclusiveOwner == owner || isHeldBy(owner, true);
+        return canGrant(owner, isShared) && (isHolder || waiters.isEmpty());
+    }
+
+    void hold(final QueuedLockOwner<T> owner, final boolean isShared) {
+        if (!isShared) {
+            exclusiveOwner = owner;
+            ++exclusiveHolds;
+            return;
+        }
+
+        if (sharedHolders == null) {
+            sharedHolders = new HashMap<>();
+        }
+        final Counter counter = sharedHolders.get(owner);
+        if (counter == null) {
+            sharedHolders.put(owner, new Counter());
+        } else {
+            counter.inc();
+        }
+    }
+
+    int release(final QueuedLockOwner<T> owner, final boolean isShared) {
+        if (!isShared) {
+            if (--exclusiveHolds == 0) {
+                exclusiveOwner = null;
+            }
+            return exclusiveHolds;
+        }
+
+        final Counter counter = sharedHolders.get(owner);
+        counter.dec();
+        if (counter.count() == 0) {
+            sharedHolders.remove(owner);
+        }
+        return counter.count();
+    }
+
+    //Drops every hold of the owner at once, returns how many there were
+    int releaseAll(final QueuedLockOwner<T> owner) {
+        int holds = 0;
+        if (exclusiveOwner == owner) {
+            holds += exclusiveHolds;
+            exclusiveHolds = 0;
+            exclusiveOwner = null;
+        }
+
+        final Counter counter = sharedHolders == null ? null : sharedHolders.remove(owner);
+        if (counter != null) {
+            holds += counter.count();
+        }
+
+        return holds;
+    }
+
+    void enqueue(final LockRequest<T> request) {
+        waiters.addLast(request);
+    }
+
+    boolean remove(final LockRequest<T> request) {
+        return waiters.remove(request);
+    }
+
+    //Grants waiters in arrival order, a run of shared waiters is granted together
+    LockRequest<T> pollGrantable() {
+        final LockRequest<T> request = waiters.peekFirst();
+        if (request == null || !request.isAbandoned() && !canGrant(request.owner(), request.isShared())) {
+            return null;
+        }
+
+        return waiters.pollFirst();
+    }
+
+    private boolean canGrant(final QueuedLockOwner<T> owner, final boolean isShared) {
+        if (exclusiveOwner == owner) {
+            return true;
+        }
+
+        return exclusiveOwner == null && (isShared || !hasSharedHolders());
+    }
+
+    private boolean hasSharedHolders() {
+        return sharedHolders != null && !sharedHolders.isEmpty();
+    }
+}
@@ -0,0 +1,78 @@
+package io.tempo.hberimi.locker.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//Stripes by entity, each on its own cache line: a word counting the grants and releases of writers of the stripe,
+//and next to it a word counting the writers holding one of its entities. Global and partition locks are let in by the epoch instead.
+//Readers only load, so optimistic reads of one entity share its line and never write it
+class EntityVersions {
+    private static final int STRIPE_PADDING = 8;
+    private static final int WRITERS = 1;
+
+    //A stamp keeps 40 bits of the sequence and 23 of the epoch, a wrap in between a read and its validation is out of reach
+    private static final long VALID_STAMP = Long.MIN_VALUE;
+    private static final int EPOCH_SHIFT = 40;
+    private static final long SEQUENCE_MASK = (1L << EPOCH_SHIFT) - 1;
+    private static final long EPOCH_MASK = (1L << 23) - 1;
+
+    private final AtomicLongArray words;
+    private final int stripeMask;
+    private final AtomicLong epoch;
+
+    EntityVersions(final int minStripes) {
+        final int stripes = Integer.highestOneBit(Math.max(2, minStripes) - 1) << 1;
+        this.words = new AtomicLongArray(stripes * STRIPE_PADDING);
+        this.stripeMask = stripes - 1;
+        this.epoch = new AtomicLong();
+    }
+
+    //Called by a writer before it changes anything of the entity, the updates order its later writes after them.
+    //A writer is counted before the sequence moves and uncounted after it moves again, so a stamp read in between is zero
+    void writeStarted(final Object versionKey) {
+        final int index = indexOf(versionKey);
+        words.incrementAndGet(index + WRITERS);
+        words.incrementAndGet(index);
+    }
+
+    void writeEnded(final Object versionKey) {
+        final int index = indexOf(versionKey);
+        words.incrementAndGet(index);
+        words.decrementAndGet(index + WRITERS);
+    }
+
+    //Called once a global or partition lock is granted, before its holder writes any entity
+    void invalidateAll() {
+        epoch.incrementAndGet();
+    }
+
+    long epoch() {
+        return epoch.get();
+    }
+
+    //Zero while a writer holds the stripe, the caller checks the global and partition locks after reading the epoch
+    long stamp(final Object versionKey, final long currentEpoch) {
+        final int index = indexOf(versionKey);
+        final long sequence = words.get(index);
+        if (words.get(index + WRITERS) != 0) {
+            return 0;
+        }
+
+        return VALID_STAMP | (currentEpoch & EPOCH_MASK) << EPOCH_SHIFT | sequence & SEQUENCE_MASK;
+    }
+
+    //The fence keeps the reads of the entity data from moving below the reads of the stamp
+    boolean validate(final Object versionKey, final long stamp) {
+        if (stamp == 0) {
+            return false;
+        }
+
+        UnsafeAccess.loadFence();
+        return stamp(versionKey, epoch.get()) == stamp;
+    }
+
+    private int indexOf(final Object versionKey) {
+        final int hash = versionKey.hashCode();
+        return ((hash ^ (hash >>> 16)) & stripeMask) * STRIPE_PADDING;
+    }
+}
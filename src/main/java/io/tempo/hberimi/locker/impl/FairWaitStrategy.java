@@ -0,0 +1,23 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.WaitStrategy;
+
+import java.util.concurrent.locks.Lock;
+
+import static io.tempo.hberimi.locker.impl.ParkWaitStrategy.park;
+
+//Locks are created fair, so a released lock is handed to the longest waiter and new arrivals cannot barge.
+//Only the untimed tryLock still barges, the same as for any fair j.u.c lock
+public class FairWaitStrategy implements WaitStrategy {
+    public static final FairWaitStrategy INSTANCE = new FairWaitStrategy();
+
+    @Override
+    public boolean acquire(final Lock lock, final boolean isTimed, final long deadline) {
+        return park(lock, isTimed, deadline);
+    }
+
+    @Override
+    public boolean isFair() {
+        return true;
+    }
+}
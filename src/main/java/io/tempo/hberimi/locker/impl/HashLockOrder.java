@@ -0,0 +1,23 @@
+package io.tempo.hberimi.locker.impl;
+
+import java.util.Comparator;
+
+//Equal hashes are ordered by class name, then by compareTo for comparable ids of one class.
+//Colliding ids of one class which are not comparable stay unordered, batches of them rely on the deadlock interception
+class HashLockOrder<T> implements Comparator<T> {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int compare(final T first, final T second) {
+        final int byHash = Integer.compare(first.hashCode(), second.hashCode());
+        if (byHash != 0) {
+            return byHash;
+        }
+
+        if (first.getClass() != second.getClass()) {
+            return first.getClass().getName().compareTo(second.getClass().getName());
+        }
+
+        return first instanceof Comparable ? ((Comparable<Object>) first).compareTo(second) : 0;
+    }
+}
@@ -0,0 +1,460 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.interceptor.DeadlockInterceptor;
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.HierarchicalEntityLocker;
+import io.tempo.hberimi.locker.impl.IntentionLock.Mode;
+import io.tempo.hberimi.metrics.LockMetrics;
+import io.tempo.hberimi.util.Counter;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static io.tempo.hberimi.locker.impl.IntentionLock.Mode.IS;
+import static io.tempo.hberimi.locker.impl.IntentionLock.Mode.IX;
+import static io.tempo.hberimi.locker.impl.IntentionLock.Mode.S;
+import static io.tempo.hberimi.locker.impl.IntentionLock.Mode.X;
+import static io.tempo.hberimi.locker.impl.LockAttempt.IMMEDIATE;
+import static io.tempo.hberimi.locker.impl.LockAttempt.TIMED;
+import static io.tempo.hberimi.locker.impl.LockAttempt.WAITING;
+import static io.tempo.hberimi.locker.impl.LockAttempt.deadlineAfter;
+import static io.tempo.hberimi.util.SimpleLogger.logDebugCurrentThread;
+import static io.tempo.hberimi.util.SimpleLogger.logError;
+
+//Entity locks are taken by an inner locker under an intention on their namespace, and both share one wait-for graph.
+//Escalation takes the namespace, the global lock still waits for entity holders only.
+//Namespaces are expected to be few and are kept for the life of the locker
+public class HierarchicalEntityLockerImpl<N, T> implements HierarchicalEntityLocker<N, T> {
+    //Parts of a namespace in the wait-for graph, a wait on one of them is blocked by exactly the modes in conflict
+    private static final int ANY_PART = 0;
+    private static final int INTENT_PART = 1;
+    private static final int SCAN_PART = 2;
+    private static final int EXCLUSIVE_PART = 3;
+    private static final String[] PARTS = {"any", "intent", "scan", "exclusive"};
+
+    private final EntityLockerImpl<NamespacedEntity<N, T>> entityLocker;
+    private final DeadlockInterceptor<Object> deadlockInterceptor;
+    private final ConcurrentMap<N, Namespace> namespaces;
+    //Namespace modes and global locks of the thread, entity locks always come with a mode
+    private final ThreadLocal<Counter> heldLocks;
+    private final int minLocksBeforeNamespace;
+    private final LockMetrics metrics;
+
+    public HierarchicalEntityLockerImpl() {
+        this(100);
+    }
+
+    public HierarchicalEntityLockerImpl(final int minLocksBeforeNamespace) {
+        this.deadlockInterceptor = new DeadlockInterceptor<>();
+        //The inner locker never escalates, escalation here goes to the namespace
+        this.entityLocker = new EntityLockerImpl<>(Integer.MAX_VALUE, deadlockInterceptor);
+        this.namespaces = new ConcurrentHashMap<>();
+        this.heldLocks = new ThreadLocal<>();
+        this.minLocksBeforeNamespace = minLocksBeforeNamespace;
+        this.metrics = entityLocker.metrics();
+    }
+
+    @Override
+    public void lock(final N namespace, final T entityId) throws InterceptedDeadlockException {
+        lockUninterruptibly(namespace, entityId, false, WAITING);
+    }
+
+    @Override
+    public boolean tryLock(final N namespace, final T entityId) throws InterceptedDeadlockException {
+        return lockUninterruptibly(namespace, entityId, false, IMMEDIATE);
+    }
+
+    @Override
+    public boolean tryLock(final N namespace, final T entityId, final long timeout, final TimeUnit unit) throws InterruptedException, InterceptedDeadlockException {
+        return lock(namespace, entityId, false, TIMED, deadlineAfter(timeout, unit));
+    }
+
+    @Override
+    public void unlock(final N namespace, final T entityId) {
+        unlock(namespace, entityId, false);
+    }
+
+    @Override
+    public void lockShared(final N namespace, final T entityId) throws InterceptedDeadlockException {
+        lockUninterruptibly(namespace, entityId, true, WAITING);
+    }
+
+    @Override
+    public boolean tryLockShared(final N namespace, final T entityId, final long timeout, final TimeUnit unit) throws InterruptedException, InterceptedDeadlockException {
+        return lock(namespace, entityId, true, TIMED, deadlineAfter(timeout, unit));
+    }
+
+    @Override
+    public void unlockShared(final N namespace, final T entityId) {
+        unlock(namespace, entityId, true);
+    }
+
+    @Override
+    public void lockAll(final N namespace, final Collection<T> entitiesIds) throws InterceptedDeadlockException {
+        final Namespace lockedNamespace = namespaceOf(namespace);
+        acquireNamespaceUninterruptibly(lockedNamespace, IX);
+
+        //Counted once per entity, the inner locker ignores repeated ids
+        final Set<NamespacedEntity<N, T>> entities = namespacedEntities(namespace, entitiesIds);
+        try {
+            entityLocker.lockAll(entities);
+        } catch (InterceptedDeadlockException e) {
+            releaseNamespace(lockedNamespace, IX);
+            throw e;
+        }
+
+        escalateIfNeeds(lockedNamespace, entities.size());
+    }
+
+    @Override
+    public void unlockAll(final N namespace, final Collection<T> entitiesIds) {
+        final Set<NamespacedEntity<N, T>> entities = namespacedEntities(namespace, entitiesIds);
+        entityLocker.unlockAll(entities);
+
+        final Namespace lockedNamespace = namespaceOf(namespace);
+        releaseNamespace(lockedNamespace, IX);
+        deescalateIfNeeds(lockedNamespace, entities.size());
+    }
+
+    @Override
+    public boolean isLockedByCurrentThread(final N namespace, final T entityId) {
+        final Namespace lockedNamespace = namespaces.get(namespace);
+
+        return entityLocker.isLockedByCurrentThread(new NamespacedEntity<>(namespace, entityId))
+                || lockedNamespace != null && lockedNamespace.intentionLock.isHeldByCurrentThread(X);
+    }
+
+    @Override
+    public void lockNamespace(final N namespace) throws InterceptedDeadlockException {
+        acquireNamespaceUninterruptibly(namespaceOf(namespace), X);
+    }
+
+    @Override
+    public boolean tryLockNamespace(final N namespace, final long timeout, final TimeUnit unit) throws InterruptedException, InterceptedDeadlockException {
+        return acquireNamespace(namespaceOf(namespace), X, TIMED, deadlineAfter(timeout, unit));
+    }
+
+    @Override
+    public void unlockNamespace(final N namespace) {
+        releaseNamespace(namespaceOf(namespace), X);
+    }
+
+    @Override
+    public void lockNamespaceShared(final N namespace) throws InterceptedDeadlockException {
+        acquireNamespaceUninterruptibly(namespaceOf(namespace), S);
+    }
+
+    @Override
+    public boolean tryLockNamespaceShared(final N namespace, final long timeout, final TimeUnit unit) throws InterruptedException, InterceptedDeadlockException {
+        return acquireNamespace(namespaceOf(namespace), S, TIMED, deadlineAfter(timeout, unit));
+    }
+
+    @Override
+    public void unlockNamespaceShared(final N namespace) {
+        releaseNamespace(namespaceOf(namespace), S);
+    }
+
+    @Override
+    public void globalLock() throws InterceptedDeadlockException {
+        entityLocker.globalLock();
+        addHeldLocks(1);
+    }
+
+    @Override
+    public boolean tryGlobalLock(final long timeout, final TimeUnit unit) throws InterceptedDeadlockException {
+        final boolean isLocked = entityLocker.tryGlobalLock(timeout, unit);
+        if (isLocked) {
+            addHeldLocks(1);
+        }
+
+        return isLocked;
+    }
+
+    @Override
+    public void globalUnlock() {
+        entityLocker.globalUnlock();
+        addHeldLocks(-1);
+    }
+
+    @Override
+    public int currentSize() {
+        return entityLocker.currentSize();
+    }
+
+    @Override
+    public LockMetrics metrics() {
+        return metrics;
+    }
+
+    //Only a timed attempt waits for the namespace interruptibly
+    private boolean lockUninterruptibly(final N namespace, final T entityId, final boolean isShared, final LockAttempt attempt) throws InterceptedDeadlockException {
+        try {
+            return lock(namespace, entityId, isShared, attempt, 0);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Untimed lock of entity {" + entityId + "} was interrupted", e);
+        }
+    }
+
+    private boolean lock(final N namespace, final T entityId, final boolean isShared, final LockAttempt attempt, final long deadline) throws InterruptedException, InterceptedDeadlockException {
+        final Namespace lockedNamespace = namespaceOf(namespace);
+        final Mode mode = isShared ? IS : IX;
+        if (!acquireNamespace(lockedNamespace, mode, attempt, deadline)) {
+            return false;
+        }
+
+        final boolean isLocked;
+        try {
+            isLocked = lockEntity(new NamespacedEntity<>(namespace, entityId), isShared, attempt, deadline);
+        } catch (InterceptedDeadlockException e) {
+            releaseNamespace(lockedNamespace, mode);
+            throw e;
+        }
+
+        if (!isLocked) {
+            releaseNamespace(lockedNamespace, mode);
+            return false;
+        }
+
+        escalateIfNeeds(lockedNamespace, 1);
+        return true;
+    }
+
+    private boolean lockEntity(final NamespacedEntity<N, T> entity, final boolean isShared, final LockAttempt attempt, final long deadline) throws InterceptedDeadlockException {
+        if (attempt == IMMEDIATE) {
+            return isShared ? entityLocker.tryLockShared(entity) : entityLocker.tryLock(entity);
+        }
+
+        if (attempt == TIMED) {
+            final long timeout = deadline - System.nanoTime();
+            return isShared
+                    ? entityLocker.tryLockShared(entity, timeout, TimeUnit.NANOSECONDS)
+                    : entityLocker.tryLock(entity, timeout, TimeUnit.NANOSECONDS);
+        }
+
+        if (isShared) {
+            entityLocker.lockShared(entity);
+        } else {
+            entityLocker.lock(entity);
+        }
+        return true;
+    }
+
+    private void unlock(final N namespace, final T entityId, final boolean isShared) {
+        final NamespacedEntity<N, T> entity = new NamespacedEntity<>(namespace, entityId);
+        if (isShared) {
+            entityLocker.unlockShared(entity);
+        } else {
+            entityLocker.unlock(entity);
+        }
+
+        final Namespace lockedNamespace = namespaceOf(namespace);
+        releaseNamespace(lockedNamespace, isShared ? IS : IX);
+        deescalateIfNeeds(lockedNamespace, 1);
+    }
+
+    private void acquireNamespaceUninterruptibly(final Namespace namespace, final Mode mode) throws InterceptedDeadlockException {
+        try {
+            acquireNamespace(namespace, mode, WAITING, 0);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Untimed lock of namespace {" + namespace.name + "} was interrupted", e);
+        }
+    }
+
+    private boolean acquireNamespace(final Namespace namespace, final Mode mode, final LockAttempt attempt, final long deadline) throws InterruptedException, InterceptedDeadlockException {
+        final boolean isHoldingLocks = isHoldingLocks();
+
+        int[] ownHolds = namespace.intentionLock.tryAcquire(mode, isHoldingLocks);
+        if (ownHolds == null) {
+            if (attempt == IMMEDIATE) {
+                metrics.tryLockFailed();
+                return false;
+            }
+
+            ownHolds = awaitNamespace(namespace, mode, isHoldingLocks, attempt == TIMED, deadline);
+            if (ownHolds == null) {
+                metrics.timedOut();
+                return false;
+            }
+        }
+
+        addHeldLocks(1);
+        publishParts(namespace, partsOf(ownHolds, mode, -1), partsOf(ownHolds, mode, 0));
+        return true;
+    }
+
+    private int[] awaitNamespace(final Namespace namespace, final Mode mode, final boolean isHoldingLocks, final boolean isTimed, final long deadline) throws InterruptedException, InterceptedDeadlockException {
+        logDebugCurrentThread("waiting %s lock for namespace {%s}", mode, namespace.name);
+
+        final Object waitedPart = namespace.waitedPart(mode);
+        try {
+            deadlockInterceptor.beforeUpgrading(waitedPart, mode == IS);
+        } catch (InterceptedDeadlockException e) {
+            metrics.deadlockIntercepted();
+            throw e;
+        }
+
+        try {
+            return namespace.intentionLock.acquire(mode, isHoldingLocks, isTimed, deadline);
+        } finally {
+            deadlockInterceptor.afterLocking(waitedPart, false);
+        }
+    }
+
+    private void releaseNamespace(final Namespace namespace, final Mode mode) {
+        final int[] ownHolds = namespace.intentionLock.release(mode);
+        if (ownHolds == null) {
+            final String message = Thread.currentThread() + " cannot unlock " + mode + " namespace - {" + namespace.name + "} because it does not hold it";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
+
+        addHeldLocks(-1);
+        publishParts(namespace, partsOf(ownHolds, mode, 1), partsOf(ownHolds, mode, 0));
+    }
+
+    private void escalateIfNeeds(final Namespace namespace, final int grantedLocks) {
+        if (!namespace.lockEscalator.incThreadEntityCounter(grantedLocks)) {
+            return;
+        }
+
+        logDebugCurrentThread("start promotion to namespace {%s} lock due escalation", namespace.name);
+        try {
+            acquireNamespaceUninterruptibly(namespace, X);
+            metrics.escalated();
+        } catch (InterceptedDeadlockException e) {
+            //Escalation only saves work, a refused namespace lock leaves the entity locks as they are
+            logDebugCurrentThread("namespace {%s} escalation refused", namespace.name);
+            namespace.lockEscalator.cancelEscalation();
+        }
+    }
+
+    private void deescalateIfNeeds(final Namespace namespace, final int releasedLocks) {
+        if (namespace.lockEscalator.decThreadEntityCounter(releasedLocks)) {
+            logDebugCurrentThread("deescalate namespace {%s} lock", namespace.name);
+            metrics.deescalated();
+            namespace.lockEscalator.cancelEscalation();
+            releaseNamespace(namespace, X);
+        }
+    }
+
+    //Own holds of a mode are published once, however many times the thread holds it
+    private void publishParts(final Namespace namespace, final int before, final int after) {
+        for (int part = ANY_PART; part <= EXCLUSIVE_PART; ++part) {
+            final int bit = 1 << part;
+            if ((before & bit) == (after & bit)) {
+                continue;
+            }
+
+            final boolean isHeld = (after & bit) != 0;
+            if (part == EXCLUSIVE_PART) {
+                if (isHeld) {
+                    deadlockInterceptor.afterLocking(namespace.parts[part], true);
+                } else {
+                    deadlockInterceptor.beforeUnlocking(namespace.parts[part]);
+                }
+            } else if (isHeld) {
+                deadlockInterceptor.afterSharedLocking(namespace.parts[part], true);
+            } else {
+                deadlockInterceptor.beforeSharedUnlocking(namespace.parts[part]);
+            }
+        }
+    }
+
+    //Any mode holds the any part, IX and X the intent one, S and X the scan one, X alone the exclusive one
+    private static int partsOf(final int[] ownHolds, final Mode changed, final int delta) {
+        final int exclusive = countOf(ownHolds, X, changed, delta);
+        final int intent = countOf(ownHolds, IX, changed, delta) + exclusive;
+        final int scan = countOf(ownHolds, S, changed, delta) + exclusive;
+        final int any = countOf(ownHolds, IS, changed, delta) + intent + countOf(ownHolds, S, changed, delta);
+
+        return (any > 0 ? 1 << ANY_PART : 0)
+                | (intent > 0 ? 1 << INTENT_PART : 0)
+                | (scan > 0 ? 1 << SCAN_PART : 0)
+                | (exclusive > 0 ? 1 << EXCLUSIVE_PART : 0);
+    }
+
+    private static int countOf(final int[] ownHolds, final Mode mode, final Mode changed, final int delta) {
+        return ownHolds[mode.ordinal()] + (mode == changed ? delta : 0);
+    }
+
+    private boolean isHoldingLocks() {
+        final Counter counter = heldLocks.get();
+        return counter != null && counter.count() > 0;
+    }
+
+    private void addHeldLocks(final int locks) {
+        final Counter counter = heldLocks.get();
+
+        if (counter == null) {
+            final Counter newCounter = new Counter();
+            newCounter.add(locks - 1);
+            heldLocks.set(newCounter);
+        } else {
+            counter.add(locks);
+        }
+    }
+
+    private Namespace namespaceOf(final N namespace) {
+        final Namespace existing = namespaces.get(namespace);
+        return existing != null ? existing : namespaces.computeIfAbsent(namespace, Namespace::new);
+    }
+
+    private Set<NamespacedEntity<N, T>> namespacedEntities(final N namespace, final Collection<T> entitiesIds) {
+        final Set<NamespacedEntity<N, T>> entities = new LinkedHashSet<>(entitiesIds.size() * 2);
+        for (final T entityId : entitiesIds) {
+            entities.add(new NamespacedEntity<>(namespace, entityId));
+        }
+
+        return entities;
+    }
+
+    private class Namespace {
+        private final Object name;
+        private final IntentionLock intentionLock;
+        private final LockEscalator lockEscalator;
+        private final Object[] parts;
+
+        private Namespace(final Object name) {
+            this.name = name;
+            this.intentionLock = new IntentionLock();
+            this.lockEscalator = new LockEscalator(minLocksBeforeNamespace);
+            this.parts = new Object[PARTS.length];
+            for (int part = 0; part < PARTS.length; ++part) {
+                this.parts[part] = new NamespacePart(name, PARTS[part]);
+            }
+        }
+
+        //IS waits for X, IX for S and X, S for IX and X, X for every mode
+        private Object waitedPart(final Mode mode) {
+            switch (mode) {
+                case IS:
+                    return parts[EXCLUSIVE_PART];
+                case IX:
+                    return parts[SCAN_PART];
+                case S:
+                    return parts[INTENT_PART];
+                default:
+                    return parts[ANY_PART];
+            }
+        }
+    }
+
+    private static class NamespacePart {
+        private final Object namespace;
+        private final String part;
+
+        private NamespacePart(final Object namespace, final String part) {
+            this.namespace = namespace;
+            this.part = part;
+        }
+
+        @Override
+        public String toString() {
+            return "namespace " + namespace + " (" + part + ")";
+        }
+    }
+}
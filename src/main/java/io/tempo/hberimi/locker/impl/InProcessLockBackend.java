@@ -0,0 +1,231 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.LeaseListener;
+import io.tempo.hberimi.locker.LockBackend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.tempo.hberimi.util.SimpleLogger.logDebug;
+
+//Reference backend for nodes sharing one process, listeners are always called outside the guard
+public class InProcessLockBackend<T> implements LockBackend<T> {
+    private final ReentrantLock guard;
+    private final Map<T, String> leaseHolders;
+    private final Map<String, LeaseListener<T>> nodes;
+    private String globalHolder;
+    private String globalPending;
+
+    public InProcessLockBackend() {
+        this.guard = new ReentrantLock();
+        this.leaseHolders = new HashMap<>();
+        this.nodes = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void register(final String nodeId, final LeaseListener<T> listener) {
+        if (nodes.putIfAbsent(nodeId, listener) != null) {
+            throw new IllegalStateException("Node {" + nodeId + "} is already registered");
+        }
+    }
+
+    @Override
+    public void unregister(final String nodeId) {
+        guard.lock();
+        try {
+            leaseHolders.values().removeIf(nodeId::equals);
+            if (nodeId.equals(globalHolder)) {
+                globalHolder = null;
+            }
+            if (nodeId.equals(globalPending)) {
+                globalPending = null;
+            }
+        } finally {
+            guard.unlock();
+        }
+
+        nodes.remove(nodeId);
+        notifyAvailable(nodeId);
+    }
+
+    @Override
+    public Set<T> acquire(final String nodeId, final Collection<T> entitiesIds) {
+        final Set<T> granted = new HashSet<>();
+        final Map<T, String> revocations = new HashMap<>();
+
+        guard.lock();
+        try {
+            if (isExcludedByGlobal(nodeId)) {
+                return granted;
+            }
+
+            for (final T entityId : entitiesIds) {
+                final String holder = leaseHolders.putIfAbsent(entityId, nodeId);
+                if (holder == null || holder.equals(nodeId)) {
+                    granted.add(entityId);
+                } else {
+                    revocations.put(entityId, holder);
+                }
+            }
+        } finally {
+            guard.unlock();
+        }
+
+        logDebug("Node {%s} granted %s", nodeId, granted);
+        for (final Map.Entry<T, String> revocation : revocations.entrySet()) {
+            revoke(revocation.getValue(), revocation.getKey());
+        }
+
+        return granted;
+    }
+
+    @Override
+    public void release(final String nodeId, final Collection<T> entitiesIds) {
+        guard.lock();
+        try {
+            for (final T entityId : entitiesIds) {
+                leaseHolders.remove(entityId, nodeId);
+            }
+        } finally {
+            guard.unlock();
+        }
+
+        notifyAvailable(nodeId);
+    }
+
+    @Override
+    public String holderOf(final T entityId) {
+        guard.lock();
+        try {
+            return leaseHolders.get(entityId);
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    @Override
+    public T waitingEntityOfHolder(final T entityId) {
+        final String holder = holderOf(entityId);
+        final LeaseListener<T> listener = holder == null ? null : nodes.get(holder);
+
+        return listener == null ? null : listener.waitingEntityOfHolder(entityId);
+    }
+
+    @Override
+    public boolean tryAcquireGlobal(final String nodeId) {
+        final List<T> otherLeases = new ArrayList<>();
+        final Map<T, String> revocations = new HashMap<>();
+
+        guard.lock();
+        try {
+            if (nodeId.equals(globalHolder)) {
+                return true;
+            }
+            if (globalHolder != null || globalPending != null && !globalPending.equals(nodeId)) {
+                return false;
+            }
+
+            for (final Map.Entry<T, String> lease : leaseHolders.entrySet()) {
+                if (!lease.getValue().equals(nodeId)) {
+                    otherLeases.add(lease.getKey());
+                    revocations.put(lease.getKey(), lease.getValue());
+                }
+            }
+
+            //Other nodes are refused new leases while the global lock is pending, so the holders drain
+            if (otherLeases.isEmpty()) {
+                globalHolder = nodeId;
+                globalPending = null;
+            } else {
+                globalPending = nodeId;
+            }
+        } finally {
+            guard.unlock();
+        }
+
+        for (final Map.Entry<T, String> revocation : revocations.entrySet()) {
+            revoke(revocation.getValue(), revocation.getKey());
+        }
+
+        return otherLeases.isEmpty();
+    }
+
+    @Override
+    public boolean isGlobalBlockedByWaiters(final String nodeId) {
+        final Map<T, String> otherLeases = new HashMap<>();
+        guard.lock();
+        try {
+            for (final Map.Entry<T, String> lease : leaseHolders.entrySet()) {
+                if (!lease.getValue().equals(nodeId)) {
+                    otherLeases.put(lease.getKey(), lease.getValue());
+                }
+            }
+        } finally {
+            guard.unlock();
+        }
+
+        for (final Map.Entry<T, String> lease : otherLeases.entrySet()) {
+            final LeaseListener<T> listener = nodes.get(lease.getValue());
+            if (listener != null && listener.waitingEntityOfHolder(lease.getKey()) != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public void cancelGlobal(final String nodeId) {
+        guard.lock();
+        try {
+            if (nodeId.equals(globalPending)) {
+                globalPending = null;
+            }
+        } finally {
+            guard.unlock();
+        }
+
+        notifyAvailable(nodeId);
+    }
+
+    @Override
+    public void releaseGlobal(final String nodeId) {
+        guard.lock();
+        try {
+            if (nodeId.equals(globalHolder)) {
+                globalHolder = null;
+            }
+        } finally {
+            guard.unlock();
+        }
+
+        notifyAvailable(nodeId);
+    }
+
+    private boolean isExcludedByGlobal(final String nodeId) {
+        return globalHolder != null && !globalHolder.equals(nodeId)
+                || globalPending != null && !globalPending.equals(nodeId);
+    }
+
+    private void revoke(final String holder, final T entityId) {
+        final LeaseListener<T> listener = nodes.get(holder);
+        if (listener != null) {
+            listener.revoke(entityId);
+        }
+    }
+
+    private void notifyAvailable(final String releasingNode) {
+        for (final Map.Entry<String, LeaseListener<T>> node : nodes.entrySet()) {
+            if (!node.getKey().equals(releasingNode)) {
+                node.getValue().available();
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package io.tempo.hberimi.locker.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Modes of one namespace. The own holds of a thread never conflict with its request,
+//so an intention holder can take S or X over its own intentions the way escalation does.
+//IS and IX are counted in striped slots and taken without the guard while no S or X is held or pending,
+//S and X are guarded by the lock itself and revoke that bias the way the global lock does
+class IntentionLock extends ReentrantLock {
+    enum Mode {
+        IS, IX, S, X;
+
+        //Rows are the requested mode, columns the held one
+        private static final boolean[][] COMPATIBLE = {
+                {true, true, true, false},
+                {true, true, false, false},
+                {true, false, true, false},
+                {false, false, false, false}};
+
+        boolean isCompatibleWith(final Mode held) {
+            return COMPATIBLE[ordinal()][held.ordinal()];
+        }
+
+        boolean isIntention() {
+            return this == IS || this == IX;
+        }
+    }
+
+    private static final Mode[] MODES = Mode.values();
+    //Each slot takes its own pair of cache lines, IS is counted at its start and IX right after
+    private static final int SLOT_PADDING = 16;
+
+    private final Condition released;
+    private final AtomicLongArray intentions;
+    private final int slotMask;
+    //S and X holds only, intentions are in the slots
+    private final int[] holds;
+    //Counts of a thread are written by that thread only, so it may read them back without the guard
+    private final ThreadLocal<int[]> ownHolds;
+    private int pendingScans;
+    private volatile boolean intentionBias;
+
+    IntentionLock() {
+        this(Runtime.getRuntime().availableProcessors() << 1);
+    }
+
+    IntentionLock(final int minSlots) {
+        final int slots = Integer.highestOneBit(Math.max(2, minSlots) - 1) << 1;
+        this.released = newCondition();
+        this.intentions = new AtomicLongArray(slots * SLOT_PADDING);
+        this.slotMask = slots - 1;
+        this.holds = new int[MODES.length];
+        this.ownHolds = ThreadLocal.withInitial(() -> new int[MODES.length]);
+        this.intentionBias = true;
+    }
+
+    //Each acquire returns the own counts after the grant, or null when nothing was granted
+    int[] tryAcquire(final Mode mode, final boolean isHoldingLocks) {
+        final int[] own = ownHolds.get();
+        if (mode.isIntention() && tryBiasedIntention(mode)) {
+            ++own[mode.ordinal()];
+            return own;
+        }
+
+        lock();
+        if (!mode.isIntention()) {
+            intentionBias = false;
+        }
+        try {
+            return isGrantable(mode, own, isHoldingLocks) ? hold(mode, own) : null;
+        } finally {
+            updateBias();
+            unlock();
+        }
+    }
+
+    int[] acquire(final Mode mode, final boolean isHoldingLocks, final boolean isTimed, final long deadline) throws InterruptedException {
+        final int[] own = ownHolds.get();
+
+        lock();
+        //Pending S and X requests turn away new intentions, otherwise steady traffic would starve them
+        final boolean isScan = !mode.isIntention();
+        if (isScan) {
+            ++pendingScans;
+            intentionBias = false;
+        }
+        try {
+            while (!isGrantable(mode, own, isHoldingLocks)) {
+                if (!isTimed) {
+                    released.awaitUninterruptibly();
+                    continue;
+                }
+
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                released.await(remaining, TimeUnit.NANOSECONDS);
+            }
+
+            return hold(mode, own);
+        } finally {
+            if (isScan && --pendingScans == 0) {
+                released.signalAll();
+            }
+            updateBias();
+            unlock();
+        }
+    }
+
+    int[] release(final Mode mode) {
+        final int[] own = ownHolds.get();
+        if (own[mode.ordinal()] == 0) {
+            return null;
+        }
+
+        --own[mode.ordinal()];
+        if (mode.isIntention()) {
+            releaseIntention(intentionSlot(mode));
+            return own;
+        }
+
+        lock();
+        try {
+            --holds[mode.ordinal()];
+            updateBias();
+            released.signalAll();
+        } finally {
+            unlock();
+        }
+
+        return own;
+    }
+
+    boolean isHeldByCurrentThread(final Mode mode) {
+        return ownHolds.get()[mode.ordinal()] > 0;
+    }
+
+    private boolean tryBiasedIntention(final Mode mode) {
+        if (!intentionBias) {
+            return false;
+        }
+
+        final int slot = intentionSlot(mode);
+        intentions.incrementAndGet(slot);
+        if (intentionBias) {
+            return true;
+        }
+        releaseIntention(slot);
+        return false;
+    }
+
+    //Once the bias is revoked an S or X request may be waiting for this very count
+    private void releaseIntention(final int slot) {
+        intentions.decrementAndGet(slot);
+
+        if (!intentionBias) {
+            lock();
+            try {
+                released.signalAll();
+            } finally {
+                unlock();
+            }
+        }
+    }
+
+    private boolean isGrantable(final Mode mode, final int[] own, final boolean isHoldingLocks) {
+        //A thread holding nothing anywhere cannot close a cycle, so only it is asked to give way
+        if (mode.isIntention() && !isHoldingLocks && pendingScans > 0) {
+            return false;
+        }
+
+        for (final Mode held : MODES) {
+            if (!mode.isCompatibleWith(held) && heldCount(held) - own[held.ordinal()] > 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int[] hold(final Mode mode, final int[] own) {
+        if (mode.isIntention()) {
+            intentions.incrementAndGet(intentionSlot(mode));
+        } else {
+            ++holds[mode.ordinal()];
+        }
+
+        ++own[mode.ordinal()];
+        return own;
+    }
+
+    private long heldCount(final Mode mode) {
+        if (!mode.isIntention()) {
+            return holds[mode.ordinal()];
+        }
+
+        long total = 0;
+        for (int slot = mode.ordinal(); slot < intentions.length(); slot += SLOT_PADDING) {
+            total += intentions.get(slot);
+        }
+
+        return total;
+    }
+
+    //Called under the guard whenever S and X holds or requests change
+    private void updateBias() {
+        intentionBias = holds[Mode.S.ordinal()] + holds[Mode.X.ordinal()] == 0 && pendingScans == 0;
+    }
+
+    private int intentionSlot(final Mode mode) {
+        final long id = Thread.currentThread().getId();
+        return ((int) (id * 0x9E3779B9L >>> 16) & slotMask) * SLOT_PADDING + mode.ordinal();
+    }
+}
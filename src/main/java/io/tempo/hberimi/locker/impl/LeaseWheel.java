@@ -0,0 +1,70 @@
+package io.tempo.hberimi.locker.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+//Hashed timer wheel of lease owners, advanced by one periodic task however many leases there are.
+//Renewal only moves the owner's deadline, an owner found in its bucket too early is put back for the new one
+class LeaseWheel<T> {
+    private final Queue<QueuedLockOwner<T>>[] buckets;
+    private final int mask;
+    private final long tickNanos;
+    private final long startTime;
+    private final ReentrantLock advanceGuard;
+    private volatile long currentTick;
+
+    @SuppressWarnings("unchecked")
+    LeaseWheel(final int buckets, final long tickNanos) {
+        final int size = Integer.highestOneBit(Math.max(2, buckets) - 1) << 1;
+        this.buckets = new Queue[size];
+        for (int i = 0; i < size; ++i) {
+            this.buckets[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.mask = size - 1;
+        this.tickNanos = tickNanos;
+        this.startTime = System.nanoTime();
+        this.advanceGuard = new ReentrantLock();
+    }
+
+    void schedule(final QueuedLockOwner<T> owner) {
+        if (!owner.markLeaseScheduled()) {
+            return;
+        }
+
+        //A bucket already passed would be seen only a whole round later
+        final long tick = Math.max(tickOf(owner.leaseDeadline()), currentTick + 1);
+        buckets[(int) tick & mask].add(owner);
+    }
+
+    //Hands every owner of the passed buckets to the caller, which schedules the ones it keeps again
+    void advance(final long now, final Consumer<QueuedLockOwner<T>> onDue) {
+        if (!advanceGuard.tryLock()) {
+            return;
+        }
+
+        try {
+            final long nowTick = tickOf(now);
+            //One round visits every bucket, a longer pause needs nothing more
+            currentTick = Math.max(currentTick, nowTick - buckets.length);
+            while (currentTick < nowTick) {
+                final Queue<QueuedLockOwner<T>> bucket = buckets[(int) (currentTick + 1) & mask];
+                currentTick = currentTick + 1;
+
+                //Owners put back into the same bucket stay for its next round
+                QueuedLockOwner<T> owner;
+                for (int i = bucket.size(); i > 0 && (owner = bucket.poll()) != null; --i) {
+                    owner.clearLeaseScheduled();
+                    onDue.accept(owner);
+                }
+            }
+        } finally {
+            advanceGuard.unlock();
+        }
+    }
+
+    private long tickOf(final long time) {
+        return (time - startTime) / tickNanos;
+    }
+}
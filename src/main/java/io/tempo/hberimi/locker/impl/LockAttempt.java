@@ -0,0 +1,39 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.WaitStrategy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+//Attempts are stateless constants and timed ones carry a deadline, so no lambda is captured per call
+@FunctionalInterface
+interface LockAttempt {
+    //About 146 years, far enough for any timeout and safe from overflow when added to System.nanoTime
+    long MAX_TIMEOUT_NANOS = Long.MAX_VALUE >> 1;
+
+    LockAttempt WAITING = (lock, deadline) -> {
+        lock.lock();
+        return true;
+    };
+
+    LockAttempt IMMEDIATE = (lock, deadline) -> lock.tryLock();
+
+    LockAttempt TIMED = (lock, deadline) -> {
+        try {
+            return lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    };
+
+    boolean apply(Lock lock, long deadline);
+
+    //An immediate attempt never waits, the other ones wait the way the strategy does
+    default boolean apply(final Lock lock, final long deadline, final WaitStrategy waitStrategy) {
+        return this == IMMEDIATE ? lock.tryLock() : waitStrategy.acquire(lock, this == TIMED, deadline);
+    }
+
+    static long deadlineAfter(final long timeout, final TimeUnit unit) {
+        return System.nanoTime() + Math.min(unit.toNanos(timeout), MAX_TIMEOUT_NANOS);
+    }
+}
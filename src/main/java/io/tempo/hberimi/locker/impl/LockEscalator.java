@@ -1,81 +1,174 @@
 package io.tempo.hberimi.locker.impl;
 
-import io.tempo.hberimi.util.SimpleLogger;
+import io.tempo.hberimi.locker.EscalationPolicy;
 import io.tempo.hberimi.util.Counter;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
 
 class LockEscalator {
-    private final Map<Thread, Counter> lockedEntitiesByThread;
-
-    private final AtomicInteger totalLocks;
-    private final int minLocksBeforeGlobal;
-    private Thread escalatedThread;
+    //Touched only by the owning thread, so the common path is a thread-local read and a striped add
+    private final ThreadLocal<Counter> lockedEntities;
+    //The same counters registered once per thread, so that other threads may read them.
+    //Threads are held weakly and an entry goes once its thread is collected
+    private final ConcurrentMap<Reference<Thread>, Counter> threadCounters;
+    private final ReferenceQueue<Thread> collectedThreads;
+
+    private final LongAdder totalLocks;
+    private final LongSupplier totalLocksSum;
+    private final ReentrantLock escalationGuard;
+    private volatile EscalationPolicy escalationPolicy;
+    private volatile Thread escalatedThread;
+    //Written and read by the escalated thread only
+    private long escalationStartTime;
 
     public LockEscalator(final int minLocksBeforeGlobal) {
-        this.minLocksBeforeGlobal = minLocksBeforeGlobal;
-        this.lockedEntitiesByThread = new ConcurrentHashMap<>();
-        this.totalLocks = new AtomicInteger();
+        this(new ThresholdEscalationPolicy(minLocksBeforeGlobal));
+    }
+
+    public LockEscalator(final EscalationPolicy escalationPolicy) {
+        this.escalationPolicy = escalationPolicy;
+        this.lockedEntities = new ThreadLocal<>();
+        this.threadCounters = new ConcurrentHashMap<>();
+        this.collectedThreads = new ReferenceQueue<>();
+        this.totalLocks = new LongAdder();
+        this.totalLocksSum = totalLocks::sum;
+        this.escalationGuard = new ReentrantLock();
     }
+
     public boolean incThreadEntityCounter() {
-        final Thread currentThread = Thread.currentThread();
-        Counter counter = lockedEntitiesByThread.get(currentThread);
+        return incThreadEntityCounter(1);
+    }
+
+    public boolean incThreadEntityCounter(final int locks) {
+        Counter counter = lockedEntities.get();
 
         if (counter == null) {
             counter = new Counter();
-            lockedEntitiesByThread.put(currentThread, counter);
+            counter.add(locks - 1);
+            lockedEntities.set(counter);
+            register(counter);
         } else {
-            counter.inc();
+            counter.add(locks);
         }
 
-        totalLocks.incrementAndGet();
+        totalLocks.add(locks);
+
+        if (escalatedThread != null || !escalationPolicy.shouldEscalate(counter.count(), totalLocksSum)) {
+            return false;
+        }
 
-        return acquireEscalatedThread(isNeedEscalation(counter.count()));
+        return acquireEscalatedThread();
     }
 
-    private synchronized boolean acquireEscalatedThread(final boolean isNeedEscalation) {
-        if (isNeedEscalation && escalatedThread == null) {
-            escalatedThread = Thread.currentThread();
-            return true;
+    private boolean acquireEscalatedThread() {
+        escalationGuard.lock();
+        try {
+            if (escalatedThread == null) {
+                escalatedThread = Thread.currentThread();
+                return true;
+            }
+
+            return false;
+        } finally {
+            escalationGuard.unlock();
         }
-
-        return false;
     }
 
     public boolean decThreadEntityCounter() {
-        final Thread currentThread = Thread.currentThread();
-
-        final Counter counter = lockedEntitiesByThread.get(currentThread);
+        return decThreadEntityCounter(1);
+    }
 
-        counter.dec();
+    public boolean decThreadEntityCounter(final int locks) {
+        final Counter counter = lockedEntities.get();
 
-        if (counter.count() == 0) {
-            lockedEntitiesByThread.remove(currentThread);
-        }
+        counter.add(-locks);
+        totalLocks.add(-locks);
 
-        totalLocks.decrementAndGet();
+        //Only the escalated thread itself can de-escalate, so no guard is needed to check it
+        return escalatedThread == Thread.currentThread() && escalationPolicy.shouldDeescalate(counter.count(), totalLocksSum);
+    }
 
-        return deescalateThread(!isNeedEscalation(counter.count()));
+    //Called by the escalated thread once it holds the global lock, so that the policy learns how long it kept it
+    public void escalationStarted() {
+        escalationStartTime = System.nanoTime();
     }
 
-    private synchronized boolean deescalateThread(final boolean isNeedDeescalation) {
-        return isNeedDeescalation && escalatedThread == Thread.currentThread();
+    public void cancelEscalation(final int stalledThreads) {
+        if (escalatedThread == Thread.currentThread() && escalationStartTime != 0) {
+            escalationPolicy.escalationEnded(System.nanoTime() - escalationStartTime, stalledThreads);
+            escalationStartTime = 0;
+        }
+
+        cancelEscalation();
     }
 
-    public synchronized void cancelEscalation() {
-        escalatedThread = null;
+    public void cancelEscalation() {
+        escalationGuard.lock();
+        try {
+            escalatedThread = null;
+        } finally {
+            escalationGuard.unlock();
+        }
     }
 
     public int currentThreadLockedEntities() {
-        final Counter counter = lockedEntitiesByThread.get(Thread.currentThread());
+        final Counter counter = lockedEntities.get();
         return counter == null ? 0 : counter.count();
     }
 
-    private boolean isNeedEscalation(final int count) {
-        final int allLocks = totalLocks.get();
-        SimpleLogger.logDebug("Total lock/Current Thread locks = " + allLocks + "/" + count);
-        return count >= minLocksBeforeGlobal && (count > (allLocks >> 1));
+    public void entityContended(final long waitNanos) {
+        escalationPolicy.entityContended(waitNanos);
+    }
+
+    public EscalationPolicy escalationPolicy() {
+        return escalationPolicy;
+    }
+
+    //The escalated thread, if any, is asked by the new policy on its next release
+    public void setEscalationPolicy(final EscalationPolicy escalationPolicy) {
+        this.escalationPolicy = escalationPolicy;
+    }
+
+    public Thread escalatedThread() {
+        return escalatedThread;
+    }
+
+    //Counters are read without the owners' knowledge, so a count may lag behind a lock taken meanwhile
+    public Map<Thread, Integer> heldEntitiesByThread() {
+        expungeCollectedThreads();
+
+        final Map<Thread, Integer> heldEntities = new HashMap<>();
+        threadCounters.forEach((threadReference, counter) -> {
+            final Thread thread = threadReference.get();
+            final int count = counter.count();
+            if (count > 0 && thread != null && thread.isAlive()) {
+                heldEntities.put(thread, count);
+            }
+        });
+
+        return heldEntities;
+    }
+
+    //Runs once per thread, references keep their identity as keys, so each collected one removes its own entry
+    private void register(final Counter counter) {
+        expungeCollectedThreads();
+        threadCounters.put(new WeakReference<>(Thread.currentThread(), collectedThreads), counter);
+    }
+
+    //Costs one removal per thread collected since the last call, never a walk of the registry
+    private void expungeCollectedThreads() {
+        Reference<? extends Thread> collected;
+        while ((collected = collectedThreads.poll()) != null) {
+            threadCounters.remove(collected);
+        }
     }
 }
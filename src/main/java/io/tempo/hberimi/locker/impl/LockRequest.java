@@ -0,0 +1,123 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.LockOwner;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+
+class LockRequest<T> {
+    static final long NO_TIMEOUT = Long.MAX_VALUE;
+
+    private final QueuedLockOwner<T> owner;
+    private final T entityId;
+    private final boolean isShared;
+    private final long timeoutNanos;
+    private final long deadline;
+    private final CompletableFuture<LockOwner> future;
+    private volatile ScheduledFuture<?> timeoutTask;
+    private volatile boolean isInRegion;
+    private volatile boolean isGranted;
+    private volatile long startTime;
+    private boolean isWaitRecorded;
+
+    LockRequest(final QueuedLockOwner<T> owner, final T entityId, final boolean isShared, final long timeoutNanos, final long startTime) {
+        this.owner = owner;
+        this.startTime = startTime;
+        this.entityId = entityId;
+        this.isShared = isShared;
+        this.timeoutNanos = Math.max(0, timeoutNanos);
+        this.deadline = isTimed() ? System.nanoTime() + this.timeoutNanos : 0;
+        this.future = new CompletableFuture<>();
+    }
+
+    QueuedLockOwner<T> owner() {
+        return owner;
+    }
+
+    T entityId() {
+        return entityId;
+    }
+
+    boolean isGlobal() {
+        return entityId == null;
+    }
+
+    boolean isShared() {
+        return isShared;
+    }
+
+    boolean isImmediate() {
+        return timeoutNanos == 0;
+    }
+
+    boolean isTimed() {
+        return timeoutNanos != NO_TIMEOUT && timeoutNanos != 0;
+    }
+
+    boolean isExpired() {
+        return isTimed() && System.nanoTime() - deadline >= 0;
+    }
+
+    long timeoutNanos() {
+        return timeoutNanos;
+    }
+
+    //Completed by the caller before the grant, e.g. cancelled
+    boolean isAbandoned() {
+        return future.isDone();
+    }
+
+    //Recorded as a hold before the future is completed, so a cancel in between leaves a hold to give back
+    boolean isGranted() {
+        return isGranted;
+    }
+
+    void setGranted() {
+        this.isGranted = true;
+    }
+
+    boolean isInRegion() {
+        return isInRegion;
+    }
+
+    void setInRegion(final boolean isInRegion) {
+        this.isInRegion = isInRegion;
+    }
+
+    long startTime() {
+        return startTime;
+    }
+
+    void setStartTime(final long startTime) {
+        this.startTime = startTime;
+    }
+
+    //Touched only under the entity queue lock
+    boolean isWaitRecorded() {
+        return isWaitRecorded;
+    }
+
+    void setWaitRecorded(final boolean isWaitRecorded) {
+        this.isWaitRecorded = isWaitRecorded;
+    }
+
+    CompletableFuture<LockOwner> future() {
+        return future;
+    }
+
+    void setTimeoutTask(final ScheduledFuture<?> timeoutTask) {
+        this.timeoutTask = timeoutTask;
+    }
+
+    void cancelTimeout() {
+        final ScheduledFuture<?> task = timeoutTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return isGlobal() ? "global lock" : (isShared ? "shared" : "exclusive") + " lock for entity {" + entityId + "}";
+    }
+}
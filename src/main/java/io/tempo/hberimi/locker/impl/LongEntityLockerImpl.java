@@ -0,0 +1,360 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EscalationPolicy;
+import io.tempo.hberimi.locker.LongEntityLocker;
+import io.tempo.hberimi.metrics.LockMetrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.tempo.hberimi.locker.impl.LockAttempt.IMMEDIATE;
+import static io.tempo.hberimi.locker.impl.LockAttempt.TIMED;
+import static io.tempo.hberimi.locker.impl.LockAttempt.WAITING;
+import static io.tempo.hberimi.locker.impl.LockAttempt.deadlineAfter;
+import static io.tempo.hberimi.util.SimpleLogger.isDebugEnabled;
+import static io.tempo.hberimi.util.SimpleLogger.logDebugCurrentThread;
+import static io.tempo.hberimi.util.SimpleLogger.logError;
+
+//Entity owners live in the segment tables, so the wait-for graph needs only the waiting threads published
+public class LongEntityLockerImpl implements LongEntityLocker {
+    private final LongLockSegment[] segments;
+    private final int segmentMask;
+    private final ConcurrentMap<Thread, Long> waitingEntities;
+    private final LockEscalator lockEscalator;
+    private final BiasedGlobalLock globalLock;
+    private final ReentrantLock globalOwnerGuard;
+    private final LockMetrics metrics;
+    private volatile Thread globalOwner;
+
+    public LongEntityLockerImpl() {
+        this(1 << 6);
+    }
+
+    public LongEntityLockerImpl(final int segments) {
+        this(segments, 100);
+    }
+
+    public LongEntityLockerImpl(final int segments, final int minLocksBeforeGlobal) {
+        final int size = Integer.highestOneBit(Math.max(2, segments) - 1) << 1;
+        this.segments = new LongLockSegment[size];
+        this.segmentMask = size - 1;
+        for (int i = 0; i < size; ++i) {
+            this.segments[i] = new LongLockSegment();
+        }
+        this.waitingEntities = new ConcurrentHashMap<>();
+        this.lockEscalator = new LockEscalator(minLocksBeforeGlobal);
+        this.globalLock = new BiasedGlobalLock();
+        this.globalOwnerGuard = new ReentrantLock();
+        this.metrics = new LockMetrics();
+    }
+
+    @Override
+    public void lock(final long entityId) throws InterceptedDeadlockException {
+        lockUninterruptibly(entityId, WAITING);
+    }
+
+    @Override
+    public boolean tryLock(final long entityId) throws InterceptedDeadlockException {
+        return recordTryLock(lockUninterruptibly(entityId, IMMEDIATE), false);
+    }
+
+    @Override
+    public boolean tryLock(final long entityId, final long timeout, final TimeUnit unit) throws InterruptedException, InterceptedDeadlockException {
+        return recordTryLock(lock(entityId, TIMED, deadlineAfter(timeout, unit)), true);
+    }
+
+    @Override
+    public void unlock(final long entityId) {
+        final long mixed = LongLockSegment.mix(entityId);
+        final LongLockSegment segment = segmentFor(mixed);
+        final Thread currentThread = Thread.currentThread();
+
+        if (segment.release(entityId, (int) mixed, currentThread) < 0) {
+            if (segment.ownerOf(entityId, (int) mixed) == null) {
+                final String message = "There is no locks for entity {" + entityId + "}";
+                logError(message);
+                throw new IllegalMonitorStateException(message);
+            }
+
+            final String message = currentThread + " cannot unlock entity - {" + entityId + "} because it's hold by other thread";
+            logError(message);
+            throw new IllegalAccessError(message);
+        }
+
+        globalLock.readUnlock();
+
+        if (lockEscalator.decThreadEntityCounter()) {
+            logDebugCurrentThread("deescalate global lock");
+            metrics.deescalated();
+            globalUnlock();
+        }
+    }
+
+    @Override
+    public boolean isLockedByCurrentThread(final long entityId) {
+        final long mixed = LongLockSegment.mix(entityId);
+        return segmentFor(mixed).ownerOf(entityId, (int) mixed) == Thread.currentThread()
+                || globalLock.isWriteLockedByCurrentThread();
+    }
+
+    @Override
+    public void globalLock() throws InterceptedDeadlockException {
+        final long startTime = beforeGlobalLocking();
+
+        logDebugCurrentThread("waiting global lock and other threads completion");
+        globalLock.writeLock(lockEscalator.currentThreadLockedEntities());
+        logDebugCurrentThread("acquire global lock");
+
+        afterGlobalLocking(startTime, true);
+    }
+
+    @Override
+    public boolean tryGlobalLock() throws InterceptedDeadlockException {
+        final long startTime = beforeGlobalLocking();
+
+        final boolean isLocked = globalLock.tryWriteLock(lockEscalator.currentThreadLockedEntities());
+        afterGlobalLocking(startTime, isLocked);
+
+        return recordTryLock(isLocked, false);
+    }
+
+    @Override
+    public boolean tryGlobalLock(final long timeout, final TimeUnit unit) throws InterceptedDeadlockException {
+        final long startTime = beforeGlobalLocking();
+
+        final boolean isLocked = globalLock.tryWriteLock(timeout, unit, lockEscalator.currentThreadLockedEntities());
+        afterGlobalLocking(startTime, isLocked);
+
+        return recordTryLock(isLocked, true);
+    }
+
+    @Override
+    public void globalUnlock() {
+        logDebugCurrentThread("release global lock");
+        if (globalLock.writeHoldCount() == 1) {
+            metrics.globalReleased();
+            setGlobalOwner(null);
+        }
+        lockEscalator.cancelEscalation(globalLock.queuedThreads());
+        globalLock.writeUnlock();
+    }
+
+    public EscalationPolicy escalationPolicy() {
+        return lockEscalator.escalationPolicy();
+    }
+
+    public void setEscalationPolicy(final EscalationPolicy escalationPolicy) {
+        lockEscalator.setEscalationPolicy(escalationPolicy);
+    }
+
+    @Override
+    public int currentSize() {
+        int size = 0;
+        for (final LongLockSegment segment : segments) {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    @Override
+    public LockMetrics metrics() {
+        return metrics;
+    }
+
+    //Only a timed attempt waits interruptibly
+    private boolean lockUninterruptibly(final long entityId, final LockAttempt attempt) throws InterceptedDeadlockException {
+        try {
+            return lock(entityId, attempt, 0);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Untimed lock of entity {" + entityId + "} was interrupted", e);
+        }
+    }
+
+    private boolean lock(final long entityId, final LockAttempt attempt, final long deadline) throws InterruptedException, InterceptedDeadlockException {
+        final long startTime = metrics.startTime();
+
+        final boolean isReentrant = lockEscalator.currentThreadLockedEntities() > 0;
+        final boolean isGlobalPassed = attempt == TIMED
+                ? globalLock.readLockInterruptibly(isReentrant, deadline)
+                : globalLock.readLock(isReentrant, attempt, deadline);
+        if (!isGlobalPassed) {
+            return false;
+        }
+
+        final boolean isLockGranted;
+        try {
+            isLockGranted = lockEntity(entityId, attempt, deadline);
+        } catch (InterceptedDeadlockException e) {
+            metrics.deadlockIntercepted();
+            globalLock.readUnlock();
+            throw e;
+        } catch (InterruptedException e) {
+            globalLock.readUnlock();
+            throw e;
+        }
+
+        if (!isLockGranted) {
+            globalLock.readUnlock();
+            return false;
+        }
+
+        metrics.acquired(startTime);
+        callEscalationIfNeeds();
+
+        return true;
+    }
+
+    private boolean lockEntity(final long entityId, final LockAttempt attempt, final long deadline) throws InterruptedException, InterceptedDeadlockException {
+        final long mixed = LongLockSegment.mix(entityId);
+        final LongLockSegment segment = segmentFor(mixed);
+        final Thread currentThread = Thread.currentThread();
+
+        final Thread owner = segment.tryAcquire(entityId, (int) mixed, currentThread);
+        if (owner == null) {
+            return true;
+        }
+
+        if (attempt == IMMEDIATE) {
+            return false;
+        }
+
+        if (isDebugEnabled()) {
+            logDebugCurrentThread("waiting lock for entity {%s} held by %s", entityId, owner);
+        }
+
+        //Waiting is published before the walk, so of two threads closing a cycle at least one sees the other
+        final long waitStartTime = System.nanoTime();
+        waitingEntities.put(currentThread, entityId);
+        try {
+            checkOnDeadlock(entityId, owner);
+
+            final boolean isWaitRecorded = metrics.waitStarted();
+            final boolean isLockGranted = segment.acquire(entityId, (int) mixed, currentThread, attempt == TIMED, deadline);
+            metrics.waitEnded(isWaitRecorded);
+
+            return isLockGranted;
+        } finally {
+            waitingEntities.remove(currentThread);
+            final long waitNanos = System.nanoTime() - waitStartTime;
+            metrics.contended(entityId, waitNanos);
+            lockEscalator.entityContended(waitNanos);
+        }
+    }
+
+    private void checkOnDeadlock(final long originEntity, final Thread originOwner) throws InterceptedDeadlockException {
+        final Thread currentThread = Thread.currentThread();
+        final Thread currentGlobalOwner = globalOwner;
+
+        //A chain of distinct waiters cannot be longer than the waiters themselves, cycles elsewhere end the walk
+        Thread blocker = originOwner;
+        for (int steps = waitingEntities.size(); blocker != null && steps >= 0; --steps) {
+            if (blocker == currentThread || blocker == currentGlobalOwner) {
+                final String message = "Thread {" + currentThread + "} unable to lock entity {" + originEntity + "} due case of deadlock." +
+                        " Entity pending by {" + originOwner + "}";
+                throw new InterceptedDeadlockException(message, currentThread, originOwner);
+            }
+
+            final Long waitingEntity = waitingEntities.get(blocker);
+            if (waitingEntity == null) {
+                return;
+            }
+            blocker = ownerOf(waitingEntity);
+        }
+    }
+
+    private long beforeGlobalLocking() throws InterceptedDeadlockException {
+        final long startTime = globalLock.isWriteLockedByCurrentThread() ? LockMetrics.NOT_RECORDED : metrics.startTime();
+
+        globalOwnerGuard.lock();
+        try {
+            checkOnGlobalDeadlock();
+        } catch (InterceptedDeadlockException e) {
+            metrics.deadlockIntercepted();
+            throw e;
+        } finally {
+            globalOwnerGuard.unlock();
+        }
+
+        return startTime;
+    }
+
+    private void checkOnGlobalDeadlock() throws InterceptedDeadlockException {
+        final Thread currentThread = Thread.currentThread();
+        final Thread previousGlobalOwner = globalOwner;
+
+        if (previousGlobalOwner != null && previousGlobalOwner != currentThread) {
+            if (lockEscalator.currentThreadLockedEntities() > 0) {
+                final String message = globalDeadlockPreventedMessage(currentThread, previousGlobalOwner);
+                throw new InterceptedDeadlockException(message, currentThread, previousGlobalOwner);
+            }
+        } else {
+            globalOwner = currentThread;
+        }
+
+        for (final Map.Entry<Thread, Long> waiting : waitingEntities.entrySet()) {
+            if (ownerOf(waiting.getValue()) == currentThread) {
+                globalOwner = previousGlobalOwner;
+                final Thread failThread = waiting.getKey();
+                final String message = globalDeadlockPreventedMessage(failThread, currentThread);
+                throw new InterceptedDeadlockException(message, failThread, currentThread);
+            }
+        }
+    }
+
+    private void afterGlobalLocking(final long startTime, final boolean isLocked) {
+        if (isLocked) {
+            metrics.globalAcquired(startTime);
+        } else if (globalOwner == Thread.currentThread()) {
+            setGlobalOwner(null);
+        }
+    }
+
+    private void setGlobalOwner(final Thread owner) {
+        globalOwnerGuard.lock();
+        try {
+            globalOwner = owner;
+        } finally {
+            globalOwnerGuard.unlock();
+        }
+    }
+
+    private void callEscalationIfNeeds() throws InterceptedDeadlockException {
+        if (lockEscalator.incThreadEntityCounter()) {
+            logDebugCurrentThread("start promotion to global lock due escalation");
+            metrics.escalated();
+            globalLock();
+            lockEscalator.escalationStarted();
+        }
+    }
+
+    private boolean recordTryLock(final boolean isLockGranted, final boolean isTimed) {
+        if (!isLockGranted) {
+            if (isTimed) {
+                metrics.timedOut();
+            } else {
+                metrics.tryLockFailed();
+            }
+        }
+
+        return isLockGranted;
+    }
+
+    private Thread ownerOf(final long entityId) {
+        final long mixed = LongLockSegment.mix(entityId);
+        return segmentFor(mixed).ownerOf(entityId, (int) mixed);
+    }
+
+    private LongLockSegment segmentFor(final long mixed) {
+        return segments[(int) (mixed >>> 32) & segmentMask];
+    }
+
+    private String globalDeadlockPreventedMessage(final Thread failThread, final Thread lockedThread) {
+        return "Thread {" + failThread + "} unable to acquire global lock due case of deadlock." +
+                " Entity pending by {" + lockedThread + "}";
+    }
+}
@@ -0,0 +1,239 @@
+package io.tempo.hberimi.locker.impl;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Open addressing with linear probing over parallel arrays, guarded by the segment itself.
+//A slot is used while it has holds or waiters, so no key value is reserved as empty
+class LongLockSegment extends ReentrantLock {
+    private static final int MIN_CAPACITY = 8;
+
+    private final Condition released;
+    private long[] keys;
+    private Thread[] owners;
+    private int[] holds;
+    private int[] waiters;
+    private int mask;
+    private volatile int size;
+
+    LongLockSegment() {
+        this.released = newCondition();
+        allocate(MIN_CAPACITY);
+    }
+
+    int size() {
+        return size;
+    }
+
+    //Returns null when granted, otherwise the current owner
+    Thread tryAcquire(final long key, final int hash, final Thread thread) {
+        lock();
+        try {
+            final int slot = findOrInsert(key, hash);
+            return tryHold(slot, thread);
+        } finally {
+            unlock();
+        }
+    }
+
+    //Only a timed wait gives up on interrupt, the waiter count is undone before the interrupt is passed on
+    boolean acquire(final long key, final int hash, final Thread thread, final boolean isTimed, final long deadline) throws InterruptedException {
+        if (isTimed) {
+            lockInterruptibly();
+        } else {
+            lock();
+        }
+        try {
+            int slot = findOrInsert(key, hash);
+            if (tryHold(slot, thread) == null) {
+                return true;
+            }
+
+            ++waiters[slot];
+            try {
+                //Slots move on removal and resize, so the key is looked up again after each wakeup
+                while (true) {
+                    if (isTimed) {
+                        final long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        released.awaitNanos(remaining);
+                    } else {
+                        released.awaitUninterruptibly();
+                    }
+
+                    slot = find(key, hash);
+                    if (owners[slot] == null) {
+                        owners[slot] = thread;
+                        holds[slot] = 1;
+                        return true;
+                    }
+                }
+            } finally {
+                slot = find(key, hash);
+                --waiters[slot];
+                removeIfUnused(slot);
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    //Returns the holds left, or -1 when the key is not held by the thread
+    int release(final long key, final int hash, final Thread thread) {
+        lock();
+        try {
+            final int slot = find(key, hash);
+            if (slot < 0 || owners[slot] != thread) {
+                return -1;
+            }
+
+            final int left = --holds[slot];
+            if (left == 0) {
+                owners[slot] = null;
+                if (waiters[slot] > 0) {
+                    released.signalAll();
+                } else {
+                    removeIfUnused(slot);
+                }
+            }
+
+            return left;
+        } finally {
+            unlock();
+        }
+    }
+
+    Thread ownerOf(final long key, final int hash) {
+        lock();
+        try {
+            final int slot = find(key, hash);
+            return slot < 0 ? null : owners[slot];
+        } finally {
+            unlock();
+        }
+    }
+
+    private Thread tryHold(final int slot, final Thread thread) {
+        final Thread owner = owners[slot];
+        if (owner == null) {
+            owners[slot] = thread;
+            holds[slot] = 1;
+            return null;
+        }
+
+        if (owner == thread) {
+            ++holds[slot];
+            return null;
+        }
+
+        return owner;
+    }
+
+    private int find(final long key, final int hash) {
+        for (int slot = hash & mask; isUsed(slot); slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    private int findOrInsert(final long key, final int hash) {
+        int slot = hash & mask;
+        for (; isUsed(slot); slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+
+        //A fresh slot becomes used by its first hold or waiter, which the caller adds right away
+        //Three quarters load keeps probes short, a slot takes 20 bytes with compressed oops
+        if ((size + 1) << 2 > keys.length * 3) {
+            resize(keys.length << 1);
+            return findOrInsert(key, hash);
+        }
+
+        keys[slot] = key;
+        ++size;
+        return slot;
+    }
+
+    private boolean isUsed(final int slot) {
+        return holds[slot] != 0 || waiters[slot] != 0;
+    }
+
+    private void removeIfUnused(final int slot) {
+        if (isUsed(slot)) {
+            return;
+        }
+
+        //Backward shift keeps probe chains intact without tombstones
+        int gap = slot;
+        for (int next = (slot + 1) & mask; isUsed(next); next = (next + 1) & mask) {
+            final int home = (int) mix(keys[next]) & mask;
+            final boolean isBetween = gap <= next ? gap < home && home <= next : gap < home || home <= next;
+            if (!isBetween) {
+                move(next, gap);
+                gap = next;
+            }
+        }
+
+        --size;
+        if (size << 3 < keys.length && keys.length > MIN_CAPACITY) {
+            resize(keys.length >> 1);
+        }
+    }
+
+    private void move(final int from, final int to) {
+        keys[to] = keys[from];
+        owners[to] = owners[from];
+        holds[to] = holds[from];
+        waiters[to] = waiters[from];
+        owners[from] = null;
+        holds[from] = 0;
+        waiters[from] = 0;
+    }
+
+    private void resize(final int capacity) {
+        final long[] oldKeys = keys;
+        final Thread[] oldOwners = owners;
+        final int[] oldHolds = holds;
+        final int[] oldWaiters = waiters;
+
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldHolds[i] != 0 || oldWaiters[i] != 0) {
+                int slot = (int) mix(oldKeys[i]) & mask;
+                while (isUsed(slot)) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                owners[slot] = oldOwners[i];
+                holds[slot] = oldHolds[i];
+                waiters[slot] = oldWaiters[i];
+            }
+        }
+    }
+
+    private void allocate(final int capacity) {
+        this.keys = new long[capacity];
+        this.owners = new Thread[capacity];
+        this.holds = new int[capacity];
+        this.waiters = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    //Murmur3 finalizer, the low half picks the slot and the high half is left for the segment choice
+    static long mix(final long key) {
+        long mixed = key;
+        mixed ^= mixed >>> 33;
+        mixed *= 0xff51afd7ed558ccdL;
+        mixed ^= mixed >>> 33;
+        mixed *= 0xc4ceb9fe1a85ec53L;
+        mixed ^= mixed >>> 33;
+        return mixed;
+    }
+}
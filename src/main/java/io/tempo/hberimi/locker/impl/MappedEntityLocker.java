@@ -0,0 +1,544 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.LongEntityLocker;
+import io.tempo.hberimi.metrics.LockMetrics;
+import io.tempo.hberimi.util.Counter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import static io.tempo.hberimi.locker.impl.LockAttempt.IMMEDIATE;
+import static io.tempo.hberimi.locker.impl.LockAttempt.TIMED;
+import static io.tempo.hberimi.locker.impl.LockAttempt.WAITING;
+import static io.tempo.hberimi.locker.impl.LockAttempt.deadlineAfter;
+import static io.tempo.hberimi.util.SimpleLogger.isDebugEnabled;
+import static io.tempo.hberimi.util.SimpleLogger.logDebugCurrentThread;
+import static io.tempo.hberimi.util.SimpleLogger.logError;
+
+//Excludes the threads of every process mapping the same file. Entities are striped over the fixed slots of the file,
+//keys sharing a slot contend like keys of StripedEntityLocker and the owner keeps which of them it holds.
+//One locker per file and process, closing a channel
+//may drop every file lock the process holds on that file
+public class MappedEntityLocker implements LongEntityLocker, AutoCloseable {
+    //No futex in Java, waiters of other processes poll with doubling parks and the ones of this process are unparked
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int GLOBAL = -1;
+    private static final int DRAIN = -2;
+
+    private final MappedLockTable table;
+    private final int slotMask;
+    private final SlotEntities[] slotEntities;
+    private final ConcurrentMap<Thread, Integer> waitingSlots;
+    private final LockEscalator lockEscalator;
+    private final LockMetrics metrics;
+    //Touched by the global owner only
+    private int globalHolds;
+
+    public MappedEntityLocker(final Path file) throws IOException {
+        this(file, 1 << 12);
+    }
+
+    public MappedEntityLocker(final Path file, final int slots) throws IOException {
+        this(file, slots, 100);
+    }
+
+    public MappedEntityLocker(final Path file, final int slots, final int minLocksBeforeGlobal) throws IOException {
+        final int size = Integer.highestOneBit(Math.max(2, slots) - 1) << 1;
+        this.table = new MappedLockTable(file, size);
+        this.slotMask = size - 1;
+        this.slotEntities = new SlotEntities[size];
+        for (int slot = 0; slot < size; ++slot) {
+            this.slotEntities[slot] = new SlotEntities();
+        }
+        this.waitingSlots = new ConcurrentHashMap<>();
+        this.lockEscalator = new LockEscalator(minLocksBeforeGlobal);
+        this.metrics = new LockMetrics();
+    }
+
+    @Override
+    public void lock(final long entityId) throws InterceptedDeadlockException {
+        lockUninterruptibly(entityId, WAITING);
+    }
+
+    @Override
+    public boolean tryLock(final long entityId) throws InterceptedDeadlockException {
+        return recordTryLock(lockUninterruptibly(entityId, IMMEDIATE), false);
+    }
+
+    @Override
+    public boolean tryLock(final long entityId, final long timeout, final TimeUnit unit) throws InterruptedException, InterceptedDeadlockException {
+        return recordTryLock(lock(entityId, TIMED, deadlineAfter(timeout, unit)), true);
+    }
+
+    @Override
+    public void unlock(final long entityId) {
+        final int slot = slotOf(entityId);
+        final long owner = table.ownerWord(Thread.currentThread());
+        final long holder = table.owner(slot);
+
+        if (holder != owner) {
+            if (holder == 0) {
+                final String message = "There is no locks for entity {" + entityId + "}";
+                logError(message);
+                throw new IllegalMonitorStateException(message);
+            }
+
+            final String message = Thread.currentThread() + " cannot unlock entity - {" + entityId + "} because it's hold by " + table.describe(holder);
+            logError(message);
+            throw new IllegalAccessError(message);
+        }
+
+        //The slot is held for another entity of it
+        final SlotEntities entities = slotEntities[slot];
+        if (!entities.holds(entityId)) {
+            final String message = Thread.currentThread() + " cannot unlock entity - {" + entityId + "} because it does not hold it";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
+
+        entities.release(entityId);
+        final int holds = table.holds(slot) - 1;
+        if (holds == 0) {
+            table.release(slot);
+            unparkWaiters(slot);
+        } else {
+            table.setHolds(slot, holds);
+        }
+
+        if (lockEscalator.decThreadEntityCounter()) {
+            logDebugCurrentThread("deescalate global lock");
+            metrics.deescalated();
+            globalUnlock();
+        }
+    }
+
+    @Override
+    public boolean isLockedByCurrentThread(final long entityId) {
+        final long owner = table.ownerWord(Thread.currentThread());
+        final int slot = slotOf(entityId);
+        return table.owner(slot) == owner && slotEntities[slot].holds(entityId) || table.globalOwner() == owner;
+    }
+
+    @Override
+    public void globalLock() throws InterceptedDeadlockException {
+        logDebugCurrentThread("waiting global lock and other threads completion");
+        globalLock(WAITING, 0);
+        logDebugCurrentThread("acquire global lock");
+    }
+
+    @Override
+    public boolean tryGlobalLock() throws InterceptedDeadlockException {
+        return recordTryLock(globalLock(IMMEDIATE, 0), false);
+    }
+
+    @Override
+    public boolean tryGlobalLock(final long timeout, final TimeUnit unit) throws InterceptedDeadlockException {
+        return recordTryLock(globalLock(TIMED, deadlineAfter(timeout, unit)), true);
+    }
+
+    @Override
+    public void globalUnlock() {
+        final long owner = table.ownerWord(Thread.currentThread());
+        if (table.globalOwner() != owner) {
+            final String message = Thread.currentThread() + " cannot release global lock it does not hold";
+            logError(message);
+            throw new IllegalMonitorStateException(message);
+        }
+
+        logDebugCurrentThread("release global lock");
+        if (--globalHolds == 0) {
+            metrics.globalReleased();
+            lockEscalator.cancelEscalation();
+            table.casGlobalOwner(owner, 0);
+            unparkWaiters(GLOBAL);
+        }
+    }
+
+    //Slots held by the threads of every process
+    @Override
+    public int currentSize() {
+        return (int) table.heldSlots();
+    }
+
+    @Override
+    public LockMetrics metrics() {
+        return metrics;
+    }
+
+    //Holds of this process are left to the recovery of the others
+    @Override
+    public void close() throws IOException {
+        table.close();
+    }
+
+    //Only a timed attempt waits interruptibly
+    private boolean lockUninterruptibly(final long entityId, final LockAttempt attempt) throws InterceptedDeadlockException {
+        try {
+            return lock(entityId, attempt, 0);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Untimed lock of entity {" + entityId + "} was interrupted", e);
+        }
+    }
+
+    private boolean lock(final long entityId, final LockAttempt attempt, final long deadline) throws InterruptedException, InterceptedDeadlockException {
+        final long startTime = metrics.startTime();
+
+        final boolean isLockGranted;
+        try {
+            isLockGranted = lockEntity(entityId, attempt, deadline);
+        } catch (InterceptedDeadlockException e) {
+            metrics.deadlockIntercepted();
+            throw e;
+        }
+
+        if (!isLockGranted) {
+            return false;
+        }
+
+        metrics.acquired(startTime);
+        callEscalationIfNeeds();
+
+        return true;
+    }
+
+    private boolean lockEntity(final long entityId, final LockAttempt attempt, final long deadline) throws InterruptedException, InterceptedDeadlockException {
+        final int slot = slotOf(entityId);
+        final long owner = table.ownerWord(Thread.currentThread());
+        final boolean isHoldingLocks = lockEscalator.currentThreadLockedEntities() > 0;
+
+        while (true) {
+            //A thread holding entities passes a pending global lock, the owner drains it
+            if (!isHoldingLocks && !await(GLOBAL, () -> passGlobal(owner), attempt, deadline)) {
+                return false;
+            }
+
+            final boolean isFreshHold = table.owner(slot) != owner;
+            final long holder = tryHold(entityId, slot, owner);
+            if (holder != 0 && !awaitSlot(entityId, slot, owner, holder, attempt, deadline)) {
+                return false;
+            }
+
+            //The global owner drains the slots it sees held, a slot taken after its scan is given back
+            if (isHoldingLocks || !isFreshHold || passGlobal(owner) == 0) {
+                return true;
+            }
+            slotEntities[slot].release(entityId);
+            table.release(slot);
+            unparkWaiters(slot);
+        }
+    }
+
+    private boolean awaitSlot(final long entityId, final int slot, final long owner, final long holder,
+                              final LockAttempt attempt, final long deadline) throws InterruptedException, InterceptedDeadlockException {
+        if (attempt == IMMEDIATE) {
+            return false;
+        }
+
+        if (isDebugEnabled()) {
+            logDebugCurrentThread("waiting lock for entity {%s} held by %s", entityId, table.describe(holder));
+        }
+
+        //Waiting is published before the walk, so of two threads closing a cycle at least one sees the other
+        final int waitEntry = table.startWaiting(owner, slot);
+        try {
+            checkOnDeadlock(entityId, owner, holder);
+
+            final boolean isWaitRecorded = metrics.waitStarted();
+            try {
+                return await(slot, () -> tryHold(entityId, slot, owner), attempt, deadline);
+            } finally {
+                metrics.waitEnded(isWaitRecorded);
+            }
+        } finally {
+            table.stopWaiting(waitEntry);
+        }
+    }
+
+    //Returns 0 when granted, otherwise the holder
+    private long tryHold(final long entityId, final int slot, final long owner) {
+        while (true) {
+            final long holder = table.owner(slot);
+            if (holder == owner) {
+                table.setHolds(slot, table.holds(slot) + 1);
+                slotEntities[slot].hold(entityId);
+                return 0;
+            }
+
+            if (holder != 0) {
+                return holder;
+            }
+
+            if (table.casOwner(slot, 0, owner)) {
+                table.hold(slot);
+                //Entities of a holder recovered as dead may be left over
+                slotEntities[slot].clear();
+                slotEntities[slot].hold(entityId);
+                return 0;
+            }
+        }
+    }
+
+    private long passGlobal(final long owner) {
+        final long globalOwner = table.globalOwner();
+        return globalOwner == owner ? 0 : globalOwner;
+    }
+
+    private void checkOnDeadlock(final long originEntity, final long owner, final long originHolder) throws InterceptedDeadlockException {
+        //A draining global owner waits for every holder, so it closes a cycle only with a requester holding entities
+        final long globalOwner = lockEscalator.currentThreadLockedEntities() > 0 ? table.globalOwner() : 0;
+
+        //A chain of distinct waiters cannot be longer than the wait table, cycles elsewhere end the walk
+        long blocker = originHolder;
+        for (int steps = MappedLockTable.PROCESSES * MappedLockTable.WAITERS_PER_PROCESS; blocker != 0 && steps >= 0; --steps) {
+            if (blocker == owner || (blocker == globalOwner && globalOwner != owner)) {
+                final String message = "Thread {" + Thread.currentThread() + "} unable to lock entity {" + originEntity + "} due case of deadlock." +
+                        " Entity pending by {" + table.describe(originHolder) + "}";
+                throw new InterceptedDeadlockException(message, Thread.currentThread(), table.describe(originHolder));
+            }
+
+            final int waitingSlot = table.waitingSlotOf(blocker);
+            if (waitingSlot < 0) {
+                return;
+            }
+            blocker = table.owner(waitingSlot);
+        }
+    }
+
+    private boolean globalLock(final LockAttempt attempt, final long deadline) throws InterceptedDeadlockException {
+        final long owner = table.ownerWord(Thread.currentThread());
+        if (table.globalOwner() == owner) {
+            ++globalHolds;
+            return true;
+        }
+
+        final long startTime = metrics.startTime();
+        final boolean isHoldingLocks = lockEscalator.currentThreadLockedEntities() > 0;
+        try {
+            final long previousGlobalOwner = table.globalOwner();
+            if (previousGlobalOwner != 0 && isHoldingLocks) {
+                final String message = globalDeadlockPreventedMessage(Thread.currentThread(), table.describe(previousGlobalOwner));
+                throw new InterceptedDeadlockException(message, Thread.currentThread(), table.describe(previousGlobalOwner));
+            }
+
+            if (!awaitGlobal(GLOBAL, () -> table.casGlobalOwner(0, owner) ? 0 : table.globalOwner(), attempt, deadline)) {
+                return false;
+            }
+            checkOnGlobalDeadlock(owner, isHoldingLocks);
+        } catch (InterceptedDeadlockException e) {
+            metrics.deadlockIntercepted();
+            throw e;
+        }
+
+        if (!awaitGlobal(DRAIN, () -> drained(owner, isHoldingLocks), attempt, deadline)) {
+            table.casGlobalOwner(owner, 0);
+            unparkWaiters(GLOBAL);
+            return false;
+        }
+
+        globalHolds = 1;
+        metrics.globalAcquired(startTime);
+        return true;
+    }
+
+    //The owner is published before the scan and waits after the walk, so one of both sees the other
+    private void checkOnGlobalDeadlock(final long owner, final boolean isHoldingLocks) throws InterceptedDeadlockException {
+        final long waiter = isHoldingLocks ? table.waiterOn(owner) : 0;
+        if (waiter != 0) {
+            table.casGlobalOwner(owner, 0);
+            unparkWaiters(GLOBAL);
+            final String message = globalDeadlockPreventedMessage(table.describe(waiter), Thread.currentThread());
+            throw new InterceptedDeadlockException(message, table.describe(waiter), Thread.currentThread());
+        }
+    }
+
+    private long drained(final long owner, final boolean isHoldingLocks) {
+        if (table.heldSlots() == 0) {
+            return 0;
+        }
+
+        final long holder = table.anyHolderBut(owner);
+        return isHoldingLocks || holder != 0 ? holder : owner;
+    }
+
+    //A timed global lock reports an interrupt as a failed attempt, as the global lock of the long-keyed locker does
+    private boolean awaitGlobal(final int slot, final LongSupplier probe, final LockAttempt attempt, final long deadline) {
+        try {
+            return await(slot, probe, attempt, deadline);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    //Returns when the probe grants, a holder still there after the longest park is checked for being dead.
+    //Only a timed wait gives up on interrupt
+    private boolean await(final int slot, final LongSupplier probe, final LockAttempt attempt, final long deadline) throws InterruptedException {
+        long blocker = probe.getAsLong();
+        if (blocker == 0) {
+            return true;
+        }
+        if (attempt == IMMEDIATE) {
+            return false;
+        }
+
+        final Thread currentThread = Thread.currentThread();
+        boolean isInterrupted = false;
+        long parkNanos = MIN_PARK_NANOS;
+        long version = slot >= 0 ? table.version(slot) : 0;
+
+        waitingSlots.put(currentThread, slot);
+        try {
+            while (blocker != 0) {
+                final long remaining = attempt == TIMED ? deadline - System.nanoTime() : parkNanos;
+                if (remaining <= 0) {
+                    return false;
+                }
+
+                LockSupport.parkNanos(this, Math.min(parkNanos, remaining));
+                if (Thread.interrupted()) {
+                    if (attempt == TIMED) {
+                        throw new InterruptedException();
+                    }
+                    isInterrupted = true;
+                }
+
+                //A slot changing hands stays hot, so the backoff starts over
+                final long currentVersion = slot >= 0 ? table.version(slot) : 0;
+                if (currentVersion != version) {
+                    version = currentVersion;
+                    parkNanos = MIN_PARK_NANOS;
+                } else if (parkNanos < MAX_PARK_NANOS) {
+                    parkNanos = Math.min(parkNanos << 1, MAX_PARK_NANOS);
+                } else if (recoverIfDead(blocker)) {
+                    parkNanos = MIN_PARK_NANOS;
+                }
+
+                blocker = probe.getAsLong();
+            }
+
+            return true;
+        } finally {
+            waitingSlots.remove(currentThread);
+            if (isInterrupted) {
+                currentThread.interrupt();
+            }
+        }
+    }
+
+    private boolean recoverIfDead(final long blocker) {
+        final String description = table.describe(blocker);
+        try {
+            if (table.recoverIfDead(blocker)) {
+                logError("Locks of dead " + description + " recovered");
+                return true;
+            }
+        } catch (IOException e) {
+            logError("Unable to check " + description + " for being alive: " + e);
+        }
+
+        return false;
+    }
+
+    //Waiters of other processes see a release by their next poll
+    private void unparkWaiters(final int slot) {
+        if (waitingSlots.isEmpty()) {
+            return;
+        }
+
+        for (final Map.Entry<Thread, Integer> waiting : waitingSlots.entrySet()) {
+            final int waitingSlot = waiting.getValue();
+            if (waitingSlot == slot || waitingSlot == DRAIN) {
+                LockSupport.unpark(waiting.getKey());
+            }
+        }
+    }
+
+    private void callEscalationIfNeeds() throws InterceptedDeadlockException {
+        if (lockEscalator.incThreadEntityCounter()) {
+            logDebugCurrentThread("start promotion to global lock due escalation");
+            metrics.escalated();
+            globalLock();
+        }
+    }
+
+    private boolean recordTryLock(final boolean isLockGranted, final boolean isTimed) {
+        if (!isLockGranted) {
+            if (isTimed) {
+                metrics.timedOut();
+            } else {
+                metrics.tryLockFailed();
+            }
+        }
+
+        return isLockGranted;
+    }
+
+    private int slotOf(final long entityId) {
+        return (int) LongLockSegment.mix(entityId) & slotMask;
+    }
+
+    private String globalDeadlockPreventedMessage(final Object failOwner, final Object lockedOwner) {
+        return "Thread {" + failOwner + "} unable to acquire global lock due case of deadlock." +
+                " Entity pending by {" + lockedOwner + "}";
+    }
+
+    //Exclusive entity holds of a slot, touched only by the thread owning it
+    private static final class SlotEntities {
+        private long entity;
+        private int entityHolds;
+        private Map<Long, Counter> collidedEntities;
+
+        private boolean holds(final long entityId) {
+            return entityHolds > 0 && entity == entityId
+                    || collidedEntities != null && collidedEntities.containsKey(entityId);
+        }
+
+        private void hold(final long entityId) {
+            if (entityHolds > 0 && entity == entityId) {
+                ++entityHolds;
+                return;
+            }
+
+            final Counter counter = collidedEntities == null ? null : collidedEntities.get(entityId);
+            if (counter != null) {
+                counter.inc();
+            } else if (entityHolds == 0) {
+                entity = entityId;
+                entityHolds = 1;
+            } else {
+                if (collidedEntities == null) {
+                    collidedEntities = new HashMap<>();
+                }
+                collidedEntities.put(entityId, new Counter());
+            }
+        }
+
+        private void release(final long entityId) {
+            if (entityHolds > 0 && entity == entityId) {
+                --entityHolds;
+                return;
+            }
+
+            final Counter counter = collidedEntities.get(entityId);
+            counter.dec();
+            if (counter.count() == 0) {
+                collidedEntities.remove(entityId);
+            }
+        }
+
+        private void clear() {
+            entityHolds = 0;
+            if (collidedEntities != null) {
+                collidedEntities.clear();
+            }
+        }
+    }
+}
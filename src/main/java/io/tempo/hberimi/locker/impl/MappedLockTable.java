@@ -0,0 +1,304 @@
+package io.tempo.hberimi.locker.impl;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+//Fixed layout over a file mapped by every process of the host, words are read and changed through UnsafeAccess at the mapped address.
+//A process registers by a file lock on its own region, the OS drops it with the process, so a free region means a dead owner
+class MappedLockTable implements AutoCloseable {
+    static final int PROCESSES = 64;
+    static final int WAITERS_PER_PROCESS = 64;
+
+    private static final long MAGIC = 0x656e746c6f636b01L;
+
+    private static final long MAGIC_OFFSET = 0;
+    private static final long SLOT_COUNT_OFFSET = 8;
+    private static final long GLOBAL_OWNER_OFFSET = 64;
+    private static final long HELD_SLOTS_OFFSET = 128;
+    private static final long PROCESS_TABLE_OFFSET = 192;
+    private static final long WAIT_TABLE_OFFSET = 1024;
+    private static final int WAIT_ENTRY_SIZE = 16;
+    private static final long SLOT_TABLE_OFFSET = WAIT_TABLE_OFFSET + (long) PROCESSES * WAITERS_PER_PROCESS * WAIT_ENTRY_SIZE;
+
+    //A slot per cache line, so neighbouring stripes never contend: owner, hold count and release version
+    private static final int SLOT_SIZE = 64;
+    private static final int HOLDS = 8;
+    private static final int VERSION = 16;
+
+    private final FileChannel channel;
+    //Kept reachable, the mapping lives as long as the buffer
+    private final MappedByteBuffer buffer;
+    private final long address;
+    private final int slots;
+    private final int process;
+    private final FileLock registration;
+
+    MappedLockTable(final Path file, final int slots) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.slots = slots;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SLOT_TABLE_OFFSET + (long) slots * SLOT_SIZE);
+            this.address = UnsafeAccess.addressOf(buffer);
+            initialize(file);
+            this.registration = register(file);
+            this.process = (int) ((registration.position() - PROCESS_TABLE_OFFSET) / 8);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int slots() {
+        return slots;
+    }
+
+    long ownerWord(final Thread thread) {
+        return ((long) (process + 1) << 32) | (thread.getId() & 0xffffffffL);
+    }
+
+    long owner(final int slot) {
+        return UnsafeAccess.getLongVolatile(slotAddress(slot));
+    }
+
+    boolean casOwner(final int slot, final long expected, final long owner) {
+        return UnsafeAccess.compareAndSwapLong(slotAddress(slot), expected, owner);
+    }
+
+    //Holds are changed by the owner only
+    int holds(final int slot) {
+        return UnsafeAccess.getIntVolatile(slotAddress(slot) + HOLDS);
+    }
+
+    void setHolds(final int slot, final int holds) {
+        UnsafeAccess.putIntVolatile(slotAddress(slot) + HOLDS, holds);
+    }
+
+    long version(final int slot) {
+        return UnsafeAccess.getLongVolatile(slotAddress(slot) + VERSION);
+    }
+
+    void hold(final int slot) {
+        setHolds(slot, 1);
+        UnsafeAccess.getAndAddLong(address + HELD_SLOTS_OFFSET, 1);
+    }
+
+    void release(final int slot) {
+        setHolds(slot, 0);
+        UnsafeAccess.getAndAddLong(slotAddress(slot) + VERSION, 1);
+        UnsafeAccess.putLongVolatile(slotAddress(slot), 0);
+        UnsafeAccess.getAndAddLong(address + HELD_SLOTS_OFFSET, -1);
+    }
+
+    long heldSlots() {
+        return UnsafeAccess.getLongVolatile(address + HELD_SLOTS_OFFSET);
+    }
+
+    //A full scan, used only while a global lock drains
+    long anyHolderBut(final long owner) {
+        for (int slot = 0; slot < slots; ++slot) {
+            final long holder = owner(slot);
+            if (holder != 0 && holder != owner) {
+                return holder;
+            }
+        }
+
+        return 0;
+    }
+
+    long globalOwner() {
+        return UnsafeAccess.getLongVolatile(address + GLOBAL_OWNER_OFFSET);
+    }
+
+    boolean casGlobalOwner(final long expected, final long owner) {
+        return UnsafeAccess.compareAndSwapLong(address + GLOBAL_OWNER_OFFSET, expected, owner);
+    }
+
+    //Returns the entry taken, or -1 when every entry of the process is in use and the wait stays unpublished
+    int startWaiting(final long owner, final int slot) {
+        for (int entry = 0; entry < WAITERS_PER_PROCESS; ++entry) {
+            final long entryAddress = waitAddress(process, entry);
+            if (UnsafeAccess.compareAndSwapLong(entryAddress, 0, owner)) {
+                UnsafeAccess.putLongVolatile(entryAddress + 8, slot + 1);
+                return entry;
+            }
+        }
+
+        return -1;
+    }
+
+    void stopWaiting(final int entry) {
+        if (entry >= 0) {
+            final long entryAddress = waitAddress(process, entry);
+            UnsafeAccess.putLongVolatile(entryAddress + 8, 0);
+            UnsafeAccess.putLongVolatile(entryAddress, 0);
+        }
+    }
+
+    //Returns the slot the owner waits for, or -1 when it does not wait
+    int waitingSlotOf(final long owner) {
+        final int ownerProcess = processOf(owner);
+        if (ownerProcess < 0 || ownerProcess >= PROCESSES) {
+            return -1;
+        }
+
+        for (int entry = 0; entry < WAITERS_PER_PROCESS; ++entry) {
+            final long entryAddress = waitAddress(ownerProcess, entry);
+            if (UnsafeAccess.getLongVolatile(entryAddress) == owner) {
+                return (int) UnsafeAccess.getLongVolatile(entryAddress + 8) - 1;
+            }
+        }
+
+        return -1;
+    }
+
+    //Returns the owner of a published wait for a slot held by the given owner, or 0
+    long waiterOn(final long owner) {
+        for (int waiterProcess = 0; waiterProcess < PROCESSES; ++waiterProcess) {
+            for (int entry = 0; entry < WAITERS_PER_PROCESS; ++entry) {
+                final long entryAddress = waitAddress(waiterProcess, entry);
+                final long waiter = UnsafeAccess.getLongVolatile(entryAddress);
+                final int slot = (int) UnsafeAccess.getLongVolatile(entryAddress + 8) - 1;
+                if (waiter != 0 && waiter != owner && slot >= 0 && owner(slot) == owner) {
+                    return waiter;
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    //Holds of a dead process are cleared under its registration lock, so a process taking the region later cannot be swept
+    boolean recoverIfDead(final long owner) throws IOException {
+        final int ownerProcess = processOf(owner);
+        if (ownerProcess == process || ownerProcess < 0 || ownerProcess >= PROCESSES) {
+            return false;
+        }
+
+        final FileLock lock;
+        try {
+            lock = channel.tryLock(processOffset(ownerProcess), 8, false);
+        } catch (OverlappingFileLockException e) {
+            //Registered by another table of this JVM
+            return false;
+        }
+        if (lock == null) {
+            return false;
+        }
+
+        try {
+            sweep(ownerProcess);
+        } finally {
+            lock.release();
+        }
+
+        return true;
+    }
+
+    String describe(final long owner) {
+        final int ownerProcess = processOf(owner);
+        final long pid = ownerProcess >= 0 && ownerProcess < PROCESSES ? UnsafeAccess.getLongVolatile(address + processOffset(ownerProcess)) : 0;
+        return "thread " + (owner & 0xffffffffL) + " of process " + pid;
+    }
+
+    //Holds left behind are recovered like those of a dead process
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+
+        try {
+            registration.release();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void initialize(final Path file) throws IOException {
+        try (FileLock ignored = channel.lock(MAGIC_OFFSET, 8, false)) {
+            final long magic = UnsafeAccess.getLongVolatile(address + MAGIC_OFFSET);
+            if (magic == 0) {
+                UnsafeAccess.putIntVolatile(address + SLOT_COUNT_OFFSET, slots);
+                UnsafeAccess.putLongVolatile(address + MAGIC_OFFSET, MAGIC);
+            } else if (magic != MAGIC || UnsafeAccess.getIntVolatile(address + SLOT_COUNT_OFFSET) != slots) {
+                throw new IllegalArgumentException("File {" + file + "} is no lock table of " + slots + " slots");
+            }
+        }
+    }
+
+    private FileLock register(final Path file) throws IOException {
+        for (int candidate = 0; candidate < PROCESSES; ++candidate) {
+            final FileLock lock;
+            try {
+                lock = channel.tryLock(processOffset(candidate), 8, false);
+            } catch (OverlappingFileLockException e) {
+                continue;
+            }
+
+            if (lock != null) {
+                //A predecessor of the region may have died holding locks
+                sweep(candidate);
+                UnsafeAccess.putLongVolatile(address + processOffset(candidate), currentPid());
+                return lock;
+            }
+        }
+
+        throw new IllegalStateException("No free process region in lock table {" + file + "}");
+    }
+
+    private void sweep(final int deadProcess) {
+        for (int slot = 0; slot < slots; ++slot) {
+            final long holder = owner(slot);
+            if (processOf(holder) == deadProcess) {
+                setHolds(slot, 0);
+                UnsafeAccess.getAndAddLong(slotAddress(slot) + VERSION, 1);
+                if (casOwner(slot, holder, 0)) {
+                    UnsafeAccess.getAndAddLong(address + HELD_SLOTS_OFFSET, -1);
+                }
+            }
+        }
+
+        for (int entry = 0; entry < WAITERS_PER_PROCESS; ++entry) {
+            UnsafeAccess.putLongVolatile(waitAddress(deadProcess, entry) + 8, 0);
+            UnsafeAccess.putLongVolatile(waitAddress(deadProcess, entry), 0);
+        }
+
+        final long globalOwner = globalOwner();
+        if (processOf(globalOwner) == deadProcess) {
+            casGlobalOwner(globalOwner, 0);
+        }
+        UnsafeAccess.putLongVolatile(address + processOffset(deadProcess), 0);
+    }
+
+    private long slotAddress(final int slot) {
+        return address + SLOT_TABLE_OFFSET + (long) slot * SLOT_SIZE;
+    }
+
+    private long waitAddress(final int waiterProcess, final int entry) {
+        return address + WAIT_TABLE_OFFSET + ((long) waiterProcess * WAITERS_PER_PROCESS + entry) * WAIT_ENTRY_SIZE;
+    }
+
+    private static long processOffset(final int process) {
+        return PROCESS_TABLE_OFFSET + (long) process * 8;
+    }
+
+    private static int processOf(final long owner) {
+        return (int) (owner >>> 32) - 1;
+    }
+
+    //Java 8 has no ProcessHandle, the runtime name is "pid@host" on the common JVMs
+    private static long currentPid() {
+        final String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package io.tempo.hberimi.locker.impl;
+
+import java.util.Objects;
+
+final class NamespacedEntity<N, T> {
+    private final N namespace;
+    private final T entityId;
+
+    NamespacedEntity(final N namespace, final T entityId) {
+        this.namespace = namespace;
+        this.entityId = entityId;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof NamespacedEntity)) {
+            return false;
+        }
+
+        final NamespacedEntity<?, ?> entity = (NamespacedEntity<?, ?>) other;
+        return Objects.equals(namespace, entity.namespace) && Objects.equals(entityId, entity.entityId);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hashCode(namespace) + Objects.hashCode(entityId);
+    }
+
+    @Override
+    public String toString() {
+        return namespace + "/" + entityId;
+    }
+}
@@ -0,0 +1,20 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.EscalationPolicy;
+
+import java.util.function.LongSupplier;
+
+//Entity locks only, a thread already escalated under a previous policy gives the global lock back on its next release
+public class NeverEscalationPolicy implements EscalationPolicy {
+    public static final NeverEscalationPolicy INSTANCE = new NeverEscalationPolicy();
+
+    @Override
+    public boolean shouldEscalate(final int threadLocks, final LongSupplier totalLocks) {
+        return false;
+    }
+
+    @Override
+    public boolean shouldDeescalate(final int threadLocks, final LongSupplier totalLocks) {
+        return true;
+    }
+}
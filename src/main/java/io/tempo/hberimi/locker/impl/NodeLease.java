@@ -0,0 +1,89 @@
+package io.tempo.hberimi.locker.impl;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+//Guarded by itself. A granted lease stays cached on the node while idle until the backend revokes it
+class NodeLease<T> extends ReentrantLock {
+    private final T entityId;
+    private int users;
+    private volatile boolean isGranted;
+    private volatile Thread lastUser;
+    private boolean isRevoked;
+    private boolean isRequested;
+    private boolean isRemoved;
+
+    NodeLease(final T entityId) {
+        this.entityId = entityId;
+    }
+
+    T entityId() {
+        return entityId;
+    }
+
+    boolean isGranted() {
+        return isGranted;
+    }
+
+    void markGranted() {
+        isGranted = true;
+    }
+
+    //Returns false when the lease is granted or already queued for the next request to the backend
+    boolean markRequested() {
+        if (isGranted || isRequested) {
+            return false;
+        }
+
+        isRequested = true;
+        return true;
+    }
+
+    //Returns true when the request still has to be sent
+    boolean requestSent() {
+        isRequested = false;
+        return !isGranted && !isRemoved;
+    }
+
+    Thread lastUser() {
+        return lastUser;
+    }
+
+    boolean isRemoved() {
+        return isRemoved;
+    }
+
+    void use(final Thread user) {
+        ++users;
+        lastUser = user;
+    }
+
+    //Returns true when the lease has to be given back to the backend
+    boolean stopUsing() {
+        if (--users > 0) {
+            return false;
+        }
+
+        lastUser = null;
+        if (isRevoked || !isGranted) {
+            isRemoved = true;
+            return isGranted;
+        }
+
+        return false;
+    }
+
+    //Returns true when the lease is idle and has to be given back at once
+    boolean revoke() {
+        if (isRemoved || !isGranted) {
+            return false;
+        }
+
+        if (users > 0) {
+            isRevoked = true;
+            return false;
+        }
+
+        isRemoved = true;
+        return true;
+    }
+}
@@ -0,0 +1,22 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.WaitStrategy;
+
+import java.util.concurrent.locks.Lock;
+
+import static io.tempo.hberimi.locker.impl.LockAttempt.TIMED;
+import static io.tempo.hberimi.locker.impl.LockAttempt.WAITING;
+
+//Parks at once, the default and the cheapest one for long critical sections
+public class ParkWaitStrategy implements WaitStrategy {
+    public static final ParkWaitStrategy INSTANCE = new ParkWaitStrategy();
+
+    @Override
+    public boolean acquire(final Lock lock, final boolean isTimed, final long deadline) {
+        return park(lock, isTimed, deadline);
+    }
+
+    static boolean park(final Lock lock, final boolean isTimed, final long deadline) {
+        return (isTimed ? TIMED : WAITING).apply(lock, deadline);
+    }
+}
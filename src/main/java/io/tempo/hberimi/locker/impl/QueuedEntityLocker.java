@@ -0,0 +1,1026 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.interceptor.DeadlockInterceptor;
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.AsyncEntityLocker;
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.LockOwner;
+import io.tempo.hberimi.metrics.LockMetrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.tempo.hberimi.locker.impl.LockRequest.NO_TIMEOUT;
+import static io.tempo.hberimi.util.SimpleLogger.logDebug;
+import static io.tempo.hberimi.util.SimpleLogger.logError;
+
+public class QueuedEntityLocker<T> implements EntityLocker<T>, AsyncEntityLocker<T>, AutoCloseable {
+    private static final int LEASE_WHEEL_BUCKETS = 512;
+    private static final int LEASE_TICKS_PER_TTL = 8;
+
+    private final ConcurrentMap<T, EntityQueue<T>> queues;
+    private final Comparator<? super T> lockOrder;
+    private final DeadlockInterceptor<T> deadlockInterceptor;
+    private final ScheduledExecutorService timeoutScheduler;
+    private final boolean isSchedulerOwned;
+    private final ThreadLocal<QueuedLockOwner<T>> threadOwner;
+    private final AtomicLong ownerSequence;
+    private final ThreadLocal<Deque<LockRequest<T>>> dispatchedGrants;
+    private final LockMetrics metrics;
+    private final long leaseTtlNanos;
+    private final LeaseWheel<T> leaseWheel;
+    private final ScheduledFuture<?> leaseReaper;
+
+    //Entity holds and pending entity requests of all owners
+    private final AtomicInteger activeRequests;
+    private final ReentrantLock globalGuard;
+    private final Deque<LockRequest<T>> globalWaiters;
+    private final Queue<LockRequest<T>> deferredRequests;
+    private volatile GlobalHold<T> globalHold;
+
+    public QueuedEntityLocker() {
+        this(new HashLockOrder<>());
+    }
+
+    public QueuedEntityLocker(final Comparator<? super T> lockOrder) {
+        this(lockOrder, newTimeoutScheduler(), true, 0, TimeUnit.NANOSECONDS);
+    }
+
+    public QueuedEntityLocker(final Comparator<? super T> lockOrder, final ScheduledExecutorService timeoutScheduler) {
+        this(lockOrder, timeoutScheduler, 0, TimeUnit.NANOSECONDS);
+    }
+
+    //Lease mode, every grant lives for the TTL unless its owner renews it, expired and dead owners lose all their locks
+    public QueuedEntityLocker(final long leaseTtl, final TimeUnit unit) {
+        this(new HashLockOrder<>(), newTimeoutScheduler(), true, leaseTtl, unit);
+    }
+
+    //The given scheduler is left running by close, only the lease reaper is cancelled on it
+    public QueuedEntityLocker(final Comparator<? super T> lockOrder, final ScheduledExecutorService timeoutScheduler,
+                              final long leaseTtl, final TimeUnit unit) {
+        this(lockOrder, timeoutScheduler, false, leaseTtl, unit);
+    }
+
+    private QueuedEntityLocker(final Comparator<? super T> lockOrder, final ScheduledExecutorService timeoutScheduler,
+                               final boolean isSchedulerOwned, final long leaseTtl, final TimeUnit unit) {
+        this.queues = new ConcurrentHashMap<>();
+        this.lockOrder = lockOrder;
+        this.deadlockInterceptor = new DeadlockInterceptor<>();
+        this.timeoutScheduler = timeoutScheduler;
+        this.isSchedulerOwned = isSchedulerOwned;
+        this.leaseTtlNanos = unit.toNanos(leaseTtl);
+        this.threadOwner = ThreadLocal.withInitial(() -> {
+            final Thread currentThread = Thread.currentThread();
+            return new QueuedLockOwner<>(this, currentThread.getName(), currentThread, isLeased());
+        });
+        this.ownerSequence = new AtomicLong();
+        this.dispatchedGrants = new ThreadLocal<>();
+        this.metrics = new LockMetrics();
+        this.activeRequests = new AtomicInteger();
+        this.globalGuard = new ReentrantLock();
+        this.globalWaiters = new ArrayDeque<>();
+        this.deferredRequests = new ConcurrentLinkedQueue<>();
+
+        //One periodic task checks all leases, a tick is a fraction of the TTL so expiry is late by at most that
+        if (leaseTtlNanos > 0) {
+            final long tickNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), leaseTtlNanos / LEASE_TICKS_PER_TTL);
+            this.leaseWheel = new LeaseWheel<>(LEASE_WHEEL_BUCKETS, tickNanos);
+            this.leaseReaper = timeoutScheduler.scheduleAtFixedRate(this::reapExpiredLeases, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+        } else {
+            this.leaseWheel = null;
+            this.leaseReaper = null;
+        }
+    }
+
+    @Override
+    public LockOwner newOwner(final String name) {
+        return new QueuedLockOwner<>(this, name, isLeased());
+    }
+
+    //Returns false when the owner holds nothing any more, e.g. its locks were already reaped
+    public boolean renewLease() {
+        return renewLease(threadOwner.get());
+    }
+
+    public boolean renewLease(final LockOwner owner) {
+        return renewLease(ownerOf(owner));
+    }
+
+    @Override
+    public CompletableFuture<LockOwner> lockAsync(final T entityId) {
+        return lockAsync(anonymousOwner(), entityId);
+    }
+
+    @Override
+    public CompletableFuture<LockOwner> lockAsync(final T entityId, final long timeout, final TimeUnit unit) {
+        return lockAsync(anonymousOwner(), entityId, timeout, unit);
+    }
+
+    @Override
+    public CompletableFuture<LockOwner> lockAsync(final LockOwner owner, final T entityId) {
+        return submit(ownerOf(owner), entityId, false, NO_TIMEOUT).future();
+    }
+
+    @Override
+    public CompletableFuture<LockOwner> lockAsync(final LockOwner owner, final T entityId, final long timeout, final TimeUnit unit) {
+        return submit(ownerOf(owner), entityId, false, unit.toNanos(timeout)).future();
+    }
+
+    @Override
+    public CompletableFuture<LockOwner> lockSharedAsync(final LockOwner owner, final T entityId) {
+        return submit(ownerOf(owner), entityId, true, NO_TIMEOUT).future();
+    }
+
+    @Override
+    public void unlock(final LockOwner owner, final T entityId) {
+        release(ownerOf(owner), entityId, false);
+    }
+
+    @Override
+    public void unlockShared(final LockOwner owner, final T entityId) {
+        release(ownerOf(owner), entityId, true);
+    }
+
+    @Override
+    public CompletableFuture<LockOwner> globalLockAsync() {
+        return globalLockAsync(anonymousOwner());
+    }
+
+    @Override
+    public CompletableFuture<LockOwner> globalLockAsync(final LockOwner owner) {
+        return submitGlobal(ownerOf(owner), NO_TIMEOUT).future();
+    }
+
+    @Override
+    public CompletableFuture<LockOwner> globalLockAsync(final LockOwner owner, final long timeout, final TimeUnit unit) {
+        return submitGlobal(ownerOf(owner), unit.toNanos(timeout)).future();
+    }
+
+    @Override
+    public void globalUnlock(final LockOwner owner) {
+        releaseGlobal(ownerOf(owner));
+    }
+
+    @Override
+    public void lock(final T entityId) throws InterceptedDeadlockException {
+        awaitGranted(submit(threadOwner.get(), entityId, false, NO_TIMEOUT));
+    }
+
+    @Override
+    public boolean tryLock(final T entityId) throws InterceptedDeadlockException {
+        return awaitGranted(submit(threadOwner.get(), entityId, false, 0));
+    }
+
+    @Override
+    public boolean tryLock(final T entityId, final long timeout, final TimeUnit unit) throws InterruptedException, InterceptedDeadlockException {
+        return awaitTimed(submit(threadOwner.get(), entityId, false, unit.toNanos(timeout)));
+    }
+
+    @Override
+    public void unlock(final T entityId) {
+        release(threadOwner.get(), entityId, false);
+    }
+
+    @Override
+    public void lockShared(final T entityId) throws InterceptedDeadlockException {
+        awaitGranted(submit(threadOwner.get(), entityId, true, NO_TIMEOUT));
+    }
+
+    @Override
+    public boolean tryLockShared(final T entityId) throws InterceptedDeadlockException {
+        return awaitGranted(submit(threadOwner.get(), entityId, true, 0));
+    }
+
+    @Override
+    public boolean tryLockShared(final T entityId, final long timeout, final TimeUnit unit) throws InterruptedException, InterceptedDeadlockException {
+        return awaitTimed(submit(threadOwner.get(), entityId, true, unit.toNanos(timeout)));
+    }
+
+    @Override
+    public void unlockShared(final T entityId) {
+        release(threadOwner.get(), entityId, true);
+    }
+
+    @Override
+    public void downgrade(final T entityId) throws InterceptedDeadlockException {
+        final QueuedLockOwner<T> owner = threadOwner.get();
+        heldQueue(owner, entityId, false).unlock();
+
+        //The exclusive owner is always granted the shared lock at once
+        awaitGranted(submit(owner, entityId, true, 0));
+        release(owner, entityId, false);
+    }
+
+    @Override
+    public void lockAll(final Collection<T> entitiesIds) throws InterceptedDeadlockException {
+        final List<T> orderedEntities = orderedEntities(entitiesIds);
+
+        for (int i = 0; i < orderedEntities.size(); ++i) {
+            try {
+                lock(orderedEntities.get(i));
+            } catch (InterceptedDeadlockException e) {
+                rollbackLockAll(orderedEntities, i);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLockAll(final Collection<T> entitiesIds, final long timeout, final TimeUnit unit) throws InterruptedException, InterceptedDeadlockException {
+        final List<T> orderedEntities = orderedEntities(entitiesIds);
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        for (int i = 0; i < orderedEntities.size(); ++i) {
+            final boolean isLocked;
+            try {
+                isLocked = tryLock(orderedEntities.get(i), deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException | InterceptedDeadlockException e) {
+                rollbackLockAll(orderedEntities, i);
+                throw e;
+            }
+
+            if (!isLocked) {
+                rollbackLockAll(orderedEntities, i);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void unlockAll(final Collection<T> entitiesIds) {
+        final QueuedLockOwner<T> owner = threadOwner.get();
+        final List<T> orderedEntities = orderedEntities(entitiesIds);
+
+        //All entities are checked before the first one is released
+        for (final T entityId : orderedEntities) {
+            heldQueue(owner, entityId, false).unlock();
+        }
+
+        for (int i = orderedEntities.size() - 1; i >= 0; --i) {
+            release(owner, orderedEntities.get(i), false);
+        }
+    }
+
+    @Override
+    public boolean isLockedByCurrentThread(final T entityId) {
+        final QueuedLockOwner<T> owner = threadOwner.get();
+        final GlobalHold<T> hold = globalHold;
+        if (hold != null && hold.owner == owner && hold.isGranted) {
+            return true;
+        }
+
+        final EntityQueue<T> queue = queues.get(entityId);
+        if (queue == null) {
+            return false;
+        }
+
+        queue.lock();
+        try {
+            return queue.isHeldBy(owner, false);
+        } finally {
+            queue.unlock();
+        }
+    }
+
+    @Override
+    public void globalLock() throws InterceptedDeadlockException {
+        awaitGranted(submitGlobal(threadOwner.get(), NO_TIMEOUT));
+    }
+
+    @Override
+    public boolean tryGlobalLock() throws InterceptedDeadlockException {
+        return awaitGranted(submitGlobal(threadOwner.get(), 0));
+    }
+
+    @Override
+    public boolean tryGlobalLock(final long timeout, final TimeUnit unit) throws InterceptedDeadlockException {
+        return awaitGranted(submitGlobal(threadOwner.get(), unit.toNanos(timeout)));
+    }
+
+    @Override
+    public void globalUnlock() {
+        releaseGlobal(threadOwner.get());
+    }
+
+    @Override
+    public int currentSize() {
+        return queues.size();
+    }
+
+    @Override
+    public LockMetrics metrics() {
+        return metrics;
+    }
+
+    //Stops the lease reaper and a scheduler created by the locker itself, the locker must not be used afterwards.
+    //Pending timeouts die with an owned scheduler
+    @Override
+    public void close() {
+        if (leaseReaper != null) {
+            leaseReaper.cancel(false);
+        }
+        if (isSchedulerOwned) {
+            timeoutScheduler.shutdownNow();
+        }
+    }
+
+    private LockRequest<T> submit(final QueuedLockOwner<T> owner, final T entityId, final boolean isShared, final long timeoutNanos) {
+        final LockRequest<T> request = new LockRequest<>(owner, entityId, isShared, timeoutNanos, metrics.startTime());
+        owner.startRequest(request);
+        scheduleTimeout(request);
+
+        enterOrDefer(request);
+
+        return request;
+    }
+
+    private void enterOrDefer(final LockRequest<T> request) {
+        while (!enterRegion(request.owner())) {
+            if (request.isImmediate()) {
+                fail(request, new TimeoutException("Global lock is held"));
+                return;
+            }
+
+            //Re-checked after publishing, so a global unlock in between cannot miss the request
+            deferredRequests.add(request);
+            if (globalHold != null || !deferredRequests.remove(request)) {
+                logDebug("%s defers %s until global unlock", request.owner(), request);
+                return;
+            }
+        }
+
+        request.setInRegion(true);
+        acquire(request);
+    }
+
+    private void acquire(final LockRequest<T> request) {
+        final QueuedLockOwner<T> owner = request.owner();
+        final T entityId = request.entityId();
+        final boolean isShared = request.isShared();
+
+        boolean isGranted = false;
+        boolean isAbandoned = false;
+        Exception failure = null;
+        EntityQueue<T> queue;
+        do {
+            queue = queues.computeIfAbsent(entityId, EntityQueue::new);
+            queue.lock();
+            try {
+                if (queue.isRemoved()) {
+                    continue;
+                }
+
+                if (request.isAbandoned()) {
+                    isAbandoned = true;
+                    removeIfIdle(queue);
+                } else if (queue.canGrantNow(owner, isShared)) {
+                    grant(queue, request);
+                    isGranted = true;
+                } else if (request.isImmediate() || request.isExpired()) {
+                    failure = new TimeoutException(owner + " cannot gain " + request);
+                    removeIfIdle(queue);
+                } else {
+                    failure = enqueue(queue, request);
+                }
+            } finally {
+                queue.unlock();
+            }
+            break;
+        } while (true);
+
+        if (isGranted) {
+            complete(request);
+        } else if (failure != null) {
+            fail(request, failure);
+        } else if (isAbandoned) {
+            abandoned(request);
+        }
+    }
+
+    private InterceptedDeadlockException enqueue(final EntityQueue<T> queue, final LockRequest<T> request) {
+        final QueuedLockOwner<T> owner = request.owner();
+        try {
+            deadlockInterceptor.beforeLocking(owner.record(), request.entityId(), request.isShared());
+        } catch (InterceptedDeadlockException e) {
+            removeIfIdle(queue);
+            return e;
+        }
+
+        logDebug("%s waiting %s", owner, request);
+        request.setWaitRecorded(metrics.waitStarted());
+        queue.enqueue(request);
+        return null;
+    }
+
+    private void grant(final EntityQueue<T> queue, final LockRequest<T> request) {
+        final QueuedLockOwner<T> owner = request.owner();
+        queue.hold(owner, request.isShared());
+        request.setGranted();
+        if (!request.isShared() && queue.exclusiveHolds() == 1) {
+            queue.setHoldStartTime(metrics.startTime());
+        }
+        if (isLeased()) {
+            owner.leasedEntities().add(queue.entityId());
+            startLease(owner);
+        }
+
+        if (request.isShared()) {
+            deadlockInterceptor.afterSharedLocking(owner.record(), queue.entityId(), true);
+        } else {
+            deadlockInterceptor.afterLocking(owner.record(), queue.entityId(), true);
+        }
+    }
+
+    private void release(final QueuedLockOwner<T> owner, final T entityId, final boolean isShared) {
+        final EntityQueue<T> queue = heldQueue(owner, entityId, isShared);
+
+        final List<LockRequest<T>> resolved;
+        try {
+            if (queue.release(owner, isShared) == 0) {
+                logDebug("%s releases last %s lock for entity {%s}", owner, isShared ? "shared" : "exclusive", entityId);
+                if (isShared) {
+                    deadlockInterceptor.beforeSharedUnlocking(owner.record(), entityId);
+                } else {
+                    deadlockInterceptor.beforeUnlocking(owner.record(), entityId);
+                    metrics.holdEnded(queue.holdStartTime());
+                }
+                if (isLeased() && !queue.isHeldBy(owner, !isShared)) {
+                    owner.leasedEntities().remove(entityId);
+                }
+            }
+
+            resolved = grantWaiters(queue);
+        } finally {
+            queue.unlock();
+        }
+
+        exitRegion(owner);
+        dispatchAll(resolved);
+    }
+
+    //Called under the queue lock, the granted requests are dispatched once it is released
+    private List<LockRequest<T>> grantWaiters(final EntityQueue<T> queue) {
+        List<LockRequest<T>> resolved = null;
+        LockRequest<T> next;
+        while ((next = queue.pollGrantable()) != null) {
+            metrics.waitEnded(next.isWaitRecorded());
+            if (!next.isAbandoned()) {
+                grant(queue, next);
+            }
+            if (resolved == null) {
+                resolved = new ArrayList<>(2);
+            }
+            resolved.add(next);
+        }
+
+        removeIfIdle(queue);
+        return resolved;
+    }
+
+    //Futures are completed outside the queue, their callbacks may lock other entities
+    private void dispatchAll(final List<LockRequest<T>> resolved) {
+        if (resolved != null) {
+            for (final LockRequest<T> request : resolved) {
+                dispatch(request);
+            }
+        }
+    }
+
+    private boolean isLeased() {
+        return leaseTtlNanos > 0;
+    }
+
+    private void startLease(final QueuedLockOwner<T> owner) {
+        owner.renewLease(System.nanoTime() + leaseTtlNanos);
+        leaseWheel.schedule(owner);
+    }
+
+    private boolean renewLease(final QueuedLockOwner<T> owner) {
+        if (!isLeased()) {
+            throw new IllegalStateException("Locker is not in lease mode");
+        }
+
+        owner.renewLease(System.nanoTime() + leaseTtlNanos);
+        return isHoldingLease(owner);
+    }
+
+    private boolean isHoldingLease(final QueuedLockOwner<T> owner) {
+        final GlobalHold<T> hold = globalHold;
+        return !owner.leasedEntities().isEmpty() || hold != null && hold.owner == owner && hold.isGranted;
+    }
+
+    private void reapExpiredLeases() {
+        final long now = System.nanoTime();
+        leaseWheel.advance(now, owner -> {
+            if (!isHoldingLease(owner)) {
+                return;
+            }
+
+            if (owner.isAlive() && now - owner.leaseDeadline() < 0) {
+                leaseWheel.schedule(owner);
+                return;
+            }
+
+            try {
+                reap(owner);
+            } catch (RuntimeException e) {
+                logError("Failed to reap locks of " + owner + ": " + e);
+            }
+        });
+    }
+
+    //The owner loses every hold at once, its later unlock calls fail the same way as for a lock it never had
+    private void reap(final QueuedLockOwner<T> owner) {
+        logDebug("%s lost its lease%s, its locks are reaped", owner, owner.isAlive() ? "" : " as a dead thread");
+        metrics.leaseReaped();
+
+        for (final T entityId : owner.leasedEntities()) {
+            reapEntity(owner, entityId);
+        }
+
+        globalGuard.lock();
+        final boolean isGlobalReleased;
+        try {
+            final GlobalHold<T> hold = globalHold;
+            isGlobalReleased = hold != null && hold.owner == owner && hold.isGranted;
+            if (isGlobalReleased) {
+                hold.holds = 0;
+                metrics.globalReleased();
+                deadlockInterceptor.beforeGlobalUnlocking();
+                promoteNextGlobal();
+            }
+        } finally {
+            globalGuard.unlock();
+        }
+
+        if (isGlobalReleased) {
+            resumeDeferred();
+            tryGrantGlobal();
+        }
+    }
+
+    private void reapEntity(final QueuedLockOwner<T> owner, final T entityId) {
+        owner.leasedEntities().remove(entityId);
+        final EntityQueue<T> queue = queues.get(entityId);
+        if (queue == null) {
+            return;
+        }
+
+        final int holds;
+        final List<LockRequest<T>> resolved;
+        queue.lock();
+        try {
+            final boolean isExclusive = queue.isHeldBy(owner, false);
+            final boolean isShared = queue.isHeldBy(owner, true);
+            holds = queue.releaseAll(owner);
+            if (isExclusive) {
+                deadlockInterceptor.beforeUnlocking(owner.record(), entityId);
+                metrics.holdEnded(queue.holdStartTime());
+            }
+            if (isShared) {
+                deadlockInterceptor.beforeSharedUnlocking(owner.record(), entityId);
+            }
+
+            resolved = grantWaiters(queue);
+        } finally {
+            queue.unlock();
+        }
+
+        for (int i = 0; i < holds; ++i) {
+            exitRegion(owner);
+        }
+        dispatchAll(resolved);
+    }
+
+    //Returns the queue locked by the current thread
+    private EntityQueue<T> heldQueue(final QueuedLockOwner<T> owner, final T entityId, final boolean isShared) {
+        final EntityQueue<T> queue = queues.get(entityId);
+
+        if (queue != null) {
+            queue.lock();
+            if (queue.isHeldBy(owner, isShared)) {
+                return queue;
+            }
+
+            final boolean isHeld = queue.isHeld();
+            queue.unlock();
+
+            if (isHeld) {
+                final String message = owner + " cannot unlock " + (isShared ? "shared" : "exclusive") + " entity - {" + entityId + "} because it's hold by other owner";
+                logError(message);
+                throw new IllegalAccessError(message);
+            }
+        }
+
+        final String message = "There is no locks for entity {" + entityId + "}";
+        logError(message);
+        throw new IllegalMonitorStateException(message);
+    }
+
+    private void removeIfIdle(final EntityQueue<T> queue) {
+        if (queue.isIdle()) {
+            queues.remove(queue.entityId(), queue);
+            queue.markRemoved();
+        }
+    }
+
+    private LockRequest<T> submitGlobal(final QueuedLockOwner<T> owner, final long timeoutNanos) {
+        final LockRequest<T> request = new LockRequest<>(owner, null, false, timeoutNanos, metrics.startTime());
+        owner.startRequest(request);
+
+        try {
+            deadlockInterceptor.beforeGlobalLocking(owner.record());
+        } catch (InterceptedDeadlockException e) {
+            metrics.deadlockIntercepted();
+            owner.finishRequest(request);
+            request.future().completeExceptionally(e);
+            return request;
+        }
+
+        boolean isReentered = false;
+        boolean isQueued = true;
+        globalGuard.lock();
+        try {
+            final GlobalHold<T> hold = globalHold;
+            if (hold == null) {
+                globalHold = new GlobalHold<>(request);
+            } else if (hold.owner == owner) {
+                ++hold.holds;
+                request.setGranted();
+                isReentered = true;
+                request.setStartTime(LockMetrics.NOT_RECORDED);
+            } else if (request.isImmediate()) {
+                isQueued = false;
+            } else {
+                globalWaiters.addLast(request);
+            }
+        } finally {
+            globalGuard.unlock();
+        }
+
+        if (isReentered) {
+            if (isLeased()) {
+                startLease(owner);
+            }
+            complete(request);
+        } else if (!isQueued) {
+            fail(request, new TimeoutException(owner + " cannot gain global lock"));
+        } else {
+            scheduleTimeout(request);
+            tryGrantGlobal();
+            if (request.isImmediate()) {
+                abandonGlobal(request, new TimeoutException(owner + " cannot gain global lock"));
+            }
+        }
+
+        return request;
+    }
+
+    private void releaseGlobal(final QueuedLockOwner<T> owner) {
+        globalGuard.lock();
+        try {
+            final GlobalHold<T> hold = globalHold;
+            if (hold == null || !hold.isGranted) {
+                throw new IllegalMonitorStateException("There is no global lock");
+            }
+            if (hold.owner != owner) {
+                throw new IllegalAccessError(owner + " cannot release global lock held by " + hold.owner);
+            }
+            if (--hold.holds > 0) {
+                return;
+            }
+
+            logDebug("%s releases global lock", owner);
+            metrics.globalReleased();
+            deadlockInterceptor.beforeGlobalUnlocking();
+            promoteNextGlobal();
+        } finally {
+            globalGuard.unlock();
+        }
+
+        resumeDeferred();
+        tryGrantGlobal();
+    }
+
+    private void tryGrantGlobal() {
+        final GlobalHold<T> hold = globalHold;
+        if (hold == null || hold.isGranted || !isDrainedFor(hold)) {
+            return;
+        }
+
+        globalGuard.lock();
+        try {
+            if (globalHold != hold || hold.isGranted || !isDrainedFor(hold)) {
+                return;
+            }
+            hold.isGranted = true;
+            hold.request.setGranted();
+        } finally {
+            globalGuard.unlock();
+        }
+
+        if (isLeased()) {
+            startLease(hold.owner);
+        }
+        dispatch(hold.request);
+    }
+
+    //Owners which already hold entities are never deferred, the same as readers of BiasedGlobalLock
+    private boolean isDrainedFor(final GlobalHold<T> hold) {
+        return activeRequests.get() == hold.owner.regionHolds();
+    }
+
+    private void promoteNextGlobal() {
+        LockRequest<T> next = globalWaiters.pollFirst();
+        while (next != null && next.isAbandoned()) {
+            abandoned(next);
+            next = globalWaiters.pollFirst();
+        }
+
+        globalHold = next == null ? null : new GlobalHold<>(next);
+    }
+
+    private void abandonGlobal(final LockRequest<T> request, final Exception cause) {
+        final boolean isRemoved;
+        globalGuard.lock();
+        try {
+            final GlobalHold<T> hold = globalHold;
+            if (hold != null && hold.request == request) {
+                isRemoved = !hold.isGranted;
+                if (isRemoved) {
+                    promoteNextGlobal();
+                }
+            } else {
+                isRemoved = globalWaiters.remove(request);
+            }
+        } finally {
+            globalGuard.unlock();
+        }
+
+        if (isRemoved) {
+            fail(request, cause);
+            resumeDeferred();
+            tryGrantGlobal();
+        }
+    }
+
+    private boolean enterRegion(final QueuedLockOwner<T> owner) {
+        owner.enterRegion();
+        activeRequests.incrementAndGet();
+
+        final GlobalHold<T> hold = globalHold;
+        if (hold == null || hold.owner == owner || owner.regionHolds() > 1) {
+            return true;
+        }
+
+        exitRegion(owner);
+        return false;
+    }
+
+    private void exitRegion(final QueuedLockOwner<T> owner) {
+        owner.exitRegion();
+        activeRequests.decrementAndGet();
+
+        if (globalHold != null) {
+            tryGrantGlobal();
+        }
+    }
+
+    private void resumeDeferred() {
+        //Only the requests deferred so far, the ones deferred again stay for the next global unlock
+        LockRequest<T> request;
+        for (int i = deferredRequests.size(); i > 0 && (request = deferredRequests.poll()) != null; --i) {
+            if (request.isAbandoned()) {
+                abandoned(request);
+            } else if (request.isExpired()) {
+                fail(request, new TimeoutException(request.owner() + " cannot gain " + request));
+            } else {
+                enterOrDefer(request);
+            }
+        }
+    }
+
+    private void scheduleTimeout(final LockRequest<T> request) {
+        if (request.isTimed()) {
+            request.setTimeoutTask(timeoutScheduler.schedule(() -> abandon(request,
+                    new TimeoutException(request.owner() + " cannot gain " + request)), request.timeoutNanos(), TimeUnit.NANOSECONDS));
+        }
+    }
+
+    private void abandon(final LockRequest<T> request, final Exception cause) {
+        if (request.isGlobal()) {
+            abandonGlobal(request, cause);
+            return;
+        }
+
+        final EntityQueue<T> queue = queues.get(request.entityId());
+        boolean isRemoved = false;
+        if (queue != null) {
+            queue.lock();
+            try {
+                isRemoved = queue.remove(request);
+                if (isRemoved) {
+                    metrics.waitEnded(request.isWaitRecorded());
+                    removeIfIdle(queue);
+                }
+            } finally {
+                queue.unlock();
+            }
+        }
+
+        if (isRemoved || deferredRequests.remove(request)) {
+            fail(request, cause);
+        }
+    }
+
+    //Callbacks which unlock and so grant the next waiter are run in a loop instead of recursively
+    private void dispatch(final LockRequest<T> request) {
+        Deque<LockRequest<T>> grants = dispatchedGrants.get();
+        if (grants != null) {
+            grants.addLast(request);
+            return;
+        }
+
+        grants = new ArrayDeque<>();
+        dispatchedGrants.set(grants);
+        try {
+            for (LockRequest<T> next = request; next != null; next = grants.pollFirst()) {
+                if (next.isGranted()) {
+                    complete(next);
+                } else {
+                    abandoned(next);
+                }
+            }
+        } finally {
+            dispatchedGrants.remove();
+        }
+    }
+
+    private void complete(final LockRequest<T> request) {
+        request.cancelTimeout();
+        request.owner().finishRequest(request);
+
+        if (request.isGlobal()) {
+            metrics.globalAcquired(request.startTime());
+        } else {
+            metrics.acquired(request.startTime());
+        }
+
+        //Cancelled once the hold was recorded, nobody else would ever give it back
+        if (!request.future().complete(request.owner())) {
+            logDebug("%s was granted %s after abandoning it, releasing it", request.owner(), request);
+            if (request.isGlobal()) {
+                releaseGlobal(request.owner());
+            } else {
+                release(request.owner(), request.entityId(), request.isShared());
+            }
+        }
+    }
+
+    private void fail(final LockRequest<T> request, final Exception cause) {
+        if (cause instanceof InterceptedDeadlockException) {
+            metrics.deadlockIntercepted();
+        } else if (cause instanceof TimeoutException) {
+            if (request.isImmediate()) {
+                metrics.tryLockFailed();
+            } else {
+                metrics.timedOut();
+            }
+        }
+
+        abandoned(request);
+        request.future().completeExceptionally(cause);
+    }
+
+    private void abandoned(final LockRequest<T> request) {
+        final QueuedLockOwner<T> owner = request.owner();
+        request.cancelTimeout();
+
+        if (request.isGlobal()) {
+            deadlockInterceptor.afterGlobalLocking(owner.record(), false);
+        } else {
+            deadlockInterceptor.afterLocking(owner.record(), request.entityId(), false);
+        }
+        if (request.isInRegion()) {
+            request.setInRegion(false);
+            exitRegion(owner);
+        }
+        owner.finishRequest(request);
+    }
+
+    private boolean awaitGranted(final LockRequest<T> request) throws InterceptedDeadlockException {
+        boolean isInterrupted = false;
+        try {
+            while (true) {
+                try {
+                    return isGranted(request);
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+        } finally {
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean awaitTimed(final LockRequest<T> request) throws InterruptedException, InterceptedDeadlockException {
+        try {
+            return isGranted(request);
+        } catch (InterruptedException e) {
+            abandon(request, e);
+            if (!request.future().isCompletedExceptionally()) {
+                release(request.owner(), request.entityId(), request.isShared());
+            }
+            throw e;
+        }
+    }
+
+    private boolean isGranted(final LockRequest<T> request) throws InterruptedException, InterceptedDeadlockException {
+        try {
+            request.future().get();
+            return true;
+        } catch (CancellationException e) {
+            return false;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof InterceptedDeadlockException) {
+                throw (InterceptedDeadlockException) cause;
+            }
+            if (cause instanceof TimeoutException) {
+                return false;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void rollbackLockAll(final List<T> entitiesIds, final int locked) {
+        for (int i = locked - 1; i >= 0; --i) {
+            unlock(entitiesIds.get(i));
+        }
+    }
+
+    private List<T> orderedEntities(final Collection<T> entitiesIds) {
+        final List<T> orderedEntities = new ArrayList<>(new LinkedHashSet<>(entitiesIds));
+        orderedEntities.sort(lockOrder);
+        return orderedEntities;
+    }
+
+    private static ScheduledExecutorService newTimeoutScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "entity-lock-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private LockOwner anonymousOwner() {
+        return newOwner("owner-" + ownerSequence.incrementAndGet());
+    }
+
+    @SuppressWarnings("unchecked")
+    private QueuedLockOwner<T> ownerOf(final LockOwner owner) {
+        if (!(owner instanceof QueuedLockOwner) || ((QueuedLockOwner<?>) owner).locker() != this) {
+            throw new IllegalArgumentException(owner + " is not an owner of this locker");
+        }
+
+        return (QueuedLockOwner<T>) owner;
+    }
+
+    private static final class GlobalHold<T> {
+        private final LockRequest<T> request;
+        private final QueuedLockOwner<T> owner;
+        private volatile boolean isGranted;
+        //Touched only under the global guard
+        private int holds;
+
+        private GlobalHold(final LockRequest<T> request) {
+            this.request = request;
+            this.owner = request.owner();
+            this.holds = 1;
+        }
+    }
+}
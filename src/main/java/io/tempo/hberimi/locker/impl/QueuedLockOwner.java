@@ -0,0 +1,114 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.interceptor.DeadlockInterceptor.OwnerRecord;
+import io.tempo.hberimi.locker.LockOwner;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+
+class QueuedLockOwner<T> implements LockOwner {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<QueuedLockOwner> LEASE_SCHEDULED =
+            AtomicIntegerFieldUpdater.newUpdater(QueuedLockOwner.class, "leaseScheduled");
+
+    private final Object locker;
+    private final String name;
+    private final OwnerRecord<T> record;
+    //Entity holds and pending entity requests, the global lock waits until only its owner's remain
+    private final AtomicInteger regionHolds;
+    private final AtomicReference<LockRequest<T>> pendingRequest;
+    //Held entities are tracked only in lease mode, so that the reaper can find them
+    private final Set<T> leasedEntities;
+    private volatile long leaseDeadline;
+    private volatile int leaseScheduled;
+
+    //A logical owner is reported by deadlock interception as itself
+    QueuedLockOwner(final Object locker, final String name, final boolean isLeased) {
+        this.locker = locker;
+        this.name = name;
+        this.record = new OwnerRecord<>(this);
+        this.regionHolds = new AtomicInteger();
+        this.pendingRequest = new AtomicReference<>();
+        this.leasedEntities = isLeased ? ConcurrentHashMap.newKeySet() : null;
+    }
+
+    QueuedLockOwner(final Object locker, final String name, final Object interceptionOwner, final boolean isLeased) {
+        this.locker = locker;
+        this.name = name;
+        this.record = new OwnerRecord<>(interceptionOwner);
+        this.regionHolds = new AtomicInteger();
+        this.pendingRequest = new AtomicReference<>();
+        this.leasedEntities = isLeased ? ConcurrentHashMap.newKeySet() : null;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    Object locker() {
+        return locker;
+    }
+
+    OwnerRecord<T> record() {
+        return record;
+    }
+
+    int regionHolds() {
+        return regionHolds.get();
+    }
+
+    void enterRegion() {
+        regionHolds.incrementAndGet();
+    }
+
+    void exitRegion() {
+        regionHolds.decrementAndGet();
+    }
+
+    //An owner waits for one lock at a time, the same way a thread does
+    void startRequest(final LockRequest<T> request) {
+        if (!pendingRequest.compareAndSet(null, request)) {
+            throw new IllegalStateException(name + " is already waiting for " + pendingRequest.get());
+        }
+    }
+
+    void finishRequest(final LockRequest<T> request) {
+        pendingRequest.compareAndSet(request, null);
+    }
+
+    //A thread owner which has died can never release its locks
+    boolean isAlive() {
+        final Object owner = record.owner();
+        return !(owner instanceof Thread) || ((Thread) owner).isAlive();
+    }
+
+    Set<T> leasedEntities() {
+        return leasedEntities;
+    }
+
+    long leaseDeadline() {
+        return leaseDeadline;
+    }
+
+    void renewLease(final long leaseDeadline) {
+        this.leaseDeadline = leaseDeadline;
+    }
+
+    //Returns false when the owner already waits in the lease wheel
+    boolean markLeaseScheduled() {
+        return LEASE_SCHEDULED.compareAndSet(this, 0, 1);
+    }
+
+    void clearLeaseScheduled() {
+        leaseScheduled = 0;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
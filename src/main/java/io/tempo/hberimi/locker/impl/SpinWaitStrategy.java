@@ -0,0 +1,45 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.WaitStrategy;
+
+import java.util.concurrent.locks.Lock;
+
+import static io.tempo.hberimi.locker.impl.ParkWaitStrategy.park;
+
+//Retries a fixed number of times, then yields a fixed number of times, then parks.
+//Parking in the end keeps a preempted holder from being spun against forever
+public class SpinWaitStrategy implements WaitStrategy {
+    private final int spins;
+    private final int yields;
+
+    public SpinWaitStrategy(final int spins) {
+        this(spins, 0);
+    }
+
+    public SpinWaitStrategy(final int spins, final int yields) {
+        this.spins = spins;
+        this.yields = yields;
+    }
+
+    @Override
+    public boolean acquire(final Lock lock, final boolean isTimed, final long deadline) {
+        //A failed tryLock only reads the lock state, so the retries do not hammer its cache line with writes
+        for (int i = 0; i < spins; ++i) {
+            if (lock.tryLock()) {
+                return true;
+            }
+        }
+
+        for (int i = 0; i < yields; ++i) {
+            if (lock.tryLock()) {
+                return true;
+            }
+            if (isTimed && deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            Thread.yield();
+        }
+
+        return park(lock, isTimed, deadline);
+    }
+}
@@ -0,0 +1,181 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.util.Counter;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class StripedEntityLockTable<T> implements EntityLockTable<T> {
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    private final ThreadLocal<EntityHolds> sharedHolds;
+
+    public StripedEntityLockTable(final int minStripes) {
+        this(minStripes, false);
+    }
+
+    public StripedEntityLockTable(final int minStripes, final boolean isFair) {
+        final int size = Integer.highestOneBit(Math.max(2, minStripes) - 1) << 1;
+        this.stripes = new Stripe[size];
+        this.stripeMask = size - 1;
+        this.sharedHolds = ThreadLocal.withInitial(EntityHolds::new);
+
+        for (int i = 0; i < size; ++i) {
+            stripes[i] = new Stripe(i, isFair);
+        }
+    }
+
+    @Override
+    public ReentrantReadWriteLock lockFor(final T entityId) {
+        return stripes[stripeIndex(entityId)];
+    }
+
+    @Override
+    public ReentrantReadWriteLock existingLockFor(final T entityId) {
+        final Stripe stripe = stripes[stripeIndex(entityId)];
+
+        if (!stripe.isWriteLocked() && stripe.getReadLockCount() == 0) {
+            return null;
+        }
+
+        final boolean isStripeHeld = stripe.isWriteLockedByCurrentThread() || stripe.getReadHoldCount() > 0;
+        if (isStripeHeld && !isHeldByCurrentThread(entityId, stripe, false) && !isHeldByCurrentThread(entityId, stripe, true)) {
+            return null;
+        }
+
+        return stripe;
+    }
+
+    @Override
+    public Object interceptionKey(final T entityId, final ReentrantReadWriteLock lock) {
+        return lock;
+    }
+
+    @Override
+    public Object versionKey(final T entityId) {
+        return stripes[stripeIndex(entityId)];
+    }
+
+    @Override
+    public boolean bindLock(final T entityId, final ReentrantReadWriteLock lock, final boolean isShared) {
+        (isShared ? sharedHolds.get() : ((Stripe) lock).exclusiveHolds).hold(entityId);
+        return true;
+    }
+
+    @Override
+    public void unlock(final T entityId, final ReentrantReadWriteLock lock, final boolean isShared) {
+        if (isShared) {
+            sharedHolds.get().release(entityId);
+            lock.readLock().unlock();
+        } else {
+            ((Stripe) lock).exclusiveHolds.release(entityId);
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isHeldByCurrentThread(final T entityId, final ReentrantReadWriteLock lock, final boolean isShared) {
+        if (isShared) {
+            return lock.getReadHoldCount() > 0 && sharedHolds.get().holds(entityId);
+        }
+
+        return lock.isWriteLockedByCurrentThread() && ((Stripe) lock).exclusiveHolds.holds(entityId);
+    }
+
+    //Keys are the stripes themselves, all of them may be kept
+    @Override
+    public int retainedKeys() {
+        return Integer.MAX_VALUE;
+    }
+
+    //Locked stripes rather than entities, colliding entities held at once are counted once.
+    //The entities of a stripe are known only to the threads holding it, so they are not walked
+    @Override
+    public int size() {
+        int lockedStripes = 0;
+        for (final Stripe stripe : stripes) {
+            if (stripe.isWriteLocked() || stripe.getReadLockCount() > 0) {
+                ++lockedStripes;
+            }
+        }
+
+        return lockedStripes;
+    }
+
+    @Override
+    public Comparator<T> lockOrder() {
+        return Comparator.comparingInt(this::stripeIndex);
+    }
+
+    private int stripeIndex(final T entityId) {
+        final int hash = entityId.hashCode();
+        return (hash ^ (hash >>> 16)) & stripeMask;
+    }
+
+    private static final class Stripe extends ReentrantReadWriteLock {
+        private final int index;
+        //Touched only by the thread owning the stripe write lock
+        private final EntityHolds exclusiveHolds;
+
+        private Stripe(final int index, final boolean isFair) {
+            super(isFair);
+            this.index = index;
+            this.exclusiveHolds = new EntityHolds();
+        }
+
+        @Override
+        public String toString() {
+            return "stripe-" + index;
+        }
+    }
+
+    //The first entity is kept inline, so holding one entity at a time allocates nothing.
+    //Used by a single thread at a time, for the exclusive holds of a stripe and the shared holds of a thread
+    private static final class EntityHolds {
+        private Object entity;
+        private int entityHolds;
+        private Map<Object, Counter> collidedEntities;
+
+        private boolean holds(final Object entityId) {
+            return entityHolds > 0 && entity.equals(entityId)
+                    || collidedEntities != null && collidedEntities.containsKey(entityId);
+        }
+
+        private void hold(final Object entityId) {
+            if (entityHolds > 0 && entity.equals(entityId)) {
+                ++entityHolds;
+                return;
+            }
+
+            final Counter counter = collidedEntities == null ? null : collidedEntities.get(entityId);
+            if (counter != null) {
+                counter.inc();
+            } else if (entityHolds == 0) {
+                entity = entityId;
+                entityHolds = 1;
+            } else {
+                if (collidedEntities == null) {
+                    collidedEntities = new HashMap<>();
+                }
+                collidedEntities.put(entityId, new Counter());
+            }
+        }
+
+        private void release(final Object entityId) {
+            if (entityHolds > 0 && entity.equals(entityId)) {
+                if (--entityHolds == 0) {
+                    entity = null;
+                }
+                return;
+            }
+
+            final Counter counter = collidedEntities.get(entityId);
+            counter.dec();
+            if (counter.count() == 0) {
+                collidedEntities.remove(entityId);
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.WaitStrategy;
+
+public class StripedEntityLocker<T> extends EntityLockerImpl<T> {
+    public StripedEntityLocker() {
+        this(1 << 12);
+    }
+
+    public StripedEntityLocker(final int stripes) {
+        this(stripes, 100);
+    }
+
+    public StripedEntityLocker(final int stripes, final int minLocksBeforeGlobal) {
+        this(stripes, minLocksBeforeGlobal, ParkWaitStrategy.INSTANCE);
+    }
+
+    public StripedEntityLocker(final int stripes, final int minLocksBeforeGlobal, final WaitStrategy waitStrategy) {
+        super(minLocksBeforeGlobal, new StripedEntityLockTable<>(stripes, waitStrategy.isFair()), waitStrategy);
+    }
+}
@@ -0,0 +1,40 @@
+package io.tempo.hberimi.locker.impl;
+
+import io.tempo.hberimi.locker.EscalationPolicy;
+
+import java.util.function.LongSupplier;
+
+import static io.tempo.hberimi.util.SimpleLogger.logDebug;
+
+//The default: a thread holding at least the threshold and more than half of all locks escalates.
+//A lower de-escalation threshold keeps a thread hovering around the first one from flapping
+public class ThresholdEscalationPolicy implements EscalationPolicy {
+    private final int minLocksBeforeGlobal;
+    private final int minLocksToStayGlobal;
+
+    public ThresholdEscalationPolicy(final int minLocksBeforeGlobal) {
+        this(minLocksBeforeGlobal, minLocksBeforeGlobal);
+    }
+
+    public ThresholdEscalationPolicy(final int minLocksBeforeGlobal, final int minLocksToStayGlobal) {
+        this.minLocksBeforeGlobal = minLocksBeforeGlobal;
+        this.minLocksToStayGlobal = Math.min(minLocksBeforeGlobal, minLocksToStayGlobal);
+    }
+
+    @Override
+    public boolean shouldEscalate(final int threadLocks, final LongSupplier totalLocks) {
+        //Below the threshold escalation is impossible, whatever the other threads hold
+        return threadLocks >= minLocksBeforeGlobal && isMajority(threadLocks, totalLocks);
+    }
+
+    @Override
+    public boolean shouldDeescalate(final int threadLocks, final LongSupplier totalLocks) {
+        return threadLocks < minLocksToStayGlobal || !isMajority(threadLocks, totalLocks);
+    }
+
+    private boolean isMajority(final int threadLocks, final LongSupplier totalLocks) {
+        final long allLocks = totalLocks.getAsLong();
+        logDebug("Total lock/Current Thread locks = %s/%s", allLocks, threadLocks);
+        return threadLocks > (allLocks >> 1);
+    }
+}
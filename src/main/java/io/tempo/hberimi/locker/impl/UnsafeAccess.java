@@ -0,0 +1,63 @@
+package io.tempo.hberimi.locker.impl;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+
+//The only user of sun.misc.Unsafe, for raw addresses of the mapped lock table and the load fence Java 8 lacks.
+//javac flags every reference to Unsafe as internal proprietary API and no annotation silences that,
+//so the warnings of this class are the only ones the build accepts and nothing else may reference Unsafe
+final class UnsafeAccess {
+    private static final Unsafe UNSAFE = unsafe();
+
+    private UnsafeAccess() {
+    }
+
+    static long getLongVolatile(final long address) {
+        return UNSAFE.getLongVolatile(null, address);
+    }
+
+    static void putLongVolatile(final long address, final long value) {
+        UNSAFE.putLongVolatile(null, address, value);
+    }
+
+    static int getIntVolatile(final long address) {
+        return UNSAFE.getIntVolatile(null, address);
+    }
+
+    static void putIntVolatile(final long address, final int value) {
+        UNSAFE.putIntVolatile(null, address, value);
+    }
+
+    static boolean compareAndSwapLong(final long address, final long expected, final long value) {
+        return UNSAFE.compareAndSwapLong(null, address, expected, value);
+    }
+
+    static long getAndAddLong(final long address, final long delta) {
+        return UNSAFE.getAndAddLong(null, address, delta);
+    }
+
+    //Loads before the fence are not reordered with loads and stores after it
+    static void loadFence() {
+        UNSAFE.loadFence();
+    }
+
+    static long addressOf(final Buffer buffer) {
+        try {
+            return UNSAFE.getLong(buffer, UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address")));
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Buffer address is not accessible", e);
+        }
+    }
+
+    private static Unsafe unsafe() {
+        try {
+            final Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return (Unsafe) field.get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new IllegalStateException("Unsafe is not accessible", e);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package io.tempo.hberimi.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Space-Saving per time window: a fixed number of counters, an unseen entity takes over the smallest one and inherits
+//its counts, so memory stays fixed however many ids pass and an entity waited for more often than that is never lost.
+//Fed from the contended path only, the windows rotate by time and a report merges the ones still in the span.
+//Every thread stripe has windows of its own, so the waiters of one hot entity do not queue on a shared window
+//while the lock they waited for is already held. A report sums the stripes
+class ContentionSketch {
+    private final Window[][] stripes;
+    private final int stripeMask;
+    private final long windowNanos;
+
+    ContentionSketch(final int windows, final long windowNanos, final int capacity) {
+        final int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(16, Runtime.getRuntime().availableProcessors())) * 2 - 1);
+        this.stripes = new Window[stripeCount][windows];
+        for (final Window[] stripe : stripes) {
+            for (int i = 0; i < windows; ++i) {
+                stripe[i] = new Window(capacity);
+            }
+        }
+        this.stripeMask = stripeCount - 1;
+        this.windowNanos = windowNanos;
+    }
+
+    void record(final Object entityId, final long waitNanos) {
+        final long epoch = currentEpoch();
+        final Window[] windows = stripes[currentThreadStripe()];
+        windows[(int) Math.floorMod(epoch, (long) windows.length)].record(epoch, entityId, Math.max(0, waitNanos));
+    }
+
+    List<HotEntity> top(final int limit, final Comparator<HotEntity> order) {
+        final long oldestEpoch = currentEpoch() - stripes[0].length + 1;
+        final Map<Object, long[]> merged = new HashMap<>();
+        for (final Window[] windows : stripes) {
+            for (final Window window : windows) {
+                window.mergeInto(merged, oldestEpoch);
+            }
+        }
+
+        final List<HotEntity> entities = new ArrayList<>(merged.size());
+        for (final Map.Entry<Object, long[]> entry : merged.entrySet()) {
+            final long[] counts = entry.getValue();
+            entities.add(new HotEntity(entry.getKey(), counts[0], counts[1], counts[2]));
+        }
+        entities.sort(order);
+
+        return entities.size() > limit ? new ArrayList<>(entities.subList(0, limit)) : entities;
+    }
+
+    void reset() {
+        for (final Window[] windows : stripes) {
+            for (final Window window : windows) {
+                window.clear(Long.MIN_VALUE);
+            }
+        }
+    }
+
+    private long currentEpoch() {
+        return Math.floorDiv(System.nanoTime(), windowNanos);
+    }
+
+    private int currentThreadStripe() {
+        final long id = Thread.currentThread().getId();
+        return (int) (id * 0x9E3779B9L >>> 16) & stripeMask;
+    }
+
+    //Guarded by itself, shared with the threads of the same stripe and a report only
+    private static final class Window extends ReentrantLock {
+        private final Object[] ids;
+        private final long[] waits;
+        private final long[] waitNanos;
+        private final long[] overestimates;
+        private final Map<Object, Integer> slots;
+        private long epoch;
+        private int size;
+
+        private Window(final int capacity) {
+            this.ids = new Object[capacity];
+            this.waits = new long[capacity];
+            this.waitNanos = new long[capacity];
+            this.overestimates = new long[capacity];
+            this.slots = new HashMap<>(capacity * 2);
+            this.epoch = Long.MIN_VALUE;
+        }
+
+        private void record(final long currentEpoch, final Object entityId, final long nanos) {
+            lock();
+            try {
+                //A wait ending just after the rotation is counted in the newer window
+                if (epoch < currentEpoch) {
+                    clear(currentEpoch);
+                }
+
+                Integer slot = slots.get(entityId);
+                if (slot == null) {
+                    slot = size < ids.length ? size++ : evictSmallest();
+                    ids[slot] = entityId;
+                    slots.put(entityId, slot);
+                }
+
+                ++waits[slot];
+                waitNanos[slot] += nanos;
+            } finally {
+                unlock();
+            }
+        }
+
+        private int evictSmallest() {
+            int smallest = 0;
+            for (int slot = 1; slot < size; ++slot) {
+                if (waits[slot] < waits[smallest]) {
+                    smallest = slot;
+                }
+            }
+
+            slots.remove(ids[smallest]);
+            overestimates[smallest] = waits[smallest];
+            return smallest;
+        }
+
+        private void mergeInto(final Map<Object, long[]> merged, final long oldestEpoch) {
+            lock();
+            try {
+                if (epoch < oldestEpoch) {
+                    return;
+                }
+
+                for (int slot = 0; slot < size; ++slot) {
+                    final long[] counts = merged.computeIfAbsent(ids[slot], key -> new long[3]);
+                    counts[0] += waits[slot];
+                    counts[1] += waitNanos[slot];
+                    counts[2] += overestimates[slot];
+                }
+            } finally {
+                unlock();
+            }
+        }
+
+        private void clear(final long newEpoch) {
+            lock();
+            try {
+                for (int slot = 0; slot < size; ++slot) {
+                    ids[slot] = null;
+                    waits[slot] = 0;
+                    waitNanos[slot] = 0;
+                    overestimates[slot] = 0;
+                }
+                slots.clear();
+                size = 0;
+                epoch = newEpoch;
+            } finally {
+                unlock();
+            }
+        }
+    }
+}
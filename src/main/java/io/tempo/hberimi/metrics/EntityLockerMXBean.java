@@ -0,0 +1,21 @@
+package io.tempo.hberimi.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+//Live state of a locker for JMX consoles, every value is read on request while the locker goes on
+public interface EntityLockerMXBean {
+    //The current size of the locker, a striped locker counts locked stripes
+    int getLockedEntities();
+
+    long getWaitingThreads();
+
+    String getGlobalLockHolder();
+
+    String getEscalatedThread();
+
+    Map<String, Integer> getHeldEntitiesByThread();
+
+    //An operation rather than an attribute, so consoles polling attributes do not walk the waiters
+    Map<String, List<String>> waitForGraph();
+}
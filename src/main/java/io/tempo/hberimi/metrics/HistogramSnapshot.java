@@ -0,0 +1,66 @@
+package io.tempo.hberimi.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+public class HistogramSnapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    HistogramSnapshot(final long[] counts, final long sum, final long max) {
+        this.counts = counts;
+        this.sum = sum;
+        this.max = max;
+
+        long total = 0;
+        for (final long bucketCount : counts) {
+            total += bucketCount;
+        }
+        this.count = total;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    //Upper bound of the bucket, so the value is overstated by at most 1/16
+    public long percentile(final double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, LatencyHistogram.bucketUpperBound(i));
+            }
+        }
+
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count +
+                " mean=" + toMicros((long) mean()) +
+                " p50=" + toMicros(percentile(50)) +
+                " p99=" + toMicros(percentile(99)) +
+                " p99.9=" + toMicros(percentile(99.9)) +
+                " max=" + toMicros(max);
+    }
+
+    private String toMicros(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+    }
+}
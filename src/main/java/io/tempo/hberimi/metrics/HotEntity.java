@@ -0,0 +1,40 @@
+package io.tempo.hberimi.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+//Counts of an entity which took over a smaller counter include that counter, the overestimate bounds the waits added so
+public class HotEntity {
+    private final Object entityId;
+    private final long waits;
+    private final long waitNanos;
+    private final long overestimate;
+
+    HotEntity(final Object entityId, final long waits, final long waitNanos, final long overestimate) {
+        this.entityId = entityId;
+        this.waits = waits;
+        this.waitNanos = waitNanos;
+        this.overestimate = overestimate;
+    }
+
+    public Object entityId() {
+        return entityId;
+    }
+
+    public long waits() {
+        return waits;
+    }
+
+    public long waitNanos() {
+        return waitNanos;
+    }
+
+    public long overestimate() {
+        return overestimate;
+    }
+
+    @Override
+    public String toString() {
+        return "{" + entityId + "} waits=" + waits + (overestimate > 0 ? "(-" + overestimate + ")" : "") +
+                " waitTime=" + TimeUnit.NANOSECONDS.toMicros(waitNanos) + "us";
+    }
+}
@@ -0,0 +1,86 @@
+package io.tempo.hberimi.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+//Log-linear buckets, 16 per power of two, the same layout HdrHistogram uses with one significant digit
+class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //About 68 seconds, longer values go to the last bucket
+    static final int MAX_EXPONENT = 36;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    LatencyHistogram() {
+        final int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(16, Runtime.getRuntime().availableProcessors())) * 2 - 1);
+        this.stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; ++i) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        this.stripeMask = stripeCount - 1;
+        this.sum = new LongAdder();
+        this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    void record(final long value) {
+        final long nonNegative = Math.max(0, value);
+        stripes[currentThreadStripe()].incrementAndGet(bucketIndex(nonNegative));
+        sum.add(nonNegative);
+        max.accumulate(nonNegative);
+    }
+
+    HistogramSnapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        for (final AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; ++i) {
+                counts[i] += stripe.get(i);
+            }
+        }
+
+        return new HistogramSnapshot(counts, sum.sum(), max.get());
+    }
+
+    void reset() {
+        for (final AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; ++i) {
+                stripe.set(i, 0);
+            }
+        }
+        sum.reset();
+        max.reset();
+    }
+
+    static int bucketIndex(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        final int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(value));
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int subBucket = (int) Math.min(SUB_BUCKETS - 1, (value >>> shift) - SUB_BUCKETS);
+
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    private int currentThreadStripe() {
+        final long id = Thread.currentThread().getId();
+        return (int) (id * 0x9E3779B9L >>> 16) & stripeMask;
+    }
+}
@@ -0,0 +1,245 @@
+package io.tempo.hberimi.metrics;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static io.tempo.hberimi.util.SimpleLogger.logInfo;
+
+//Every recording method is a volatile read and nothing else while metrics are disabled.
+//Hot entities are tracked always, they are fed by waits only, so an uncontended lock never reaches them
+public class LockMetrics {
+    public static final long NOT_RECORDED = Long.MIN_VALUE;
+
+    //Six windows of ten seconds, the last minute with the oldest ten seconds dropped at a time
+    private static final int CONTENTION_WINDOWS = 6;
+    private static final long CONTENTION_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int CONTENTION_COUNTERS = 64;
+
+    private static final Comparator<HotEntity> BY_WAITS = Comparator.comparingLong(HotEntity::waits).reversed();
+    private static final Comparator<HotEntity> BY_WAIT_TIME = Comparator.comparingLong(HotEntity::waitNanos).reversed();
+
+    private volatile boolean isEnabled;
+
+    private final LongAdder acquisitions;
+    private final LongAdder contendedAcquisitions;
+    private final LongAdder tryLockFailures;
+    private final LongAdder timeouts;
+    private final LongAdder deadlockInterceptions;
+    private final LongAdder escalations;
+    private final LongAdder deescalations;
+    private final LongAdder globalAcquisitions;
+    private final LongAdder waitingAcquisitions;
+    private final LongAdder reapedLeases;
+
+    private final LatencyHistogram acquisitionLatency;
+    private final LatencyHistogram holdTime;
+    private final LatencyHistogram globalWaitTime;
+    private final LatencyHistogram globalHoldTime;
+
+    private final ContentionSketch contention;
+
+    private final ThreadLocal<Map<Object, Long>> holdStartTimes;
+    private volatile long globalHoldStartTime;
+
+    public LockMetrics() {
+        this(false);
+    }
+
+    public LockMetrics(final boolean isEnabled) {
+        this.isEnabled = isEnabled;
+        this.acquisitions = new LongAdder();
+        this.contendedAcquisitions = new LongAdder();
+        this.tryLockFailures = new LongAdder();
+        this.timeouts = new LongAdder();
+        this.deadlockInterceptions = new LongAdder();
+        this.escalations = new LongAdder();
+        this.deescalations = new LongAdder();
+        this.globalAcquisitions = new LongAdder();
+        this.waitingAcquisitions = new LongAdder();
+        this.reapedLeases = new LongAdder();
+        this.acquisitionLatency = new LatencyHistogram();
+        this.holdTime = new LatencyHistogram();
+        this.globalWaitTime = new LatencyHistogram();
+        this.globalHoldTime = new LatencyHistogram();
+        this.contention = new ContentionSketch(CONTENTION_WINDOWS, CONTENTION_WINDOW_NANOS, CONTENTION_COUNTERS);
+        this.holdStartTimes = ThreadLocal.withInitial(HashMap::new);
+        this.globalHoldStartTime = NOT_RECORDED;
+    }
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    public void setEnabled(final boolean isEnabled) {
+        this.isEnabled = isEnabled;
+    }
+
+    public long startTime() {
+        return isEnabled ? System.nanoTime() : NOT_RECORDED;
+    }
+
+    public void acquired(final long startTime) {
+        if (startTime != NOT_RECORDED && isEnabled) {
+            acquisitions.increment();
+            acquisitionLatency.record(System.nanoTime() - startTime);
+        }
+    }
+
+    public boolean waitStarted() {
+        if (isEnabled) {
+            contendedAcquisitions.increment();
+            waitingAcquisitions.increment();
+            return true;
+        }
+
+        return false;
+    }
+
+    //Paired with waitStarted by the caller, so the gauge returns to zero even if metrics are switched off in between
+    public void waitEnded(final boolean isWaitRecorded) {
+        if (isWaitRecorded) {
+            waitingAcquisitions.decrement();
+        }
+    }
+
+    //Called by the waiting thread once its wait ended, granted or not
+    public void contended(final Object entityId, final long waitNanos) {
+        contention.record(entityId, waitNanos);
+    }
+
+    public List<HotEntity> hotEntitiesByWaits(final int limit) {
+        return contention.top(limit, BY_WAITS);
+    }
+
+    public List<HotEntity> hotEntitiesByWaitTime(final int limit) {
+        return contention.top(limit, BY_WAIT_TIME);
+    }
+
+    //Logs the hot entities of the last minute every period until the returned future is cancelled
+    public ScheduledFuture<?> dumpHotEntities(final ScheduledExecutorService scheduler, final long period, final TimeUnit unit, final int limit) {
+        return scheduler.scheduleAtFixedRate(() -> {
+            final List<HotEntity> byWaits = hotEntitiesByWaits(limit);
+            if (!byWaits.isEmpty()) {
+                logInfo("Hot entities by waits: " + byWaits + ", by wait time: " + hotEntitiesByWaitTime(limit));
+            }
+        }, period, period, unit);
+    }
+
+    public void tryLockFailed() {
+        if (isEnabled) {
+            tryLockFailures.increment();
+        }
+    }
+
+    public void timedOut() {
+        if (isEnabled) {
+            timeouts.increment();
+        }
+    }
+
+    public void deadlockIntercepted() {
+        if (isEnabled) {
+            deadlockInterceptions.increment();
+        }
+    }
+
+    public void escalated() {
+        if (isEnabled) {
+            escalations.increment();
+        }
+    }
+
+    public void deescalated() {
+        if (isEnabled) {
+            deescalations.increment();
+        }
+    }
+
+    public void leaseReaped() {
+        if (isEnabled) {
+            reapedLeases.increment();
+        }
+    }
+
+    public void holdStarted(final Object lockKey) {
+        if (isEnabled) {
+            holdStartTimes.get().put(lockKey, System.nanoTime());
+        }
+    }
+
+    public void holdEnded(final Object lockKey) {
+        if (isEnabled) {
+            final Long startTime = holdStartTimes.get().remove(lockKey);
+            if (startTime != null) {
+                holdTime.record(System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    public void holdEnded(final long startTime) {
+        if (startTime != NOT_RECORDED && isEnabled) {
+            holdTime.record(System.nanoTime() - startTime);
+        }
+    }
+
+    public void globalAcquired(final long startTime) {
+        if (startTime != NOT_RECORDED && isEnabled) {
+            final long now = System.nanoTime();
+            globalAcquisitions.increment();
+            globalWaitTime.record(now - startTime);
+            globalHoldStartTime = now;
+        }
+    }
+
+    public void globalReleased() {
+        final long startTime = globalHoldStartTime;
+        if (startTime != NOT_RECORDED) {
+            globalHoldStartTime = NOT_RECORDED;
+            if (isEnabled) {
+                globalHoldTime.record(System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    public LockMetricsSnapshot snapshot() {
+        return new LockMetricsSnapshot(
+                acquisitions.sum(),
+                contendedAcquisitions.sum(),
+                tryLockFailures.sum(),
+                timeouts.sum(),
+                deadlockInterceptions.sum(),
+                escalations.sum(),
+                deescalations.sum(),
+                globalAcquisitions.sum(),
+                waitingAcquisitions.sum(),
+                reapedLeases.sum(),
+                acquisitionLatency.snapshot(),
+                holdTime.snapshot(),
+                globalWaitTime.snapshot(),
+                globalHoldTime.snapshot());
+    }
+
+    //The waiting gauge is kept, it describes threads which are waiting right now
+    public void reset() {
+        acquisitions.reset();
+        contendedAcquisitions.reset();
+        tryLockFailures.reset();
+        timeouts.reset();
+        deadlockInterceptions.reset();
+        escalations.reset();
+        deescalations.reset();
+        globalAcquisitions.reset();
+        reapedLeases.reset();
+        acquisitionLatency.reset();
+        holdTime.reset();
+        globalWaitTime.reset();
+        globalHoldTime.reset();
+        contention.reset();
+    }
+}
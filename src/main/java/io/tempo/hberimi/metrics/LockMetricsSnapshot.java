@@ -0,0 +1,112 @@
+package io.tempo.hberimi.metrics;
+
+public class LockMetricsSnapshot {
+    private final long acquisitions;
+    private final long contendedAcquisitions;
+    private final long tryLockFailures;
+    private final long timeouts;
+    private final long deadlockInterceptions;
+    private final long escalations;
+    private final long deescalations;
+    private final long globalAcquisitions;
+    private final long waitingAcquisitions;
+    private final long reapedLeases;
+    private final HistogramSnapshot acquisitionLatency;
+    private final HistogramSnapshot holdTime;
+    private final HistogramSnapshot globalWaitTime;
+    private final HistogramSnapshot globalHoldTime;
+
+    LockMetricsSnapshot(final long acquisitions, final long contendedAcquisitions, final long tryLockFailures,
+                        final long timeouts, final long deadlockInterceptions, final long escalations,
+                        final long deescalations, final long globalAcquisitions, final long waitingAcquisitions,
+                        final long reapedLeases, final HistogramSnapshot acquisitionLatency, final HistogramSnapshot holdTime,
+                        final HistogramSnapshot globalWaitTime, final HistogramSnapshot globalHoldTime) {
+        this.acquisitions = acquisitions;
+        this.contendedAcquisitions = contendedAcquisitions;
+        this.tryLockFailures = tryLockFailures;
+        this.timeouts = timeouts;
+        this.deadlockInterceptions = deadlockInterceptions;
+        this.escalations = escalations;
+        this.deescalations = deescalations;
+        this.globalAcquisitions = globalAcquisitions;
+        this.waitingAcquisitions = waitingAcquisitions;
+        this.reapedLeases = reapedLeases;
+        this.acquisitionLatency = acquisitionLatency;
+        this.holdTime = holdTime;
+        this.globalWaitTime = globalWaitTime;
+        this.globalHoldTime = globalHoldTime;
+    }
+
+    public long acquisitions() {
+        return acquisitions;
+    }
+
+    public long contendedAcquisitions() {
+        return contendedAcquisitions;
+    }
+
+    public long tryLockFailures() {
+        return tryLockFailures;
+    }
+
+    public long timeouts() {
+        return timeouts;
+    }
+
+    public long deadlockInterceptions() {
+        return deadlockInterceptions;
+    }
+
+    public long escalations() {
+        return escalations;
+    }
+
+    public long deescalations() {
+        return deescalations;
+    }
+
+    public long globalAcquisitions() {
+        return globalAcquisitions;
+    }
+
+    public long waitingAcquisitions() {
+        return waitingAcquisitions;
+    }
+
+    public long reapedLeases() {
+        return reapedLeases;
+    }
+
+    public HistogramSnapshot acquisitionLatency() {
+        return acquisitionLatency;
+    }
+
+    public HistogramSnapshot holdTime() {
+        return holdTime;
+    }
+
+    public HistogramSnapshot globalWaitTime() {
+        return globalWaitTime;
+    }
+
+    public HistogramSnapshot globalHoldTime() {
+        return globalHoldTime;
+    }
+
+    @Override
+    public String toString() {
+        return "acquisitions=" + acquisitions +
+                " contended=" + contendedAcquisitions +
+                " waiting=" + waitingAcquisitions +
+                " tryLockFailures=" + tryLockFailures +
+                " timeouts=" + timeouts +
+                " deadlocks=" + deadlockInterceptions +
+                " escalations=" + escalations + "/" + deescalations +
+                " globalAcquisitions=" + globalAcquisitions +
+                " reapedLeases=" + reapedLeases +
+                "\n acquisitionLatency: " + acquisitionLatency +
+                "\n holdTime: " + holdTime +
+                "\n globalWaitTime: " + globalWaitTime +
+                "\n globalHoldTime: " + globalHoldTime;
+    }
+}
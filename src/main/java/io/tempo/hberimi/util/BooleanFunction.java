@@ -1,6 +0,0 @@
-package io.tempo.hberimi.util;
-
-@FunctionalInterface
-public interface BooleanFunction<T> {
-    boolean apply(T value);
-}
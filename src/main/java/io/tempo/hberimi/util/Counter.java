@@ -15,6 +15,10 @@ public class Counter {
         --count;
     }
 
+    public void add(final int delta) {
+        count += delta;
+    }
+
     public int count() {
         return count;
     }
@@ -11,18 +11,71 @@ public class SimpleLogger {
         throw new UnsupportedOperationException();
     }
 
+    public static boolean isDebugEnabled() {
+        return log.isDebugEnabled();
+    }
+
     public static void logDebug(final Object message) {
         if (log.isDebugEnabled()) {
             log.debug(message);
         }
     }
 
+    //Formatted only when debug is enabled, so hot paths pass their arguments instead of a built string
+    public static void logDebug(final String format, final Object arg) {
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(format, arg));
+        }
+    }
+
+    public static void logDebug(final String format, final Object arg1, final Object arg2) {
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(format, arg1, arg2));
+        }
+    }
+
+    public static void logDebug(final String format, final Object arg1, final Object arg2, final Object arg3) {
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(format, arg1, arg2, arg3));
+        }
+    }
+
     public static void logDebugCurrentThread(final Object message) {
         if (log.isDebugEnabled()) {
             log.debug(Thread.currentThread() + " " + message);
         }
     }
 
+    public static void logDebugCurrentThread(final String format, final Object arg) {
+        if (log.isDebugEnabled()) {
+            log.debug(Thread.currentThread() + " " + String.format(format, arg));
+        }
+    }
+
+    public static void logDebugCurrentThread(final String format, final Object arg1, final Object arg2) {
+        if (log.isDebugEnabled()) {
+            log.debug(Thread.currentThread() + " " + String.format(format, arg1, arg2));
+        }
+    }
+
+    public static void logDebugCurrentThread(final String format, final Object arg1, final Object arg2, final Object arg3) {
+        if (log.isDebugEnabled()) {
+            log.debug(Thread.currentThread() + " " + String.format(format, arg1, arg2, arg3));
+        }
+    }
+
+    public static void logDebugCurrentThread(final String format, final Object arg1, final Object arg2, final Object arg3, final Object arg4) {
+        if (log.isDebugEnabled()) {
+            log.debug(Thread.currentThread() + " " + String.format(format, arg1, arg2, arg3, arg4));
+        }
+    }
+
+    public static void logInfo(final Object message) {
+        if (log.isInfoEnabled()) {
+            log.info(message);
+        }
+    }
+
     public static void logError(final Object message) {
         if (log.isDebugEnabled()) {
             log.error(message);
@@ -0,0 +1,235 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.LockOwner;
+import io.tempo.hberimi.locker.impl.QueuedEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+import io.tempo.hberimi.testutil.LockingDaemon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class AsyncLockingTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private QueuedEntityLocker<Integer> entityLocker;
+    private LockingDaemon<Integer> lockingDaemon;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new QueuedEntityLocker<>();
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testWaitersAreGrantedInArrivalOrder() throws Exception {
+        final LockOwner first = entityLocker.newOwner("first");
+        final LockOwner second = entityLocker.newOwner("second");
+        final LockOwner third = entityLocker.newOwner("third");
+        final List<LockOwner> grants = new ArrayList<>();
+
+        assertSame(first, entityLocker.lockAsync(first, 1).getNow(null));
+
+        final CompletableFuture<LockOwner> secondLock = entityLocker.lockAsync(second, 1);
+        secondLock.thenAccept(grants::add);
+        final CompletableFuture<LockOwner> thirdLock = entityLocker.lockAsync(third, 1);
+        thirdLock.thenAccept(grants::add);
+        assertFalse(secondLock.isDone());
+        assertFalse(thirdLock.isDone());
+
+        entityLocker.unlock(first, 1);
+        assertTrue(secondLock.isDone());
+        assertFalse(thirdLock.isDone());
+
+        entityLocker.unlock(second, 1);
+        entityLocker.unlock(thirdLock.get(), 1);
+
+        assertEquals(2, grants.size());
+        assertSame(second, grants.get(0));
+        assertSame(third, grants.get(1));
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testTimedLockAsyncExpires() throws Exception {
+        final LockOwner owner = entityLocker.newOwner("owner");
+        entityLocker.lockAsync(owner, 1).get();
+
+        final CompletableFuture<LockOwner> timedLock = entityLocker.lockAsync(1, 100, TimeUnit.MILLISECONDS);
+        try {
+            timedLock.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        entityLocker.unlock(owner, 1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testDeadlockBetweenLogicalOwnersIntercepted() throws Exception {
+        final LockOwner first = entityLocker.newOwner("first");
+        final LockOwner second = entityLocker.newOwner("second");
+
+        entityLocker.lockAsync(first, 1).get();
+        entityLocker.lockAsync(second, 2).get();
+
+        final CompletableFuture<LockOwner> secondLock = entityLocker.lockAsync(second, 1);
+        final CompletableFuture<LockOwner> firstLock = entityLocker.lockAsync(first, 2);
+
+        try {
+            firstLock.get();
+            fail();
+        } catch (ExecutionException e) {
+            final InterceptedDeadlockException cause = (InterceptedDeadlockException) e.getCause();
+            assertSame(first, cause.failOwner());
+            assertSame(second, cause.lockerOwner());
+        }
+
+        entityLocker.unlock(first, 1);
+        assertSame(second, secondLock.get());
+
+        entityLocker.unlock(second, 1);
+        entityLocker.unlock(second, 2);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testGlobalLockAsyncDrainsAndExcludesOwners() throws Exception {
+        final LockOwner holder = entityLocker.newOwner("holder");
+        final LockOwner global = entityLocker.newOwner("global");
+        final LockOwner late = entityLocker.newOwner("late");
+
+        entityLocker.lockAsync(holder, 1).get();
+        final CompletableFuture<LockOwner> globalLock = entityLocker.globalLockAsync(global);
+        final CompletableFuture<LockOwner> lateLock = entityLocker.lockAsync(late, 2);
+        assertFalse(globalLock.isDone());
+
+        entityLocker.unlock(holder, 1);
+        assertSame(global, globalLock.getNow(null));
+        assertFalse(lateLock.isDone());
+
+        entityLocker.lockAsync(global, 2).get();
+        entityLocker.unlock(global, 2);
+        entityLocker.globalUnlock(global);
+
+        assertSame(late, lateLock.get());
+        entityLocker.unlock(late, 2);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testCancelDuringDispatchReleasesGrantedHold() throws Exception {
+        final LockOwner first = entityLocker.newOwner("first");
+        final LockOwner holder = entityLocker.newOwner("holder");
+        final LockOwner waiter = entityLocker.newOwner("waiter");
+        final LockOwner cancelling = entityLocker.newOwner("cancelling");
+        final LockOwner late = entityLocker.newOwner("late");
+
+        entityLocker.lockAsync(first, 1).get();
+        entityLocker.lockAsync(holder, 2).get();
+        final CompletableFuture<LockOwner> waiterLock = entityLocker.lockAsync(waiter, 1);
+        final CompletableFuture<LockOwner> cancellingLock = entityLocker.lockAsync(cancelling, 2);
+
+        //Run by the dispatch of the first grant, the second grant is recorded then and dispatched after the callback
+        waiterLock.thenRun(() -> {
+            entityLocker.unlock(holder, 2);
+            assertTrue(cancellingLock.cancel(true));
+        });
+        entityLocker.unlock(first, 1);
+        assertTrue(cancellingLock.isCancelled());
+
+        assertSame(late, entityLocker.lockAsync(late, 2, 1, TimeUnit.SECONDS).get());
+        entityLocker.unlock(late, 2);
+        entityLocker.unlock(waiter, 1);
+
+        final CompletableFuture<LockOwner> globalLock = entityLocker.globalLockAsync();
+        assertTrue(globalLock.isDone());
+        entityLocker.globalUnlock(globalLock.get());
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testThreadAndLogicalOwnersExcludeEachOther() throws Exception {
+        final LockOwner owner = entityLocker.newOwner("owner");
+
+        THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lock(1);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        final CompletableFuture<LockOwner> ownerLock = entityLocker.lockAsync(owner, 1);
+        assertFalse(ownerLock.isDone());
+
+        subThreadWaiter.countDown();
+        assertSame(owner, ownerLock.get());
+
+        assertFalse(lockingDaemon.tryLockWithoutTime(1));
+        entityLocker.unlock(owner, 1);
+        assertTrue(lockingDaemon.tryLockWithTime(1, 1, TimeUnit.SECONDS));
+        entityLocker.unlock(1);
+    }
+
+    @Test
+    public void testPendingOperationsDoNotNeedThreads() throws Exception {
+        final int operations = 10_000;
+        final int[] counter = new int[1];
+        final List<CompletableFuture<Void>> completions = new ArrayList<>(operations);
+
+        final LockOwner blocker = entityLocker.newOwner("blocker");
+        entityLocker.lockAsync(blocker, 1).get();
+
+        for (int i = 0; i < operations; ++i) {
+            completions.add(entityLocker.lockAsync(1).thenAccept(owner -> {
+                ++counter[0];
+                entityLocker.unlock(owner, 1);
+            }));
+        }
+        assertEquals(0, counter[0]);
+
+        entityLocker.unlock(blocker, 1);
+        CompletableFuture.allOf(completions.toArray(new CompletableFuture[0])).get();
+
+        assertEquals(operations, counter[0]);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannotWaitTwiceWithOneOwner() throws Exception {
+        final LockOwner owner = entityLocker.newOwner("owner");
+        entityLocker.lockAsync(1).get();
+
+        entityLocker.lockAsync(owner, 1);
+        entityLocker.lockAsync(owner, 2);
+    }
+}
@@ -0,0 +1,151 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import io.tempo.hberimi.locker.impl.QueuedEntityLocker;
+import io.tempo.hberimi.locker.impl.StripedEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+import io.tempo.hberimi.testutil.LockingDaemon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class BatchLockingTest {
+    private final static int TEST_TIMEOUT = 15;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private EntityLocker<Integer> entityLocker;
+    private LockingDaemon<Integer> lockingDaemon;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new EntityLockerImpl<>();
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testLockAllWithDuplicates() throws InterceptedDeadlockException {
+        final List<Integer> entitiesIds = Arrays.asList(3, 1, 2, 1, 3);
+
+        entityLocker.lockAll(entitiesIds);
+
+        assertTrue(entityLocker.isLockedByCurrentThread(1));
+        assertTrue(entityLocker.isLockedByCurrentThread(2));
+        assertTrue(entityLocker.isLockedByCurrentThread(3));
+        assertEquals(3, entityLocker.currentSize());
+
+        entityLocker.unlockAll(entitiesIds);
+
+        assertFalse(entityLocker.isLockedByCurrentThread(1));
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testTryLockAllRollsBackOnTimeout() throws Exception {
+        THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lock(5);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlock(5);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        final List<Integer> entitiesIds = Arrays.asList(1, 2, 5, 7);
+        assertFalse(entityLocker.tryLockAll(entitiesIds, 100, TimeUnit.MILLISECONDS));
+
+        assertFalse(entityLocker.isLockedByCurrentThread(1));
+        assertFalse(entityLocker.isLockedByCurrentThread(7));
+        assertEquals(1, entityLocker.currentSize());
+
+        subThreadWaiter.countDown();
+
+        assertTrue(entityLocker.tryLockAll(entitiesIds, 1, TimeUnit.SECONDS));
+        entityLocker.unlockAll(entitiesIds);
+
+        assertTrue(lockingDaemon.tryGlobalLock(1, TimeUnit.SECONDS));
+        entityLocker.globalUnlock();
+    }
+
+    @Test
+    public void testUnlockAllReleasesNothingIfAnyEntityIsNotHeld() throws InterceptedDeadlockException {
+        entityLocker.lockAll(Arrays.asList(1, 2));
+
+        try {
+            entityLocker.unlockAll(Arrays.asList(1, 2, 3));
+            fail();
+        } catch (IllegalMonitorStateException ignore) {
+        }
+
+        assertTrue(entityLocker.isLockedByCurrentThread(1));
+        assertTrue(entityLocker.isLockedByCurrentThread(2));
+
+        entityLocker.unlockAll(Arrays.asList(1, 2));
+    }
+
+    @Test
+    public void testOppositeOrderBatchesDoNotDeadlock() {
+        assertOppositeOrderBatchesDoNotDeadlock(entityLocker);
+    }
+
+    @Test
+    public void testOppositeOrderBatchesDoNotDeadlockOnStripes() {
+        assertOppositeOrderBatchesDoNotDeadlock(new StripedEntityLocker<>(8));
+    }
+
+    @Test
+    public void testOppositeOrderBatchesDoNotDeadlockOnQueues() {
+        assertOppositeOrderBatchesDoNotDeadlock(new QueuedEntityLocker<>());
+    }
+
+    private void assertOppositeOrderBatchesDoNotDeadlock(EntityLocker<Integer> locker) {
+        final List<Integer> entitiesIds = IntStream.range(0, 32).boxed().collect(Collectors.toList());
+        final List<Integer> reversedIds = new ArrayList<>(entitiesIds);
+        Collections.reverse(reversedIds);
+
+        final Thread firstSubThread = THREAD_CREATOR.startThread(() -> lockAllRepeatedly(locker, entitiesIds));
+        final Thread secondSubThread = THREAD_CREATOR.startThread(() -> lockAllRepeatedly(locker, reversedIds));
+
+        waitThread(firstSubThread);
+        waitThread(secondSubThread);
+
+        assertEquals(0, locker.currentSize());
+    }
+
+    private void lockAllRepeatedly(EntityLocker<Integer> locker, List<Integer> entitiesIds) {
+        for (int i = 0; i < 500; ++i) {
+            try {
+                locker.lockAll(entitiesIds);
+            } catch (InterceptedDeadlockException e) {
+                fail();
+            }
+            locker.unlockAll(entitiesIds);
+        }
+    }
+}
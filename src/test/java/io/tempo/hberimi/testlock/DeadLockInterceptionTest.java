@@ -10,6 +10,7 @@ import io.tempo.hberimi.testutil.LockingDaemon;
 
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
 import static org.junit.Assert.*;
@@ -109,6 +110,7 @@ public class DeadLockInterceptionTest {
         final Thread subThread = new Thread(() -> {
             lockingDaemon.lock(entities[0]);
 
+            mainThreadWaiter.countDown();
             waitingDaemon.await(subThreadWaiter);
 
             sleep(1);
@@ -126,6 +128,7 @@ public class DeadLockInterceptionTest {
 
         subThread.start();
 
+        waitingDaemon.await(mainThreadWaiter);
         lockingDaemon.lock(entities[1]);
         subThreadWaiter.countDown();
         lockingDaemon.globalLock();
@@ -142,14 +145,54 @@ public class DeadLockInterceptionTest {
 
         THREAD_CREATOR.startThread(() -> {
             lockingDaemon.lock(entitiesIds[0]);
+
+            mainThreadWaiter.countDown();
+            waitingDaemon.await(subThreadWaiter);
+
             lockingDaemon.globalLock();
         });
 
+        waitingDaemon.await(mainThreadWaiter);
         lockingDaemon.lock(entitiesIds[1]);
+        subThreadWaiter.countDown();
         sleep(1);
         entityLocker.globalLock();
     }
 
+    @Test
+    public void testSimultaneousDeadlockInterceptedByAtLeastOneThread() {
+        final int[] entitiesIds = entitiesIds(2);
+        final CountDownLatch bothLocked = new CountDownLatch(2);
+        final AtomicInteger intercepted = new AtomicInteger();
+
+        final Thread firstSubThread = THREAD_CREATOR.startThread(() ->
+                crossLock(entitiesIds[0], entitiesIds[1], bothLocked, intercepted));
+        final Thread secondSubThread = THREAD_CREATOR.startThread(() ->
+                crossLock(entitiesIds[1], entitiesIds[0], bothLocked, intercepted));
+
+        waitThread(firstSubThread);
+        waitThread(secondSubThread);
+
+        assertTrue(intercepted.get() > 0);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    private void crossLock(int ownedEntity, int wantedEntity, CountDownLatch bothLocked, AtomicInteger intercepted) {
+        lockingDaemon.lock(ownedEntity);
+
+        bothLocked.countDown();
+        waitingDaemon.await(bothLocked);
+
+        try {
+            entityLocker.lock(wantedEntity);
+            entityLocker.unlock(wantedEntity);
+        } catch (InterceptedDeadlockException e) {
+            intercepted.incrementAndGet();
+        }
+
+        entityLocker.unlock(ownedEntity);
+    }
+
     private boolean assertRightDeadlockPrevented(int entityId, Thread expectedFailThread, Thread expectedLockerThread) {
         try {
             entityLocker.lock(entityId);
@@ -0,0 +1,133 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.BackgroundDeadlockDetector;
+import io.tempo.hberimi.interceptor.TimeoutDeadlockStrategy;
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class DeadlockStrategyTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testBackgroundDetectorAbortsOneVictim() throws Exception {
+        try (final BackgroundDeadlockDetector<Object> detector = new BackgroundDeadlockDetector<>(20, TimeUnit.MILLISECONDS)) {
+            final EntityLocker<Integer> entityLocker = new EntityLockerImpl<>(100, detector);
+            entityLocker.metrics().setEnabled(true);
+            assertCycleBrokenOnce(entityLocker);
+            assertEquals(1, entityLocker.metrics().snapshot().deadlockInterceptions());
+        }
+    }
+
+    @Test
+    public void testTimeoutStrategyBreaksCycle() throws Exception {
+        assertCycleBrokenOnce(new EntityLockerImpl<>(100, new TimeoutDeadlockStrategy<>(100, TimeUnit.MILLISECONDS)));
+    }
+
+    @Test
+    public void testTimeoutStrategyEndsLongWait() throws Exception {
+        final EntityLocker<Integer> entityLocker = new EntityLockerImpl<>(100, new TimeoutDeadlockStrategy<>(50, TimeUnit.MILLISECONDS));
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(entityLocker, 1);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        final long startTime = System.nanoTime();
+        try {
+            entityLocker.lock(1);
+            fail();
+        } catch (InterceptedDeadlockException e) {
+            assertSame(Thread.currentThread(), e.failThread());
+            assertTrue(System.nanoTime() - startTime >= TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        try {
+            entityLocker.globalLock();
+            fail();
+        } catch (InterceptedDeadlockException e) {
+            assertSame(Thread.currentThread(), e.failThread());
+        }
+
+        //Timed attempts keep their own deadline when it is shorter
+        assertFalse(entityLocker.tryLock(1, 10, TimeUnit.MILLISECONDS));
+
+        subThreadWaiter.countDown();
+        waitThread(subThread);
+        entityLocker.lock(1);
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    private void assertCycleBrokenOnce(final EntityLocker<Integer> entityLocker) throws Exception {
+        final AtomicInteger aborted = new AtomicInteger();
+        entityLocker.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(entityLocker, 2);
+            mainThreadWaiter.countDown();
+
+            try {
+                entityLocker.lock(1);
+                entityLocker.unlock(1);
+            } catch (InterceptedDeadlockException e) {
+                aborted.incrementAndGet();
+            }
+            entityLocker.unlock(2);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.05);
+
+        try {
+            entityLocker.lock(2);
+            entityLocker.unlock(2);
+        } catch (InterceptedDeadlockException e) {
+            aborted.incrementAndGet();
+        }
+        entityLocker.unlock(1);
+        waitThread(subThread);
+
+        assertTrue(aborted.get() >= 1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    private void lock(final EntityLocker<Integer> entityLocker, final int entityId) {
+        try {
+            entityLocker.lock(entityId);
+        } catch (InterceptedDeadlockException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
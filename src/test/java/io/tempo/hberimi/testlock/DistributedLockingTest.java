@@ -0,0 +1,232 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.impl.DistributedEntityLocker;
+import io.tempo.hberimi.locker.impl.InProcessLockBackend;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class DistributedLockingTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private CountingBackend backend;
+    private DistributedEntityLocker<Integer> firstNode;
+    private DistributedEntityLocker<Integer> secondNode;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        backend = new CountingBackend();
+        firstNode = new DistributedEntityLocker<>("first", backend);
+        secondNode = new DistributedEntityLocker<>("second", backend);
+        mainThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        firstNode.close();
+        secondNode.close();
+        checkException();
+    }
+
+    @Test
+    public void testEntityIsExclusiveAcrossNodes() throws Exception {
+        //The idle lease stays cached on the first node until the second one asks for it
+        firstNode.lock(1);
+        firstNode.unlock(1);
+        assertEquals("first", backend.holderOf(1));
+
+        firstNode.lock(1);
+        assertFalse(secondNode.tryLock(1));
+        assertFalse(secondNode.tryLock(1, 50, TimeUnit.MILLISECONDS));
+        assertEquals("first", backend.holderOf(1));
+
+        //Revoked while in use, so given back by the unlock
+        firstNode.unlock(1);
+        assertNull(backend.holderOf(1));
+
+        assertTrue(secondNode.tryLock(1, 5, TimeUnit.SECONDS));
+        assertEquals("second", backend.holderOf(1));
+        secondNode.unlock(1);
+    }
+
+    @Test
+    public void testWaiterIsWokenByRemoteUnlock() throws Exception {
+        firstNode.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            mainThreadWaiter.countDown();
+            lock(secondNode, 1);
+            secondNode.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.1);
+
+        firstNode.unlock(1);
+        waitThread(subThread);
+        assertEquals("second", backend.holderOf(1));
+    }
+
+    @Test
+    public void testWaiterDoesNotPollBackend() throws Exception {
+        firstNode.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            mainThreadWaiter.countDown();
+            lock(secondNode, 1);
+            secondNode.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.2);
+
+        //The refused request is not repeated until the first node gives the lease back
+        assertEquals(2, backend.acquireCalls);
+
+        firstNode.unlock(1);
+        waitThread(subThread);
+        assertEquals(3, backend.acquireCalls);
+    }
+
+    @Test
+    public void testTimedWaiterIsInterrupted() throws Exception {
+        firstNode.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            mainThreadWaiter.countDown();
+            try {
+                secondNode.tryLock(1, TEST_TIMEOUT, TEST_TIME_UNIT);
+                fail();
+            } catch (InterruptedException e) {
+                assertFalse(secondNode.isLockedByCurrentThread(1));
+            } catch (InterceptedDeadlockException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.1);
+
+        subThread.interrupt();
+        waitThread(subThread);
+
+        firstNode.unlock(1);
+        assertTrue(secondNode.tryLock(1, 5, TimeUnit.SECONDS));
+        secondNode.unlock(1);
+    }
+
+    @Test
+    public void testCachedLeaseNeedsNoRoundTrip() throws Exception {
+        for (int i = 0; i < 100; ++i) {
+            firstNode.lock(1);
+            firstNode.unlock(1);
+        }
+
+        assertEquals(1, backend.acquireCalls);
+    }
+
+    @Test
+    public void testLockAllRequestsLeasesInOneBatch() throws Exception {
+        final List<Integer> entities = Arrays.asList(1, 2, 3, 4);
+        firstNode.lockAll(entities);
+
+        assertEquals(1, backend.acquireCalls);
+        assertEquals(entities.size(), backend.acquiredEntities);
+        for (final Integer entity : entities) {
+            assertTrue(firstNode.isLockedByCurrentThread(entity));
+            assertFalse(secondNode.tryLock(entity));
+        }
+
+        firstNode.unlockAll(entities);
+    }
+
+    @Test
+    public void testCrossNodeDeadlockIntercepted() throws Exception {
+        firstNode.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(secondNode, 2);
+            mainThreadWaiter.countDown();
+
+            lock(secondNode, 1);
+            secondNode.unlock(1);
+            secondNode.unlock(2);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.1);
+
+        try {
+            firstNode.lock(2);
+            fail();
+        } catch (InterceptedDeadlockException e) {
+            assertSame(Thread.currentThread(), e.failThread());
+        }
+        assertFalse(firstNode.isLockedByCurrentThread(2));
+
+        firstNode.unlock(1);
+        waitThread(subThread);
+    }
+
+    @Test
+    public void testGlobalLockExcludesOtherNodes() throws Exception {
+        firstNode.globalLock();
+        firstNode.lock(1);
+
+        assertFalse(secondNode.tryLock(2, 50, TimeUnit.MILLISECONDS));
+
+        firstNode.unlock(1);
+        firstNode.globalUnlock();
+        assertTrue(secondNode.tryLock(2));
+        secondNode.unlock(2);
+    }
+
+    @Test
+    public void testGlobalLockWaitsForOtherNodesLeases() throws Exception {
+        secondNode.lock(1);
+
+        assertFalse(firstNode.tryGlobalLock(50, TimeUnit.MILLISECONDS));
+        //A cancelled global lock does not keep other nodes away
+        assertTrue(secondNode.tryLock(2));
+        secondNode.unlock(2);
+
+        secondNode.unlock(1);
+        assertTrue(firstNode.tryGlobalLock(5, TimeUnit.SECONDS));
+        assertNull(backend.holderOf(1));
+        firstNode.globalUnlock();
+    }
+
+    private void lock(final DistributedEntityLocker<Integer> node, final int entityId) {
+        try {
+            node.lock(entityId);
+        } catch (InterceptedDeadlockException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class CountingBackend extends InProcessLockBackend<Integer> {
+        private volatile int acquireCalls;
+        private volatile int acquiredEntities;
+
+        @Override
+        public Set<Integer> acquire(final String nodeId, final Collection<Integer> entitiesIds) {
+            ++acquireCalls;
+            acquiredEntities += entitiesIds.size();
+            return super.acquire(nodeId, entitiesIds);
+        }
+    }
+}
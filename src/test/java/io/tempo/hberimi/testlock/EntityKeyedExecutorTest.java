@@ -0,0 +1,136 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.locker.EntityKeyedExecutor;
+import io.tempo.hberimi.locker.impl.EntityKeyedExecutorImpl;
+import io.tempo.hberimi.locker.impl.QueuedEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class EntityKeyedExecutorTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private QueuedEntityLocker<Integer> entityLocker;
+    private ExecutorService pool;
+    private EntityKeyedExecutor<Integer> keyedExecutor;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new QueuedEntityLocker<>();
+        pool = Executors.newFixedThreadPool(4);
+        keyedExecutor = new EntityKeyedExecutorImpl<>(entityLocker, pool, 8);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        pool.shutdownNow();
+        checkException();
+    }
+
+    @Test
+    public void testTasksOfEntityRunInOrderAndAlone() throws Exception {
+        final int tasks = 2_000;
+        final List<List<Integer>> runs = new ArrayList<>();
+        final AtomicInteger[] running = new AtomicInteger[4];
+        final AtomicInteger overlaps = new AtomicInteger();
+        CompletableFuture<Void> last = null;
+
+        for (int entity = 0; entity < 4; ++entity) {
+            runs.add(new ArrayList<>());
+            running[entity] = new AtomicInteger();
+        }
+
+        //Unsynchronized lists, the entity lock is all that orders them
+        for (int i = 0; i < tasks; ++i) {
+            final int entity = i % 4;
+            final int sequence = i;
+            last = keyedExecutor.submit(entity, () -> {
+                if (running[entity].incrementAndGet() != 1) {
+                    overlaps.incrementAndGet();
+                }
+                runs.get(entity).add(sequence);
+                running[entity].decrementAndGet();
+            });
+        }
+
+        last.get();
+        for (int entity = 0; entity < 4; ++entity) {
+            keyedExecutor.submit(entity, () -> 0).get();
+            final List<Integer> run = runs.get(entity);
+            assertEquals(tasks / 4, run.size());
+            for (int i = 0; i < run.size(); ++i) {
+                assertEquals(entity + i * 4, (int) run.get(i));
+            }
+        }
+        assertEquals(0, overlaps.get());
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testTasksAndThreadLocksExcludeEachOther() throws Exception {
+        entityLocker.lock(1);
+
+        final CompletableFuture<Integer> blocked = keyedExecutor.submit(1, () -> 1);
+        final CompletableFuture<Integer> free = keyedExecutor.submit(2, () -> 2);
+        assertEquals(2, (int) free.get());
+        sleep(0.05);
+        assertFalse(blocked.isDone());
+
+        entityLocker.unlock(1);
+        assertEquals(1, (int) blocked.get());
+    }
+
+    @Test
+    public void testGlobalTaskDrainsAndExcludesEntityTasks() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        entityLocker.lock(1);
+
+        final CompletableFuture<Void> global = keyedExecutor.submitGlobal(() -> {
+            order.add("global");
+        });
+        final CompletableFuture<Void> later = keyedExecutor.submit(2, () -> {
+            order.add("entity");
+        });
+        sleep(0.05);
+        assertFalse(global.isDone());
+        assertFalse(later.isDone());
+
+        entityLocker.unlock(1);
+        global.get();
+        later.get();
+        assertEquals("global", order.get(0));
+        assertEquals("entity", order.get(1));
+    }
+
+    @Test
+    public void testFailedTaskDoesNotStopItsEntity() throws Exception {
+        final CompletableFuture<Integer> failed = keyedExecutor.submit(1, () -> {
+            throw new IllegalStateException("task failure");
+        });
+        final CompletableFuture<Integer> next = keyedExecutor.submit(1, () -> 1);
+
+        try {
+            failed.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, (int) next.get());
+    }
+}
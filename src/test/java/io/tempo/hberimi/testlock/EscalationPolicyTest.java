@@ -0,0 +1,165 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.locker.impl.AdaptiveEscalationPolicy;
+import io.tempo.hberimi.locker.impl.BudgetEscalationPolicy;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import io.tempo.hberimi.locker.impl.NeverEscalationPolicy;
+import io.tempo.hberimi.locker.impl.ThresholdEscalationPolicy;
+import io.tempo.hberimi.testutil.LockingDaemon;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class EscalationPolicyTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+    //Never locked, held by the current thread only through the global lock
+    private final static int GLOBAL_PROBE = 999;
+
+    private EntityLockerImpl<Integer> entityLocker;
+    private LockingDaemon<Integer> lockingDaemon;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new EntityLockerImpl<>(2);
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testNeverEscalate() {
+        entityLocker.setEscalationPolicy(NeverEscalationPolicy.INSTANCE);
+        for (int i = 0; i < 10; ++i) {
+            lockingDaemon.lock(i);
+        }
+        assertFalse(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            assertTrue(lockingDaemon.tryLockWithoutTime(10));
+            entityLocker.unlock(10);
+        });
+        waitThread(subThread);
+
+        for (int i = 0; i < 10; ++i) {
+            entityLocker.unlock(i);
+        }
+    }
+
+    @Test
+    public void testThresholdWithLowerDeescalation() {
+        entityLocker.setEscalationPolicy(new ThresholdEscalationPolicy(3, 1));
+
+        lockingDaemon.lock(1);
+        lockingDaemon.lock(2);
+        assertFalse(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+        lockingDaemon.lock(3);
+        assertTrue(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+
+        entityLocker.unlock(3);
+        entityLocker.unlock(2);
+        assertTrue(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+        entityLocker.unlock(1);
+        assertFalse(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+    }
+
+    @Test
+    public void testBudgetOfAllLocks() {
+        assertEquals(4, BudgetEscalationPolicy.ofBytes(400, 100, 2).maxTotalLocks());
+        entityLocker.setEscalationPolicy(new BudgetEscalationPolicy(4, 2));
+
+        for (int i = 1; i <= 4; ++i) {
+            lockingDaemon.lock(i);
+        }
+        assertFalse(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+        lockingDaemon.lock(5);
+        assertTrue(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+
+        //Given back below three quarters of the budget
+        entityLocker.unlock(5);
+        entityLocker.unlock(4);
+        assertTrue(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+        entityLocker.unlock(3);
+        assertFalse(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+
+        entityLocker.unlock(2);
+        entityLocker.unlock(1);
+    }
+
+    @Test
+    public void testAdaptiveThresholdFollowsCosts() {
+        final AdaptiveEscalationPolicy policy = new AdaptiveEscalationPolicy(2, 8);
+        assertEquals(2, policy.threshold());
+
+        policy.escalationEnded(1_000, 3);
+        assertEquals(4, policy.threshold());
+        policy.escalationEnded(1_000, 3);
+        policy.escalationEnded(1_000, 3);
+        assertEquals(8, policy.threshold());
+
+        policy.entityContended(TimeUnit.MILLISECONDS.toNanos(1));
+        policy.escalationEnded(1_000, 1);
+        assertEquals(4, policy.threshold());
+        policy.escalationEnded(1_000, 0);
+        policy.escalationEnded(1_000, 0);
+        assertEquals(2, policy.threshold());
+    }
+
+    @Test
+    public void testStalledEscalationRaisesAdaptiveThreshold() {
+        final AdaptiveEscalationPolicy policy = new AdaptiveEscalationPolicy(2, 64);
+        entityLocker.setEscalationPolicy(policy);
+
+        lockingDaemon.lock(1);
+        lockingDaemon.lock(2);
+        assertTrue(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            mainThreadWaiter.countDown();
+            lockingDaemon.lock(3);
+            entityLocker.unlock(3);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.1);
+
+        entityLocker.unlock(2);
+        assertFalse(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+        assertEquals(4, policy.threshold());
+
+        waitThread(subThread);
+        entityLocker.unlock(1);
+    }
+
+    @Test
+    public void testSwitchingPolicyOfEscalatedThread() {
+        lockingDaemon.lock(1);
+        lockingDaemon.lock(2);
+        assertTrue(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+
+        entityLocker.setEscalationPolicy(NeverEscalationPolicy.INSTANCE);
+        assertSame(NeverEscalationPolicy.INSTANCE, entityLocker.escalationPolicy());
+        entityLocker.unlock(2);
+        assertFalse(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+
+        lockingDaemon.lock(2);
+        assertFalse(entityLocker.isLockedByCurrentThread(GLOBAL_PROBE));
+        entityLocker.unlock(2);
+        entityLocker.unlock(1);
+    }
+}
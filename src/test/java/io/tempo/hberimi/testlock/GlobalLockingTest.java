@@ -164,6 +164,26 @@ public class GlobalLockingTest {
         entityLocker.globalUnlock();
     }
 
+    @Test
+    public void testFailedTryLockDoesNotBlockGlobalLock() {
+        THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lock(mainEntity.id);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlock(mainEntity.id);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        assertFalse(lockingDaemon.tryLockWithoutTime(mainEntity.id));
+        assertFalse(lockingDaemon.tryLockWithTime(mainEntity.id, 100, TimeUnit.MILLISECONDS));
+
+        subThreadWaiter.countDown();
+
+        assertTrue(lockingDaemon.tryGlobalLock(1, TimeUnit.SECONDS));
+        entityLocker.globalUnlock();
+    }
+
     @Test(expected = InterceptedDeadlockException.class)
     public void cannotAcquireTwoGlobalLocksIfThreadsLocksEntities() throws InterceptedDeadlockException {
         THREAD_CREATOR.startThread(() -> {
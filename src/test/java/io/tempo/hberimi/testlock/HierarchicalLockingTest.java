@@ -0,0 +1,279 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.HierarchicalEntityLocker;
+import io.tempo.hberimi.locker.impl.HierarchicalEntityLockerImpl;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class HierarchicalLockingTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private HierarchicalEntityLocker<String, Integer> entityLocker;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new HierarchicalEntityLockerImpl<>(2);
+        entityLocker.metrics().setEnabled(true);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testNamespaceLockBlocksOnlyItsSubtree() throws Exception {
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lockNamespace("orders");
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlockNamespace("orders");
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        assertFalse(entityLocker.tryLock("orders", 1));
+        assertFalse(entityLocker.tryLock("orders", 1, 50, TimeUnit.MILLISECONDS));
+        assertTrue(entityLocker.tryLock("users", 1));
+        entityLocker.unlock("users", 1);
+
+        subThreadWaiter.countDown();
+        waitThread(subThread);
+        assertTrue(entityLocker.tryLock("orders", 1));
+        entityLocker.unlock("orders", 1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testNamespaceLockWaitsForEntityHolders() throws Exception {
+        entityLocker.lock("orders", 1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            try {
+                assertFalse(entityLocker.tryLockNamespace("orders", 50, TimeUnit.MILLISECONDS));
+                assertTrue(entityLocker.tryLockNamespace("users", 50, TimeUnit.MILLISECONDS));
+                entityLocker.unlockNamespace("users");
+            } catch (InterceptedDeadlockException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            mainThreadWaiter.countDown();
+
+            lockNamespace("orders");
+            entityLocker.unlockNamespace("orders");
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.05);
+
+        entityLocker.unlock("orders", 1);
+        waitThread(subThread);
+    }
+
+    @Test
+    public void testSharedNamespaceLetsOnlyReadersIn() throws Exception {
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            try {
+                entityLocker.lockNamespaceShared("orders");
+            } catch (InterceptedDeadlockException e) {
+                throw new IllegalStateException(e);
+            }
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlockNamespaceShared("orders");
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        assertTrue(entityLocker.tryLockShared("orders", 1, 50, TimeUnit.MILLISECONDS));
+        assertFalse(entityLocker.tryLock("orders", 2, 50, TimeUnit.MILLISECONDS));
+        assertTrue(entityLocker.tryLockNamespaceShared("orders", 50, TimeUnit.MILLISECONDS));
+        entityLocker.unlockNamespaceShared("orders");
+        entityLocker.unlockShared("orders", 1);
+
+        subThreadWaiter.countDown();
+        waitThread(subThread);
+    }
+
+    @Test
+    public void testOwnIntentionUpgradesToNamespaceLock() throws Exception {
+        entityLocker.lock("orders", 1);
+        entityLocker.lockNamespace("orders");
+        assertTrue(entityLocker.isLockedByCurrentThread("orders", 2));
+
+        entityLocker.unlockNamespace("orders");
+        assertFalse(entityLocker.isLockedByCurrentThread("orders", 2));
+        entityLocker.unlock("orders", 1);
+
+        try {
+            entityLocker.unlockNamespace("orders");
+            fail();
+        } catch (IllegalMonitorStateException e) {
+            assertEquals(0, entityLocker.currentSize());
+        }
+    }
+
+    @Test
+    public void testEscalationTakesNamespaceLock() throws Exception {
+        entityLocker.lock("orders", 1);
+        entityLocker.lock("orders", 2);
+        assertEquals(1, entityLocker.metrics().snapshot().escalations());
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            try {
+                assertFalse(entityLocker.tryLock("orders", 3));
+                assertTrue(entityLocker.tryLock("users", 3));
+                entityLocker.unlock("users", 3);
+            } catch (InterceptedDeadlockException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitThread(subThread);
+
+        entityLocker.unlock("orders", 2);
+        entityLocker.unlock("orders", 1);
+        assertEquals(1, entityLocker.metrics().snapshot().deescalations());
+        assertTrue(entityLocker.tryGlobalLock(50, TimeUnit.MILLISECONDS));
+        entityLocker.globalUnlock();
+    }
+
+    @Test
+    public void testNamespaceLockExcludesIntentionsUnderContention() throws Exception {
+        final int rounds = 2_000;
+        final boolean[] isNamespaceHeld = new boolean[1];
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            for (int i = 0; i < rounds; ++i) {
+                lockNamespace("orders");
+                isNamespaceHeld[0] = true;
+                Thread.yield();
+                isNamespaceHeld[0] = false;
+                entityLocker.unlockNamespace("orders");
+            }
+        });
+
+        for (int i = 0; i < rounds; ++i) {
+            entityLocker.lockShared("orders", i);
+            assertFalse(isNamespaceHeld[0]);
+            entityLocker.unlockShared("orders", i);
+        }
+
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testTimedNamespaceWaitIsInterrupted() throws Exception {
+        entityLocker.lock("orders", 1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            mainThreadWaiter.countDown();
+            try {
+                entityLocker.tryLockNamespace("orders", 5, TimeUnit.SECONDS);
+                fail();
+            } catch (InterruptedException ignore) {
+            } catch (InterceptedDeadlockException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.1);
+
+        subThread.interrupt();
+        waitThread(subThread);
+
+        //The interrupted request is no longer pending, so new intentions are not turned away
+        final Thread otherThread = THREAD_CREATOR.startThread(() -> {
+            try {
+                assertTrue(entityLocker.tryLock("orders", 2));
+            } catch (InterceptedDeadlockException e) {
+                throw new IllegalStateException(e);
+            }
+            entityLocker.unlock("orders", 2);
+        });
+        waitThread(otherThread);
+
+        entityLocker.unlock("orders", 1);
+        assertTrue(entityLocker.tryLockNamespace("orders", 50, TimeUnit.MILLISECONDS));
+        entityLocker.unlockNamespace("orders");
+    }
+
+    @Test
+    public void testRepeatedIdsAreCountedOnce() throws Exception {
+        entityLocker.lockAll("orders", Arrays.asList(1, 1));
+        assertEquals(0, entityLocker.metrics().snapshot().escalations());
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            try {
+                assertTrue(entityLocker.tryLock("orders", 2));
+            } catch (InterceptedDeadlockException e) {
+                throw new IllegalStateException(e);
+            }
+            entityLocker.unlock("orders", 2);
+        });
+        waitThread(subThread);
+
+        entityLocker.unlockAll("orders", Arrays.asList(1, 1));
+        assertEquals(0, entityLocker.currentSize());
+        assertTrue(entityLocker.tryLockNamespace("orders", 50, TimeUnit.MILLISECONDS));
+        entityLocker.unlockNamespace("orders");
+    }
+
+    @Test
+    public void testDeadlockThroughNamespaceIntercepted() throws Exception {
+        entityLocker.lock("orders", 1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            try {
+                entityLocker.lock("users", 1);
+                mainThreadWaiter.countDown();
+
+                //Waits for the intention of the main thread
+                entityLocker.lockNamespace("orders");
+                entityLocker.unlockNamespace("orders");
+                entityLocker.unlock("users", 1);
+            } catch (InterceptedDeadlockException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.1);
+
+        try {
+            entityLocker.lock("users", 1);
+            fail();
+        } catch (InterceptedDeadlockException e) {
+            assertSame(Thread.currentThread(), e.failThread());
+        }
+        assertFalse(entityLocker.isLockedByCurrentThread("users", 1));
+
+        entityLocker.unlock("orders", 1);
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    private void lockNamespace(final String namespace) {
+        try {
+            entityLocker.lockNamespace(namespace);
+        } catch (InterceptedDeadlockException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.LockOwner;
+import io.tempo.hberimi.locker.impl.QueuedEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class LeaseLockingTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+    private final static long LEASE_TTL_MILLIS = 100;
+
+    private QueuedEntityLocker<Integer> entityLocker;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new QueuedEntityLocker<>(LEASE_TTL_MILLIS, TimeUnit.MILLISECONDS);
+        entityLocker.metrics().setEnabled(true);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        entityLocker.close();
+        checkException();
+    }
+
+    @Test
+    public void testLocksOfDeadThreadAreReaped() throws Exception {
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(1);
+            lock(2);
+            lock(2);
+        });
+        waitThread(subThread);
+
+        assertTrue(entityLocker.tryLock(1, 5, TimeUnit.SECONDS));
+        assertTrue(entityLocker.tryLock(2, 5, TimeUnit.SECONDS));
+        assertEquals(1, entityLocker.metrics().snapshot().reapedLeases());
+
+        entityLocker.unlockAll(Arrays.asList(1, 2));
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testRenewedLeaseIsKept() throws Exception {
+        entityLocker.lock(1);
+
+        for (int i = 0; i < 8; ++i) {
+            sleep(LEASE_TTL_MILLIS / 4 / 1000.0);
+            assertTrue(entityLocker.renewLease());
+        }
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            try {
+                assertFalse(entityLocker.tryLock(1));
+            } catch (InterceptedDeadlockException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitThread(subThread);
+
+        assertTrue(entityLocker.isLockedByCurrentThread(1));
+        entityLocker.unlock(1);
+        assertFalse(entityLocker.renewLease());
+        assertEquals(0, entityLocker.metrics().snapshot().reapedLeases());
+    }
+
+    @Test
+    public void testExpiredLeaseWakesWaiter() throws Exception {
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(1);
+            mainThreadWaiter.countDown();
+
+            //Hangs past its lease, the late unlock finds the entity held by the waiter
+            waitingDaemon.await(subThreadWaiter);
+            try {
+                entityLocker.unlock(1);
+                fail();
+            } catch (IllegalAccessError e) {
+                assertFalse(entityLocker.isLockedByCurrentThread(1));
+            }
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        entityLocker.lock(1);
+        subThreadWaiter.countDown();
+        waitThread(subThread);
+
+        assertTrue(entityLocker.isLockedByCurrentThread(1));
+        entityLocker.unlock(1);
+    }
+
+    @Test
+    public void testGlobalLockOfDeadThreadIsReaped() throws Exception {
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            try {
+                entityLocker.globalLock();
+            } catch (InterceptedDeadlockException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitThread(subThread);
+
+        assertTrue(entityLocker.tryLock(1, 5, TimeUnit.SECONDS));
+        entityLocker.unlock(1);
+        assertTrue(entityLocker.tryGlobalLock(5, TimeUnit.SECONDS));
+        entityLocker.globalUnlock();
+    }
+
+    @Test
+    public void testLogicalOwnerLosesExpiredLease() throws Exception {
+        final LockOwner worker = entityLocker.newOwner("worker");
+        final LockOwner other = entityLocker.newOwner("other");
+
+        entityLocker.lockAsync(worker, 1).get();
+        entityLocker.lockAsync(other, 1).get(5, TimeUnit.SECONDS);
+
+        assertFalse(entityLocker.renewLease(worker));
+        entityLocker.unlock(other, 1);
+    }
+
+    @Test
+    public void testClosedLockerReapsNoMore() throws Exception {
+        entityLocker.close();
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> lock(1));
+        waitThread(subThread);
+        sleep(0.3);
+
+        assertEquals(0, entityLocker.metrics().snapshot().reapedLeases());
+    }
+
+    @Test
+    public void testCloseLeavesGivenSchedulerRunning() throws Exception {
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        try {
+            final QueuedEntityLocker<Integer> leasedLocker = new QueuedEntityLocker<>(Integer::compare, scheduler, LEASE_TTL_MILLIS, TimeUnit.MILLISECONDS);
+            assertEquals(1, scheduler.getQueue().size());
+
+            leasedLocker.close();
+            assertTrue(scheduler.getQueue().isEmpty());
+            assertFalse(scheduler.isShutdown());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannotRenewWithoutLeaseMode() {
+        new QueuedEntityLocker<Integer>().renewLease();
+    }
+
+    private void lock(final int entityId) {
+        try {
+            entityLocker.lock(entityId);
+        } catch (InterceptedDeadlockException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import io.tempo.hberimi.metrics.EntityLockerMXBean;
+import io.tempo.hberimi.testutil.LockingDaemon;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class LockerMBeanTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private EntityLockerImpl<Integer> entityLocker;
+    private LockingDaemon<Integer> lockingDaemon;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new EntityLockerImpl<>(10);
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testLiveStateThroughPlatformServer() throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName objectName = entityLocker.registerMBean("live-state");
+        final EntityLockerMXBean mxBean = JMX.newMXBeanProxy(server, objectName, EntityLockerMXBean.class);
+
+        final Thread holder = THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lock(1);
+            lockingDaemon.lock(2);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlock(2);
+            entityLocker.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        final Thread waiter = THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lock(1);
+            entityLocker.unlock(1);
+        });
+        while (mxBean.getWaitingThreads() == 0) {
+            sleep(0.01);
+        }
+
+        final String holderName = holder.getName() + "#" + holder.getId();
+        final String waiterName = waiter.getName() + "#" + waiter.getId();
+        assertEquals(2, mxBean.getLockedEntities());
+        assertEquals(1, mxBean.getWaitingThreads());
+        assertEquals(Collections.singletonMap(holderName, 2), mxBean.getHeldEntitiesByThread());
+        assertNull(mxBean.getGlobalLockHolder());
+        assertNull(mxBean.getEscalatedThread());
+
+        final Map<String, List<String>> waitForGraph = mxBean.waitForGraph();
+        assertEquals(1, waitForGraph.size());
+        assertEquals(Collections.singletonList(holderName), waitForGraph.get(waiterName));
+
+        subThreadWaiter.countDown();
+        waitThread(holder);
+        waitThread(waiter);
+        assertEquals(0, mxBean.getWaitingThreads());
+        assertTrue(mxBean.getHeldEntitiesByThread().isEmpty());
+        assertTrue(mxBean.waitForGraph().isEmpty());
+
+        lockingDaemon.globalLock();
+        final Thread current = Thread.currentThread();
+        assertEquals(current.getName() + "#" + current.getId(), mxBean.getGlobalLockHolder());
+        entityLocker.globalUnlock();
+
+        entityLocker.unregisterMBean(objectName);
+        assertFalse(server.isRegistered(objectName));
+    }
+
+    @Test
+    public void testEscalatedThread() {
+        entityLocker = new EntityLockerImpl<>(2);
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+        final EntityLockerMXBean mxBean = entityLocker.mxBean();
+
+        lockingDaemon.lock(1);
+        lockingDaemon.lock(2);
+        final Thread current = Thread.currentThread();
+        final String currentName = current.getName() + "#" + current.getId();
+        assertEquals(currentName, mxBean.getEscalatedThread());
+        assertEquals(currentName, mxBean.getGlobalLockHolder());
+
+        entityLocker.unlock(2);
+        entityLocker.unlock(1);
+        assertNull(mxBean.getEscalatedThread());
+        assertNull(mxBean.getGlobalLockHolder());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDuplicateNameIsRejected() {
+        final ObjectName objectName = entityLocker.registerMBean("duplicate");
+        try {
+            new EntityLockerImpl<Integer>().registerMBean("duplicate");
+        } finally {
+            entityLocker.unregisterMBean(objectName);
+        }
+    }
+}
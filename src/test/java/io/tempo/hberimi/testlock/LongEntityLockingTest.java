@@ -0,0 +1,259 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.LongEntityLocker;
+import io.tempo.hberimi.locker.impl.LongEntityLockerImpl;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class LongEntityLockingTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private LongEntityLocker entityLocker;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new LongEntityLockerImpl(4, 1_000_000);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testReentrantLockIsReleasedByLastUnlock() throws Exception {
+        entityLocker.lock(Long.MAX_VALUE);
+        entityLocker.lock(Long.MAX_VALUE);
+        entityLocker.lock(0);
+        assertEquals(2, entityLocker.currentSize());
+
+        entityLocker.unlock(Long.MAX_VALUE);
+        assertTrue(entityLocker.isLockedByCurrentThread(Long.MAX_VALUE));
+        entityLocker.unlock(Long.MAX_VALUE);
+        assertFalse(entityLocker.isLockedByCurrentThread(Long.MAX_VALUE));
+
+        entityLocker.unlock(0);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testManyKeysGrowAndShrinkTables() throws Exception {
+        final int keys = 50_000;
+        for (long key = 0; key < keys; ++key) {
+            entityLocker.lock(key * 31);
+        }
+        assertEquals(keys, entityLocker.currentSize());
+
+        //Every other key first, so removal has to keep probe chains intact
+        for (long key = 0; key < keys; key += 2) {
+            entityLocker.unlock(key * 31);
+        }
+        for (long key = 1; key < keys; key += 2) {
+            assertTrue(entityLocker.isLockedByCurrentThread(key * 31));
+            entityLocker.unlock(key * 31);
+        }
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testEntityIsExclusive() throws Exception {
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(1);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        assertFalse(entityLocker.tryLock(1));
+        assertFalse(entityLocker.tryLock(1, 50, TimeUnit.MILLISECONDS));
+        assertFalse(entityLocker.isLockedByCurrentThread(1));
+
+        subThreadWaiter.countDown();
+        assertTrue(entityLocker.tryLock(1, 5, TimeUnit.SECONDS));
+        entityLocker.unlock(1);
+
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testTimedWaiterIsInterrupted() throws Exception {
+        entityLocker.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            mainThreadWaiter.countDown();
+            try {
+                entityLocker.tryLock(1, 5, TimeUnit.SECONDS);
+                fail();
+            } catch (InterruptedException ignore) {
+            } catch (InterceptedDeadlockException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.1);
+
+        subThread.interrupt();
+        waitThread(subThread);
+
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+        assertTrue(entityLocker.tryGlobalLock(1, TimeUnit.SECONDS));
+        entityLocker.globalUnlock();
+    }
+
+    @Test
+    public void testWaiterIsWokenByUnlock() throws Exception {
+        entityLocker.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            mainThreadWaiter.countDown();
+            lock(1);
+            entityLocker.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.1);
+
+        entityLocker.unlock(1);
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testClassicDeadlockIntercepted() throws Exception {
+        entityLocker.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(2);
+            mainThreadWaiter.countDown();
+
+            lock(1);
+            entityLocker.unlock(1);
+            entityLocker.unlock(2);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.1);
+
+        try {
+            entityLocker.lock(2);
+            fail();
+        } catch (InterceptedDeadlockException e) {
+            assertSame(Thread.currentThread(), e.failThread());
+            assertSame(subThread, e.lockerThread());
+        }
+
+        entityLocker.unlock(1);
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testGlobalLockExcludesEntities() throws Exception {
+        entityLocker.globalLock();
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            try {
+                assertFalse(entityLocker.tryLock(1, 50, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException | InterceptedDeadlockException e) {
+                throw new IllegalStateException(e);
+            }
+            mainThreadWaiter.countDown();
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        waitThread(subThread);
+
+        entityLocker.lock(1);
+        assertTrue(entityLocker.isLockedByCurrentThread(2));
+        entityLocker.unlock(1);
+        entityLocker.globalUnlock();
+        assertFalse(entityLocker.isLockedByCurrentThread(2));
+    }
+
+    @Test
+    public void testGlobalLockWhileWaiterIsBlockedIntercepted() throws Exception {
+        entityLocker.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            mainThreadWaiter.countDown();
+            lock(1);
+            entityLocker.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.1);
+
+        try {
+            entityLocker.globalLock();
+            fail();
+        } catch (InterceptedDeadlockException e) {
+            assertSame(subThread, e.failThread());
+        }
+
+        entityLocker.unlock(1);
+        waitThread(subThread);
+    }
+
+    @Test
+    public void testEscalation() throws Exception {
+        entityLocker = new LongEntityLockerImpl(4, 2);
+        entityLocker.metrics().setEnabled(true);
+        entityLocker.lock(1);
+        entityLocker.lock(2);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            try {
+                assertFalse(entityLocker.tryLock(3));
+            } catch (InterceptedDeadlockException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitThread(subThread);
+
+        entityLocker.unlock(2);
+        entityLocker.unlock(1);
+        assertEquals(1, entityLocker.metrics().snapshot().escalations());
+        assertEquals(1, entityLocker.metrics().snapshot().deescalations());
+        assertTrue(entityLocker.tryLock(3));
+        entityLocker.unlock(3);
+    }
+
+    @Test(expected = IllegalAccessError.class)
+    public void cannotUnlockOtherThreadEntity() throws Exception {
+        final Thread subThread = THREAD_CREATOR.startThread(() -> lock(1));
+        waitThread(subThread);
+
+        entityLocker.unlock(1);
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void cannotUnlockFreeEntity() {
+        entityLocker.unlock(1);
+    }
+
+    private void lock(final long entityId) {
+        try {
+            entityLocker.lock(entityId);
+        } catch (InterceptedDeadlockException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
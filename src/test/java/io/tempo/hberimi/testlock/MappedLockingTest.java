@@ -0,0 +1,208 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.impl.MappedEntityLocker;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+//Two lockers over one file stand for two processes, each registers its own process region
+public class MappedLockingTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private MappedEntityLocker firstProcess;
+    private MappedEntityLocker secondProcess;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("locks");
+        firstProcess = new MappedEntityLocker(file, 64, 1_000_000);
+        secondProcess = new MappedEntityLocker(file, 64, 1_000_000);
+        secondProcess.metrics().setEnabled(true);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        firstProcess.close();
+        secondProcess.close();
+        checkException();
+    }
+
+    @Test
+    public void testProcessesExcludeEachOther() throws Exception {
+        firstProcess.lock(1);
+        firstProcess.lock(1);
+        assertEquals(1, secondProcess.currentSize());
+        assertFalse(secondProcess.tryLock(1));
+        assertFalse(secondProcess.tryLock(1, 50, TimeUnit.MILLISECONDS));
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(secondProcess, 1);
+            assertTrue(secondProcess.isLockedByCurrentThread(1));
+            secondProcess.unlock(1);
+        });
+
+        firstProcess.unlock(1);
+        assertTrue(firstProcess.isLockedByCurrentThread(1));
+        sleep(0.05);
+        firstProcess.unlock(1);
+
+        waitThread(subThread);
+        assertEquals(0, firstProcess.currentSize());
+
+        try {
+            secondProcess.unlock(1);
+            fail();
+        } catch (IllegalMonitorStateException e) {
+            assertFalse(secondProcess.isLockedByCurrentThread(1));
+        }
+    }
+
+    @Test
+    public void testCollidedEntitiesAreHeldApart() throws Exception {
+        //Two slots, so some of the entities share one
+        try (MappedEntityLocker entityLocker = new MappedEntityLocker(folder.getRoot().toPath().resolve("collided"), 2, 1_000_000)) {
+            for (long entityId = 1; entityId <= 4; ++entityId) {
+                entityLocker.lock(entityId);
+            }
+
+            for (long entityId = 5; entityId <= 8; ++entityId) {
+                assertFalse(entityLocker.isLockedByCurrentThread(entityId));
+                try {
+                    entityLocker.unlock(entityId);
+                    fail();
+                } catch (IllegalMonitorStateException ignore) {
+                }
+            }
+
+            for (long entityId = 1; entityId <= 4; ++entityId) {
+                assertTrue(entityLocker.isLockedByCurrentThread(entityId));
+                entityLocker.unlock(entityId);
+            }
+            assertEquals(0, entityLocker.currentSize());
+        }
+    }
+
+    @Test
+    public void testTimedWaiterIsInterrupted() throws Exception {
+        firstProcess.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            mainThreadWaiter.countDown();
+            try {
+                secondProcess.tryLock(1, 5, TimeUnit.SECONDS);
+                fail();
+            } catch (InterruptedException ignore) {
+            } catch (InterceptedDeadlockException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.1);
+
+        subThread.interrupt();
+        waitThread(subThread);
+        assertEquals(0, secondProcess.metrics().snapshot().timeouts());
+
+        firstProcess.unlock(1);
+        assertTrue(secondProcess.tryLock(1, 1, TimeUnit.SECONDS));
+        secondProcess.unlock(1);
+    }
+
+    @Test
+    public void testLocksOfDeadProcessAreRecovered() throws Exception {
+        firstProcess.lock(1);
+        firstProcess.globalLock();
+        firstProcess.close();
+
+        assertTrue(secondProcess.tryGlobalLock(5, TimeUnit.SECONDS));
+        secondProcess.globalUnlock();
+        assertTrue(secondProcess.tryLock(1, 5, TimeUnit.SECONDS));
+        assertEquals(1, secondProcess.currentSize());
+        secondProcess.unlock(1);
+    }
+
+    @Test
+    public void testDeadlockAcrossProcessesIntercepted() throws Exception {
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(firstProcess, 1);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            lock(firstProcess, 2);
+            firstProcess.unlock(2);
+            firstProcess.unlock(1);
+        });
+
+        waitingDaemon.await(mainThreadWaiter);
+        secondProcess.lock(2);
+        subThreadWaiter.countDown();
+        sleep(0.1);
+
+        try {
+            secondProcess.lock(1);
+            fail();
+        } catch (InterceptedDeadlockException e) {
+            assertSame(Thread.currentThread(), e.failThread());
+        }
+        assertEquals(1, secondProcess.metrics().snapshot().deadlockInterceptions());
+
+        secondProcess.unlock(2);
+        waitThread(subThread);
+        assertEquals(0, secondProcess.currentSize());
+    }
+
+    @Test
+    public void testGlobalLockDrainsOtherProcesses() throws Exception {
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(firstProcess, 1);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            firstProcess.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        assertFalse(secondProcess.tryGlobalLock(50, TimeUnit.MILLISECONDS));
+        subThreadWaiter.countDown();
+        secondProcess.globalLock();
+        waitThread(subThread);
+
+        assertTrue(secondProcess.isLockedByCurrentThread(3));
+        assertFalse(firstProcess.tryLock(3));
+        assertFalse(firstProcess.tryGlobalLock());
+
+        secondProcess.globalUnlock();
+        assertTrue(firstProcess.tryLock(3));
+        firstProcess.unlock(3);
+    }
+
+    private void lock(final MappedEntityLocker entityLocker, final long entityId) {
+        try {
+            entityLocker.lock(entityId);
+        } catch (InterceptedDeadlockException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.LockOwner;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import io.tempo.hberimi.locker.impl.QueuedEntityLocker;
+import io.tempo.hberimi.metrics.HistogramSnapshot;
+import io.tempo.hberimi.metrics.HotEntity;
+import io.tempo.hberimi.metrics.LockMetrics;
+import io.tempo.hberimi.metrics.LockMetricsSnapshot;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+import io.tempo.hberimi.testutil.LockingDaemon;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class MetricsTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private EntityLocker<Integer> entityLocker;
+    private LockingDaemon<Integer> lockingDaemon;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new EntityLockerImpl<>(2);
+        entityLocker.metrics().setEnabled(true);
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testDisabledMetricsRecordNothing() {
+        entityLocker.metrics().setEnabled(false);
+
+        lockingDaemon.lock(1);
+        lockingDaemon.lock(1);
+        entityLocker.unlock(1);
+        entityLocker.unlock(1);
+        lockingDaemon.globalLock();
+        entityLocker.globalUnlock();
+
+        final LockMetricsSnapshot snapshot = entityLocker.metrics().snapshot();
+        assertEquals(0, snapshot.acquisitions());
+        assertEquals(0, snapshot.globalAcquisitions());
+        assertEquals(0, snapshot.holdTime().count());
+    }
+
+    @Test
+    public void testAcquisitionsAndHoldTime() {
+        lockingDaemon.lock(1);
+        lockingDaemon.lock(1);
+        sleep(1);
+        entityLocker.unlock(1);
+        entityLocker.unlock(1);
+
+        final LockMetricsSnapshot snapshot = entityLocker.metrics().snapshot();
+        assertEquals(2, snapshot.acquisitions());
+        assertEquals(0, snapshot.contendedAcquisitions());
+        assertEquals(2, snapshot.acquisitionLatency().count());
+        assertEquals(1, snapshot.holdTime().count());
+        assertTrue(snapshot.holdTime().max() >= TimeUnit.MILLISECONDS.toNanos(1));
+
+        entityLocker.metrics().reset();
+        assertEquals(0, entityLocker.metrics().snapshot().acquisitions());
+    }
+
+    @Test
+    public void testTryLockFailuresTimeoutsAndWaiters() {
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lock(1);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        assertFalse(lockingDaemon.tryLockWithoutTime(1));
+        assertFalse(lockingDaemon.tryLockWithTime(1, 10, TimeUnit.MILLISECONDS));
+
+        final LockMetricsSnapshot snapshot = entityLocker.metrics().snapshot();
+        assertEquals(1, snapshot.tryLockFailures());
+        assertEquals(1, snapshot.timeouts());
+        assertEquals(2, snapshot.contendedAcquisitions());
+        assertEquals(0, snapshot.waitingAcquisitions());
+
+        subThreadWaiter.countDown();
+        waitThread(subThread);
+    }
+
+    @Test
+    public void testEscalationAndGlobalLock() {
+        lockingDaemon.lock(1);
+        lockingDaemon.lock(2);
+        entityLocker.unlock(2);
+        entityLocker.unlock(1);
+
+        lockingDaemon.globalLock();
+        sleep(1);
+        entityLocker.globalUnlock();
+
+        final LockMetricsSnapshot snapshot = entityLocker.metrics().snapshot();
+        assertEquals(1, snapshot.escalations());
+        assertEquals(1, snapshot.deescalations());
+        assertEquals(2, snapshot.globalAcquisitions());
+        assertEquals(2, snapshot.globalHoldTime().count());
+        assertTrue(snapshot.globalHoldTime().max() >= TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    public void testQueuedLockerMetrics() throws Exception {
+        final QueuedEntityLocker<Integer> queuedLocker = new QueuedEntityLocker<>();
+        final LockMetrics metrics = queuedLocker.metrics();
+        metrics.setEnabled(true);
+
+        final LockOwner first = queuedLocker.newOwner("first");
+        final LockOwner second = queuedLocker.newOwner("second");
+        final LockOwner third = queuedLocker.newOwner("third");
+
+        queuedLocker.lockAsync(first, 1).get();
+        final CompletableFuture<LockOwner> secondLock = queuedLocker.lockAsync(second, 1);
+        final CompletableFuture<LockOwner> thirdLock = queuedLocker.lockAsync(third, 1, 0, TimeUnit.MILLISECONDS);
+        assertTrue(thirdLock.isCompletedExceptionally());
+        assertEquals(1, metrics.snapshot().waitingAcquisitions());
+
+        queuedLocker.unlock(first, 1);
+        queuedLocker.unlock(secondLock.get(), 1);
+
+        try {
+            queuedLocker.lockAsync(third, 1, 0, TimeUnit.MILLISECONDS).get();
+            queuedLocker.unlock(third, 1);
+        } catch (ExecutionException e) {
+            fail();
+        }
+
+        final LockMetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(3, snapshot.acquisitions());
+        assertEquals(1, snapshot.tryLockFailures());
+        assertEquals(1, snapshot.contendedAcquisitions());
+        assertEquals(0, snapshot.waitingAcquisitions());
+        assertEquals(3, snapshot.holdTime().count());
+    }
+
+    @Test
+    public void testHotEntitiesRankContendedOnly() {
+        //Two entities held by one thread stay below escalation
+        entityLocker = new EntityLockerImpl<>(10);
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lock(1);
+            lockingDaemon.lock(2);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlock(2);
+            entityLocker.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        for (int i = 0; i < 3; ++i) {
+            assertFalse(lockingDaemon.tryLockWithTime(1, 5, TimeUnit.MILLISECONDS));
+        }
+        assertFalse(lockingDaemon.tryLockWithTime(2, 20, TimeUnit.MILLISECONDS));
+        lockingDaemon.lock(3);
+        entityLocker.unlock(3);
+
+        final List<HotEntity> byWaits = entityLocker.metrics().hotEntitiesByWaits(10);
+        assertEquals(2, byWaits.size());
+        assertEquals(1, byWaits.get(0).entityId());
+        assertEquals(3, byWaits.get(0).waits());
+        assertEquals(2, byWaits.get(1).entityId());
+        assertEquals(1, byWaits.get(1).waits());
+        assertTrue(byWaits.get(1).waitNanos() >= TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(1, entityLocker.metrics().hotEntitiesByWaits(1).size());
+
+        subThreadWaiter.countDown();
+        waitThread(subThread);
+    }
+
+    @Test
+    public void testHotEntitiesKeepFixedMemory() {
+        final LockMetrics metrics = new LockMetrics(false);
+        for (int i = 0; i < 10_000; ++i) {
+            metrics.contended(i, 1_000);
+            if (i % 10 == 0) {
+                metrics.contended(-1, 1_000);
+            }
+        }
+
+        final List<HotEntity> byWaits = metrics.hotEntitiesByWaits(Integer.MAX_VALUE);
+        assertTrue(byWaits.size() <= 6 * 64);
+        assertEquals(-1, byWaits.get(0).entityId());
+        assertTrue(byWaits.get(0).waits() - byWaits.get(0).overestimate() <= 1_000);
+        assertTrue(byWaits.get(0).waits() >= 1_000);
+
+        metrics.reset();
+        assertTrue(metrics.hotEntitiesByWaits(10).isEmpty());
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        final LockMetrics metrics = new LockMetrics(true);
+        for (int i = 1; i <= 1000; ++i) {
+            metrics.acquired(System.nanoTime() - TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        final HistogramSnapshot latency = metrics.snapshot().acquisitionLatency();
+        assertEquals(1000, latency.count());
+        assertPercentile(TimeUnit.MICROSECONDS.toNanos(500), latency.percentile(50));
+        assertPercentile(TimeUnit.MICROSECONDS.toNanos(990), latency.percentile(99));
+        assertTrue(latency.percentile(100) <= latency.max());
+    }
+
+    private void assertPercentile(final long expected, final long actual) {
+        //Buckets are 1/16 wide and System.nanoTime adds a little on top
+        assertTrue(actual + " < " + expected, actual >= expected);
+        assertTrue(actual + " > " + expected, actual <= expected + expected / 8);
+    }
+}
@@ -0,0 +1,169 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import io.tempo.hberimi.locker.impl.QueuedEntityLocker;
+import io.tempo.hberimi.testutil.LockingDaemon;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class OptimisticReadTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+    private final static int PARTITIONS = 4;
+    private final static int MIN_LOCKS_BEFORE_PARTITION = 8;
+
+    private EntityLockerImpl<Integer> entityLocker;
+    private LockingDaemon<Integer> lockingDaemon;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    //Written under the entity lock only, a validated read sees both or neither
+    private int x;
+    private int y;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new EntityLockerImpl<>(1000, PARTITIONS, MIN_LOCKS_BEFORE_PARTITION);
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testStampValidWithoutWriter() throws InterceptedDeadlockException {
+        final long stamp = entityLocker.tryOptimisticRead(1);
+        assertNotEquals(0, stamp);
+        assertTrue(entityLocker.validate(1, stamp));
+
+        //Shared holders and writers of other entities leave the stamp valid
+        entityLocker.lockShared(1);
+        lockingDaemon.lock(2);
+        assertTrue(entityLocker.validate(1, stamp));
+        assertEquals(stamp, entityLocker.tryOptimisticRead(1));
+        entityLocker.unlock(2);
+        entityLocker.unlockShared(1);
+
+        assertTrue(entityLocker.validate(1, stamp));
+        assertFalse(entityLocker.validate(1, 0));
+    }
+
+    @Test
+    public void testWriterInvalidatesStamp() {
+        final long stamp = entityLocker.tryOptimisticRead(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lock(1);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        assertEquals(0, entityLocker.tryOptimisticRead(1));
+        assertFalse(entityLocker.validate(1, stamp));
+
+        subThreadWaiter.countDown();
+        waitThread(subThread);
+
+        assertFalse(entityLocker.validate(1, stamp));
+        final long nextStamp = entityLocker.tryOptimisticRead(1);
+        assertNotEquals(0, nextStamp);
+        assertNotEquals(stamp, nextStamp);
+        assertTrue(entityLocker.validate(1, nextStamp));
+    }
+
+    @Test
+    public void testGlobalLockInvalidatesStamps() throws InterceptedDeadlockException {
+        final long stamp = entityLocker.tryOptimisticRead(1);
+
+        entityLocker.globalLock();
+        assertEquals(0, entityLocker.tryOptimisticRead(1));
+        assertFalse(entityLocker.validate(1, stamp));
+        entityLocker.globalUnlock();
+
+        assertFalse(entityLocker.validate(1, stamp));
+        assertTrue(entityLocker.validate(1, entityLocker.tryOptimisticRead(1)));
+    }
+
+    @Test
+    public void testPartitionEscalationInvalidatesStamps() {
+        //Small integers are their own hash, so multiples of the partition count share partition 0
+        final long stamp = entityLocker.tryOptimisticRead(100 * PARTITIONS);
+        final long otherStamp = entityLocker.tryOptimisticRead(1);
+
+        final List<Integer> entities = new ArrayList<>();
+        for (int i = 0; i < MIN_LOCKS_BEFORE_PARTITION; ++i) {
+            entities.add(i * PARTITIONS);
+            lockingDaemon.lock(i * PARTITIONS);
+        }
+        assertEquals(0, entityLocker.currentSize());
+
+        assertEquals(0, entityLocker.tryOptimisticRead(100 * PARTITIONS));
+        assertFalse(entityLocker.validate(100 * PARTITIONS, stamp));
+        //The epoch is shared, stamps of other partitions are retried once
+        assertFalse(entityLocker.validate(1, otherStamp));
+        assertTrue(entityLocker.validate(1, entityLocker.tryOptimisticRead(1)));
+
+        entityLocker.unlockAll(entities);
+        assertTrue(entityLocker.validate(100 * PARTITIONS, entityLocker.tryOptimisticRead(100 * PARTITIONS)));
+    }
+
+    @Test
+    public void testValidatedReadIsConsistent() {
+        final AtomicBoolean isWriting = new AtomicBoolean(true);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            for (int i = 1; i <= 2_000; ++i) {
+                lockingDaemon.lock(1);
+                x = i;
+                y = -i;
+                entityLocker.unlock(1);
+            }
+            isWriting.set(false);
+        });
+
+        int validated = 0;
+        while (isWriting.get() || validated == 0) {
+            final long stamp = entityLocker.tryOptimisticRead(1);
+            final int readX = x;
+            final int readY = y;
+            if (entityLocker.validate(1, stamp)) {
+                assertEquals(readX, -readY);
+                ++validated;
+            }
+        }
+
+        waitThread(subThread);
+        assertTrue(validated > 0);
+    }
+
+    @Test
+    public void testOtherLockersFallBackToSharedLock() {
+        final QueuedEntityLocker<Integer> queuedLocker = new QueuedEntityLocker<>();
+        final long stamp = queuedLocker.tryOptimisticRead(1);
+        assertEquals(0, stamp);
+        assertFalse(queuedLocker.validate(1, stamp));
+    }
+}
@@ -0,0 +1,185 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import io.tempo.hberimi.testutil.LockingDaemon;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class PartitionEscalationTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+    private final static int PARTITIONS = 4;
+    private final static int MIN_LOCKS_BEFORE_PARTITION = 8;
+
+    private EntityLockerImpl<Integer> entityLocker;
+    private LockingDaemon<Integer> lockingDaemon;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new EntityLockerImpl<>(1000, PARTITIONS, MIN_LOCKS_BEFORE_PARTITION);
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testEscalationDropsEntriesAndSparesOtherPartitions() {
+        //Small integers are their own hash, so multiples of the partition count share partition 0
+        for (int i = 0; i < MIN_LOCKS_BEFORE_PARTITION - 1; ++i) {
+            lockingDaemon.lock(i * PARTITIONS);
+        }
+        assertEquals(MIN_LOCKS_BEFORE_PARTITION - 1, entityLocker.currentSize());
+        assertFalse(entityLocker.isLockedByCurrentThread(100 * PARTITIONS));
+
+        lockingDaemon.lock((MIN_LOCKS_BEFORE_PARTITION - 1) * PARTITIONS);
+        lockingDaemon.lock(100 * PARTITIONS);
+        assertEquals(0, entityLocker.currentSize());
+        assertTrue(entityLocker.isLockedByCurrentThread(200 * PARTITIONS));
+        assertFalse(entityLocker.isLockedByCurrentThread(1));
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            assertTrue(lockingDaemon.tryLockWithoutTime(1));
+            assertFalse(lockingDaemon.tryLockWithoutTime(200 * PARTITIONS));
+            assertFalse(lockingDaemon.tryLockWithTime(200 * PARTITIONS, 10, TimeUnit.MILLISECONDS));
+            entityLocker.unlock(1);
+            mainThreadWaiter.countDown();
+
+            lockingDaemon.lock(200 * PARTITIONS);
+            entityLocker.unlock(200 * PARTITIONS);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        for (int i = 0; i < MIN_LOCKS_BEFORE_PARTITION; ++i) {
+            entityLocker.unlock(i * PARTITIONS);
+        }
+        entityLocker.unlock(100 * PARTITIONS);
+        assertFalse(entityLocker.isLockedByCurrentThread(200 * PARTITIONS));
+
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testOnlyHeldEntitiesReleasedWithinEscalatedPartition() throws InterceptedDeadlockException {
+        entityLocker = new EntityLockerImpl<>(1000, PARTITIONS, 2);
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+
+        lockingDaemon.lock(0);
+        lockingDaemon.lock(PARTITIONS);
+        lockingDaemon.lockShared(2 * PARTITIONS);
+        assertEquals(0, entityLocker.currentSize());
+
+        for (final int entityId : new int[] {2 * PARTITIONS, 3 * PARTITIONS}) {
+            try {
+                entityLocker.unlock(entityId);
+                fail();
+            } catch (IllegalMonitorStateException | IllegalAccessError ignore) {
+            }
+        }
+        try {
+            entityLocker.unlockShared(0);
+            fail();
+        } catch (IllegalMonitorStateException | IllegalAccessError ignore) {
+        }
+
+        entityLocker.unlock(0);
+        entityLocker.unlockShared(2 * PARTITIONS);
+        final Thread subThread = THREAD_CREATOR.startThread(() -> assertFalse(lockingDaemon.tryLockWithoutTime(3 * PARTITIONS)));
+        waitThread(subThread);
+
+        entityLocker.unlock(PARTITIONS);
+        final Thread otherThread = THREAD_CREATOR.startThread(() -> {
+            assertTrue(lockingDaemon.tryLockWithoutTime(3 * PARTITIONS));
+            entityLocker.unlock(3 * PARTITIONS);
+        });
+        waitThread(otherThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testEscalationDeferredWhileOthersHoldPartition() {
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lock(PARTITIONS);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlock(PARTITIONS);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        final List<Integer> entities = new ArrayList<>();
+        for (int i = 2; i < MIN_LOCKS_BEFORE_PARTITION + 2; ++i) {
+            entities.add(i * PARTITIONS);
+            lockingDaemon.lock(i * PARTITIONS);
+        }
+        assertEquals(MIN_LOCKS_BEFORE_PARTITION + 1, entityLocker.currentSize());
+
+        subThreadWaiter.countDown();
+        waitThread(subThread);
+
+        //Tried again at twice the holds
+        for (int i = MIN_LOCKS_BEFORE_PARTITION + 2; i < 2 * MIN_LOCKS_BEFORE_PARTITION + 2; ++i) {
+            entities.add(i * PARTITIONS);
+            lockingDaemon.lock(i * PARTITIONS);
+        }
+        assertEquals(0, entityLocker.currentSize());
+
+        entityLocker.unlockAll(entities);
+        assertFalse(entityLocker.isLockedByCurrentThread(0));
+    }
+
+    @Test
+    public void testWaitForEscalatedPartitionClosesCycle() throws InterceptedDeadlockException {
+        final List<Integer> entities = new ArrayList<>();
+        for (int i = 0; i < MIN_LOCKS_BEFORE_PARTITION; ++i) {
+            entities.add(i * PARTITIONS);
+        }
+        entityLocker.lockAll(entities);
+        assertEquals(0, entityLocker.currentSize());
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lock(1);
+            mainThreadWaiter.countDown();
+
+            lockingDaemon.lock(100 * PARTITIONS);
+            entityLocker.unlock(100 * PARTITIONS);
+            entityLocker.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.1);
+
+        try {
+            entityLocker.lock(1);
+            fail();
+        } catch (InterceptedDeadlockException e) {
+            assertEquals(Thread.currentThread(), e.failOwner());
+        }
+
+        entityLocker.downgrade(0);
+        entityLocker.unlockAll(entities);
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+}
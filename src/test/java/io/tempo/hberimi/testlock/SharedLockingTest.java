@@ -0,0 +1,224 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import io.tempo.hberimi.locker.impl.StripedEntityLocker;
+import io.tempo.hberimi.locker.impl.ThresholdEscalationPolicy;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+import io.tempo.hberimi.testutil.LockingDaemon;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class SharedLockingTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private EntityLocker<Integer> entityLocker;
+    private LockingDaemon<Integer> lockingDaemon;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new EntityLockerImpl<>();
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testReadersShareEntity() {
+        THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lockShared(1);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlockShared(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        assertTrue(lockingDaemon.tryLockShared(1));
+        assertFalse(entityLocker.isLockedByCurrentThread(1));
+
+        entityLocker.unlockShared(1);
+        assertFalse(lockingDaemon.tryLockWithoutTime(1));
+        subThreadWaiter.countDown();
+
+        assertTrue(lockingDaemon.tryLockWithTime(1, 1, TimeUnit.SECONDS));
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testReaderWaitsExclusiveOwner() {
+        lockingDaemon.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            assertFalse(lockingDaemon.tryLockShared(1));
+            mainThreadWaiter.countDown();
+
+            lockingDaemon.lockShared(1);
+            entityLocker.unlockShared(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        entityLocker.unlock(1);
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testDowngrade() {
+        lockingDaemon.lock(1);
+        lockingDaemon.downgrade(1);
+
+        assertFalse(entityLocker.isLockedByCurrentThread(1));
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            assertTrue(lockingDaemon.tryLockShared(1));
+            entityLocker.unlockShared(1);
+            assertFalse(lockingDaemon.tryLockWithoutTime(1));
+        });
+        waitThread(subThread);
+
+        entityLocker.unlockShared(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testDowngradeDoesNotEscalate() {
+        //Would stay escalated once the downgrade crossed the threshold
+        final EntityLockerImpl<Integer> escalatingLocker = new EntityLockerImpl<>(2);
+        escalatingLocker.setEscalationPolicy(new ThresholdEscalationPolicy(2, 1));
+        entityLocker = escalatingLocker;
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+
+        lockingDaemon.lock(1);
+        lockingDaemon.downgrade(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            assertTrue(lockingDaemon.tryLockWithoutTime(2));
+            entityLocker.unlock(2);
+        });
+        waitThread(subThread);
+
+        entityLocker.unlockShared(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void cannotDowngradeNotLockedEntity() throws InterceptedDeadlockException {
+        entityLocker.downgrade(1);
+    }
+
+    @Test(expected = IllegalAccessError.class)
+    public void cannotUnlockSharedByExclusiveOwner() {
+        lockingDaemon.lock(1);
+        entityLocker.unlockShared(1);
+    }
+
+    @Test
+    public void testSelfUpgradeIntercepted() {
+        lockingDaemon.lockShared(1);
+
+        try {
+            entityLocker.lock(1);
+            fail();
+        } catch (InterceptedDeadlockException e) {
+            assertEquals(Thread.currentThread(), e.failThread());
+        }
+
+        entityLocker.unlockShared(1);
+        assertTrue(lockingDaemon.tryGlobalLock());
+        entityLocker.globalUnlock();
+    }
+
+    @Test
+    public void testDeadlockThroughReaderIntercepted() {
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lock(2);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            lockingDaemon.lock(1);
+            entityLocker.unlock(1);
+            entityLocker.unlock(2);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        lockingDaemon.lockShared(1);
+        subThreadWaiter.countDown();
+        sleep(1);
+
+        try {
+            entityLocker.lockShared(2);
+            fail();
+        } catch (InterceptedDeadlockException e) {
+            assertEquals(Thread.currentThread(), e.failThread());
+            assertEquals(subThread, e.lockerThread());
+        }
+
+        entityLocker.unlockShared(1);
+        waitThread(subThread);
+    }
+
+    @Test
+    public void testGlobalLockWaitsReaders() {
+        THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lockShared(1);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlockShared(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        assertFalse(lockingDaemon.tryGlobalLock(100, TimeUnit.MILLISECONDS));
+        subThreadWaiter.countDown();
+
+        assertTrue(lockingDaemon.tryGlobalLock(1, TimeUnit.SECONDS));
+        entityLocker.globalUnlock();
+    }
+
+    @Test
+    public void testReadersShareCollidedStripe() {
+        entityLocker = new StripedEntityLocker<>(2);
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+
+        lockingDaemon.lockShared(0);
+        lockingDaemon.lockShared(2);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            assertTrue(lockingDaemon.tryLockShared(4));
+            entityLocker.unlockShared(4);
+            assertFalse(lockingDaemon.tryLockWithoutTime(6));
+        });
+        waitThread(subThread);
+
+        entityLocker.unlockShared(2);
+        try {
+            entityLocker.unlockShared(2);
+            fail();
+        } catch (IllegalMonitorStateException | IllegalAccessError ignore) {
+        }
+        entityLocker.unlockShared(0);
+        assertEquals(0, entityLocker.currentSize());
+    }
+}
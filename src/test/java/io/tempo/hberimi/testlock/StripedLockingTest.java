@@ -0,0 +1,123 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.impl.StripedEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+import io.tempo.hberimi.testutil.LockingDaemon;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class StripedLockingTest {
+    //Integer ids with the same parity share a stripe
+    private final static int STRIPES = 2;
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private EntityLocker<Integer> entityLocker;
+    private LockingDaemon<Integer> lockingDaemon;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new StripedEntityLocker<>(STRIPES);
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testCollidedEntitiesAreTrackedSeparately() {
+        lockingDaemon.lock(0);
+
+        assertTrue(entityLocker.isLockedByCurrentThread(0));
+        assertFalse(entityLocker.isLockedByCurrentThread(2));
+
+        lockingDaemon.lock(2);
+        lockingDaemon.lock(0);
+
+        entityLocker.unlock(0);
+        assertTrue(entityLocker.isLockedByCurrentThread(0));
+
+        entityLocker.unlock(0);
+        assertFalse(entityLocker.isLockedByCurrentThread(0));
+        assertTrue(entityLocker.isLockedByCurrentThread(2));
+
+        entityLocker.unlock(2);
+        assertFalse(entityLocker.isLockedByCurrentThread(2));
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void cannotUnlockNotLockedCollidedEntity() {
+        lockingDaemon.lock(0);
+        entityLocker.unlock(2);
+    }
+
+    @Test
+    public void testCollidedEntityWaitsStripeOwner() {
+        THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lock(0);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlock(0);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        assertFalse(lockingDaemon.tryLockWithoutTime(2));
+        assertTrue(lockingDaemon.tryLockWithoutTime(1));
+
+        subThreadWaiter.countDown();
+
+        assertTrue(lockingDaemon.tryLockWithTime(2, 1, TimeUnit.SECONDS));
+        entityLocker.unlock(2);
+        entityLocker.unlock(1);
+    }
+
+    @Test
+    public void testDeadlockOnCollidedStripesIntercepted() {
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lockingDaemon.lock(1);
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            lockingDaemon.lock(2);
+            entityLocker.unlock(2);
+            entityLocker.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        lockingDaemon.lock(0);
+        subThreadWaiter.countDown();
+        sleep(1);
+
+        try {
+            entityLocker.lock(3);
+            fail();
+        } catch (InterceptedDeadlockException e) {
+            assertEquals(Thread.currentThread(), e.failThread());
+            assertEquals(subThread, e.lockerThread());
+        }
+
+        entityLocker.unlock(0);
+        waitThread(subThread);
+    }
+}
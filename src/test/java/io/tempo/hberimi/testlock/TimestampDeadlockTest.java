@@ -0,0 +1,182 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.WaitDieStrategy;
+import io.tempo.hberimi.interceptor.WoundWaitStrategy;
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class TimestampDeadlockTest {
+    private final static int TEST_TIMEOUT = 10;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+    private CountDownLatch mainThreadWaiter;
+    private CountDownLatch subThreadWaiter;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        mainThreadWaiter = new CountDownLatch(1);
+        subThreadWaiter = new CountDownLatch(1);
+    }
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testYoungerRequesterDies() throws Exception {
+        final EntityLocker<Integer> entityLocker = new EntityLockerImpl<>(100, new WaitDieStrategy<>());
+        entityLocker.metrics().setEnabled(true);
+        entityLocker.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(entityLocker, 2);
+            try {
+                entityLocker.lock(1);
+                fail();
+            } catch (InterceptedDeadlockException e) {
+                assertSame(Thread.currentThread(), e.failThread());
+            }
+            mainThreadWaiter.countDown();
+
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlock(2);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+
+        //The older thread waits for the younger holder instead
+        final Thread releaser = THREAD_CREATOR.startThread(() -> {
+            sleep(0.05);
+            subThreadWaiter.countDown();
+        });
+        entityLocker.lock(2);
+        assertEquals(1, entityLocker.metrics().snapshot().deadlockInterceptions());
+
+        entityLocker.unlock(2);
+        entityLocker.unlock(1);
+        waitThread(subThread);
+        waitThread(releaser);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testRetriedVictimKeepsItsAge() throws Exception {
+        final EntityLocker<Integer> entityLocker = new EntityLockerImpl<>(100, new WaitDieStrategy<>());
+        final CountDownLatch retryWaiter = new CountDownLatch(1);
+        entityLocker.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(entityLocker, 2);
+            try {
+                entityLocker.lock(1);
+                fail();
+            } catch (InterceptedDeadlockException e) {
+                entityLocker.unlock(2);
+            }
+            mainThreadWaiter.countDown();
+
+            //Older than the thread started meanwhile, so the retry waits for it
+            waitingDaemon.await(retryWaiter);
+            lock(entityLocker, 2);
+            lock(entityLocker, 3);
+            entityLocker.unlock(3);
+            entityLocker.unlock(2);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        entityLocker.unlock(1);
+
+        final Thread youngerThread = THREAD_CREATOR.startThread(() -> {
+            lock(entityLocker, 3);
+            retryWaiter.countDown();
+            waitingDaemon.await(subThreadWaiter);
+            entityLocker.unlock(3);
+        });
+        waitingDaemon.await(retryWaiter);
+        sleep(0.05);
+
+        subThreadWaiter.countDown();
+        waitThread(youngerThread);
+        waitThread(subThread);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testOlderRequesterWoundsHolder() throws Exception {
+        final EntityLocker<Integer> entityLocker = new EntityLockerImpl<>(100, new WoundWaitStrategy<>());
+        final AtomicBoolean isWounded = new AtomicBoolean();
+        entityLocker.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(entityLocker, 2);
+            mainThreadWaiter.countDown();
+
+            //Younger, so it waits until the older thread wounds it
+            try {
+                entityLocker.lock(1);
+                entityLocker.unlock(1);
+            } catch (InterceptedDeadlockException e) {
+                assertSame(Thread.currentThread(), e.failThread());
+                isWounded.set(true);
+            }
+            entityLocker.unlock(2);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.05);
+
+        entityLocker.lock(2);
+        waitThread(subThread);
+        assertTrue(isWounded.get());
+
+        entityLocker.unlock(2);
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    @Test
+    public void testYoungerGlobalRequesterDies() throws Exception {
+        final EntityLocker<Integer> entityLocker = new EntityLockerImpl<>(100, new WaitDieStrategy<>());
+        entityLocker.lock(1);
+
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            lock(entityLocker, 2);
+
+            //Waits for the entities of the older main thread, so it may not wait at all
+            try {
+                entityLocker.globalLock();
+                fail();
+            } catch (InterceptedDeadlockException e) {
+                assertSame(Thread.currentThread(), e.failThread());
+            }
+            entityLocker.unlock(2);
+        });
+        waitThread(subThread);
+
+        entityLocker.globalLock();
+        entityLocker.globalUnlock();
+        entityLocker.unlock(1);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    private void lock(final EntityLocker<Integer> entityLocker, final int entityId) {
+        try {
+            entityLocker.lock(entityId);
+        } catch (InterceptedDeadlockException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
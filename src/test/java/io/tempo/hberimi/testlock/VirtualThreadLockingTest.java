@@ -0,0 +1,79 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.LockingDaemon;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class VirtualThreadLockingTest {
+    private final static int TEST_TIMEOUT = 30;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+    private final static int TASKS = 10_000;
+    private final static int ENTITIES = 16;
+
+    private EntityLocker<Integer> entityLocker;
+    private LockingDaemon<Integer> lockingDaemon;
+    private TestEntity[] entities;
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Before
+    public void setUp() {
+        entityLocker = new EntityLockerImpl<>();
+        lockingDaemon = new LockingDaemon<>(entityLocker);
+        entities = new TestEntity[ENTITIES];
+        for (int i = 0; i < ENTITIES; ++i) {
+            entities[i] = new TestEntity(i);
+        }
+    }
+
+    @Test
+    public void testEntitiesAreExclusiveOnPlatformThreads() throws InterruptedException {
+        assertEntitiesAreExclusive(Executors.newFixedThreadPool(64));
+    }
+
+    @Test
+    public void testEntitiesAreExclusiveOnVirtualThreads() throws Exception {
+        final ExecutorService executor;
+        try {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            Assume.assumeNoException("Virtual threads need JDK 21+", e);
+            return;
+        }
+
+        assertEntitiesAreExclusive(executor);
+    }
+
+    private void assertEntitiesAreExclusive(ExecutorService executor) throws InterruptedException {
+        for (int i = 0; i < TASKS; ++i) {
+            final TestEntity entity = entities[i % ENTITIES];
+            executor.execute(() -> {
+                lockingDaemon.lock(entity.id);
+                final int value = entity.value;
+                Thread.yield();
+                entity.value = value + 1;
+                entityLocker.unlock(entity.id);
+            });
+        }
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(TEST_TIMEOUT, TEST_TIME_UNIT));
+
+        for (final TestEntity entity : entities) {
+            assertEquals(TASKS / ENTITIES, entity.value);
+        }
+        assertEquals(0, entityLocker.currentSize());
+    }
+}
@@ -0,0 +1,162 @@
+package io.tempo.hberimi.testlock;
+
+import io.tempo.hberimi.interceptor.exception.InterceptedDeadlockException;
+import io.tempo.hberimi.locker.EntityLocker;
+import io.tempo.hberimi.locker.WaitStrategy;
+import io.tempo.hberimi.locker.impl.AdaptiveSpinWaitStrategy;
+import io.tempo.hberimi.locker.impl.EntityLockerImpl;
+import io.tempo.hberimi.locker.impl.FairWaitStrategy;
+import io.tempo.hberimi.locker.impl.ParkWaitStrategy;
+import io.tempo.hberimi.locker.impl.SpinWaitStrategy;
+import io.tempo.hberimi.locker.impl.StripedEntityLocker;
+import org.junit.*;
+import org.junit.rules.Timeout;
+import io.tempo.hberimi.testutil.WaitingDaemon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static io.tempo.hberimi.testutil.ThreadOps.*;
+
+public class WaitStrategyTest {
+    private final static int TEST_TIMEOUT = 20;
+    private final static TimeUnit TEST_TIME_UNIT = TimeUnit.SECONDS;
+    private final static int THREADS = 4;
+    private final static int INCREMENTS = 500;
+
+    private final WaitingDaemon waitingDaemon = new WaitingDaemon(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @Rule
+    public Timeout testTimeout = new Timeout(TEST_TIMEOUT, TEST_TIME_UNIT);
+
+    @After
+    public void checkThreadsException() throws Throwable {
+        checkException();
+    }
+
+    @Test
+    public void testEveryStrategyKeepsEntityExclusive() throws Exception {
+        for (final WaitStrategy waitStrategy : strategies()) {
+            assertExclusive(new EntityLockerImpl<>(100, waitStrategy));
+            assertExclusive(new StripedEntityLocker<>(16, 100, waitStrategy));
+        }
+    }
+
+    @Test
+    public void testEveryStrategyRespectsDeadline() throws Exception {
+        for (final WaitStrategy waitStrategy : strategies()) {
+            final EntityLocker<Integer> entityLocker = new EntityLockerImpl<>(100, waitStrategy);
+            final CountDownLatch mainThreadWaiter = new CountDownLatch(1);
+            final CountDownLatch subThreadWaiter = new CountDownLatch(1);
+
+            final Thread subThread = THREAD_CREATOR.startThread(() -> {
+                lock(entityLocker, 1);
+                mainThreadWaiter.countDown();
+
+                waitingDaemon.await(subThreadWaiter);
+                entityLocker.unlock(1);
+            });
+            waitingDaemon.await(mainThreadWaiter);
+
+            final long startTime = System.nanoTime();
+            assertFalse(entityLocker.tryLock(1, 50, TimeUnit.MILLISECONDS));
+            assertTrue(System.nanoTime() - startTime >= TimeUnit.MILLISECONDS.toNanos(50));
+            assertFalse(entityLocker.tryLock(1));
+            assertFalse(entityLocker.tryGlobalLock(50, TimeUnit.MILLISECONDS));
+
+            subThreadWaiter.countDown();
+            waitThread(subThread);
+            assertTrue(entityLocker.tryGlobalLock(5, TimeUnit.SECONDS));
+            entityLocker.globalUnlock();
+        }
+    }
+
+    @Test
+    public void testFairStrategyGrantsInArrivalOrder() throws Exception {
+        final EntityLocker<Integer> entityLocker = new EntityLockerImpl<>(100, FairWaitStrategy.INSTANCE);
+        final List<Integer> grantOrder = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> waiters = new ArrayList<>();
+
+        entityLocker.lock(1);
+        for (int i = 0; i < THREADS; ++i) {
+            final int waiter = i;
+            waiters.add(THREAD_CREATOR.startThread(() -> {
+                lock(entityLocker, 1);
+                grantOrder.add(waiter);
+                entityLocker.unlock(1);
+            }));
+            sleep(0.05);
+        }
+
+        entityLocker.unlock(1);
+        for (final Thread waiter : waiters) {
+            waitThread(waiter);
+        }
+
+        assertEquals(Arrays.asList(0, 1, 2, 3), grantOrder);
+    }
+
+    @Test
+    public void testAdaptiveSpinLearnsWaits() throws Exception {
+        final AdaptiveSpinWaitStrategy waitStrategy = new AdaptiveSpinWaitStrategy();
+        final EntityLocker<Integer> entityLocker = new EntityLockerImpl<>(100, waitStrategy);
+        final CountDownLatch mainThreadWaiter = new CountDownLatch(1);
+
+        entityLocker.lock(1);
+        final Thread subThread = THREAD_CREATOR.startThread(() -> {
+            mainThreadWaiter.countDown();
+            lock(entityLocker, 1);
+            entityLocker.unlock(1);
+        });
+        waitingDaemon.await(mainThreadWaiter);
+        sleep(0.05);
+
+        entityLocker.unlock(1);
+        waitThread(subThread);
+
+        assertTrue(waitStrategy.averageWaitNanos() > 0);
+    }
+
+    private void assertExclusive(final EntityLocker<Integer> entityLocker) {
+        final TestEntity entity = new TestEntity(1);
+        final List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < THREADS; ++i) {
+            threads.add(THREAD_CREATOR.startThread(() -> {
+                for (int j = 0; j < INCREMENTS; ++j) {
+                    lock(entityLocker, entity.id);
+                    ++entity.value;
+                    entityLocker.unlock(entity.id);
+                }
+            }));
+        }
+        for (final Thread thread : threads) {
+            waitThread(thread);
+        }
+
+        assertEquals(THREADS * INCREMENTS, entity.value);
+        assertEquals(0, entityLocker.currentSize());
+    }
+
+    private List<WaitStrategy> strategies() {
+        return Arrays.asList(
+                ParkWaitStrategy.INSTANCE,
+                new SpinWaitStrategy(100),
+                new SpinWaitStrategy(100, 10),
+                new AdaptiveSpinWaitStrategy(),
+                FairWaitStrategy.INSTANCE);
+    }
+
+    private void lock(final EntityLocker<Integer> entityLocker, final int entityId) {
+        try {
+            entityLocker.lock(entityId);
+        } catch (InterceptedDeadlockException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
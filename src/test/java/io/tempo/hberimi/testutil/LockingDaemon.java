@@ -42,6 +42,32 @@ public class LockingDaemon<T> {
         return false;
     }
 
+    public void lockShared(T entityId) {
+        try {
+            entityLocker.lockShared(entityId);
+        } catch (InterceptedDeadlockException e) {
+            fail();
+        }
+    }
+
+    public boolean tryLockShared(T entityId) {
+        try {
+            return entityLocker.tryLockShared(entityId);
+        } catch (InterceptedDeadlockException e) {
+            fail();
+        }
+
+        return false;
+    }
+
+    public void downgrade(T entityId) {
+        try {
+            entityLocker.downgrade(entityId);
+        } catch (InterceptedDeadlockException e) {
+            fail();
+        }
+    }
+
     public void globalLock() {
         try {
             entityLocker.globalLock();